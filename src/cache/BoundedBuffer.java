@@ -0,0 +1,72 @@
+package cache;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * Fixed size multi-producer, single-consumer ring. Producers claim a slot by a CAS on {@code writeCounter}
+ * and then publish the element into it; the consumer, which always holds the cache's eviction lock, takes
+ * elements in claim order and stops at a slot that was claimed but not published yet.
+ *
+ * {@link #offer} never waits: it reports a full ring or a lost CAS and leaves it to the caller whether to
+ * drop the element (reads) or to drain and retry (writes).
+ */
+final class BoundedBuffer<E> {
+
+    static final int SUCCESS = 0;
+    static final int FULL = 1;
+    static final int FAILED = 2;
+
+    private final AtomicReferenceArray<E> buffer;
+    private final int mask;
+    private final AtomicLong writeCounter = new AtomicLong();
+    private volatile long readCounter;
+
+    /**
+     * @param capacity a power of two
+     */
+    BoundedBuffer(int capacity) {
+        if(capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("Capacity must be a power of two:" + capacity);
+        }
+        this.buffer = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+    }
+
+    int offer(E e) {
+        long head = readCounter;
+        long tail = writeCounter.get();
+        if(tail - head >= buffer.length()) {
+            return FULL;
+        }
+        if(writeCounter.compareAndSet(tail,tail + 1)) {
+            buffer.lazySet((int) (tail & mask),e);
+            return SUCCESS;
+        }
+        return FAILED;
+    }
+
+    /**
+     * Consumer side, only ever called by one thread at a time.
+     */
+    void drainTo(Consumer<? super E> consumer) {
+        long head = readCounter;
+        long tail = writeCounter.get();
+        while(head != tail) {
+            int index = (int) (head & mask);
+            E e = buffer.get(index);
+            if(e == null) {
+                break;
+            }
+            buffer.lazySet(index,null);
+            consumer.accept(e);
+            head++;
+        }
+        readCounter = head;
+    }
+
+    boolean isEmpty() {
+        return writeCounter.get() == readCounter;
+    }
+}
@@ -0,0 +1,775 @@
+package cache;
+
+import concurrent.MyConcurrentHashMap;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.ToLongBiFunction;
+
+/**
+ * Thread safe cache bounded by a maximum weight, evicting with W-TinyLFU, on top of {@link MyConcurrentHashMap}.
+ *
+ * Reads and writes go straight to the map and only record what happened: a read offers the node to a
+ * lossy {@link StripedBuffer}, a write queues a task into a lossless {@link BoundedBuffer}. The eviction
+ * policy is only ever updated by one thread at a time, holding {@code evictionLock}, when it replays those
+ * buffers in batches. A {@code get} therefore never blocks on the policy: it at most {@code tryLock}s to
+ * drain the buffers when they fill up.
+ *
+ * The policy is W-TinyLFU: new entries go to a small LRU window (1% of the maximum), and entries pushed out
+ * of the window compete with the LRU victim of the main space, a segmented LRU of probation and protected
+ * (80%) entries. Whichever of the two a {@link FrequencySketch} has seen more often recently stays. This
+ * keeps one-hit wonders from flushing out the frequently used entries, while the window still gives new,
+ * bursty keys a chance.
+ *
+ * Options are set through the setters before the cache is shared between threads. Null keys and values are
+ * not supported.
+ */
+public class BoundedCache<K,V> {
+
+    private static final int WRITE_BUFFER_CAPACITY = 1 << 10;
+    private static final double WINDOW_PERCENT = 0.01;
+    private static final double PROTECTED_PERCENT = 0.80;
+    private static final int ADMIT_HASHDOS_THRESHOLD = 6;
+
+    private static final int IDLE = 0, REQUIRED = 1, PROCESSING = 2;
+    private static final int WINDOW = 1, PROBATION = 2, PROTECTED = 3;
+    private static final int ALIVE = 0, RETIRED = 1, DEAD = 2;
+
+    private final MyConcurrentHashMap<K,Node<K,V>> data = new MyConcurrentHashMap<>();
+    private final ToLongBiFunction<? super K,? super V> weigher;
+    private final boolean weighted;
+
+    private final StripedBuffer<Node<K,V>> readBuffer = new StripedBuffer<>();
+    private final BoundedBuffer<Runnable> writeBuffer = new BoundedBuffer<>(WRITE_BUFFER_CAPACITY);
+    private final AtomicInteger drainStatus = new AtomicInteger(IDLE);
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    private volatile long expireAfterWriteNanos;
+    private volatile long expireAfterAccessNanos;
+    private volatile LongSupplier ticker = System::nanoTime;
+    private volatile RemovalListener<? super K,? super V> removalListener;
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+    private final LongAdder evictionWeight = new LongAdder();
+
+    // guarded by evictionLock
+    private final long maximum;
+    private final long windowMaximum;
+    private final long protectedMaximum;
+    private long weightedSize;
+    private long windowWeightedSize;
+    private long protectedWeightedSize;
+    private final FrequencySketch sketch;
+    private final NodeDeque<K,V> window = new NodeDeque<>(false);
+    private final NodeDeque<K,V> probation = new NodeDeque<>(false);
+    private final NodeDeque<K,V> protectedDeque = new NodeDeque<>(false);
+    private final NodeDeque<K,V> writeOrder = new NodeDeque<>(true);
+    private final List<Removal<K,V>> pendingRemovals = new ArrayList<>();
+
+    //<----------------------------------------- Constructors ------------------------------------------>//
+
+    /**
+     * @param maximumWeight the most weight the cache holds, as given by {@code weigher} per entry
+     */
+    public BoundedCache(long maximumWeight,ToLongBiFunction<? super K,? super V> weigher) {
+        this(maximumWeight,weigher,true);
+    }
+
+    /**
+     * Cache of at most {@code maximumSize} entries.
+     */
+    public BoundedCache(long maximumSize) {
+        this(maximumSize,(k,v) -> 1,false);
+    }
+
+    /**
+     * The sketch is sized by the number of entries. Without a weigher that is the maximum; with one the
+     * maximum says nothing about it, so the sketch starts small and grows with the map.
+     */
+    private BoundedCache(long maximumWeight,ToLongBiFunction<? super K,? super V> weigher,boolean weighted) {
+        if(maximumWeight<0) {
+            throw new IllegalArgumentException("Illegal maximum weight:" + maximumWeight);
+        }
+        if(weigher==null) {
+            throw new IllegalArgumentException("Weigher is null");
+        }
+        this.maximum = maximumWeight;
+        this.weigher = weigher;
+        this.weighted = weighted;
+        this.windowMaximum = Math.min(maximumWeight,Math.max(1,(long) (maximumWeight * WINDOW_PERCENT)));
+        this.protectedMaximum = (long) ((maximumWeight - windowMaximum) * PROTECTED_PERCENT);
+        this.sketch = new FrequencySketch(weighted ? 0 : maximumWeight);
+    }
+
+    //<----------------------------------------- Configuration ---------------------------------------->//
+
+    /**
+     * Entries expire this long after they were created or their value was last replaced; 0 disables it.
+     */
+    public void setExpireAfterWrite(long duration,TimeUnit unit) {
+        this.expireAfterWriteNanos = toNanos(duration,unit);
+    }
+
+    /**
+     * Entries expire this long after they were last read or written; 0 disables it.
+     */
+    public void setExpireAfterAccess(long duration,TimeUnit unit) {
+        this.expireAfterAccessNanos = toNanos(duration,unit);
+    }
+
+    public void setRemovalListener(RemovalListener<? super K,? super V> removalListener) {
+        this.removalListener = removalListener;
+    }
+
+    /**
+     * Source of the current time in nanoseconds for expiry, {@link System#nanoTime} by default.
+     */
+    public void setTicker(LongSupplier ticker) {
+        if(ticker==null) {
+            throw new IllegalArgumentException("Ticker is null");
+        }
+        this.ticker = ticker;
+    }
+
+    //<----------------------------------------- Public Methods --------------------------------------->//
+
+    /**
+     * Value for {@code key}, or null if it is absent or expired. Only records the read; the policy sees it
+     * when the read buffer is next drained.
+     */
+    public V getIfPresent(Object key) {
+        Node<K,V> node = data.get(key);
+        if(node==null) {
+            missCount.increment();
+            afterMiss();
+            return null;
+        }
+        long now = ticker.getAsLong();
+        if(hasExpired(node,now)) {
+            missCount.increment();
+            scheduleDrain();
+            return null;
+        }
+        V value = node.value;
+        if(expireAfterAccessNanos>0) {
+            node.accessTime = now;
+        }
+        hitCount.increment();
+        afterRead(node);
+        return value;
+    }
+
+    /**
+     * Value for {@code key}, computing and caching it with {@code loader} if it is absent or expired. The
+     * loader runs at most once per key at a time, while holding the map's bucket lock, so it should be
+     * quick and must not touch this cache. A null result caches nothing.
+     */
+    public V get(K key,Function<? super K,? extends V> loader) {
+        Objects.requireNonNull(key);
+        Objects.requireNonNull(loader);
+        V value = getIfPresent(key);
+        if(value!=null) {
+            return value;
+        }
+        long now = ticker.getAsLong();
+        Node<K,V>[] result = newNodeHolder();
+        Node<K,V> node = data.compute(key,(k,existing) -> {
+            if(existing!=null && !hasExpired(existing,now)) {
+                return existing;
+            }
+            V loaded = loader.apply(k);
+            if(loaded==null) {
+                if(existing!=null) {
+                    existing.state = RETIRED;
+                    result[1] = existing;
+                }
+                return null;
+            }
+            if(existing!=null) {
+                result[1] = existing.copy();
+                existing.update(loaded,weigh(k,loaded),now);
+                result[0] = existing;
+                return existing;
+            }
+            result[0] = new Node<>(k,loaded,weigh(k,loaded),now);
+            return result[0];
+        });
+        afterCompute(result,RemovalCause.EXPIRED);
+        return node==null ? null : node.value;
+    }
+
+    /**
+     * Maps {@code key} to {@code value}, replacing any previous value.
+     */
+    public void put(K key,V value) {
+        Objects.requireNonNull(key);
+        Objects.requireNonNull(value);
+        long weight = weigh(key,value);
+        long now = ticker.getAsLong();
+        Node<K,V>[] result = newNodeHolder();
+        data.compute(key,(k,existing) -> {
+            if(existing==null) {
+                return result[0] = new Node<>(k,value,weight,now);
+            }
+            result[1] = existing.copy();
+            existing.update(value,weight,now);
+            result[0] = existing;
+            return existing;
+        });
+        afterCompute(result,RemovalCause.REPLACED);
+    }
+
+    public void invalidate(Object key) {
+        Node<K,V> node = data.remove(key);
+        if(node!=null) {
+            node.state = RETIRED;
+            afterWrite(() -> onRemove(node));
+            notifyRemoval(node.key,node.value,RemovalCause.EXPLICIT);
+        }
+    }
+
+    public void invalidateAll() {
+        for(K key : snapshotKeys()) {
+            invalidate(key);
+        }
+    }
+
+    /**
+     * Number of entries in the map, which may still include expired entries and entries that are about
+     * to be evicted.
+     */
+    public long estimatedSize() {
+        return data.size();
+    }
+
+    /**
+     * Total weight of the entries the policy knows about, after replaying the pending buffers.
+     */
+    public long weightedSize() {
+        cleanUp();
+        evictionLock.lock();
+        try {
+            return weightedSize;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    public CacheStats stats() {
+        return new CacheStats(hitCount.sum(),missCount.sum(),evictionCount.sum(),evictionWeight.sum());
+    }
+
+    /**
+     * Replays the buffers and performs pending expiry and eviction on the calling thread right away, instead
+     * of waiting for later reads and writes to do it.
+     */
+    public void cleanUp() {
+        List<Removal<K,V>> removals;
+        evictionLock.lock();
+        try {
+            runMaintenance();
+            removals = takePendingRemovals();
+        } finally {
+            evictionLock.unlock();
+        }
+        dispatchRemovals(removals);
+    }
+
+    //<------------------------------------ Recording reads and writes -------------------------------->//
+
+    private void afterRead(Node<K,V> node) {
+        int result = readBuffer.offer(node);
+        if(result==BoundedBuffer.FULL) {
+            scheduleDrain();
+        } else if(drainStatus.get()==REQUIRED) {
+            tryMaintenance();
+        }
+    }
+
+    private void afterMiss() {
+        if(drainStatus.get()==REQUIRED) {
+            tryMaintenance();
+        }
+    }
+
+    /**
+     * Queues a policy update. The write buffer never drops a task: if it is full the writer drains it
+     * itself, blocking on the eviction lock, which also applies back pressure to writers outrunning the policy.
+     */
+    private void afterWrite(Runnable task) {
+        while(true) {
+            int result = writeBuffer.offer(task);
+            if(result==BoundedBuffer.SUCCESS) {
+                break;
+            }
+            if(result==BoundedBuffer.FULL) {
+                cleanUp();
+            }
+        }
+        scheduleDrain();
+    }
+
+    private void afterCompute(Node<K,V>[] result,RemovalCause replacedCause) {
+        Node<K,V> node = result[0], old = result[1];
+        if(node!=null && old==null) {
+            afterWrite(() -> onAdd(node));
+        } else if(node!=null) {
+            afterWrite(() -> onUpdate(node));
+            notifyRemoval(old.key,old.value,hasExpired(old,node.writeTime) ? RemovalCause.EXPIRED : replacedCause);
+        } else if(old!=null) {
+            afterWrite(() -> onRemove(old));
+            notifyRemoval(old.key,old.value,RemovalCause.EXPIRED);
+        }
+    }
+
+    private void scheduleDrain() {
+        drainStatus.set(REQUIRED);
+        tryMaintenance();
+    }
+
+    /**
+     * Drains if nobody else is. A thread that finds the lock taken leaves the status at {@code REQUIRED},
+     * which the current drainer checks again after releasing the lock, so no queued work is left behind.
+     */
+    private void tryMaintenance() {
+        while(drainStatus.get()!=IDLE && evictionLock.tryLock()) {
+            List<Removal<K,V>> removals;
+            try {
+                runMaintenance();
+                removals = takePendingRemovals();
+            } finally {
+                evictionLock.unlock();
+            }
+            dispatchRemovals(removals);
+        }
+    }
+
+    //<---------------------------------------- Policy (evictionLock) --------------------------------->//
+
+    private void runMaintenance() {
+        do {
+            drainStatus.set(PROCESSING);
+            readBuffer.drainTo(this::onAccess);
+            writeBuffer.drainTo(Runnable::run);
+            expireEntries(ticker.getAsLong());
+            evictEntries();
+        } while(!drainStatus.compareAndSet(PROCESSING,IDLE));
+    }
+
+    private void onAdd(Node<K,V> node) {
+        if(node.state!=ALIVE) {
+            node.state = DEAD;
+            return;
+        }
+        node.policyWeight = node.weight;
+        weightedSize += node.policyWeight;
+        windowWeightedSize += node.policyWeight;
+        node.queueType = WINDOW;
+        window.addLast(node);
+        writeOrder.addLast(node);
+        if(weighted) {
+            sketch.ensureCapacity(data.size());
+        }
+        sketch.increment(node.key);
+    }
+
+    private void onUpdate(Node<K,V> node) {
+        if(node.queueType==0) {
+            return;
+        }
+        long delta = node.weight - node.policyWeight;
+        node.policyWeight = node.weight;
+        weightedSize += delta;
+        if(node.queueType==WINDOW) {
+            windowWeightedSize += delta;
+        } else if(node.queueType==PROTECTED) {
+            protectedWeightedSize += delta;
+        }
+        writeOrder.moveToBack(node);
+        onAccess(node);
+    }
+
+    private void onRemove(Node<K,V> node) {
+        if(node.state==DEAD) {
+            return;
+        }
+        unlink(node);
+        node.state = DEAD;
+    }
+
+    /**
+     * Replays one read: bumps the key's frequency and moves the node within the segmented LRU, promoting
+     * it from probation to protected and demoting the protected LRU entry if that overflows.
+     */
+    private void onAccess(Node<K,V> node) {
+        if(node.queueType==0) {
+            return;
+        }
+        sketch.increment(node.key);
+        if(node.queueType==WINDOW) {
+            window.moveToBack(node);
+        } else if(node.queueType==PROBATION) {
+            probation.remove(node);
+            node.queueType = PROTECTED;
+            protectedDeque.addLast(node);
+            protectedWeightedSize += node.policyWeight;
+            while(protectedWeightedSize>protectedMaximum) {
+                Node<K,V> demoted = protectedDeque.peekFirst();
+                if(demoted==null || demoted==node) {
+                    break;
+                }
+                protectedDeque.remove(demoted);
+                protectedWeightedSize -= demoted.policyWeight;
+                demoted.queueType = PROBATION;
+                probation.addLast(demoted);
+            }
+        } else {
+            protectedDeque.moveToBack(node);
+        }
+    }
+
+    private void expireEntries(long now) {
+        if(expireAfterAccessNanos>0) {
+            expireAccessOrder(window,now);
+            expireAccessOrder(probation,now);
+            expireAccessOrder(protectedDeque,now);
+        }
+        if(expireAfterWriteNanos>0) {
+            Node<K,V> node;
+            while((node = writeOrder.peekFirst())!=null && hasExpired(node,now)) {
+                if(!evictNode(node,RemovalCause.EXPIRED,now)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * The deques are only approximately in access order, since reads are sampled, so this stops at the
+     * first entry that has not expired.
+     */
+    private void expireAccessOrder(NodeDeque<K,V> deque,long now) {
+        Node<K,V> node;
+        while((node = deque.peekFirst())!=null && hasExpired(node,now)) {
+            if(!evictNode(node,RemovalCause.EXPIRED,now)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Moves the window's overflow to the tail of probation, where it becomes the candidates, and then evicts
+     * until the cache fits: each candidate faces the probation LRU victim and only stays if the sketch has
+     * seen it more often.
+     */
+    private void evictEntries() {
+        Node<K,V> candidate = null;
+        Node<K,V> node;
+        while(windowWeightedSize>windowMaximum && (node = window.peekFirst())!=null) {
+            window.remove(node);
+            windowWeightedSize -= node.policyWeight;
+            node.queueType = PROBATION;
+            probation.addLast(node);
+            if(candidate==null) {
+                candidate = node;
+            }
+        }
+        while(weightedSize>maximum) {
+            Node<K,V> victim = probation.peekFirst();
+            if(victim==null) {
+                victim = protectedDeque.peekFirst();
+            }
+            if(victim==null) {
+                victim = window.peekFirst();
+            }
+            if(victim==null) {
+                break;
+            }
+            if(candidate==null || victim==candidate || victim.queueType!=PROBATION) {
+                if(victim==candidate) {
+                    candidate = candidate.nextInAccess;
+                }
+                evictNode(victim,RemovalCause.SIZE,0);
+            } else if(candidate.policyWeight>maximum || !admit(candidate.key,victim.key)) {
+                Node<K,V> next = candidate.nextInAccess;
+                evictNode(candidate,RemovalCause.SIZE,0);
+                candidate = next;
+            } else {
+                evictNode(victim,RemovalCause.SIZE,0);
+            }
+        }
+    }
+
+    /**
+     * TinyLFU admission. A candidate that is only as frequent as the victim is rejected, except that a
+     * warm candidate is let in now and then at random, so an attacker cannot pin a victim by flooding its
+     * sketch counters.
+     */
+    private boolean admit(K candidateKey,K victimKey) {
+        int victimFrequency = sketch.frequency(victimKey);
+        int candidateFrequency = sketch.frequency(candidateKey);
+        if(candidateFrequency>victimFrequency) {
+            return true;
+        }
+        if(candidateFrequency<ADMIT_HASHDOS_THRESHOLD) {
+            return false;
+        }
+        return (ThreadLocalRandom.current().nextInt() & 127) == 0;
+    }
+
+    /**
+     * Removes the node from the map, if it is still mapped and, for expiry, still expired, and from the
+     * policy. Returns false if the node is alive again (it was renewed meanwhile) and so was kept.
+     */
+    private boolean evictNode(Node<K,V> node,RemovalCause cause,long now) {
+        boolean[] removed = new boolean[1];
+        data.computeIfPresent(node.key,(k,n) -> {
+            if(n!=node) {
+                return n;
+            }
+            if(cause==RemovalCause.EXPIRED && !hasExpired(n,now)) {
+                return n;
+            }
+            n.state = RETIRED;
+            removed[0] = true;
+            return null;
+        });
+        if(!removed[0] && node.state==ALIVE && cause==RemovalCause.EXPIRED) {
+            return false;
+        }
+        unlink(node);
+        node.state = DEAD;
+        if(removed[0]) {
+            evictionCount.increment();
+            evictionWeight.add(node.policyWeight);
+            if(removalListener!=null) {
+                pendingRemovals.add(new Removal<>(node.key,node.value,cause));
+            }
+        }
+        return true;
+    }
+
+    private void unlink(Node<K,V> node) {
+        switch(node.queueType) {
+            case WINDOW:
+                window.remove(node);
+                windowWeightedSize -= node.policyWeight;
+                break;
+            case PROBATION:
+                probation.remove(node);
+                break;
+            case PROTECTED:
+                protectedDeque.remove(node);
+                protectedWeightedSize -= node.policyWeight;
+                break;
+            default:
+                return;
+        }
+        writeOrder.remove(node);
+        weightedSize -= node.policyWeight;
+        node.queueType = 0;
+    }
+
+    //<--------------------------------- Private Helper methods --------------------------------------->//
+
+    private boolean hasExpired(Node<K,V> node,long now) {
+        long afterWrite = expireAfterWriteNanos, afterAccess = expireAfterAccessNanos;
+        return (afterWrite>0 && now - node.writeTime>=afterWrite) || (afterAccess>0 && now - node.accessTime>=afterAccess);
+    }
+
+    private long weigh(K key,V value) {
+        long weight = weigher.applyAsLong(key,value);
+        if(weight<0) {
+            throw new IllegalArgumentException("Negative weight:" + weight);
+        }
+        return weight;
+    }
+
+    private void notifyRemoval(K key,V value,RemovalCause cause) {
+        RemovalListener<? super K,? super V> listener = removalListener;
+        if(listener!=null) {
+            listener.onRemoval(key,value,cause);
+        }
+    }
+
+    /**
+     * Evictions are collected while holding the eviction lock and reported once it is released, so the
+     * listener may call back into the cache.
+     */
+    private List<Removal<K,V>> takePendingRemovals() {
+        if(pendingRemovals.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Removal<K,V>> removals = new ArrayList<>(pendingRemovals);
+        pendingRemovals.clear();
+        return removals;
+    }
+
+    private void dispatchRemovals(List<Removal<K,V>> removals) {
+        for(Removal<K,V> removal : removals) {
+            notifyRemoval(removal.key,removal.value,removal.cause);
+        }
+    }
+
+    private List<K> snapshotKeys() {
+        List<K> keys = new ArrayList<>();
+        data.forEach((k,v) -> keys.add(k));
+        return keys;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K,V> Node<K,V>[] newNodeHolder() {
+        return (Node<K,V>[]) new Node<?,?>[2];
+    }
+
+    private static long toNanos(long duration,TimeUnit unit) {
+        if(duration<0) {
+            throw new IllegalArgumentException("Illegal duration:" + duration);
+        }
+        return unit.toNanos(duration);
+    }
+
+    /**
+     * Cache entry. The value and timestamps are written under the map's bucket lock and read without it;
+     * the links, queue and policy weight belong to the policy and are only touched under the eviction lock.
+     */
+    private static final class Node<K,V> {
+        final K key;
+        volatile V value;
+        volatile long weight;
+        volatile long writeTime;
+        volatile long accessTime;
+        volatile int state;
+
+        Node<K,V> prevInAccess, nextInAccess;
+        Node<K,V> prevInWrite, nextInWrite;
+        int queueType;
+        long policyWeight;
+
+        Node(K key,V value,long weight,long now) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+            this.writeTime = now;
+            this.accessTime = now;
+        }
+
+        void update(V value,long weight,long now) {
+            this.value = value;
+            this.weight = weight;
+            this.writeTime = now;
+            this.accessTime = now;
+        }
+
+        /**
+         * Detached copy holding the current value, handed to the removal listener.
+         */
+        Node<K,V> copy() {
+            Node<K,V> copy = new Node<>(key,value,weight,writeTime);
+            copy.accessTime = accessTime;
+            return copy;
+        }
+    }
+
+    /**
+     * Doubly linked list threaded through the nodes themselves, either through the access order links or,
+     * for {@code writeOrder}, through the write order links, so one node can sit in one of each.
+     */
+    private static final class NodeDeque<K,V> {
+        private final boolean writeOrder;
+        private Node<K,V> first, last;
+
+        NodeDeque(boolean writeOrder) {
+            this.writeOrder = writeOrder;
+        }
+
+        Node<K,V> peekFirst() {
+            return first;
+        }
+
+        void addLast(Node<K,V> node) {
+            Node<K,V> l = last;
+            setPrev(node,l);
+            setNext(node,null);
+            last = node;
+            if(l==null) {
+                first = node;
+            } else {
+                setNext(l,node);
+            }
+        }
+
+        void remove(Node<K,V> node) {
+            Node<K,V> prev = getPrev(node), next = getNext(node);
+            if(prev==null) {
+                if(first!=node) {
+                    return;
+                }
+                first = next;
+            } else {
+                setNext(prev,next);
+                setPrev(node,null);
+            }
+            if(next==null) {
+                last = prev;
+            } else {
+                setPrev(next,prev);
+                setNext(node,null);
+            }
+        }
+
+        void moveToBack(Node<K,V> node) {
+            if(node!=last) {
+                remove(node);
+                addLast(node);
+            }
+        }
+
+        private Node<K,V> getPrev(Node<K,V> node) {
+            return writeOrder ? node.prevInWrite : node.prevInAccess;
+        }
+
+        private Node<K,V> getNext(Node<K,V> node) {
+            return writeOrder ? node.nextInWrite : node.nextInAccess;
+        }
+
+        private void setPrev(Node<K,V> node,Node<K,V> prev) {
+            if(writeOrder) {
+                node.prevInWrite = prev;
+            } else {
+                node.prevInAccess = prev;
+            }
+        }
+
+        private void setNext(Node<K,V> node,Node<K,V> next) {
+            if(writeOrder) {
+                node.nextInWrite = next;
+            } else {
+                node.nextInAccess = next;
+            }
+        }
+    }
+
+    private static final class Removal<K,V> {
+        final K key;
+        final V value;
+        final RemovalCause cause;
+
+        Removal(K key,V value,RemovalCause cause) {
+            this.key = key;
+            this.value = value;
+            this.cause = cause;
+        }
+    }
+}
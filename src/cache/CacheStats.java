@@ -0,0 +1,69 @@
+package cache;
+
+/**
+ * Immutable snapshot of a {@link BoundedCache}'s counters.
+ */
+public final class CacheStats {
+
+    private final long hitCount;
+    private final long missCount;
+    private final long evictionCount;
+    private final long evictionWeight;
+
+    CacheStats(long hitCount, long missCount, long evictionCount, long evictionWeight) {
+        this.hitCount = hitCount;
+        this.missCount = missCount;
+        this.evictionCount = evictionCount;
+        this.evictionWeight = evictionWeight;
+    }
+
+    public long hitCount() {
+        return hitCount;
+    }
+
+    public long missCount() {
+        return missCount;
+    }
+
+    public long requestCount() {
+        return hitCount + missCount;
+    }
+
+    /**
+     * Hits over requests, 1 when there were no requests yet.
+     */
+    public double hitRate() {
+        long requests = requestCount();
+        return requests == 0 ? 1.0 : (double) hitCount / requests;
+    }
+
+    public double missRate() {
+        long requests = requestCount();
+        return requests == 0 ? 0.0 : (double) missCount / requests;
+    }
+
+    /**
+     * Entries evicted for size or because they expired; explicit removals and replacements do not count.
+     */
+    public long evictionCount() {
+        return evictionCount;
+    }
+
+    public long evictionWeight() {
+        return evictionWeight;
+    }
+
+    /**
+     * Counts accumulated since {@code other} was taken.
+     */
+    public CacheStats minus(CacheStats other) {
+        return new CacheStats(Math.max(0, hitCount - other.hitCount), Math.max(0, missCount - other.missCount),
+                Math.max(0, evictionCount - other.evictionCount), Math.max(0, evictionWeight - other.evictionWeight));
+    }
+
+    @Override
+    public String toString() {
+        return String.format("hits=%d misses=%d hitRate=%.4f evictions=%d evictionWeight=%d",
+                hitCount, missCount, hitRate(), evictionCount, evictionWeight);
+    }
+}
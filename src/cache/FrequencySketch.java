@@ -0,0 +1,118 @@
+package cache;
+
+/**
+ * Count-min sketch of how often keys were seen recently, the admission filter of TinyLFU. Every key maps to
+ * four 4-bit counters packed into a {@code long[]}, its frequency is the smallest of them, so collisions can
+ * only make a key look more popular than it is. Once {@code sampleSize} increments have been recorded all
+ * counters are halved, which lets the sketch forget keys that used to be popular.
+ *
+ * Not thread safe; the cache only touches it under its eviction lock.
+ */
+final class FrequencySketch {
+
+    private static final long[] SEED = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long ONE_MASK = 0x1111111111111111L;
+    private static final int MAX_FREQUENCY = 15;
+
+    private long[] table;
+    private int tableMask;
+    private int sampleSize;
+    private int size;
+
+    /**
+     * @param maximumSize expected number of entries in the cache, which sizes the sketch for it
+     */
+    FrequencySketch(long maximumSize) {
+        ensureCapacity(maximumSize);
+    }
+
+    /**
+     * Grows the sketch for {@code maximumSize} entries, forgetting what it counted so far. Does nothing if it
+     * is large enough already, so it is cheap to call for every new entry.
+     */
+    void ensureCapacity(long maximumSize) {
+        int maximum = (int) Math.min(Math.max(maximumSize,1),Integer.MAX_VALUE >>> 1);
+        int length = Math.max(tableSizeFor(maximum),8);
+        if(table != null && table.length >= length) {
+            return;
+        }
+        table = new long[length];
+        tableMask = length - 1;
+        sampleSize = (int) Math.min(10L * maximum,Integer.MAX_VALUE);
+        size = 0;
+    }
+
+    /**
+     * Estimated number of times {@code key} was seen since the last halving, at most 15.
+     */
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        int frequency = MAX_FREQUENCY;
+        for(int i=0;i<4;i++) {
+            int index = indexOf(hash,i);
+            int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xfL);
+            frequency = Math.min(frequency,count);
+        }
+        return frequency;
+    }
+
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for(int i=0;i<4;i++) {
+            added |= incrementAt(indexOf(hash,i),start + i);
+        }
+        if(added && ++size >= sampleSize) {
+            reset();
+        }
+    }
+
+    //<--------------------------------- Private Helper methods --------------------------------------->//
+
+    /**
+     * Increments counter {@code j} of the sixteen in {@code table[i]} unless it is saturated.
+     */
+    private boolean incrementAt(int i,int j) {
+        int offset = j << 2;
+        long mask = 0xfL << offset;
+        if((table[i] & mask) != mask) {
+            table[i] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Halves every counter. Counters that were odd lose their remainder, which is subtracted from
+     * {@code size} so that the next reset still comes after {@code sampleSize / 2} fresh increments.
+     */
+    private void reset() {
+        int oddCount = 0;
+        for(int i=0;i<table.length;i++) {
+            oddCount += Long.bitCount(table[i] & ONE_MASK);
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size = (size - (oddCount >>> 2)) >>> 1;
+    }
+
+    private int indexOf(int item,int i) {
+        long hash = (item + SEED[i]) * SEED[i];
+        hash += hash >>> 32;
+        return ((int) hash) & tableMask;
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+
+    private static int tableSizeFor(int cap) {
+        int n = -1 >>> Integer.numberOfLeadingZeros(cap - 1);
+        return n < 0 ? 1 : n + 1;
+    }
+}
@@ -0,0 +1,15 @@
+package cache;
+
+/**
+ * Why an entry left a {@link BoundedCache}.
+ */
+public enum RemovalCause {
+    /** Removed by {@link BoundedCache#invalidate} or {@link BoundedCache#invalidateAll}. */
+    EXPLICIT,
+    /** The value was overwritten by a {@code put}. */
+    REPLACED,
+    /** Its expire-after-write or expire-after-access time ran out. */
+    EXPIRED,
+    /** Evicted to keep the cache within its maximum weight. */
+    SIZE
+}
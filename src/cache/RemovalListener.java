@@ -0,0 +1,11 @@
+package cache;
+
+/**
+ * Told about every entry that leaves a {@link BoundedCache}. Called on whichever thread performed the
+ * removal, after any cache locks have been released.
+ */
+@FunctionalInterface
+public interface RemovalListener<K,V> {
+
+    void onRemoval(K key, V value, RemovalCause cause);
+}
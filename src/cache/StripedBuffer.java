@@ -0,0 +1,46 @@
+package cache;
+
+import java.util.function.Consumer;
+
+/**
+ * Lossy buffer for recording reads: one {@link BoundedBuffer} per stripe, the stripe picked by the calling
+ * thread, so concurrent readers rarely touch the same counters. A read that finds its stripe full or loses
+ * the CAS is simply dropped; the policy only needs a representative sample of the reads.
+ */
+final class StripedBuffer<E> {
+
+    private static final int STRIPE_CAPACITY = 16;
+
+    private final BoundedBuffer<E>[] stripes;
+    private final int mask;
+
+    StripedBuffer() {
+        int n = Integer.highestOneBit(Math.max(1,Runtime.getRuntime().availableProcessors() - 1)) << 1;
+        @SuppressWarnings("unchecked")
+        BoundedBuffer<E>[] stripes = (BoundedBuffer<E>[]) new BoundedBuffer<?>[n];
+        for(int i=0;i<n;i++) {
+            stripes[i] = new BoundedBuffer<>(STRIPE_CAPACITY);
+        }
+        this.stripes = stripes;
+        mask = n - 1;
+    }
+
+    /**
+     * @return one of the {@link BoundedBuffer} result codes; {@code FULL} tells the caller a drain is due
+     */
+    int offer(E e) {
+        return stripes[probe() & mask].offer(e);
+    }
+
+    void drainTo(Consumer<? super E> consumer) {
+        for(BoundedBuffer<E> stripe : stripes) {
+            stripe.drainTo(consumer);
+        }
+    }
+
+    private static int probe() {
+        long id = Thread.currentThread().getId();
+        int h = (int) (id ^ (id >>> 32)) * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,93 @@
+package cache;
+
+import collection_framework.MyHashMap;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Replays a key trace against {@link BoundedCache} and, as a baseline, a plain LRU ({@link MyHashMap} in
+ * access order) and prints the hit rate of both for every cache size given.
+ *
+ * A trace file has one request per line; the first whitespace separated token is the key, anything after it
+ * is ignored, as are blank lines and lines starting with {@code #}. Numeric keys are read as longs. Every
+ * request is a read, and a miss loads the key into the cache, like a cache in front of a slower store.
+ */
+public class TraceSimulator {
+
+    public static void main(String[] args) throws IOException {
+        if(args.length<2) {
+            System.out.println("Usage: TraceSimulator <trace file> <cache size>[,<cache size>...]");
+            System.exit(0);
+        }
+        Path trace = Paths.get(args[0]);
+        if(!Files.isRegularFile(trace)) {
+            System.out.println("Error: " + args[0] + " : No such file !");
+            System.exit(0);
+        }
+        List<Object> keys = readTrace(trace);
+        System.out.println("Requests: " + keys.size());
+        System.out.printf("%12s %12s %12s%n","size","W-TinyLFU","LRU");
+        for(String size : args[1].split(",")) {
+            long maximumSize = Long.parseLong(size.trim());
+            System.out.printf("%12d %11.2f%% %11.2f%%%n",maximumSize,
+                    100 * replayTinyLfu(keys,maximumSize),100 * replayLru(keys,maximumSize));
+        }
+    }
+
+    /**
+     * Hit rate of {@link BoundedCache}. The cache is cleaned up after every request so the policy sees all
+     * of them; a live cache samples its reads instead.
+     */
+    static double replayTinyLfu(List<Object> keys,long maximumSize) {
+        BoundedCache<Object,Boolean> cache = new BoundedCache<>(maximumSize);
+        for(Object key : keys) {
+            cache.get(key,k -> Boolean.TRUE);
+            cache.cleanUp();
+        }
+        return cache.stats().hitRate();
+    }
+
+    static double replayLru(List<Object> keys,long maximumSize) {
+        MyHashMap<Object,Boolean> lru = new MyHashMap<>(MyHashMap.Ordering.ACCESS);
+        lru.setMaxSize((int) Math.min(Integer.MAX_VALUE,Math.max(1,maximumSize)));
+        long hits = 0;
+        for(Object key : keys) {
+            if(lru.get(key)!=null) {
+                hits++;
+            } else if(maximumSize>0) {
+                lru.put(key,Boolean.TRUE);
+            }
+        }
+        return keys.isEmpty() ? 1.0 : (double) hits / keys.size();
+    }
+
+    private static List<Object> readTrace(Path trace) throws IOException {
+        List<Object> keys = new ArrayList<>();
+        try(BufferedReader reader = Files.newBufferedReader(trace)) {
+            String line;
+            while((line = reader.readLine())!=null) {
+                line = line.trim();
+                if(line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String token = line.split("\\s+",2)[0];
+                keys.add(parseKey(token));
+            }
+        }
+        return keys;
+    }
+
+    private static Object parseKey(String token) {
+        try {
+            return Long.parseLong(token);
+        } catch (NumberFormatException e) {
+            return token;
+        }
+    }
+}
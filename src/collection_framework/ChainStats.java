@@ -0,0 +1,100 @@
+package collection_framework;
+
+/**
+ * Snapshot of how the entries of a hash map are spread over its buckets, to compare {@link HashStrategy}s
+ * on a real key set. A tree bin counts as one chain of its size.
+ *
+ * With a good strategy the histogram follows a Poisson distribution with mean {@code loadFactor()}; a long
+ * tail or a max chain far above that points at the hash, not at the load factor.
+ */
+public final class ChainStats {
+
+    private final int buckets;
+    private final long entries;
+    private final int treeBins;
+    private final long[] histogram;
+
+    private ChainStats(int buckets,long entries,int treeBins,long[] histogram) {
+        this.buckets = buckets;
+        this.entries = entries;
+        this.treeBins = treeBins;
+        this.histogram = histogram;
+    }
+
+    /**
+     * @param chainLengths number of entries in each bucket of the table
+     * @param treeBins number of those buckets that are tree bins
+     */
+    public static ChainStats of(int[] chainLengths,int treeBins) {
+        int max = 0;
+        long entries = 0;
+        for(int length : chainLengths) {
+            if(length < 0) {
+                throw new IllegalArgumentException("Illegal chain length:" + length);
+            }
+            max = Math.max(max,length);
+            entries += length;
+        }
+        long[] histogram = new long[max + 1];
+        for(int length : chainLengths) {
+            histogram[length]++;
+        }
+        return new ChainStats(chainLengths.length,entries,treeBins,histogram);
+    }
+
+    public int buckets() {
+        return buckets;
+    }
+
+    public long entries() {
+        return entries;
+    }
+
+    public int treeBins() {
+        return treeBins;
+    }
+
+    public long emptyBuckets() {
+        return histogram[0];
+    }
+
+    public int maxChainLength() {
+        return histogram.length - 1;
+    }
+
+    /**
+     * Average chain length over the non empty buckets, i.e. the average cost of a successful lookup.
+     */
+    public double averageChainLength() {
+        long used = buckets - histogram[0];
+        return used == 0 ? 0 : (double) entries / used;
+    }
+
+    public double loadFactor() {
+        return buckets == 0 ? 0 : (double) entries / buckets;
+    }
+
+    /**
+     * Number of buckets holding exactly {@code length} entries.
+     */
+    public long bucketsWithLength(int length) {
+        return length < 0 || length >= histogram.length ? 0 : histogram[length];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("buckets=").append(buckets)
+                .append(" entries=").append(entries)
+                .append(" empty=").append(emptyBuckets())
+                .append(" treeBins=").append(treeBins)
+                .append(" max=").append(maxChainLength())
+                .append(String.format(" avg=%.3f load=%.3f", averageChainLength(), loadFactor()));
+        for(int i = 0; i < histogram.length; i++) {
+            if(histogram[i] != 0) {
+                sb.append(String.format("%n%6d : %d", i, histogram[i]));
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,102 @@
+package collection_framework;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Writes values of one type into exactly {@link #size()} bytes and reads them back, for maps that keep
+ * their entries in raw memory such as {@link OffHeapHashMap}. Reads and writes use absolute offsets and never
+ * move the buffer's position.
+ *
+ * Keys are compared by their bytes, so a serializer used for keys has to write equal values to equal bytes,
+ * and unequal values to different ones.
+ */
+public interface FixedSerializer<T> {
+
+    int size();
+
+    void write(ByteBuffer buf,int offset,T value);
+
+    T read(ByteBuffer buf,int offset);
+
+    FixedSerializer<Long> LONG = new FixedSerializer<Long>() {
+        @Override
+        public int size() {
+            return Long.BYTES;
+        }
+        @Override
+        public void write(ByteBuffer buf,int offset,Long value) {
+            buf.putLong(offset,value);
+        }
+        @Override
+        public Long read(ByteBuffer buf,int offset) {
+            return buf.getLong(offset);
+        }
+    };
+
+    FixedSerializer<Integer> INTEGER = new FixedSerializer<Integer>() {
+        @Override
+        public int size() {
+            return Integer.BYTES;
+        }
+        @Override
+        public void write(ByteBuffer buf,int offset,Integer value) {
+            buf.putInt(offset,value);
+        }
+        @Override
+        public Integer read(ByteBuffer buf,int offset) {
+            return buf.getInt(offset);
+        }
+    };
+
+    /**
+     * Writes the raw bits, so {@code -0.0} and {@code 0.0} are different keys and every NaN is the same one,
+     * as with {@link Double#equals}.
+     */
+    FixedSerializer<Double> DOUBLE = new FixedSerializer<Double>() {
+        @Override
+        public int size() {
+            return Double.BYTES;
+        }
+        @Override
+        public void write(ByteBuffer buf,int offset,Double value) {
+            buf.putLong(offset,Double.doubleToLongBits(value));
+        }
+        @Override
+        public Double read(ByteBuffer buf,int offset) {
+            return Double.longBitsToDouble(buf.getLong(offset));
+        }
+    };
+
+    /**
+     * Fixed width byte arrays, e.g. small records that are already encoded. Every array has to be exactly
+     * {@code length} bytes long.
+     */
+    static FixedSerializer<byte[]> bytes(int length) {
+        if(length<=0) {
+            throw new IllegalArgumentException("Illegal length:" + length);
+        }
+        return new FixedSerializer<byte[]>() {
+            @Override
+            public int size() {
+                return length;
+            }
+            @Override
+            public void write(ByteBuffer buf,int offset,byte[] value) {
+                if(value.length!=length) {
+                    throw new IllegalArgumentException("Expected " + length + " bytes, got " + value.length);
+                }
+                for(int i=0;i<length;i++) {
+                    buf.put(offset+i,value[i]);
+                }
+            }
+            @Override
+            public byte[] read(ByteBuffer buf,int offset) {
+                byte[] value = new byte[length];
+                for(int i=0;i<length;i++) {
+                    value[i] = buf.get(offset+i);
+                }
+                return value;
+            }
+        };
+    }
+}
@@ -0,0 +1,448 @@
+package collection_framework;
+
+import concurrent.LatencyHistogram;
+import concurrent.MyConcurrentHashMap;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+
+/**
+ * Single threaded timing runs for the maps of this package: {@code HashMapBenchmark <benchmark> [name=value ...]},
+ * run without arguments for the list. Every timing is taken after a warm up pass over the same keys and
+ * reported in nanoseconds per operation.
+ *
+ * These are plain timing loops, not JMH. Run them on an otherwise idle machine with a fixed heap
+ * ({@code -Xms} equal to {@code -Xmx}) and compare the maps within one run rather than across runs.
+ */
+public class HashMapBenchmark {
+
+    static volatile long blackhole;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if(args.length<1) {
+            usage();
+        }
+        Map<String,String> options = parseOptions(args);
+        switch(args[0]) {
+            case "collisions":
+                collisions(options);
+                break;
+            case "probe":
+                probe(options);
+                break;
+            case "resize":
+                resize(options);
+                break;
+            case "gc":
+                gc(options);
+                break;
+            default:
+                usage();
+        }
+    }
+
+    //<----------------------------------------- Benchmarks ------------------------------------------->//
+
+    /**
+     * Gets of present keys from key sets built to collide, at growing sizes. With tree bins the time per get
+     * should grow with the log of the size, where a plain chain grows with the size itself.
+     * <ul>
+     *     <li>strided: Integers {@code i * 1024} with {@link HashStrategy#IDENTITY}, so only every 1024th
+     *     bucket is used; {@code java.util.HashMap} spreads its hashes and is not hit.</li>
+     *     <li>same hash: keys that all have one hashCode and are {@link Comparable}, so one bin orders them
+     *     by compareTo.</li>
+     *     <li>same hash, not comparable: one hashCode and no order, the case tree bins cannot help with; a
+     *     lookup may have to search both subtrees. Every map is linear here, so this set runs 1/1000 of the
+     *     lookups.</li>
+     * </ul>
+     * Options: sizes, lookups.
+     */
+    static void collisions(Map<String,String> options) {
+        int[] sizes = intsOption(options,"sizes",new int[]{1_000,4_000,16_000,64_000});
+        int lookups = intOption(options,"lookups",1_000_000);
+        System.out.println("collisions: ns per get of a present key");
+        collisions("strided",sizes,lookups,i -> i * 1024);
+        collisions("same hash",sizes,lookups,ComparableCollider::new);
+        collisions("same hash, not comparable",sizes,Math.max(1,lookups / 1000),Collider::new);
+    }
+
+    private static <K> void collisions(String name,int[] sizes,int lookups,IntFunction<K> key) {
+        System.out.printf("%-28s %16s %22s %20s%n",name,"MyHashMap","MyConcurrentHashMap","java.util.HashMap");
+        for(int n : sizes) {
+            Object[] keys = new Object[n];
+            for(int i=0;i<n;i++) {
+                keys[i] = key.apply(i);
+            }
+            double mine = nanosPerGet(keys,lookups,() -> new MyHashMap<>(HashStrategy.IDENTITY));
+            double concurrent = nanosPerGet(keys,lookups,() -> new MyConcurrentHashMap<>(HashStrategy.IDENTITY));
+            double jdk = nanosPerGet(keys,lookups,HashMap::new);
+            System.out.printf("%28d %16.1f %22.1f %20.1f%n",n,mine,concurrent,jdk);
+        }
+    }
+
+    /**
+     * Inserts into a map that starts at the default capacity and grows, then gets of every key (hits) and of
+     * as many keys that are not in the map (misses), for each load factor. The keys are {@code i} times an odd
+     * constant, distinct but without the sequential pattern that would suit linear probing. Options: entries,
+     * loadFactors.
+     */
+    static void probe(Map<String,String> options) {
+        int n = intOption(options,"entries",1_000_000);
+        double[] loadFactors = doublesOption(options,"loadFactors",new double[]{0.3,0.5,0.7,0.9});
+        Object[] keys = scrambled(0,n);
+        Object[] absent = scrambled(n,n);
+        System.out.println("probe: " + n + " entries, ns per insert / hit / miss");
+        System.out.printf("%12s %24s %24s %24s%n","load factor","MyOpenHashMap","MyHashMap","java.util.HashMap");
+        for(double loadFactor : loadFactors) {
+            float lf = (float) loadFactor;
+            String open = probe(keys,absent,() -> new MyOpenHashMap<>(16,lf));
+            String chained = probe(keys,absent,() -> new MyHashMap<>(16,lf));
+            String jdk = probe(keys,absent,() -> new HashMap<>(16,lf));
+            System.out.printf("%12.2f %24s %24s %24s%n",loadFactor,open,chained,jdk);
+        }
+    }
+
+    /**
+     * Latency of every single put while a map grows from the default capacity to {@code entries} sequential
+     * keys: {@link MyHashMap} rehashing its whole table inside the put that crosses the threshold, and with
+     * {@link MyHashMap#setIncrementalResize} moving a few buckets per put instead; {@code java.util.HashMap}
+     * for reference. A smaller untimed fill warms up each map first. GC pauses land in the tail as well, so
+     * the heap should be fixed and large enough for the map. Options: entries.
+     */
+    static void resize(Map<String,String> options) {
+        int n = intOption(options,"entries",8_000_000);
+        Integer[] keys = new Integer[n];
+        for(int i=0;i<n;i++) {
+            keys[i] = i;
+        }
+        System.out.println("resize: " + n + " sequential puts, latency per put in us");
+        System.out.printf("%-22s %10s %10s %10s %10s %10s %10s%n","","mean","p50","p99","p99.9","p99.99","max");
+        printLatency("MyHashMap",putLatency(keys,() -> new MyHashMap<>()));
+        printLatency("MyHashMap incremental",putLatency(keys,() -> {
+            MyHashMap<Object,Object> map = new MyHashMap<>();
+            map.setIncrementalResize(true);
+            return map;
+        }));
+        printLatency("java.util.HashMap",putLatency(keys,HashMap::new));
+    }
+
+    /**
+     * GC cost of holding {@code entries} long to long mappings in {@link MyHashMap} ("heap") and in
+     * {@link OffHeapHashMap} ("offheap"): collections and time spent in them while filling the map and while
+     * reading from it for a few seconds, the pause of each explicit full collection, which has to trace
+     * everything the heap holds, and the resident set size from {@code /proc/self/status} at the end. Without
+     * a map option each map runs in a child JVM started with the same JVM arguments, so one map's memory does
+     * not show up in the other's RSS. Run it without {@code -Xms}: a heap committed up front is resident
+     * either way and hides the difference. Options: map, entries, seconds, gcs.
+     */
+    static void gc(Map<String,String> options) throws IOException, InterruptedException {
+        String kind = options.get("map");
+        if(kind==null) {
+            for(String each : new String[]{"heap","offheap"}) {
+                runInChild("gc",options,"map=" + each);
+            }
+            return;
+        }
+        int n = intOption(options,"entries",10_000_000);
+        double seconds = doubleOption(options,"seconds",5);
+        int gcs = intOption(options,"gcs",3);
+        Map<Long,Long> map;
+        if(kind.equals("heap")) {
+            map = new MyHashMap<>();
+        } else if(kind.equals("offheap")) {
+            map = new OffHeapHashMap<>(FixedSerializer.LONG,FixedSerializer.LONG);
+        } else {
+            System.out.println("Error: map has to be heap or offheap, not " + kind);
+            return;
+        }
+        try {
+            System.out.println("gc: " + kind + ", " + n + " long->long entries");
+            long[] gcBefore = gcTotals();
+            long begin = System.nanoTime();
+            for(long i=0;i<n;i++) {
+                map.put(i,i);
+            }
+            long elapsed = System.nanoTime() - begin;
+            System.out.printf("  %-18s %10.0f ms, %s%n","fill",elapsed / 1e6,gcSince(gcBefore));
+            gcBefore = gcTotals();
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long reads = 0, sink = 0;
+            begin = System.nanoTime();
+            long deadline = begin + (long) (seconds * 1e9);
+            while(System.nanoTime() < deadline) {
+                for(int i=0;i<1024;i++) {
+                    sink += map.get(random.nextLong(n));
+                }
+                reads += 1024;
+            }
+            elapsed = System.nanoTime() - begin;
+            blackhole += sink;
+            System.out.printf("  %-18s %10.2f Mop/s, %s%n","random gets",reads / (elapsed / 1e9) / 1e6,gcSince(gcBefore));
+            long maxPause = 0, totalPause = 0;
+            for(int i=0;i<gcs;i++) {
+                begin = System.nanoTime();
+                System.gc();
+                long pause = System.nanoTime() - begin;
+                maxPause = Math.max(maxPause,pause);
+                totalPause += pause;
+            }
+            System.out.printf("  %-18s %10.1f ms mean, %.1f ms max%n","System.gc() x" + gcs,
+                    gcs==0 ? 0 : totalPause / 1e6 / gcs,maxPause / 1e6);
+            Runtime runtime = Runtime.getRuntime();
+            long offHeap = map instanceof OffHeapHashMap ? ((OffHeapHashMap<?,?>) map).offHeapBytes() : 0;
+            System.out.printf("  %-18s %10s, heap used %d MB, off heap %d MB%n","RSS",residentSetSize(),
+                    (runtime.totalMemory() - runtime.freeMemory()) >> 20,offHeap >> 20);
+        } finally {
+            if(map instanceof OffHeapHashMap) {
+                ((OffHeapHashMap<?,?>) map).close();
+            }
+        }
+    }
+
+    //<--------------------------------- Private Helper methods --------------------------------------->//
+
+    /**
+     * Runs {@code benchmark} in a new JVM with this one's JVM arguments and class path, and waits for it.
+     */
+    private static void runInChild(String benchmark,Map<String,String> options,String extra) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"),"bin","java").toString());
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(HashMapBenchmark.class.getName());
+        command.add(benchmark);
+        for(Map.Entry<String,String> option : options.entrySet()) {
+            command.add(option.getKey() + "=" + option.getValue());
+        }
+        command.add(extra);
+        new ProcessBuilder(command).inheritIO().start().waitFor();
+    }
+
+    /**
+     * Collections and milliseconds spent in them, over all collectors.
+     */
+    private static long[] gcTotals() {
+        long count = 0, millis = 0;
+        for(GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0,collector.getCollectionCount());
+            millis += Math.max(0,collector.getCollectionTime());
+        }
+        return new long[]{count,millis};
+    }
+
+    private static String gcSince(long[] before) {
+        long[] now = gcTotals();
+        return (now[0] - before[0]) + " collections, " + (now[1] - before[1]) + " ms in GC";
+    }
+
+    /**
+     * VmRSS and VmHWM (the peak) of this process; "n/a" where there is no {@code /proc}.
+     */
+    private static String residentSetSize() {
+        try {
+            String rss = "n/a", peak = "n/a";
+            for(String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if(line.startsWith("VmRSS:")) {
+                    rss = (Long.parseLong(line.replaceAll("[^0-9]","")) >> 10) + " MB";
+                } else if(line.startsWith("VmHWM:")) {
+                    peak = (Long.parseLong(line.replaceAll("[^0-9]","")) >> 10) + " MB";
+                }
+            }
+            return rss + " (peak " + peak + ")";
+        } catch (IOException e) {
+            return "n/a";
+        }
+    }
+
+    private static LatencyHistogram putLatency(Integer[] keys,Supplier<Map<Object,Object>> maps) {
+        Map<Object,Object> warmUp = maps.get();
+        for(int i=0;i<keys.length / 8;i++) {
+            warmUp.put(keys[i],keys[i]);
+        }
+        warmUp = null;
+        System.gc();
+        Map<Object,Object> map = maps.get();
+        LatencyHistogram latencies = new LatencyHistogram();
+        for(Integer key : keys) {
+            long begin = System.nanoTime();
+            map.put(key,key);
+            latencies.record(System.nanoTime() - begin);
+        }
+        blackhole += map.size();
+        return latencies;
+    }
+
+    private static void printLatency(String name,LatencyHistogram latencies) {
+        System.out.printf("%-22s %10.2f %10.2f %10.2f %10.2f %10.2f %10.2f%n",name,latencies.mean() / 1e3,
+                latencies.valueAtPercentile(50) / 1e3,latencies.valueAtPercentile(99) / 1e3,
+                latencies.valueAtPercentile(99.9) / 1e3,latencies.valueAtPercentile(99.99) / 1e3,
+                latencies.max() / 1e3);
+    }
+
+    private static String probe(Object[] keys,Object[] absent,Supplier<Map<Object,Object>> maps) {
+        int[] order = randomOrder(keys.length,keys.length);
+        double insert = 0, hit = 0, miss = 0;
+        for(int round=0;round<2;round++) {
+            Map<Object,Object> map = maps.get();
+            long begin = System.nanoTime();
+            for(Object key : keys) {
+                map.put(key,key);
+            }
+            insert = (double) (System.nanoTime() - begin) / keys.length;
+            begin = System.nanoTime();
+            gets(map,keys,order);
+            hit = (double) (System.nanoTime() - begin) / keys.length;
+            begin = System.nanoTime();
+            gets(map,absent,order);
+            miss = (double) (System.nanoTime() - begin) / keys.length;
+        }
+        return String.format("%.1f / %.1f / %.1f",insert,hit,miss);
+    }
+
+    /**
+     * {@code count} distinct Integers from {@code from} on, multiplied by an odd constant, which is a
+     * bijection on int.
+     */
+    private static Object[] scrambled(int from,int count) {
+        Object[] keys = new Object[count];
+        for(int i=0;i<count;i++) {
+            keys[i] = (from + i) * 0x9E3779B9;
+        }
+        return keys;
+    }
+
+    private static int[] randomOrder(int bound,int count) {
+        int[] order = new int[count];
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for(int i=0;i<count;i++) {
+            order[i] = random.nextInt(bound);
+        }
+        return order;
+    }
+
+    private static double nanosPerGet(Object[] keys,int lookups,Supplier<Map<Object,Object>> maps) {
+        Map<Object,Object> map = maps.get();
+        for(Object key : keys) {
+            map.put(key,key);
+        }
+        int[] order = randomOrder(keys.length,lookups);
+        gets(map,keys,order);
+        long begin = System.nanoTime();
+        gets(map,keys,order);
+        return (double) (System.nanoTime() - begin) / lookups;
+    }
+
+    private static void gets(Map<Object,Object> map,Object[] keys,int[] order) {
+        long sink = 0;
+        for(int i : order) {
+            if(map.get(keys[i])!=null) {
+                sink++;
+            }
+        }
+        blackhole += sink;
+    }
+
+    /**
+     * A key whose hashCode is the same for every instance.
+     */
+    private static class Collider {
+        final int id;
+
+        Collider(int id) {
+            this.id = id;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Collider && ((Collider) o).id==id;
+        }
+
+        @Override
+        public int hashCode() {
+            return 42;
+        }
+    }
+
+    private static final class ComparableCollider extends Collider implements Comparable<ComparableCollider> {
+        ComparableCollider(int id) {
+            super(id);
+        }
+
+        @Override
+        public int compareTo(ComparableCollider o) {
+            return Integer.compare(id,o.id);
+        }
+    }
+
+    /**
+     * {@code name=value} pairs after the benchmark name.
+     */
+    static Map<String,String> parseOptions(String[] args) {
+        Map<String,String> options = new HashMap<>();
+        for(int i=1;i<args.length;i++) {
+            int eq = args[i].indexOf('=');
+            if(eq<=0) {
+                System.out.println("Error: expected name=value, not " + args[i]);
+                System.exit(0);
+            }
+            options.put(args[i].substring(0,eq),args[i].substring(eq + 1));
+        }
+        return options;
+    }
+
+    static int intOption(Map<String,String> options,String name,int defaultValue) {
+        String value = options.get(name);
+        return value==null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    static double doubleOption(Map<String,String> options,String name,double defaultValue) {
+        String value = options.get(name);
+        return value==null ? defaultValue : Double.parseDouble(value.trim());
+    }
+
+    static int[] intsOption(Map<String,String> options,String name,int[] defaultValue) {
+        String value = options.get(name);
+        if(value==null) {
+            return defaultValue;
+        }
+        String[] parts = value.split(",");
+        int[] values = new int[parts.length];
+        for(int i=0;i<parts.length;i++) {
+            values[i] = Integer.parseInt(parts[i].trim());
+        }
+        return values;
+    }
+
+    static double[] doublesOption(Map<String,String> options,String name,double[] defaultValue) {
+        String value = options.get(name);
+        if(value==null) {
+            return defaultValue;
+        }
+        String[] parts = value.split(",");
+        double[] values = new double[parts.length];
+        for(int i=0;i<parts.length;i++) {
+            values[i] = Double.parseDouble(parts[i].trim());
+        }
+        return values;
+    }
+
+    private static void usage() {
+        System.out.println("Usage: HashMapBenchmark <benchmark> [name=value ...]");
+        System.out.println("  collisions  sizes=1000,4000,16000,64000 lookups=1000000   gets from colliding key sets");
+        System.out.println("  probe       entries=1000000 loadFactors=0.3,0.5,0.7,0.9   insert, hit and miss per load factor");
+        System.out.println("  resize      entries=8000000   put latency percentiles, incremental resize off and on");
+        System.out.println("  gc          map=heap|offheap entries=10000000 seconds=5 gcs=3   GC time and RSS, both maps if no map given");
+        System.exit(0);
+    }
+}
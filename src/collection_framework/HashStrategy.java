@@ -0,0 +1,76 @@
+package collection_framework;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Turns a key's {@code hashCode()} into the hash a map stores and masks with {@code (table.length - 1)}.
+ * Only the low bits pick the bucket, so a strategy has to move entropy from the high bits down; which one is
+ * good enough depends on the key set, {@link ChainStats} shows how well a given one spreads it.
+ *
+ * A strategy must be a pure function of {@code h}: the same key has to hash the same way for the life of a map.
+ */
+@FunctionalInterface
+public interface HashStrategy {
+
+    int hash(int h);
+
+    /**
+     * Raw {@code hashCode()}. Fine for keys that are already well distributed in their low bits.
+     */
+    HashStrategy IDENTITY = h -> h;
+
+    /**
+     * XORs the high half into the low half, same as {@code java.util.HashMap}. Cheap, and enough for key sets
+     * that only differ in their high bits. Default of both maps.
+     */
+    HashStrategy SPREAD = h -> h ^ (h >>> 16);
+
+    /**
+     * MurmurHash3 (x86_32) of the single int {@code h}. Every input bit affects every output bit.
+     */
+    static HashStrategy murmur3(int seed) {
+        return h -> {
+            int k = h * 0xcc9e2d51;
+            k = Integer.rotateLeft(k, 15) * 0x1b873593;
+            int h1 = seed ^ k;
+            h1 = Integer.rotateLeft(h1, 13) * 5 + 0xe6546b64;
+            h1 ^= 4;
+            h1 ^= h1 >>> 16;
+            h1 *= 0x85ebca6b;
+            h1 ^= h1 >>> 13;
+            h1 *= 0xc2b2ae35;
+            return h1 ^ (h1 >>> 16);
+        };
+    }
+
+    /**
+     * xxHash32 of the single int {@code h}. Mixes about as well as {@link #murmur3(int)} in fewer multiplies.
+     */
+    static HashStrategy xxHash(int seed) {
+        return h -> {
+            int acc = seed + 0x165667b1 + 4;
+            acc += h * 0xc2b2ae3d;
+            acc = Integer.rotateLeft(acc, 17) * 0x27d4eb2f;
+            acc ^= acc >>> 15;
+            acc *= 0x85ebca77;
+            acc ^= acc >>> 13;
+            acc *= 0xc2b2ae3d;
+            return acc ^ (acc >>> 16);
+        };
+    }
+
+    /**
+     * {@link #murmur3(int)} with a random seed, so key sets crafted to collide in one map do not collide in
+     * another. Iteration order then differs from instance to instance.
+     */
+    static HashStrategy seededMurmur3() {
+        return murmur3(ThreadLocalRandom.current().nextInt());
+    }
+
+    /**
+     * {@link #xxHash(int)} with a random seed, see {@link #seededMurmur3()}.
+     */
+    static HashStrategy seededXxHash() {
+        return xxHash(ThreadLocalRandom.current().nextInt());
+    }
+}
@@ -0,0 +1,353 @@
+package collection_framework;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.BiConsumer;
+
+/**
+ * Read only view of a map snapshot file, served straight from a memory mapping. Opening one only maps the
+ * file, so lookups can start right away and the operating system pages the table in as it is used;
+ * {@link MyHashMap#restore} and {@link concurrent.MyConcurrentHashMap#restore} use it to rebuild a map in
+ * one presized pass instead.
+ *
+ * The file is an open addressing table in the slot layout of {@link OffHeapHashMap}, behind a 32 byte
+ * header: magic, version, key size, value size, capacity in slots (all ints) and the entry count (a long).
+ * Keys and values are fixed width, written by {@link FixedSerializer}s, and everything is little endian so
+ * a snapshot can be read on any machine. The table is filled to at most 3/4, so the file takes about
+ * {@code 4/3 * (4 + keySize + valueSize)} bytes per entry, or up to twice that right after a doubling.
+ *
+ * Lookups are thread safe. {@link #close()} does not unmap the file: it only makes further reads fail, and the
+ * mapping stays in place until the snapshot and its buffers are garbage collected.
+ */
+public final class MappedSnapshot<K,V> implements AutoCloseable {
+
+    private static final int MAGIC = 0x4D48534E;
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+    private static final int MAX_CAP = 1<<30;
+    private static final int MAX_PAGE_BYTES = 1<<30;
+    private static final int TAG_BYTES = Integer.BYTES;
+    private static final ByteOrder ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    private final FixedSerializer<K> keySerializer;
+    private final FixedSerializer<V> valueSerializer;
+    private final Table table;
+    private final int size;
+    private final ThreadLocal<ByteBuffer> keyScratch;
+    private volatile boolean closed;
+
+    private MappedSnapshot(FixedSerializer<K> keySerializer,FixedSerializer<V> valueSerializer,Table table,int size) {
+        this.keySerializer = keySerializer;
+        this.valueSerializer = valueSerializer;
+        this.table = table;
+        this.size = size;
+        this.keyScratch = ThreadLocal.withInitial(() -> ByteBuffer.allocate(table.keySize).order(ORDER));
+    }
+
+    //<----------------------------------------- Public Methods --------------------------------------->//
+
+    /**
+     * Maps the snapshot at {@code path}. The serializers have to match the sizes the file was written with.
+     *
+     * @throws IOException if the file can not be read or is not a snapshot
+     */
+    public static <K,V> MappedSnapshot<K,V> open(Path path,FixedSerializer<K> keySerializer,
+                                                 FixedSerializer<V> valueSerializer) throws IOException {
+        checkSerializers(keySerializer,valueSerializer);
+        try(FileChannel channel = FileChannel.open(path,StandardOpenOption.READ)) {
+            if(channel.size() < HEADER_BYTES) {
+                throw new IOException("Not a snapshot file: " + path);
+            }
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY,0,HEADER_BYTES).order(ORDER);
+            if(header.getInt(0)!=MAGIC) {
+                throw new IOException("Not a snapshot file: " + path);
+            }
+            if(header.getInt(4)!=VERSION) {
+                throw new IOException("Unsupported snapshot version " + header.getInt(4) + ": " + path);
+            }
+            int keySize = header.getInt(8), valueSize = header.getInt(12), capacity = header.getInt(16);
+            long size = header.getLong(20);
+            if(keySize!=keySerializer.size() || valueSize!=valueSerializer.size()) {
+                throw new IllegalArgumentException("Snapshot has " + keySize + " byte keys and " + valueSize
+                        + " byte values, the serializers write " + keySerializer.size() + " and " + valueSerializer.size());
+            }
+            if(capacity<=0 || (capacity & (capacity-1))!=0 || capacity>MAX_CAP || size<0 || size>=capacity
+                    || channel.size()!=HEADER_BYTES + (long)capacity * (TAG_BYTES + keySize + valueSize)) {
+                throw new IOException("Corrupt snapshot file: " + path);
+            }
+            Table table = Table.map(channel,FileChannel.MapMode.READ_ONLY,keySize,valueSize,capacity);
+            return new MappedSnapshot<>(keySerializer,valueSerializer,table,(int)size);
+        }
+    }
+
+    /**
+     * Writes {@code entries} to {@code path} as a snapshot. The file is built next to {@code path} and moved
+     * over it at the end, so a crash never leaves a half written snapshot behind. {@code expectedSize} only
+     * sizes the table, which doubles if more entries come; a later entry for a key already written replaces
+     * its value.
+     *
+     * @return the number of entries written
+     * @throws NullPointerException if an entry has a null key or value; the partly written file is deleted and
+     *                              {@code path} is left as it was
+     */
+    public static <K,V> int write(Path path,int expectedSize,Iterable<? extends Map.Entry<? extends K,? extends V>> entries,
+                                  FixedSerializer<K> keySerializer,FixedSerializer<V> valueSerializer) throws IOException {
+        checkSerializers(keySerializer,valueSerializer);
+        Objects.requireNonNull(entries);
+        int keySize = keySerializer.size(), valueSize = valueSerializer.size();
+        Path tmp = sibling(path,".tmp");
+        ByteBuffer keyScratch = ByteBuffer.allocate(keySize).order(ORDER);
+        Table table = Table.create(tmp,keySize,valueSize,capacityFor(Math.max(expectedSize,1)));
+        int size = 0;
+        boolean written = false;
+        try {
+            for(Map.Entry<? extends K,? extends V> entry : entries) {
+                K key = Objects.requireNonNull(entry.getKey());
+                V value = Objects.requireNonNull(entry.getValue());
+                keySerializer.write(keyScratch,0,key);
+                int tag = OffHeapHashMap.tagFor(keyScratch);
+                int slot = table.findOrEmpty(keyScratch,tag);
+                if(table.tag(slot)==0) {
+                    if(size+1 > threshold(table.capacity)) {
+                        table = grow(table,tmp);
+                        slot = table.findOrEmpty(keyScratch,tag);
+                    }
+                    ByteBuffer page = table.page(slot);
+                    int offset = table.offset(slot);
+                    page.putInt(offset,tag);
+                    OffHeapHashMap.copyFromScratch(keyScratch,page,offset+TAG_BYTES,keySize);
+                    size++;
+                }
+                valueSerializer.write(table.page(slot),table.offset(slot)+TAG_BYTES+keySize,value);
+            }
+            ByteBuffer header = table.header;
+            header.putInt(0,MAGIC);
+            header.putInt(4,VERSION);
+            header.putInt(8,keySize);
+            header.putInt(12,valueSize);
+            header.putInt(16,table.capacity);
+            header.putLong(20,size);
+            table.force();
+            written = true;
+        } finally {
+            table.unmap();
+            if(!written) {
+                Files.deleteIfExists(tmp);
+            }
+        }
+        Files.move(tmp,path,StandardCopyOption.REPLACE_EXISTING,StandardCopyOption.ATOMIC_MOVE);
+        return size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size==0;
+    }
+
+    public V get(Object key) {
+        int slot = findSlot(key);
+        return slot<0 ? null : valueSerializer.read(table.page(slot),table.offset(slot)+TAG_BYTES+table.keySize);
+    }
+
+    public boolean containsKey(Object key) {
+        return findSlot(key)>=0;
+    }
+
+    /**
+     * Performs {@code action} for every entry, in table order.
+     */
+    public void forEach(BiConsumer<? super K,? super V> action) {
+        Objects.requireNonNull(action);
+        checkOpen();
+        Table t = table;
+        for(int slot=0;slot<t.capacity;slot++) {
+            if(t.tag(slot)!=0) {
+                ByteBuffer page = t.page(slot);
+                int offset = t.offset(slot);
+                action.accept(keySerializer.read(page,offset+TAG_BYTES),
+                        valueSerializer.read(page,offset+TAG_BYTES+t.keySize));
+            }
+        }
+    }
+
+    /**
+     * Makes every later lookup throw {@link IllegalStateException}. The file stays mapped, and its address
+     * space and page cache stay in use, until this snapshot is garbage collected: unmapping it here could
+     * crash a lookup that is still reading on another thread.
+     */
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    //<--------------------------------- Private Helper methods --------------------------------------->//
+
+    @SuppressWarnings("unchecked")
+    private int findSlot(Object key) {
+        checkOpen();
+        if(key==null || size==0) {
+            return -1;
+        }
+        ByteBuffer scratch = keyScratch.get();
+        try {
+            keySerializer.write(scratch,0,(K) key);
+        } catch (ClassCastException e) {
+            return -1;
+        }
+        int slot = table.findOrEmpty(scratch,OffHeapHashMap.tagFor(scratch));
+        return table.tag(slot)==0 ? -1 : slot;
+    }
+
+    private void checkOpen() {
+        if(closed) {
+            throw new IllegalStateException("Snapshot is closed");
+        }
+    }
+
+    /**
+     * Copies every slot into a table twice as large, replacing the file being written.
+     */
+    private static Table grow(Table table,Path tmp) throws IOException {
+        if(table.capacity==MAX_CAP) {
+            throw new IllegalStateException("Capacity exhausted");
+        }
+        Path bigger = sibling(tmp,".grow");
+        Table newTable = Table.create(bigger,table.keySize,table.valueSize,table.capacity<<1);
+        int mask = newTable.capacity-1;
+        for(int i=0;i<table.capacity;i++) {
+            int t = table.tag(i);
+            if(t!=0) {
+                int slot = t & mask;
+                while(newTable.tag(slot)!=0) {
+                    slot = (slot+1) & mask;
+                }
+                ByteBuffer src = table.page(i), dst = newTable.page(slot);
+                int srcOffset = table.offset(i), dstOffset = newTable.offset(slot);
+                for(int b=0;b<table.slotSize;b++) {
+                    dst.put(dstOffset+b,src.get(srcOffset+b));
+                }
+            }
+        }
+        table.unmap();
+        Files.move(bigger,tmp,StandardCopyOption.REPLACE_EXISTING);
+        return newTable;
+    }
+
+    private static int capacityFor(int expectedSize) {
+        long cap = Integer.highestOneBit((int)Math.min(MAX_CAP,(long)Math.ceil(expectedSize/0.75)));
+        while(cap < MAX_CAP && threshold((int)cap) < expectedSize) {
+            cap <<= 1;
+        }
+        return (int)Math.max(2,cap);
+    }
+
+    private static int threshold(int capacity) {
+        return capacity==MAX_CAP ? MAX_CAP-1 : Math.min(capacity-1,(int)(capacity * 0.75));
+    }
+
+    private static Path sibling(Path path,String suffix) {
+        return path.resolveSibling(path.getFileName() + suffix);
+    }
+
+    private static void checkSerializers(FixedSerializer<?> keySerializer,FixedSerializer<?> valueSerializer) {
+        if(keySerializer==null || valueSerializer==null) {
+            throw new IllegalArgumentException("Serializer is null");
+        }
+        if(keySerializer.size()<=0 || valueSerializer.size()<0
+                || (long)TAG_BYTES + keySerializer.size() + valueSerializer.size() > MAX_PAGE_BYTES) {
+            throw new IllegalArgumentException("Illegal serializer size");
+        }
+    }
+
+    /**
+     * Header and slot pages of one mapped snapshot file.
+     */
+    private static final class Table {
+        final ByteBuffer header;
+        final ByteBuffer[] pages;
+        final int keySize, valueSize, slotSize;
+        final int capacity;
+        final int pageShift;
+
+        private Table(ByteBuffer header,ByteBuffer[] pages,int keySize,int valueSize,int capacity,int pageShift) {
+            this.header = header;
+            this.pages = pages;
+            this.keySize = keySize;
+            this.valueSize = valueSize;
+            this.slotSize = TAG_BYTES + keySize + valueSize;
+            this.capacity = capacity;
+            this.pageShift = pageShift;
+        }
+
+        static Table create(Path path,int keySize,int valueSize,int capacity) throws IOException {
+            try(FileChannel channel = FileChannel.open(path,StandardOpenOption.CREATE,StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ,StandardOpenOption.WRITE)) {
+                return map(channel,FileChannel.MapMode.READ_WRITE,keySize,valueSize,capacity);
+            }
+        }
+
+        static Table map(FileChannel channel,FileChannel.MapMode mode,int keySize,int valueSize,int capacity) throws IOException {
+            int slotSize = TAG_BYTES + keySize + valueSize;
+            int pageSlots = Math.min(capacity,Integer.highestOneBit(MAX_PAGE_BYTES / slotSize));
+            ByteBuffer header = channel.map(mode,0,HEADER_BYTES).order(ORDER);
+            ByteBuffer[] pages = new ByteBuffer[capacity / pageSlots];
+            for(int p=0;p<pages.length;p++) {
+                long position = HEADER_BYTES + (long)p * pageSlots * slotSize;
+                pages[p] = channel.map(mode,position,(long)pageSlots * slotSize).order(ORDER);
+            }
+            return new Table(header,pages,keySize,valueSize,capacity,Integer.numberOfTrailingZeros(pageSlots));
+        }
+
+        ByteBuffer page(int slot) {
+            return pages[slot >>> pageShift];
+        }
+
+        int offset(int slot) {
+            return (slot & ((1 << pageShift)-1)) * slotSize;
+        }
+
+        int tag(int slot) {
+            return page(slot).getInt(offset(slot));
+        }
+
+        /**
+         * Slot holding the serialized key, or the empty slot where it would go.
+         */
+        int findOrEmpty(ByteBuffer key,int tag) {
+            int mask = capacity-1;
+            int slot = tag & mask;
+            int t;
+            while((t = tag(slot))!=0) {
+                if(t==tag && OffHeapHashMap.bytesEqual(key,page(slot),offset(slot)+TAG_BYTES,keySize)) {
+                    return slot;
+                }
+                slot = (slot+1) & mask;
+            }
+            return slot;
+        }
+
+        void force() {
+            ((MappedByteBuffer) header).force();
+            for(ByteBuffer page : pages) {
+                ((MappedByteBuffer) page).force();
+            }
+        }
+
+        void unmap() {
+            OffHeapHashMap.free(pages);
+            OffHeapHashMap.free(new ByteBuffer[]{header});
+        }
+    }
+}
@@ -1,19 +1,56 @@
 package collection_framework;
 
+import java.io.IOException;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.ToLongBiFunction;
 
 public class MyHashMap<K,V> implements Map<K,V>{
 
+    /**
+     * Order of iteration. {@link #INSERTION} and {@link #ACCESS} keep every entry on a doubly linked list
+     * through the nodes themselves; with {@link #ACCESS} every {@code get} or update of an existing key
+     * moves it to the end, which turns the map into an LRU cache once a bound is set.
+     */
+    public enum Ordering {
+        NONE, INSERTION, ACCESS
+    }
+
     private static int MAX_CAP = 1<<30;
     private static int DEFAULT_CAP = 16;
     private static float DEFAULT_LOAD_FACTOR = 0.75F;
+    private static final int TREEIFY_THRESHOLD = 8;
+    private static final int UNTREEIFY_THRESHOLD = 6;
+    private static final int MIN_TREEIFY_CAPACITY = 64;
+    private static final int MIGRATE_BUCKETS_PER_OP = 4;
+    private static final int MIGRATE_EMPTY_VISITS = 10 * MIGRATE_BUCKETS_PER_OP;
+    private static final int SHRINK_DIVISOR = 4;
 
     private int size;
     private int threshold;
     private float loadFactor;
     private int modCount;
+    private final HashStrategy hashStrategy;
 
     private Node<K,V>[] table;
+    private Node<K,V>[] oldTable;
+    private int rehashIndex;
+    private boolean incrementalResize;
+    private boolean autoShrink = true;
+    private final int minCapacity;
+
+    private final Ordering ordering;
+    private LinkedNode<K,V> orderHead, orderTail;
+    private int maxSize = Integer.MAX_VALUE;
+    private long maxWeight = Long.MAX_VALUE;
+    private long totalWeight;
+    private ToLongBiFunction<? super K,? super V> weigher;
+    private BiConsumer<? super K,? super V> evictionListener;
 
     private Set<Entry<K,V>> es;
     private Set<K> ks;
@@ -21,24 +58,54 @@ public class MyHashMap<K,V> implements Map<K,V>{
 
     //<----------------------------------------- Constructors ------------------------------------------>//
 
-    public MyHashMap(int cap,float loadFactor) {
+    public MyHashMap(int cap,float loadFactor,HashStrategy hashStrategy,Ordering ordering) {
         if(cap<0) {
             throw new IllegalArgumentException("Illegal Capacity:" + cap);
         }
         if(loadFactor<=0 || Float.isNaN(loadFactor)) {
             throw new IllegalArgumentException("Illegal load factor" + loadFactor);
         }
+        if(hashStrategy==null) {
+            throw new IllegalArgumentException("Hash strategy is null");
+        }
+        if(ordering==null) {
+            throw new IllegalArgumentException("Ordering is null");
+        }
         if(cap>MAX_CAP) {
             cap = MAX_CAP;
         }
         this.loadFactor = loadFactor;
         this.threshold = tableSizeForCap(cap);
+        this.minCapacity = Math.max(DEFAULT_CAP,threshold);
+        this.hashStrategy = hashStrategy;
+        this.ordering = ordering;
+    }
+    public MyHashMap(int cap,float loadFactor,HashStrategy hashStrategy) {
+        this(cap,loadFactor,hashStrategy,Ordering.NONE);
+    }
+    public MyHashMap(int cap,float loadFactor,Ordering ordering) {
+        this(cap,loadFactor,HashStrategy.SPREAD,ordering);
+    }
+    public MyHashMap(int cap,float loadFactor) {
+        this(cap,loadFactor,HashStrategy.SPREAD);
     }
     public MyHashMap(int cap) {
         this(cap,DEFAULT_LOAD_FACTOR);
     }
-    public MyHashMap() {
+    public MyHashMap(HashStrategy hashStrategy) {
+        if(hashStrategy==null) {
+            throw new IllegalArgumentException("Hash strategy is null");
+        }
         this.loadFactor = DEFAULT_LOAD_FACTOR;
+        this.minCapacity = DEFAULT_CAP;
+        this.hashStrategy = hashStrategy;
+        this.ordering = Ordering.NONE;
+    }
+    public MyHashMap(Ordering ordering) {
+        this(DEFAULT_CAP,DEFAULT_LOAD_FACTOR,HashStrategy.SPREAD,ordering);
+    }
+    public MyHashMap() {
+        this(HashStrategy.SPREAD);
     }
 
     //<----------------------------------------- Public Methods --------------------------------------->//
@@ -51,21 +118,65 @@ public class MyHashMap<K,V> implements Map<K,V>{
     @Override
     public void putAll(Map<? extends K, ? extends V> m) {
         if(m!=null) {
+            ensureCapacity(m.size());
             for (Entry<? extends K, ? extends V> entry : m.entrySet()) {
                 putVal(entry.getKey(), entry.getValue());
             }
         }
     }
 
+    /**
+     * Puts {@code keys[i] -> values[i]} for every {@code i}, like a loop over {@link #put} but with the table
+     * sized once up front for all the new keys, so loading into an empty map never resizes along the way.
+     * Later duplicates of a key win.
+     */
+    public void bulkLoad(K[] keys,V[] values) {
+        if(keys==null || values==null || keys.length!=values.length) {
+            throw new IllegalArgumentException("Keys and values must be non null arrays of the same length");
+        }
+        ensureCapacity(keys.length);
+        for(int i=0;i<keys.length;i++) {
+            putVal(keys[i],values[i]);
+        }
+    }
+
+    /**
+     * Writes every entry to {@code path} in the format of {@link MappedSnapshot}, which can serve reads from
+     * the file directly or be turned back into a map by {@link #restore}. Iteration order is not kept.
+     *
+     * @throws IllegalArgumentException if the map holds a null key or value, which a snapshot can not store;
+     *                                  checked before anything is written
+     */
+    public void snapshot(Path path,FixedSerializer<K> keySerializer,FixedSerializer<V> valueSerializer) throws IOException {
+        if(containsKey(null) || containsValue(null)) {
+            throw new IllegalArgumentException("A snapshot can not hold null keys or values");
+        }
+        MappedSnapshot.write(path,size,entrySet(),keySerializer,valueSerializer);
+    }
+
+    /**
+     * Rebuilds a map written by {@link #snapshot}. The table is sized for all the entries before the first
+     * one is put, and the file is read through a memory mapping, so this is one sequential pass over it.
+     */
+    public static <K,V> MyHashMap<K,V> restore(Path path,FixedSerializer<K> keySerializer,
+                                               FixedSerializer<V> valueSerializer) throws IOException {
+        try(MappedSnapshot<K,V> snapshot = MappedSnapshot.open(path,keySerializer,valueSerializer)) {
+            MyHashMap<K,V> map = new MyHashMap<>();
+            map.ensureCapacity(snapshot.size());
+            snapshot.forEach(map::putVal);
+            return map;
+        }
+    }
+
     @Override
     public boolean remove(Object key, Object value) {
-        Node<K,V> removedNode = removeNode(key,value,true);
+        Node<K,V> removedNode = removeNode(key,value,true,true);
         return removedNode!=null;
     }
 
     @Override
     public V remove(Object key) {
-        Node<K,V> removedNode = removeNode(key,null,false);
+        Node<K,V> removedNode = removeNode(key,null,false,true);
         return removedNode==null ? null : removedNode.value;
     }
 
@@ -88,6 +199,9 @@ public class MyHashMap<K,V> implements Map<K,V>{
     public void clear() {
         if(table!=null) {
             Arrays.fill(table,null);
+            oldTable = null;
+            orderHead = orderTail = null;
+            totalWeight = 0;
             size = 0;
             modCount++;
         }
@@ -96,7 +210,13 @@ public class MyHashMap<K,V> implements Map<K,V>{
     @Override
     public V get(Object key) {
         Node<K,V> node = getNode(key);
-        return node==null ? null : node.value;
+        if(node==null) {
+            return null;
+        }
+        if(ordering==Ordering.ACCESS) {
+            afterNodeAccess(node);
+        }
+        return node.value;
     }
 
     @Override
@@ -106,8 +226,8 @@ public class MyHashMap<K,V> implements Map<K,V>{
 
     @Override
     public boolean containsValue(Object value) {
-        if(table!=null) {
-            for(Node<K,V> node:table) {
+        for(Node<K,V>[] tab = table; tab!=null; tab = tab==oldTable ? null : oldTable) {
+            for(Node<K,V> node:tab) {
                 while(node!=null) {
                     if(Objects.equals(value,node.value)) {
                         return true;
@@ -152,6 +272,140 @@ public class MyHashMap<K,V> implements Map<K,V>{
         return entrySet().hashCode();
     }
 
+    /**
+     * Chain length distribution of the current table, see {@link ChainStats}. While an incremental resize
+     * is running, entries still in the old table are counted in the bucket they will be moved to.
+     */
+    public ChainStats chainStats() {
+        Node<K,V>[] tab = table;
+        if(tab == null) {
+            return ChainStats.of(new int[0],0);
+        }
+        int[] chainLengths = new int[tab.length];
+        int treeBins = 0;
+        for(int i = 0; i < tab.length; i++) {
+            if(tab[i] instanceof TreeNode) {
+                treeBins++;
+            }
+            for(Node<K,V> node = tab[i]; node != null; node = node.next) {
+                chainLengths[i]++;
+            }
+        }
+        if(oldTable != null) {
+            for(Node<K,V> bin : oldTable) {
+                for(Node<K,V> node = bin; node != null; node = node.next) {
+                    chainLengths[node.hash & (tab.length-1)]++;
+                }
+            }
+        }
+        return ChainStats.of(chainLengths,treeBins);
+    }
+
+    /**
+     * In incremental mode a resize only allocates the new table. The buckets of the old one are then moved
+     * a few at a time by every following insert or removal, so no single {@code put} pays for rehashing the
+     * whole map; lookups check both tables until the move is done. Off by default, as the plain resize has
+     * the better throughput. Turning it off finishes a running move right away.
+     */
+    public void setIncrementalResize(boolean incrementalResize) {
+        this.incrementalResize = incrementalResize;
+        if(!incrementalResize && oldTable != null) {
+            finishMigration();
+        }
+    }
+
+    public boolean isIncrementalResize() {
+        return incrementalResize;
+    }
+
+    /**
+     * With auto shrink on, which is the default, a removal that leaves the map below a quarter of its
+     * threshold halves the table (or more) back to about half the load factor, but never below the initial
+     * capacity. This keeps iteration proportional to the size after mass removals. Removals through an
+     * iterator never shrink, the next removal through the map catches up.
+     */
+    public void setAutoShrink(boolean autoShrink) {
+        this.autoShrink = autoShrink;
+    }
+
+    public boolean isAutoShrink() {
+        return autoShrink;
+    }
+
+    /**
+     * Shrinks the table to the smallest capacity that holds the current entries below the threshold,
+     * ignoring the initial capacity.
+     */
+    public void trimToSize() {
+        if(table!=null) {
+            int cap = Math.max(1,tableSizeForCap((int)Math.min(MAX_CAP,(long)Math.ceil(size/loadFactor))));
+            if(cap < table.length) {
+                shrink(cap);
+                modCount++;
+            }
+        }
+    }
+
+    public Ordering getOrdering() {
+        return ordering;
+    }
+
+    /**
+     * Bounds an ordered map to {@code maxSize} entries: inserting beyond it evicts from the head of the
+     * order, i.e. the eldest entry, or the least recently used one with {@link Ordering#ACCESS}.
+     */
+    public void setMaxSize(int maxSize) {
+        if(maxSize<=0) {
+            throw new IllegalArgumentException("Illegal max size:" + maxSize);
+        }
+        checkOrdered();
+        this.maxSize = maxSize;
+        evictToBounds();
+    }
+
+    /**
+     * Bounds an ordered map by the sum of {@code weigher(key, value)} over its entries, evicting like
+     * {@link #setMaxSize}. An entry is weighed when it is put; changing a value through
+     * {@link Entry#setValue} keeps its old weight.
+     */
+    public void setMaxWeight(long maxWeight,ToLongBiFunction<? super K,? super V> weigher) {
+        if(maxWeight<0) {
+            throw new IllegalArgumentException("Illegal max weight:" + maxWeight);
+        }
+        if(weigher==null) {
+            throw new IllegalArgumentException("Weigher is null");
+        }
+        checkOrdered();
+        this.weigher = weigher;
+        this.maxWeight = maxWeight;
+        totalWeight = 0;
+        for(LinkedNode<K,V> node = orderHead; node != null; node = node.after) {
+            node.weight = weigh(node.key,node.value);
+            totalWeight += node.weight;
+        }
+        evictToBounds();
+    }
+
+    public long getTotalWeight() {
+        return totalWeight;
+    }
+
+    /**
+     * Called with every entry evicted because of {@link #setMaxSize}, {@link #setMaxWeight} or
+     * {@link #removeEldestEntry}, after it was removed. Explicit removals are not reported.
+     */
+    public void setEvictionListener(BiConsumer<? super K,? super V> evictionListener) {
+        this.evictionListener = evictionListener;
+    }
+
+    /**
+     * Asked after every insert into an ordered map, with the entry at the head of the order. Returning true
+     * evicts it; subclasses can override this for policies the size and weight bounds do not cover.
+     */
+    protected boolean removeEldestEntry(Entry<K,V> eldest) {
+        return false;
+    }
+
     //<------------------------- Methods that returns view(mutable) of HashMap ---------------------------->//
 
     @Override
@@ -249,9 +503,8 @@ public class MyHashMap<K,V> implements Map<K,V>{
         public boolean contains(Object o) {
             if(o instanceof Entry<?,?>) {
                 Entry<?,?> entry = (Entry<?,?>) o;
-                Object key = entry.getKey();
-                Object value = entry.getValue();
-                return Objects.equals(value,get(key));
+                Node<K,V> node = getNode(entry.getKey());
+                return node!=null && Objects.equals(node.value,entry.getValue());
             }
             return false;
         }
@@ -261,11 +514,20 @@ public class MyHashMap<K,V> implements Map<K,V>{
             return new EntrySetItr();
         }
 
+        @Override
+        public Spliterator<Entry<K, V>> spliterator() {
+            if(ordering!=Ordering.NONE) {
+                return Spliterators.spliterator(this,Spliterator.ORDERED | Spliterator.DISTINCT);
+            }
+            return new HashSpliterator<>(node -> node,Spliterator.DISTINCT);
+        }
+
         @Override
         public boolean add(Entry<K, V> kvEntry) {
             K key = kvEntry.getKey();
             V value = kvEntry.getValue();
-            if(Objects.equals(value,get(key))) {
+            Node<K,V> node = getNode(key);
+            if(node!=null && Objects.equals(value,node.value)) {
                 return false;
             }
             putVal(key,value);
@@ -312,6 +574,14 @@ public class MyHashMap<K,V> implements Map<K,V>{
             return new KeyItr();
         }
 
+        @Override
+        public Spliterator<K> spliterator() {
+            if(ordering!=Ordering.NONE) {
+                return Spliterators.spliterator(this,Spliterator.ORDERED | Spliterator.DISTINCT);
+            }
+            return new HashSpliterator<>(node -> node.key,Spliterator.DISTINCT);
+        }
+
         @Override
         public boolean add(K k) {
             throw new UnsupportedOperationException();
@@ -319,7 +589,7 @@ public class MyHashMap<K,V> implements Map<K,V>{
 
         @Override
         public boolean remove(Object o) {
-            Node<K,V> removedNode = removeNode(o,null,false);
+            Node<K,V> removedNode = removeNode(o,null,false,true);
             return removedNode!=null;
         }
 
@@ -342,6 +612,14 @@ public class MyHashMap<K,V> implements Map<K,V>{
             return new ValueItr();
         }
 
+        @Override
+        public Spliterator<V> spliterator() {
+            if(ordering!=Ordering.NONE) {
+                return Spliterators.spliterator(this,Spliterator.ORDERED);
+            }
+            return new HashSpliterator<>(node -> node.value,0);
+        }
+
         @Override
         public boolean add(V v) {
             throw new UnsupportedOperationException();
@@ -385,21 +663,48 @@ public class MyHashMap<K,V> implements Map<K,V>{
 
     //<------------------------------------------- Iterators --------------------------------------------->//
 
+    /**
+     * Follows the linked order of an ordered map. Otherwise walks {@code table} and then, while an
+     * incremental resize is running, what is left of {@code oldTable}.
+     * Buckets only move on inserts and removals through the map, which fail this iterator anyway; its own
+     * {@link #remove()} never moves buckets.
+     * It stops as soon as it has returned {@code size} entries, so the empty buckets after the last entry
+     * are never scanned.
+     */
     private abstract class HashItr {
-        Node<K,V> prevNode,currentNode,nextNode;
+        Node<K,V> currentNode,nextNode;
+        Node<K,V>[] tab;
         int expectedModCount;
-        int nextIndex,currIndex;
+        int nextIndex;
+        int remaining;
 
         HashItr() {
-            prevNode = currentNode = null;
-            if(table!=null) {
-                int n = table.length ;
+            currentNode = null;
+            expectedModCount = modCount;
+            remaining = size;
+            if(remaining==0) {
+                return;
+            }
+            if(ordering!=Ordering.NONE) {
+                nextNode = orderHead;
+            } else {
+                tab = table;
                 nextIndex = 0;
-                currIndex = -1;
-                expectedModCount = modCount;
-                while(nextIndex < n && (nextNode=table[nextIndex])==null) {
+                advanceToBin();
+            }
+        }
+
+        private void advanceToBin() {
+            while(tab!=null) {
+                int n = tab.length;
+                while(nextIndex < n && (nextNode=tab[nextIndex])==null) {
                     nextIndex++;
                 }
+                if(nextNode!=null || tab==oldTable) {
+                    return;
+                }
+                tab = oldTable;
+                nextIndex = 0;
             }
         }
 
@@ -412,15 +717,14 @@ public class MyHashMap<K,V> implements Map<K,V>{
             if(nextNode==null) {
                 throw new NoSuchElementException();
             }
-            prevNode = currentNode;
             currentNode = nextNode;
-            currIndex = nextIndex;
-            if((nextNode = nextNode.next)==null) {
-                int n = table.length;
+            if(--remaining==0) {
+                nextNode = null;
+            } else if(ordering!=Ordering.NONE) {
+                nextNode = ((LinkedNode<K,V>)nextNode).after;
+            } else if((nextNode = nextNode.next)==null) {
                 nextIndex++;
-                while(nextIndex < n && (nextNode=table[nextIndex])==null) {
-                    nextIndex++;
-                }
+                advanceToBin();
             }
             return currentNode;
         }
@@ -430,14 +734,8 @@ public class MyHashMap<K,V> implements Map<K,V>{
             if(currentNode==null) {
                 throw new IllegalStateException();
             }
-            if(currentNode==table[currIndex]) {
-                table[currIndex] = currentNode.next;
-            } else {
-                prevNode.next = currentNode.next;
-            }
+            removeNode(currentNode.key,null,false,false);
             currentNode = null;
-            size--;
-            modCount++;
             expectedModCount = modCount;
         }
 
@@ -469,19 +767,155 @@ public class MyHashMap<K,V> implements Map<K,V>{
         }
     }
 
+    /**
+     * Splits by bucket range. While an incremental resize is running the range covers {@code table}
+     * followed by {@code oldTable}. Binds to the table on first use, and like the iterators fails on
+     * structural changes, checked once per traversal. Only the unsplit spliterator knows its exact size,
+     * the halves can not know how the entries fall, so only it reports {@link Spliterator#SIZED}.
+     * Ordered maps use an iterator backed spliterator instead, as splitting by bucket would lose the order.
+     */
+    private final class HashSpliterator<T> implements Spliterator<T> {
+        private final Function<Node<K,V>,T> extractor;
+        private final int characteristics;
+        private Node<K,V>[] tab, oldTab;
+        private Node<K,V> current;
+        private int index;
+        private int fence;
+        private int est;
+        private int expectedModCount;
+        private boolean split;
+
+        HashSpliterator(Function<Node<K,V>,T> extractor,int characteristics) {
+            this.extractor = extractor;
+            this.characteristics = characteristics;
+            this.fence = -1;
+        }
+
+        private HashSpliterator(HashSpliterator<T> parent,int index,int fence,int est) {
+            this.extractor = parent.extractor;
+            this.characteristics = parent.characteristics;
+            this.tab = parent.tab;
+            this.oldTab = parent.oldTab;
+            this.index = index;
+            this.fence = fence;
+            this.est = est;
+            this.expectedModCount = parent.expectedModCount;
+            this.split = true;
+        }
+
+        private int getFence() {
+            if(fence < 0) {
+                tab = table;
+                oldTab = oldTable;
+                est = size;
+                expectedModCount = modCount;
+                fence = (tab==null ? 0 : tab.length) + (oldTab==null ? 0 : oldTab.length);
+            }
+            return fence;
+        }
+
+        private Node<K,V> bin(int i) {
+            return i < tab.length ? tab[i] : oldTab[i - tab.length];
+        }
+
+        @Override
+        public Spliterator<T> trySplit() {
+            int hi = getFence(), lo = index, mid = (lo + hi) >>> 1;
+            if(lo >= mid || current!=null) {
+                return null;
+            }
+            split = true;
+            index = mid;
+            return new HashSpliterator<>(this,lo,mid,est >>>= 1);
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            if(action==null) {
+                throw new NullPointerException();
+            }
+            int hi = getFence();
+            while(current!=null || index < hi) {
+                if(current==null) {
+                    current = bin(index++);
+                } else {
+                    Node<K,V> node = current;
+                    current = current.next;
+                    action.accept(extractor.apply(node));
+                    if(modCount!=expectedModCount) {
+                        throw new ConcurrentModificationException();
+                    }
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super T> action) {
+            if(action==null) {
+                throw new NullPointerException();
+            }
+            int hi = getFence();
+            Node<K,V> node = current;
+            current = null;
+            while(node!=null || index < hi) {
+                if(node==null) {
+                    node = bin(index++);
+                } else {
+                    action.accept(extractor.apply(node));
+                    node = node.next;
+                }
+            }
+            if(modCount!=expectedModCount) {
+                throw new ConcurrentModificationException();
+            }
+        }
+
+        @Override
+        public long estimateSize() {
+            getFence();
+            return est;
+        }
+
+        @Override
+        public int characteristics() {
+            return characteristics | (split ? 0 : Spliterator.SIZED);
+        }
+    }
+
     //<--------------------------------- Private Helper methods --------------------------------------->//
 
     private V putVal(K key,V value) {
         if(table == null || table.length == 0) {
             resize();
         }
-        int n = table.length;
+        Node<K,V>[] tab = table;
+        int n = tab.length;
         int hash = hash(key);
         int index = hash & (n-1);
-        if(table[index]==null) {
-            table[index] = new Node<>(hash, key, value, null);
+        if(oldTable!=null) {
+            Node<K,V> foundNode = findNode(oldTable,hash,key);
+            if(foundNode!=null) {
+                return updateValue(foundNode,value);
+            }
+            int oldIndex = hash & (oldTable.length-1);
+            if(oldTable[oldIndex]!=null && findNode(tab,hash,key)==null) {
+                // about to insert: the old bucket has to move first, its nodes go to the same new buckets
+                moveBucket(oldTable,tab,oldIndex);
+                oldTable[oldIndex] = null;
+            }
+        }
+        if(tab[index]==null) {
+            tab[index] = newNode(hash, key, value, null);
+        } else if(tab[index] instanceof TreeNode) {
+            Node<K,V> foundNode = ((TreeNode<K,V>)tab[index]).putTreeVal(this,tab,hash,key,value);
+            if(foundNode!=null) {
+                return updateValue(foundNode,value);
+            }
         } else {
-            Node<K,V> foundNode ,prevNode = table[index];
+            Node<K,V> foundNode ,prevNode = tab[index];
+            int binCount = 1;
             if(hash==prevNode.hash && Objects.equals(key,prevNode.key)) {
                 foundNode = prevNode;
             } else {
@@ -490,29 +924,88 @@ public class MyHashMap<K,V> implements Map<K,V>{
                         break;
                     }
                     prevNode = prevNode.next;
+                    binCount++;
                 }
             }
             if(foundNode!=null) {
-                V oldValue = foundNode.value;
-                foundNode.value = value;
-                return oldValue;
+                return updateValue(foundNode,value);
             } else {
-                prevNode.next = new Node<>(hash,key,value,null);
+                prevNode.next = newNode(hash,key,value,null);
+                if(binCount >= TREEIFY_THRESHOLD) {
+                    treeifyBin(tab,index);
+                }
             }
         }
+        modCount++;
         if(++size>threshold) {
-            modCount++;
             resize();
+        } else if(oldTable!=null) {
+            migrateBuckets();
+        }
+        if(ordering!=Ordering.NONE) {
+            afterNodeInsertion();
         }
         return null;
     }
 
-    private Node<K,V> removeNode(Object key,Object value,boolean matchValue) {
-        if(table!=null && table.length>0) {
-            int hash = hash(key);
-            int index = hash & (table.length-1);
-            if(table[index]!=null) {
-                Node<K,V> prevNode = table[index],foundNode;
+    private V updateValue(Node<K,V> node,V value) {
+        V oldValue = node.value;
+        node.value = value;
+        if(ordering!=Ordering.NONE) {
+            LinkedNode<K,V> linkedNode = (LinkedNode<K,V>) node;
+            if(weigher!=null) {
+                long weight = weigh(node.key,value);
+                totalWeight += weight - linkedNode.weight;
+                linkedNode.weight = weight;
+            }
+            if(ordering==Ordering.ACCESS) {
+                afterNodeAccess(node);
+            }
+            evictToBounds();
+        }
+        return oldValue;
+    }
+
+    /**
+     * @param movable false when called from an iterator, so that the bin keeps its order and is not
+     *                converted back to a list while being walked
+     */
+    private Node<K,V> removeNode(Object key,Object value,boolean matchValue,boolean movable) {
+        int hash = hash(key);
+        Node<K,V> removedNode = removeNode(table,hash,key,value,matchValue,movable);
+        if(oldTable!=null) {
+            if(removedNode==null) {
+                removedNode = removeNode(oldTable,hash,key,value,matchValue,movable);
+            }
+            if(removedNode!=null && movable) {
+                migrateBuckets();
+            }
+        }
+        if(removedNode!=null && ordering!=Ordering.NONE) {
+            afterNodeRemoval((LinkedNode<K,V>) removedNode);
+        }
+        if(removedNode!=null && movable && autoShrink && size < threshold/SHRINK_DIVISOR && table.length > minCapacity) {
+            int cap = tableSizeForCap((int)Math.min(MAX_CAP,(long)Math.ceil(2 * size / loadFactor)));
+            if(cap < table.length) {
+                shrink(Math.max(cap,minCapacity));
+            }
+        }
+        return removedNode;
+    }
+
+    private Node<K,V> removeNode(Node<K,V>[] tab,int hash,Object key,Object value,boolean matchValue,boolean movable) {
+        if(tab!=null && tab.length>0) {
+            int index = hash & (tab.length-1);
+            if(tab[index] instanceof TreeNode) {
+                TreeNode<K,V> foundNode = ((TreeNode<K,V>)tab[index]).getTreeNode(hash,key);
+                if(foundNode!=null && (!matchValue || Objects.equals(value,foundNode.value))) {
+                    foundNode.removeTreeNode(this,tab,movable);
+                    size--;
+                    modCount++;
+                    return foundNode;
+                }
+            } else if(tab[index]!=null) {
+                Node<K,V> prevNode = tab[index],foundNode;
                 if(hash==prevNode.hash && Objects.equals(key,prevNode.key)) {
                     foundNode = prevNode;
                 } else {
@@ -525,13 +1018,12 @@ public class MyHashMap<K,V> implements Map<K,V>{
                 }
                 if(foundNode!=null && (!matchValue || Objects.equals(value,foundNode.value))) {
                     if(prevNode==foundNode) {
-                        table[index] = foundNode.next;
+                        tab[index] = foundNode.next;
                     } else {
                         prevNode.next = foundNode.next;
                     }
                     size--;
                     modCount++;
-                    foundNode.next=null;
                     return foundNode;
                 }
             }
@@ -540,23 +1032,52 @@ public class MyHashMap<K,V> implements Map<K,V>{
     }
 
     private Node<K,V> getNode(Object key) {
-        if(table!=null && table.length!=0) {
-            int h = hash(key);
-            int index = h & (table.length -1);
-            if(table[index]!=null) {
-                Node<K,V> node = table[index];
-                while(node != null) {
-                    if(h == hash(node.key) && Objects.equals(key,node.key)) {
-                        return node;
-                    }
-                    node = node.next;
+        int h = hash(key);
+        Node<K,V> node = findNode(table,h,key);
+        return node==null && oldTable!=null ? findNode(oldTable,h,key) : node;
+    }
+
+    private Node<K,V> findNode(Node<K,V>[] tab,int h,Object key) {
+        if(tab!=null && tab.length!=0) {
+            Node<K,V> node = tab[h & (tab.length -1)];
+            if(node instanceof TreeNode) {
+                return ((TreeNode<K,V>)node).getTreeNode(h,key);
+            }
+            while(node != null) {
+                if(h == node.hash && Objects.equals(key,node.key)) {
+                    return node;
                 }
+                node = node.next;
             }
         }
         return null;
     }
 
+    /**
+     * Grows the table up front so that {@code additional} more entries fit below the threshold. An empty map
+     * just gets a larger initial capacity; otherwise the table is doubled until the threshold is reached.
+     */
+    private void ensureCapacity(int additional) {
+        if(additional <= 0) {
+            return;
+        }
+        long needed = (long)size + additional;
+        if(table==null) {
+            int cap = tableSizeForCap((int)Math.min(MAX_CAP,(long)Math.ceil(needed/loadFactor)));
+            if(cap > threshold) {
+                threshold = cap;
+            }
+        } else {
+            while(needed > threshold && table.length < MAX_CAP) {
+                resize();
+            }
+        }
+    }
+
     private void resize() {
+        if(oldTable!=null) {
+            finishMigration();
+        }
         int oldCap = table==null ? 0: table.length;
         int newCap;
         if(oldCap>0) {
@@ -574,38 +1095,293 @@ public class MyHashMap<K,V> implements Map<K,V>{
         threshold = ft >= (float)Integer.MAX_VALUE ? Integer.MAX_VALUE : (int)ft;
 
         @SuppressWarnings("unchecked")
-        Node<K,V>[] newTable = (Node<K,V>[])new Node[newCap];
+        Node<K,V>[] newTable = (Node<K,V>[])new Node<?,?>[newCap];
+        if(incrementalResize && oldCap>0) {
+            oldTable = table;
+            table = newTable;
+            rehashIndex = 0;
+            return;
+        }
         for(int i=0;i<oldCap;i++) {
-            if(table[i]!=null) {
-                Node<K,V> node = table[i];
-                Node<K,V> highHead=null,highTail=null,lowHead=null,lowTail=null;
-                while(node!=null) {
-                    if((node.hash & oldCap)==0) {
-                        if(lowHead==null) {
-                            lowHead = lowTail = node;
-                        } else {
-                            lowTail = lowTail.next = node;
-                        }
+            moveBucket(table,newTable,i);
+        }
+        table = newTable;
+    }
+
+    /**
+     * Rebuilds the table with {@code newCap} buckets, a smaller power of two. The buckets {@code i},
+     * {@code i + newCap}, ... all land in bucket {@code i}; tree bins are taken apart into plain nodes first
+     * and merged chains that come out too long are treeified again.
+     */
+    private void shrink(int newCap) {
+        if(oldTable!=null) {
+            finishMigration();
+        }
+        Node<K,V>[] oldTab = table;
+        @SuppressWarnings("unchecked")
+        Node<K,V>[] newTab = (Node<K,V>[])new Node<?,?>[newCap];
+        int[] binCounts = new int[newCap];
+        for(int i=0;i<oldTab.length;i++) {
+            Node<K,V> bin = oldTab[i];
+            if(bin==null) {
+                continue;
+            }
+            if(bin instanceof TreeNode) {
+                bin = ((TreeNode<K,V>)bin).untreeify(this);
+            }
+            int index = i & (newCap-1);
+            Node<K,V> tail = bin;
+            binCounts[index]++;
+            while(tail.next!=null) {
+                tail = tail.next;
+                binCounts[index]++;
+            }
+            tail.next = newTab[index];
+            newTab[index] = bin;
+        }
+        table = newTab;
+        float ft = (float)newCap*loadFactor;
+        threshold = ft >= (float)Integer.MAX_VALUE ? Integer.MAX_VALUE : (int)ft;
+        if(newCap >= MIN_TREEIFY_CAPACITY) {
+            for(int i=0;i<newCap;i++) {
+                if(binCounts[i] > TREEIFY_THRESHOLD) {
+                    treeifyBin(newTab,i);
+                }
+            }
+        }
+    }
+
+    /**
+     * Moves one step of a running incremental resize: up to {@link #MIGRATE_BUCKETS_PER_OP} non empty
+     * buckets, looking at no more than {@link #MIGRATE_EMPTY_VISITS} empty ones, so the cost stays bounded
+     * even in a sparse table.
+     */
+    private void migrateBuckets() {
+        Node<K,V>[] oldTab = oldTable;
+        int moved = 0, emptyVisits = 0;
+        while(rehashIndex < oldTab.length && moved < MIGRATE_BUCKETS_PER_OP && emptyVisits < MIGRATE_EMPTY_VISITS) {
+            if(oldTab[rehashIndex]==null) {
+                emptyVisits++;
+            } else {
+                moveBucket(oldTab,table,rehashIndex);
+                oldTab[rehashIndex] = null;
+                moved++;
+            }
+            rehashIndex++;
+        }
+        if(rehashIndex==oldTab.length) {
+            oldTable = null;
+        }
+    }
+
+    private void finishMigration() {
+        Node<K,V>[] oldTab = oldTable;
+        for(int i=rehashIndex;i<oldTab.length;i++) {
+            moveBucket(oldTab,table,i);
+            oldTab[i] = null;
+        }
+        oldTable = null;
+    }
+
+    /**
+     * Splits bucket {@code i} of {@code oldTab} into {@code i} and {@code i + oldTab.length} of
+     * {@code newTab}, which is twice as large.
+     */
+    private void moveBucket(Node<K,V>[] oldTab,Node<K,V>[] newTab,int i) {
+        int oldCap = oldTab.length;
+        Node<K,V> bin = oldTab[i];
+        if(bin instanceof TreeNode) {
+            ((TreeNode<K,V>)bin).split(this,newTab,i,oldCap);
+        } else if(bin!=null) {
+            Node<K,V> node = bin;
+            Node<K,V> highHead=null,highTail=null,lowHead=null,lowTail=null;
+            while(node!=null) {
+                if((node.hash & oldCap)==0) {
+                    if(lowHead==null) {
+                        lowHead = lowTail = node;
                     } else {
-                        if(highHead==null) {
-                            highHead = highTail = node;
-                        } else {
-                            highTail = highTail.next = node;
-                        }
+                        lowTail = lowTail.next = node;
+                    }
+                } else {
+                    if(highHead==null) {
+                        highHead = highTail = node;
+                    } else {
+                        highTail = highTail.next = node;
                     }
-                    node = node.next;
-                }
-                if(lowHead!=null) {
-                    newTable[i] = lowHead;
-                    lowTail.next = null;
-                }
-                if(highHead!=null) {
-                    newTable[i + oldCap] = highHead;
-                    highTail.next = null;
                 }
+                node = node.next;
+            }
+            if(lowHead!=null) {
+                newTab[i] = lowHead;
+                lowTail.next = null;
+            }
+            if(highHead!=null) {
+                newTab[i + oldCap] = highHead;
+                highTail.next = null;
             }
         }
-        table = newTable;
+    }
+
+    /**
+     * Turns the chain at {@code index} into a red-black tree, unless the table is still small, in which
+     * case growing the table is the better way to shorten the chain.
+     */
+    private void treeifyBin(Node<K,V>[] tab,int index) {
+        if(tab.length < MIN_TREEIFY_CAPACITY) {
+            resize();
+            return;
+        }
+        TreeNode<K,V> head = null, tail = null;
+        for(Node<K,V> node = tab[index]; node != null; node = node.next) {
+            TreeNode<K,V> treeNode = replacementTreeNode(node,null);
+            if((treeNode.prev = tail) == null) {
+                head = treeNode;
+            } else {
+                tail.next = treeNode;
+            }
+            tail = treeNode;
+        }
+        if((tab[index] = head) != null) {
+            head.treeify(tab);
+        }
+    }
+
+    /*
+     * Nodes are only ever created through these four methods, so an ordered map can link every new node
+     * into the order and let every replacement take over the place of the node it replaces.
+     */
+
+    private Node<K,V> newNode(int hash,K key,V value,Node<K,V> next) {
+        if(ordering==Ordering.NONE) {
+            return new Node<>(hash,key,value,next);
+        }
+        return linkNodeLast(new LinkedNode<>(hash,key,value,next));
+    }
+
+    private Node<K,V> replacementNode(Node<K,V> node,Node<K,V> next) {
+        if(ordering==Ordering.NONE) {
+            return new Node<>(node.hash,node.key,node.value,next);
+        }
+        return transferLinks((LinkedNode<K,V>) node,new LinkedNode<>(node.hash,node.key,node.value,next));
+    }
+
+    private TreeNode<K,V> newTreeNode(int hash,K key,V value,Node<K,V> next) {
+        TreeNode<K,V> node = new TreeNode<>(hash,key,value,next);
+        return ordering==Ordering.NONE ? node : linkNodeLast(node);
+    }
+
+    private TreeNode<K,V> replacementTreeNode(Node<K,V> node,Node<K,V> next) {
+        TreeNode<K,V> treeNode = new TreeNode<>(node.hash,node.key,node.value,next);
+        return ordering==Ordering.NONE ? treeNode : transferLinks((LinkedNode<K,V>) node,treeNode);
+    }
+
+    //<---------------------------------------- Ordering --------------------------------------------->//
+
+    private <N extends LinkedNode<K,V>> N linkNodeLast(N node) {
+        node.weight = weigh(node.key,node.value);
+        LinkedNode<K,V> last = orderTail;
+        orderTail = node;
+        if(last==null) {
+            orderHead = node;
+        } else {
+            node.before = last;
+            last.after = node;
+        }
+        totalWeight += node.weight;
+        return node;
+    }
+
+    private <N extends LinkedNode<K,V>> N transferLinks(LinkedNode<K,V> src,N dst) {
+        LinkedNode<K,V> b = dst.before = src.before;
+        LinkedNode<K,V> a = dst.after = src.after;
+        dst.weight = src.weight;
+        if(b==null) {
+            orderHead = dst;
+        } else {
+            b.after = dst;
+        }
+        if(a==null) {
+            orderTail = dst;
+        } else {
+            a.before = dst;
+        }
+        return dst;
+    }
+
+    private void afterNodeRemoval(LinkedNode<K,V> node) {
+        LinkedNode<K,V> b = node.before, a = node.after;
+        node.before = node.after = null;
+        if(b==null) {
+            orderHead = a;
+        } else {
+            b.after = a;
+        }
+        if(a==null) {
+            orderTail = b;
+        } else {
+            a.before = b;
+        }
+        totalWeight -= node.weight;
+    }
+
+    /**
+     * Moves the node to the end of an access ordered map. This counts as a modification, so iterating while
+     * reading an access ordered map fails like it does for {@code LinkedHashMap}.
+     */
+    private void afterNodeAccess(Node<K,V> e) {
+        LinkedNode<K,V> last = orderTail;
+        if(last!=e) {
+            LinkedNode<K,V> p = (LinkedNode<K,V>) e, b = p.before, a = p.after;
+            p.after = null;
+            if(b==null) {
+                orderHead = a;
+            } else {
+                b.after = a;
+            }
+            a.before = b;
+            p.before = last;
+            last.after = p;
+            orderTail = p;
+            modCount++;
+        }
+    }
+
+    private void afterNodeInsertion() {
+        LinkedNode<K,V> eldest = orderHead;
+        if(eldest!=null && removeEldestEntry(eldest)) {
+            evict(eldest);
+        }
+        evictToBounds();
+    }
+
+    private void evictToBounds() {
+        LinkedNode<K,V> eldest;
+        while((size>maxSize || totalWeight>maxWeight) && (eldest = orderHead)!=null) {
+            evict(eldest);
+        }
+    }
+
+    private void evict(LinkedNode<K,V> eldest) {
+        if(removeNode(eldest.key,null,false,true)!=null && evictionListener!=null) {
+            evictionListener.accept(eldest.key,eldest.value);
+        }
+    }
+
+    private long weigh(K key,V value) {
+        if(weigher==null) {
+            return 0;
+        }
+        long weight = weigher.applyAsLong(key,value);
+        if(weight<0) {
+            throw new IllegalArgumentException("Negative weight:" + weight);
+        }
+        return weight;
+    }
+
+    private void checkOrdered() {
+        if(ordering==Ordering.NONE) {
+            throw new IllegalStateException("Bounds need an ordered map");
+        }
     }
 
     //<----------------------------------- static utilities --------------------------------->//
@@ -620,8 +1396,48 @@ public class MyHashMap<K,V> implements Map<K,V>{
         return n + 1;
     }
 
-    private static int hash(Object key) {
-        return key==null ? 0 : key.hashCode();
+    private int hash(Object key) {
+        return key==null ? 0 : hashStrategy.hash(key.hashCode());
+    }
+
+    /**
+     * Returns the class of {@code x} if it is of the form {@code class C implements Comparable<C>}, else null.
+     * Tree bins only use {@code compareTo} between keys of that same class.
+     */
+    private static Class<?> comparableClassFor(Object x) {
+        if(x instanceof Comparable) {
+            Class<?> c = x.getClass();
+            if(c == String.class) {
+                return c;
+            }
+            for(Type t : c.getGenericInterfaces()) {
+                if(t instanceof ParameterizedType) {
+                    ParameterizedType p = (ParameterizedType) t;
+                    Type[] as = p.getActualTypeArguments();
+                    if(p.getRawType() == Comparable.class && as.length == 1 && as[0] == c) {
+                        return c;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    @SuppressWarnings({"rawtypes","unchecked"})
+    private static int compareComparables(Class<?> kc,Object k,Object x) {
+        return x == null || x.getClass() != kc ? 0 : ((Comparable) k).compareTo(x);
+    }
+
+    /**
+     * Last resort ordering for keys with equal hashes that are not mutually comparable. It does not have to
+     * be consistent over time, it only has to put a new node somewhere; lookups then search both subtrees.
+     */
+    private static int tieBreakOrder(Object a,Object b) {
+        int d;
+        if(a == null || b == null || (d = a.getClass().getName().compareTo(b.getClass().getName())) == 0) {
+            d = System.identityHashCode(a) <= System.identityHashCode(b) ? -1 : 1;
+        }
+        return d;
     }
 
     private static class Node<K,V> implements Entry<K,V>{
@@ -656,7 +1472,7 @@ public class MyHashMap<K,V> implements Map<K,V>{
 
         @Override
         public int hashCode() {
-            return hash ^ hash(value);
+            return Objects.hashCode(key) ^ Objects.hashCode(value);
         }
 
         @Override
@@ -668,4 +1484,534 @@ public class MyHashMap<K,V> implements Map<K,V>{
             return false;
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Node of an ordered map, linked into the iteration order. {@code weight} is what the weigher returned
+     * when the entry was put, so removal can subtract exactly what insertion added.
+     */
+    private static class LinkedNode<K,V> extends Node<K,V> {
+        LinkedNode<K,V> before, after;
+        long weight;
+
+        LinkedNode(int hash,K key,V value,Node<K,V> next) {
+            super(hash,key,value,next);
+        }
+    }
+
+    /**
+     * Node of a tree bin. Bins longer than {@link #TREEIFY_THRESHOLD} are kept as red-black trees ordered
+     * by hash, then by {@code compareTo} for comparable keys, so lookups in a bin full of colliding keys
+     * stay logarithmic. The nodes stay linked through {@code next} as well, with the root first, so
+     * iteration and {@code containsValue} treat tree bins like any other bin.
+     */
+    private static final class TreeNode<K,V> extends LinkedNode<K,V> {
+        TreeNode<K,V> parent;
+        TreeNode<K,V> left;
+        TreeNode<K,V> right;
+        TreeNode<K,V> prev;
+        boolean red;
+
+        TreeNode(int hash,K key,V value,Node<K,V> next) {
+            super(hash,key,value,next);
+        }
+
+        TreeNode<K,V> root() {
+            for(TreeNode<K,V> r = this, p;;) {
+                if((p = r.parent) == null) {
+                    return r;
+                }
+                r = p;
+            }
+        }
+
+        static <K,V> void moveRootToFront(Node<K,V>[] tab,TreeNode<K,V> root) {
+            int n;
+            if(root != null && tab != null && (n = tab.length) > 0) {
+                int index = (n - 1) & root.hash;
+                TreeNode<K,V> first = (TreeNode<K,V>) tab[index];
+                if(root != first) {
+                    Node<K,V> rn;
+                    tab[index] = root;
+                    TreeNode<K,V> rp = root.prev;
+                    if((rn = root.next) != null) {
+                        ((TreeNode<K,V>) rn).prev = rp;
+                    }
+                    if(rp != null) {
+                        rp.next = rn;
+                    }
+                    if(first != null) {
+                        first.prev = root;
+                    }
+                    root.next = first;
+                    root.prev = null;
+                }
+            }
+        }
+
+        TreeNode<K,V> find(int h,Object k,Class<?> kc) {
+            TreeNode<K,V> p = this;
+            do {
+                int ph, dir;
+                K pk;
+                TreeNode<K,V> pl = p.left, pr = p.right, q;
+                if((ph = p.hash) > h) {
+                    p = pl;
+                } else if(ph < h) {
+                    p = pr;
+                } else if((pk = p.key) == k || (k != null && k.equals(pk))) {
+                    return p;
+                } else if(pl == null) {
+                    p = pr;
+                } else if(pr == null) {
+                    p = pl;
+                } else if((kc != null || (kc = comparableClassFor(k)) != null) && (dir = compareComparables(kc,k,pk)) != 0) {
+                    p = dir < 0 ? pl : pr;
+                } else if((q = pr.find(h,k,kc)) != null) {
+                    return q;
+                } else {
+                    p = pl;
+                }
+            } while(p != null);
+            return null;
+        }
+
+        TreeNode<K,V> getTreeNode(int h,Object k) {
+            return (parent != null ? root() : this).find(h,k,null);
+        }
+
+        void treeify(Node<K,V>[] tab) {
+            TreeNode<K,V> root = null;
+            for(TreeNode<K,V> x = this, next; x != null; x = next) {
+                next = (TreeNode<K,V>) x.next;
+                x.left = x.right = null;
+                if(root == null) {
+                    x.parent = null;
+                    x.red = false;
+                    root = x;
+                } else {
+                    K k = x.key;
+                    int h = x.hash;
+                    Class<?> kc = null;
+                    for(TreeNode<K,V> p = root;;) {
+                        int dir, ph;
+                        K pk = p.key;
+                        if((ph = p.hash) > h) {
+                            dir = -1;
+                        } else if(ph < h) {
+                            dir = 1;
+                        } else if((kc == null && (kc = comparableClassFor(k)) == null) || (dir = compareComparables(kc,k,pk)) == 0) {
+                            dir = tieBreakOrder(k,pk);
+                        }
+                        TreeNode<K,V> xp = p;
+                        if((p = dir <= 0 ? p.left : p.right) == null) {
+                            x.parent = xp;
+                            if(dir <= 0) {
+                                xp.left = x;
+                            } else {
+                                xp.right = x;
+                            }
+                            root = balanceInsertion(root,x);
+                            break;
+                        }
+                    }
+                }
+            }
+            moveRootToFront(tab,root);
+        }
+
+        Node<K,V> untreeify(MyHashMap<K,V> map) {
+            Node<K,V> head = null, tail = null;
+            for(Node<K,V> q = this; q != null; q = q.next) {
+                Node<K,V> p = map.replacementNode(q,null);
+                if(tail == null) {
+                    head = p;
+                } else {
+                    tail.next = p;
+                }
+                tail = p;
+            }
+            return head;
+        }
+
+        /**
+         * @return the existing node for the key, or null after inserting a new one
+         */
+        TreeNode<K,V> putTreeVal(MyHashMap<K,V> map,Node<K,V>[] tab,int h,K k,V v) {
+            Class<?> kc = null;
+            boolean searched = false;
+            TreeNode<K,V> root = parent != null ? root() : this;
+            for(TreeNode<K,V> p = root;;) {
+                int dir, ph;
+                K pk;
+                if((ph = p.hash) > h) {
+                    dir = -1;
+                } else if(ph < h) {
+                    dir = 1;
+                } else if((pk = p.key) == k || (k != null && k.equals(pk))) {
+                    return p;
+                } else if((kc == null && (kc = comparableClassFor(k)) == null) || (dir = compareComparables(kc,k,pk)) == 0) {
+                    if(!searched) {
+                        TreeNode<K,V> q, ch;
+                        searched = true;
+                        if(((ch = p.left) != null && (q = ch.find(h,k,kc)) != null) ||
+                                ((ch = p.right) != null && (q = ch.find(h,k,kc)) != null)) {
+                            return q;
+                        }
+                    }
+                    dir = tieBreakOrder(k,pk);
+                }
+                TreeNode<K,V> xp = p;
+                if((p = dir <= 0 ? p.left : p.right) == null) {
+                    Node<K,V> xpn = xp.next;
+                    TreeNode<K,V> x = map.newTreeNode(h,k,v,xpn);
+                    if(dir <= 0) {
+                        xp.left = x;
+                    } else {
+                        xp.right = x;
+                    }
+                    xp.next = x;
+                    x.parent = x.prev = xp;
+                    if(xpn != null) {
+                        ((TreeNode<K,V>) xpn).prev = x;
+                    }
+                    moveRootToFront(tab,balanceInsertion(root,x));
+                    return null;
+                }
+            }
+        }
+
+        /**
+         * Unlinks this node from the bin's list and its tree. A bin that became too small is turned back
+         * into a plain chain, unless {@code movable} is false.
+         */
+        void removeTreeNode(MyHashMap<K,V> map,Node<K,V>[] tab,boolean movable) {
+            int n;
+            if(tab == null || (n = tab.length) == 0) {
+                return;
+            }
+            int index = (n - 1) & hash;
+            TreeNode<K,V> first = (TreeNode<K,V>) tab[index], root = first, rl;
+            TreeNode<K,V> succ = (TreeNode<K,V>) next, pred = prev;
+            if(pred == null) {
+                tab[index] = first = succ;
+            } else {
+                pred.next = succ;
+            }
+            if(succ != null) {
+                succ.prev = pred;
+            }
+            if(first == null) {
+                return;
+            }
+            if(root.parent != null) {
+                root = root.root();
+            }
+            if(root == null || (movable && (root.right == null || (rl = root.left) == null || rl.left == null))) {
+                tab[index] = first.untreeify(map);
+                return;
+            }
+            TreeNode<K,V> p = this, pl = left, pr = right, replacement;
+            if(pl != null && pr != null) {
+                TreeNode<K,V> s = pr, sl;
+                while((sl = s.left) != null) {
+                    s = sl;
+                }
+                boolean c = s.red;
+                s.red = p.red;
+                p.red = c;
+                TreeNode<K,V> sr = s.right;
+                TreeNode<K,V> pp = p.parent;
+                if(s == pr) {
+                    p.parent = s;
+                    s.right = p;
+                } else {
+                    TreeNode<K,V> sp = s.parent;
+                    if((p.parent = sp) != null) {
+                        if(s == sp.left) {
+                            sp.left = p;
+                        } else {
+                            sp.right = p;
+                        }
+                    }
+                    if((s.right = pr) != null) {
+                        pr.parent = s;
+                    }
+                }
+                p.left = null;
+                if((p.right = sr) != null) {
+                    sr.parent = p;
+                }
+                if((s.left = pl) != null) {
+                    pl.parent = s;
+                }
+                if((s.parent = pp) == null) {
+                    root = s;
+                } else if(p == pp.left) {
+                    pp.left = s;
+                } else {
+                    pp.right = s;
+                }
+                replacement = sr != null ? sr : p;
+            } else if(pl != null) {
+                replacement = pl;
+            } else if(pr != null) {
+                replacement = pr;
+            } else {
+                replacement = p;
+            }
+            if(replacement != p) {
+                TreeNode<K,V> pp = replacement.parent = p.parent;
+                if(pp == null) {
+                    (root = replacement).red = false;
+                } else if(p == pp.left) {
+                    pp.left = replacement;
+                } else {
+                    pp.right = replacement;
+                }
+                p.left = p.right = p.parent = null;
+            }
+            TreeNode<K,V> r = p.red ? root : balanceDeletion(root,replacement);
+            if(replacement == p) {
+                TreeNode<K,V> pp = p.parent;
+                p.parent = null;
+                if(pp != null) {
+                    if(p == pp.left) {
+                        pp.left = null;
+                    } else if(p == pp.right) {
+                        pp.right = null;
+                    }
+                }
+            }
+            if(movable) {
+                moveRootToFront(tab,r);
+            }
+        }
+
+        /**
+         * Splits this bin into the low and high bins of a table twice the size, keeping either half as a
+         * tree only while it is longer than {@link #UNTREEIFY_THRESHOLD}.
+         */
+        void split(MyHashMap<K,V> map,Node<K,V>[] tab,int index,int bit) {
+            TreeNode<K,V> loHead = null, loTail = null, hiHead = null, hiTail = null;
+            int lc = 0, hc = 0;
+            for(TreeNode<K,V> e = this, next; e != null; e = next) {
+                next = (TreeNode<K,V>) e.next;
+                e.next = null;
+                if((e.hash & bit) == 0) {
+                    if((e.prev = loTail) == null) {
+                        loHead = e;
+                    } else {
+                        loTail.next = e;
+                    }
+                    loTail = e;
+                    lc++;
+                } else {
+                    if((e.prev = hiTail) == null) {
+                        hiHead = e;
+                    } else {
+                        hiTail.next = e;
+                    }
+                    hiTail = e;
+                    hc++;
+                }
+            }
+            if(loHead != null) {
+                if(lc <= UNTREEIFY_THRESHOLD) {
+                    tab[index] = loHead.untreeify(map);
+                } else {
+                    tab[index] = loHead;
+                    if(hiHead != null) {
+                        loHead.treeify(tab);
+                    }
+                }
+            }
+            if(hiHead != null) {
+                if(hc <= UNTREEIFY_THRESHOLD) {
+                    tab[index + bit] = hiHead.untreeify(map);
+                } else {
+                    tab[index + bit] = hiHead;
+                    if(loHead != null) {
+                        hiHead.treeify(tab);
+                    }
+                }
+            }
+        }
+
+        //<------------------------- Red-black tree balancing (CLR) ------------------------->//
+
+        static <K,V> TreeNode<K,V> rotateLeft(TreeNode<K,V> root,TreeNode<K,V> p) {
+            TreeNode<K,V> r, pp, rl;
+            if(p != null && (r = p.right) != null) {
+                if((rl = p.right = r.left) != null) {
+                    rl.parent = p;
+                }
+                if((pp = r.parent = p.parent) == null) {
+                    (root = r).red = false;
+                } else if(pp.left == p) {
+                    pp.left = r;
+                } else {
+                    pp.right = r;
+                }
+                r.left = p;
+                p.parent = r;
+            }
+            return root;
+        }
+
+        static <K,V> TreeNode<K,V> rotateRight(TreeNode<K,V> root,TreeNode<K,V> p) {
+            TreeNode<K,V> l, pp, lr;
+            if(p != null && (l = p.left) != null) {
+                if((lr = p.left = l.right) != null) {
+                    lr.parent = p;
+                }
+                if((pp = l.parent = p.parent) == null) {
+                    (root = l).red = false;
+                } else if(pp.right == p) {
+                    pp.right = l;
+                } else {
+                    pp.left = l;
+                }
+                l.right = p;
+                p.parent = l;
+            }
+            return root;
+        }
+
+        static <K,V> TreeNode<K,V> balanceInsertion(TreeNode<K,V> root,TreeNode<K,V> x) {
+            x.red = true;
+            for(TreeNode<K,V> xp, xpp, xppl, xppr;;) {
+                if((xp = x.parent) == null) {
+                    x.red = false;
+                    return x;
+                } else if(!xp.red || (xpp = xp.parent) == null) {
+                    return root;
+                }
+                if(xp == (xppl = xpp.left)) {
+                    if((xppr = xpp.right) != null && xppr.red) {
+                        xppr.red = false;
+                        xp.red = false;
+                        xpp.red = true;
+                        x = xpp;
+                    } else {
+                        if(x == xp.right) {
+                            root = rotateLeft(root,x = xp);
+                            xpp = (xp = x.parent) == null ? null : xp.parent;
+                        }
+                        if(xp != null) {
+                            xp.red = false;
+                            if(xpp != null) {
+                                xpp.red = true;
+                                root = rotateRight(root,xpp);
+                            }
+                        }
+                    }
+                } else {
+                    if(xppl != null && xppl.red) {
+                        xppl.red = false;
+                        xp.red = false;
+                        xpp.red = true;
+                        x = xpp;
+                    } else {
+                        if(x == xp.left) {
+                            root = rotateRight(root,x = xp);
+                            xpp = (xp = x.parent) == null ? null : xp.parent;
+                        }
+                        if(xp != null) {
+                            xp.red = false;
+                            if(xpp != null) {
+                                xpp.red = true;
+                                root = rotateLeft(root,xpp);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        static <K,V> TreeNode<K,V> balanceDeletion(TreeNode<K,V> root,TreeNode<K,V> x) {
+            for(TreeNode<K,V> xp, xpl, xpr;;) {
+                if(x == null || x == root) {
+                    return root;
+                } else if((xp = x.parent) == null) {
+                    x.red = false;
+                    return x;
+                } else if(x.red) {
+                    x.red = false;
+                    return root;
+                } else if((xpl = xp.left) == x) {
+                    if((xpr = xp.right) != null && xpr.red) {
+                        xpr.red = false;
+                        xp.red = true;
+                        root = rotateLeft(root,xp);
+                        xpr = (xp = x.parent) == null ? null : xp.right;
+                    }
+                    if(xpr == null) {
+                        x = xp;
+                    } else {
+                        TreeNode<K,V> sl = xpr.left, sr = xpr.right;
+                        if((sr == null || !sr.red) && (sl == null || !sl.red)) {
+                            xpr.red = true;
+                            x = xp;
+                        } else {
+                            if(sr == null || !sr.red) {
+                                if(sl != null) {
+                                    sl.red = false;
+                                }
+                                xpr.red = true;
+                                root = rotateRight(root,xpr);
+                                xpr = (xp = x.parent) == null ? null : xp.right;
+                            }
+                            if(xpr != null) {
+                                xpr.red = xp != null && xp.red;
+                                if((sr = xpr.right) != null) {
+                                    sr.red = false;
+                                }
+                            }
+                            if(xp != null) {
+                                xp.red = false;
+                                root = rotateLeft(root,xp);
+                            }
+                            x = root;
+                        }
+                    }
+                } else {
+                    if(xpl != null && xpl.red) {
+                        xpl.red = false;
+                        xp.red = true;
+                        root = rotateRight(root,xp);
+                        xpl = (xp = x.parent) == null ? null : xp.left;
+                    }
+                    if(xpl == null) {
+                        x = xp;
+                    } else {
+                        TreeNode<K,V> sl = xpl.left, sr = xpl.right;
+                        if((sl == null || !sl.red) && (sr == null || !sr.red)) {
+                            xpl.red = true;
+                            x = xp;
+                        } else {
+                            if(sl == null || !sl.red) {
+                                if(sr != null) {
+                                    sr.red = false;
+                                }
+                                xpl.red = true;
+                                root = rotateLeft(root,xpl);
+                                xpl = (xp = x.parent) == null ? null : xp.left;
+                            }
+                            if(xpl != null) {
+                                xpl.red = xp != null && xp.red;
+                                if((sl = xpl.left) != null) {
+                                    sl.red = false;
+                                }
+                            }
+                            if(xp != null) {
+                                xp.red = false;
+                                root = rotateRight(root,xp);
+                            }
+                            x = root;
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
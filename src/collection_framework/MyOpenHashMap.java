@@ -0,0 +1,722 @@
+package collection_framework;
+
+import java.util.*;
+
+/**
+ * {@link Map} backed by a single flat array using open addressing with linear probing. Slot {@code i} keeps
+ * its key in {@code table[2*i]} and its value right next to it in {@code table[2*i+1]}, so a lookup touches
+ * one or two cache lines and no entry objects are allocated. Removal shifts the rest of the probe run back
+ * (Knuth's algorithm R) instead of leaving tombstones, so lookups never slow down after many removals.
+ *
+ * The load factor has to be below 1 because a lookup for an absent key stops at the first empty slot; with
+ * linear probing lookups stay fast up to about 0.7. The null key is stored as {@link #NULL_KEY}.
+ */
+public class MyOpenHashMap<K,V> implements Map<K,V>{
+
+    private static int MAX_CAP = 1<<29;
+    private static int DEFAULT_CAP = 16;
+    private static float DEFAULT_LOAD_FACTOR = 0.5F;
+    private static final Object NULL_KEY = new Object();
+
+    private int size;
+    private int threshold;
+    private float loadFactor;
+    private int modCount;
+    private final HashStrategy hashStrategy;
+
+    private Object[] table;
+
+    private Set<Entry<K,V>> es;
+    private Set<K> ks;
+    private Collection<V> values;
+
+    //<----------------------------------------- Constructors ------------------------------------------>//
+
+    public MyOpenHashMap(int cap,float loadFactor,HashStrategy hashStrategy) {
+        if(cap<0) {
+            throw new IllegalArgumentException("Illegal Capacity:" + cap);
+        }
+        if(loadFactor<=0 || loadFactor>=1 || Float.isNaN(loadFactor)) {
+            throw new IllegalArgumentException("Illegal load factor" + loadFactor);
+        }
+        if(hashStrategy==null) {
+            throw new IllegalArgumentException("Hash strategy is null");
+        }
+        if(cap>MAX_CAP) {
+            cap = MAX_CAP;
+        }
+        this.loadFactor = loadFactor;
+        this.threshold = tableSizeForCap((int)Math.min(MAX_CAP,Math.ceil(cap/loadFactor)));
+        this.hashStrategy = hashStrategy;
+    }
+    public MyOpenHashMap(int cap,float loadFactor) {
+        this(cap,loadFactor,HashStrategy.SPREAD);
+    }
+    public MyOpenHashMap(int cap) {
+        this(cap,DEFAULT_LOAD_FACTOR);
+    }
+    public MyOpenHashMap() {
+        this.loadFactor = DEFAULT_LOAD_FACTOR;
+        this.hashStrategy = HashStrategy.SPREAD;
+    }
+
+    //<----------------------------------------- Public Methods --------------------------------------->//
+
+    @Override
+    public V put(K key,V value) {
+        return putVal(key,value,false);
+    }
+
+    @Override
+    public void putAll(Map<? extends K, ? extends V> m) {
+        if(m!=null) {
+            for (Entry<? extends K, ? extends V> entry : m.entrySet()) {
+                putVal(entry.getKey(), entry.getValue(),false);
+            }
+        }
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        int index = findSlot(key);
+        if(index<0 || !Objects.equals(value,table[index+1])) {
+            return false;
+        }
+        removeAt(index);
+        return true;
+    }
+
+    @Override
+    public V remove(Object key) {
+        int index = findSlot(key);
+        if(index<0) {
+            return null;
+        }
+        @SuppressWarnings("unchecked")
+        V oldValue = (V) table[index+1];
+        removeAt(index);
+        return oldValue;
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+        return putVal(key,value,true);
+    }
+
+    @Override
+    public boolean replace(K key, V oldValue, V newValue) {
+        int index = findSlot(key);
+        if(index<0 || !Objects.equals(oldValue,table[index+1])) {
+            return false;
+        }
+        table[index+1] = newValue;
+        return true;
+    }
+
+    @Override
+    public V replace(K key, V value) {
+        int index = findSlot(key);
+        if(index<0) {
+            return null;
+        }
+        @SuppressWarnings("unchecked")
+        V oldValue = (V) table[index+1];
+        table[index+1] = value;
+        return oldValue;
+    }
+
+    @Override
+    public void clear() {
+        if(table!=null) {
+            Arrays.fill(table,null);
+            size = 0;
+            modCount++;
+        }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        int index = findSlot(key);
+        return index<0 ? null : (V) table[index+1];
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return findSlot(key)>=0;
+    }
+
+    @Override
+    public boolean containsValue(Object value) {
+        if(table!=null) {
+            for(int i=0;i<table.length;i+=2) {
+                if(table[i]!=null && Objects.equals(value,table[i+1])) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size==0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(o==this) {
+            return true;
+        }
+        if(o instanceof Map<?,?>) {
+            Map<?,?> map = (Map<?,?>)o;
+            if(map.size()!=size) {
+                return false;
+            }
+            Set<Entry<K,V>> entrySet = entrySet();
+            for(Entry<?,?> entry: map.entrySet()) {
+                if(!entrySet.contains(entry)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        int hashCode = 0;
+        if(table!=null) {
+            for(int i=0;i<table.length;i+=2) {
+                if(table[i]!=null) {
+                    hashCode += Objects.hashCode(unmaskNull(table[i])) ^ Objects.hashCode(table[i+1]);
+                }
+            }
+        }
+        return hashCode;
+    }
+
+    //<------------------------- Methods that returns view(mutable) of HashMap ---------------------------->//
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        return es==null ? es = new EntrySet() : es;
+    }
+
+    @Override
+    public Set<K> keySet() {
+        return ks==null ? ks = new KeySet() : ks;
+    }
+
+    @Override
+    public Collection<V> values() {
+        return values==null ? values = new Values() : values;
+    }
+
+    //<----------------------------------------- Views of HashMap----------------------------------------->//
+
+    private abstract class CommonCollectionOperation {
+        public int size() {
+            return size;
+        }
+        public boolean isEmpty() {
+            return size==0;
+        }
+        public void clear() {
+            MyOpenHashMap.this.clear();
+        }
+        public abstract boolean contains(Object o);
+        public boolean containsAll(Collection<?> c) {
+            for(Object o: c) {
+                if(!contains(o)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        public abstract boolean remove(Object o);
+        public boolean removeAll(Collection<?> c) {
+            boolean changed = false;
+            for(Object o:c) {
+                changed |= remove(o);
+            }
+            return changed;
+        }
+        public boolean retainAll(Collection<?> c) {
+            boolean changed = false;
+            Iterator<?> it = iterator();
+            while(it.hasNext()) {
+                if(!c.contains(it.next())) {
+                    changed = true;
+                    it.remove();
+                }
+            }
+            return changed;
+        }
+        public abstract Iterator<?> iterator();
+        public Object[] toArray() {
+            Iterator<?> it = iterator();
+            Object[] array = new Object[size];
+            int i = 0;
+            while(it.hasNext()) {
+                array[i++] = it.next();
+            }
+            return array;
+        }
+        @SuppressWarnings("unchecked")
+        public <T> T[] toArray(T[] a) {
+            if(a.length < size) {
+                return (T[])toArray();
+            }
+            int i = 0;
+            Iterator<?> it = iterator();
+            while(it.hasNext()) {
+                a[i++] = (T)it.next();
+            }
+            if(i < size) {
+                a[i] = null;
+            }
+            return a;
+        }
+    }
+
+    private class EntrySet extends CommonCollectionOperation implements Set<Entry<K,V>> {
+
+        @Override
+        public boolean contains(Object o) {
+            if(o instanceof Entry<?,?>) {
+                Entry<?,?> entry = (Entry<?,?>) o;
+                int index = findSlot(entry.getKey());
+                return index>=0 && Objects.equals(entry.getValue(),table[index+1]);
+            }
+            return false;
+        }
+
+        @Override
+        public Iterator<Entry<K, V>> iterator() {
+            return new EntrySetItr();
+        }
+
+        @Override
+        public boolean add(Entry<K, V> kvEntry) {
+            if(contains(kvEntry)) {
+                return false;
+            }
+            putVal(kvEntry.getKey(),kvEntry.getValue(),false);
+            return true;
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            if(o instanceof Entry<?,?>) {
+                Entry<?,?> entry = (Entry<?,?>)o;
+                return MyOpenHashMap.this.remove(entry.getKey(),entry.getValue());
+            }
+            return false;
+        }
+
+        @Override
+        public boolean addAll(Collection<? extends Entry<K, V>> c) {
+            boolean changed = false;
+            for(Entry<K,V> entry: c) {
+                changed |= add(entry);
+            }
+            return changed;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(o==this) {
+                return true;
+            }
+            if(o instanceof Set<?>) {
+                Set<?> set = (Set<?>) o;
+                return set.size()==size && containsAll(set);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return MyOpenHashMap.this.hashCode();
+        }
+
+    }
+
+    private class KeySet extends CommonCollectionOperation implements Set<K> {
+
+        @Override
+        public boolean contains(Object o) {
+            return findSlot(o)>=0;
+        }
+
+        @Override
+        public Iterator<K> iterator() {
+            return new KeyItr();
+        }
+
+        @Override
+        public boolean add(K k) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            int index = findSlot(o);
+            if(index<0) {
+                return false;
+            }
+            removeAt(index);
+            return true;
+        }
+
+        @Override
+        public boolean addAll(Collection<? extends K> c) {
+            throw new UnsupportedOperationException();
+        }
+
+    }
+
+    private class Values extends CommonCollectionOperation implements Collection<V> {
+
+        @Override
+        public boolean contains(Object o) {
+            return containsValue(o);
+        }
+
+        @Override
+        public Iterator<V> iterator() {
+            return new ValueItr();
+        }
+
+        @Override
+        public boolean add(V v) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            Iterator<V> it = iterator();
+            while(it.hasNext()) {
+                V value = it.next();
+                if(Objects.equals(value,o)) {
+                    it.remove();
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public boolean addAll(Collection<? extends V> c) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean removeAll(Collection<?> c) {
+            boolean changed = false;
+            Iterator<V> it = iterator();
+            while(it.hasNext()) {
+                if(c.contains(it.next())) {
+                    it.remove();
+                    changed = true;
+                }
+            }
+            return changed;
+        }
+
+    }
+
+    //<------------------------------------------- Iterators --------------------------------------------->//
+
+    /**
+     * Walks the slots downwards, starting just below an empty slot and wrapping around to it. A removal only
+     * ever shifts entries from later in the same probe run into the freed slot; runs never cross the empty
+     * starting slot, so everything that can be shifted has already been returned and {@link #remove()} is
+     * safe without ever skipping or repeating an entry.
+     */
+    private abstract class HashItr {
+        int currentIndex = -1;
+        int nextIndex;
+        int remaining;
+        int expectedModCount;
+
+        HashItr() {
+            expectedModCount = modCount;
+            if(table!=null && size>0) {
+                int start = table.length-2;
+                while(table[start]!=null) {
+                    start -= 2;
+                }
+                nextIndex = start;
+                remaining = table.length>>>1;
+                advance();
+            } else {
+                nextIndex = -1;
+            }
+        }
+
+        private void advance() {
+            do {
+                if(remaining==0) {
+                    nextIndex = -1;
+                    return;
+                }
+                remaining--;
+                nextIndex = (nextIndex-2) & (table.length-1);
+            } while(table[nextIndex]==null);
+        }
+
+        public boolean hasNext() {
+            return nextIndex>=0;
+        }
+
+        int nextIndex() {
+            checkForConcurrentModification();
+            if(nextIndex<0) {
+                throw new NoSuchElementException();
+            }
+            currentIndex = nextIndex;
+            advance();
+            return currentIndex;
+        }
+
+        public void remove() {
+            checkForConcurrentModification();
+            if(currentIndex<0) {
+                throw new IllegalStateException();
+            }
+            removeAt(currentIndex);
+            currentIndex = -1;
+            expectedModCount = modCount;
+        }
+
+        private void checkForConcurrentModification() {
+            if(expectedModCount != modCount) {
+                throw new ConcurrentModificationException();
+            }
+        }
+    }
+
+    private class EntrySetItr extends HashItr implements Iterator<Entry<K,V>> {
+        @Override
+        public Entry<K,V> next() {
+            return new SlotEntry(nextIndex());
+        }
+    }
+
+    private class KeyItr extends HashItr implements Iterator<K> {
+        @Override
+        @SuppressWarnings("unchecked")
+        public K next() {
+            return (K) unmaskNull(table[nextIndex()]);
+        }
+    }
+
+    private class ValueItr extends HashItr implements Iterator<V> {
+        @Override
+        @SuppressWarnings("unchecked")
+        public V next() {
+            return (V) table[nextIndex()+1];
+        }
+    }
+
+    //<--------------------------------- Private Helper methods --------------------------------------->//
+
+    private V putVal(K key,V value,boolean onlyIfAbsent) {
+        if(table == null || table.length == 0) {
+            resize();
+        }
+        Object k = maskNull(key);
+        Object[] tab = table;
+        int mask = tab.length-1;
+        int index = (hash(k)<<1) & mask;
+        Object item;
+        while((item = tab[index])!=null) {
+            if(item==k || item.equals(k)) {
+                @SuppressWarnings("unchecked")
+                V oldValue = (V) tab[index+1];
+                if(!onlyIfAbsent || oldValue==null) {
+                    tab[index+1] = value;
+                }
+                return oldValue;
+            }
+            index = (index+2) & mask;
+        }
+        if(size >= threshold && tab.length == MAX_CAP<<1) {
+            throw new IllegalStateException("Capacity exhausted");
+        }
+        tab[index] = k;
+        tab[index+1] = value;
+        modCount++;
+        if(++size > threshold) {
+            resize();
+        }
+        return null;
+    }
+
+    /**
+     * Index of the key's slot in {@code table}, or -1 if the key is absent.
+     */
+    private int findSlot(Object key) {
+        Object[] tab = table;
+        if(tab == null || size == 0) {
+            return -1;
+        }
+        Object k = maskNull(key);
+        int mask = tab.length-1;
+        int index = (hash(k)<<1) & mask;
+        Object item;
+        while((item = tab[index])!=null) {
+            if(item==k || item.equals(k)) {
+                return index;
+            }
+            index = (index+2) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Empties the slot at {@code index} and closes the gap: every later entry of the probe run whose home slot
+     * is not cyclically between the gap and its current slot moves back into the gap, which then moves on.
+     */
+    private void removeAt(int index) {
+        Object[] tab = table;
+        int mask = tab.length-1;
+        modCount++;
+        size--;
+        int gap = index;
+        int i = (gap+2) & mask;
+        Object item;
+        while((item = tab[i])!=null) {
+            int home = (hash(item)<<1) & mask;
+            if(gap <= i ? (home <= gap || home > i) : (home <= gap && home > i)) {
+                tab[gap] = item;
+                tab[gap+1] = tab[i+1];
+                gap = i;
+            }
+            i = (i+2) & mask;
+        }
+        tab[gap] = null;
+        tab[gap+1] = null;
+    }
+
+    private void resize() {
+        int oldCap = table==null ? 0: table.length>>>1;
+        int newCap;
+        if(oldCap>0) {
+            if(oldCap==MAX_CAP) {
+                return;
+            } else {
+                newCap = oldCap<<1;
+            }
+        } else if(threshold>0) {
+            newCap = threshold;
+        } else {
+            newCap = DEFAULT_CAP;
+        }
+        threshold = newCap==MAX_CAP ? MAX_CAP-1 : Math.min(newCap-1,(int)(newCap*loadFactor));
+
+        Object[] oldTable = table;
+        Object[] newTable = new Object[newCap<<1];
+        int mask = newTable.length-1;
+        for(int i=0;i<(oldCap<<1);i+=2) {
+            Object key = oldTable[i];
+            if(key!=null) {
+                int index = (hash(key)<<1) & mask;
+                while(newTable[index]!=null) {
+                    index = (index+2) & mask;
+                }
+                newTable[index] = key;
+                newTable[index+1] = oldTable[i+1];
+            }
+        }
+        table = newTable;
+    }
+
+    private int hash(Object maskedKey) {
+        return maskedKey==NULL_KEY ? 0 : hashStrategy.hash(maskedKey.hashCode());
+    }
+
+    //<----------------------------------- static utilities --------------------------------->//
+
+    private static int tableSizeForCap(int cap) {
+        int n = cap - 1;
+        n |= n >>> 1;
+        n |= n >>> 2;
+        n |= n >>> 4;
+        n |= n >>> 8;
+        n |= n >>> 16;
+        return n < 0 ? 1 : (n >= MAX_CAP ? MAX_CAP : n + 1);
+    }
+
+    private static Object maskNull(Object key) {
+        return key==null ? NULL_KEY : key;
+    }
+
+    private static Object unmaskNull(Object key) {
+        return key==NULL_KEY ? null : key;
+    }
+
+    /**
+     * Entry handed out by the entry set iterator. It reads through to the table, and writes go through
+     * {@link #put} once the entry has been moved by a later update of the map.
+     */
+    private final class SlotEntry implements Map.Entry<K,V> {
+        private final int index;
+        private final K key;
+
+        @SuppressWarnings("unchecked")
+        SlotEntry(int index) {
+            this.index = index;
+            this.key = (K) unmaskNull(table[index]);
+        }
+
+        @Override
+        public K getKey() {
+            return key;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public V getValue() {
+            return table[index]==maskNull(key) ? (V) table[index+1] : get(key);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public V setValue(V value) {
+            if(table[index]==maskNull(key)) {
+                V oldValue = (V) table[index+1];
+                table[index+1] = value;
+                return oldValue;
+            }
+            return put(key,value);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(key) ^ Objects.hashCode(getValue());
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(o instanceof Entry<?,?>) {
+                Entry<?,?> entry = (Entry<?,?>) o;
+                return Objects.equals(key,entry.getKey()) && Objects.equals(getValue(),entry.getValue());
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + getValue();
+        }
+    }
+}
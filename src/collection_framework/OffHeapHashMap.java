@@ -0,0 +1,899 @@
+package collection_framework;
+
+import sun.misc.Unsafe;
+
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.*;
+
+/**
+ * {@link Map} that keeps its whole table in direct memory, outside the Java heap. Keys and values are
+ * written into fixed width slots by a {@link FixedSerializer}, so however many entries the map holds the
+ * garbage collector only ever sees a handful of page buffers. Keys and values are only turned back into
+ * objects when they are read, and lookups compare serialized keys byte by byte, so {@code get} and
+ * {@code containsKey} allocate nothing beyond the boxed key passed in and the value returned.
+ *
+ * The table works like {@link MyOpenHashMap}: linear probing with backward shift removal. A slot is
+ * {@code [int tag][key][value]}; the tag is the key's hash with the high bit set, 0 marks an empty slot,
+ * and it lets resizing and removal find a key's home slot without reading the key. The hash is computed
+ * from the key's bytes, not from {@code hashCode()}. Slots live in pages of up to 1GB, so the map is not
+ * limited to what a single buffer can address.
+ *
+ * Null keys and values are not allowed. The memory is only freed by {@link #close()} (or by the buffers
+ * being collected some time later); every method but {@code close} fails once the map is closed.
+ */
+public class OffHeapHashMap<K,V> implements Map<K,V>, AutoCloseable {
+
+    private static int MAX_CAP = 1<<30;
+    private static int DEFAULT_CAP = 16;
+    private static float DEFAULT_LOAD_FACTOR = 0.5F;
+    private static final int MAX_PAGE_BYTES = 1<<30;
+    private static final int TAG_BYTES = Integer.BYTES;
+    private static final Unsafe U;
+
+    static {
+        try {
+            Field f = Unsafe.class.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            U = (Unsafe) f.get(null);
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }
+
+    private int size;
+    private int threshold;
+    private float loadFactor;
+    private int modCount;
+    private boolean closed;
+
+    private final FixedSerializer<K> keySerializer;
+    private final FixedSerializer<V> valueSerializer;
+    private final int keySize, valueSize, slotSize;
+    private final ByteBuffer keyScratch, valueScratch;
+
+    private ByteBuffer[] pages;
+    private int capacity;
+    private int pageShift;
+
+    private Set<Entry<K,V>> es;
+    private Set<K> ks;
+    private Collection<V> values;
+
+    //<----------------------------------------- Constructors ------------------------------------------>//
+
+    public OffHeapHashMap(FixedSerializer<K> keySerializer,FixedSerializer<V> valueSerializer,int cap,float loadFactor) {
+        if(keySerializer==null || valueSerializer==null) {
+            throw new IllegalArgumentException("Serializer is null");
+        }
+        if(keySerializer.size()<=0 || valueSerializer.size()<0) {
+            throw new IllegalArgumentException("Illegal serializer size");
+        }
+        if(cap<0) {
+            throw new IllegalArgumentException("Illegal Capacity:" + cap);
+        }
+        if(loadFactor<=0 || loadFactor>=1 || Float.isNaN(loadFactor)) {
+            throw new IllegalArgumentException("Illegal load factor" + loadFactor);
+        }
+        this.keySerializer = keySerializer;
+        this.valueSerializer = valueSerializer;
+        this.keySize = keySerializer.size();
+        this.valueSize = valueSerializer.size();
+        if((long)TAG_BYTES + keySize + valueSize > MAX_PAGE_BYTES) {
+            throw new IllegalArgumentException("Slot does not fit in a page");
+        }
+        this.slotSize = TAG_BYTES + keySize + valueSize;
+        this.keyScratch = ByteBuffer.allocate(keySize).order(ByteOrder.nativeOrder());
+        this.valueScratch = ByteBuffer.allocate(valueSize).order(ByteOrder.nativeOrder());
+        this.loadFactor = loadFactor;
+        this.threshold = tableSizeForCap((int)Math.min(MAX_CAP,Math.ceil(Math.min(cap,MAX_CAP)/loadFactor)));
+    }
+    public OffHeapHashMap(FixedSerializer<K> keySerializer,FixedSerializer<V> valueSerializer,int cap) {
+        this(keySerializer,valueSerializer,cap,DEFAULT_LOAD_FACTOR);
+    }
+    public OffHeapHashMap(FixedSerializer<K> keySerializer,FixedSerializer<V> valueSerializer) {
+        this(keySerializer,valueSerializer,DEFAULT_CAP,DEFAULT_LOAD_FACTOR);
+    }
+
+    //<----------------------------------------- Public Methods --------------------------------------->//
+
+    @Override
+    public V put(K key,V value) {
+        return putVal(key,value,false);
+    }
+
+    @Override
+    public void putAll(Map<? extends K, ? extends V> m) {
+        if(m!=null) {
+            for (Entry<? extends K, ? extends V> entry : m.entrySet()) {
+                putVal(entry.getKey(), entry.getValue(),false);
+            }
+        }
+    }
+
+    @Override
+    public boolean remove(Object key, Object value) {
+        int slot = findSlot(key);
+        if(slot<0 || value==null || !valueEquals(slot,value)) {
+            return false;
+        }
+        removeAt(slot);
+        return true;
+    }
+
+    @Override
+    public V remove(Object key) {
+        int slot = findSlot(key);
+        if(slot<0) {
+            return null;
+        }
+        V oldValue = readValue(slot);
+        removeAt(slot);
+        return oldValue;
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+        return putVal(key,value,true);
+    }
+
+    @Override
+    public boolean replace(K key, V oldValue, V newValue) {
+        Objects.requireNonNull(newValue);
+        int slot = findSlot(key);
+        if(slot<0 || oldValue==null || !valueEquals(slot,oldValue)) {
+            return false;
+        }
+        writeValue(slot,newValue);
+        return true;
+    }
+
+    @Override
+    public V replace(K key, V value) {
+        Objects.requireNonNull(value);
+        int slot = findSlot(key);
+        if(slot<0) {
+            return null;
+        }
+        V oldValue = readValue(slot);
+        writeValue(slot,value);
+        return oldValue;
+    }
+
+    @Override
+    public void clear() {
+        checkOpen();
+        if(pages!=null) {
+            for(int slot=0;slot<capacity;slot++) {
+                page(slot).putInt(offset(slot),0);
+            }
+            size = 0;
+            modCount++;
+        }
+    }
+
+    @Override
+    public V get(Object key) {
+        int slot = findSlot(key);
+        return slot<0 ? null : readValue(slot);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return findSlot(key)>=0;
+    }
+
+    /**
+     * Compares serialized values, so scanning the table does not turn every value back into an object.
+     */
+    @Override
+    public boolean containsValue(Object value) {
+        checkOpen();
+        if(pages!=null && value!=null) {
+            try {
+                serializeValue(value);
+            } catch (ClassCastException e) {
+                return false;
+            }
+            for(int slot=0;slot<capacity;slot++) {
+                if(page(slot).getInt(offset(slot))!=0 && valueEquals(slot)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size==0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Bytes of direct memory held by the table.
+     */
+    public long offHeapBytes() {
+        return pages==null ? 0 : (long)capacity * slotSize;
+    }
+
+    /**
+     * Frees the direct memory right away instead of waiting for the buffers to be collected. The map can not
+     * be used afterwards; closing twice does nothing.
+     */
+    @Override
+    public void close() {
+        if(!closed) {
+            closed = true;
+            free(pages);
+            pages = null;
+            size = 0;
+            modCount++;
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(o==this) {
+            return true;
+        }
+        if(o instanceof Map<?,?>) {
+            Map<?,?> map = (Map<?,?>)o;
+            if(map.size()!=size) {
+                return false;
+            }
+            Set<Entry<K,V>> entrySet = entrySet();
+            for(Entry<?,?> entry: map.entrySet()) {
+                if(!entrySet.contains(entry)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public int hashCode() {
+        int hashCode = 0;
+        for(Entry<K,V> entry : entrySet()) {
+            hashCode += entry.hashCode();
+        }
+        return hashCode;
+    }
+
+    //<------------------------- Methods that returns view(mutable) of HashMap ---------------------------->//
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        return es==null ? es = new EntrySet() : es;
+    }
+
+    @Override
+    public Set<K> keySet() {
+        return ks==null ? ks = new KeySet() : ks;
+    }
+
+    @Override
+    public Collection<V> values() {
+        return values==null ? values = new Values() : values;
+    }
+
+    //<----------------------------------------- Views of HashMap----------------------------------------->//
+
+    private abstract class CommonCollectionOperation {
+        public int size() {
+            return size;
+        }
+        public boolean isEmpty() {
+            return size==0;
+        }
+        public void clear() {
+            OffHeapHashMap.this.clear();
+        }
+        public abstract boolean contains(Object o);
+        public boolean containsAll(Collection<?> c) {
+            for(Object o: c) {
+                if(!contains(o)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        public abstract boolean remove(Object o);
+        public boolean removeAll(Collection<?> c) {
+            boolean changed = false;
+            for(Object o:c) {
+                changed |= remove(o);
+            }
+            return changed;
+        }
+        public boolean retainAll(Collection<?> c) {
+            boolean changed = false;
+            Iterator<?> it = iterator();
+            while(it.hasNext()) {
+                if(!c.contains(it.next())) {
+                    changed = true;
+                    it.remove();
+                }
+            }
+            return changed;
+        }
+        public abstract Iterator<?> iterator();
+        public Object[] toArray() {
+            Iterator<?> it = iterator();
+            Object[] array = new Object[size];
+            int i = 0;
+            while(it.hasNext()) {
+                array[i++] = it.next();
+            }
+            return array;
+        }
+        @SuppressWarnings("unchecked")
+        public <T> T[] toArray(T[] a) {
+            if(a.length < size) {
+                return (T[])toArray();
+            }
+            int i = 0;
+            Iterator<?> it = iterator();
+            while(it.hasNext()) {
+                a[i++] = (T)it.next();
+            }
+            if(i < size) {
+                a[i] = null;
+            }
+            return a;
+        }
+    }
+
+    private class EntrySet extends CommonCollectionOperation implements Set<Entry<K,V>> {
+
+        @Override
+        public boolean contains(Object o) {
+            if(o instanceof Entry<?,?>) {
+                Entry<?,?> entry = (Entry<?,?>) o;
+                int slot = findSlot(entry.getKey());
+                return slot>=0 && entry.getValue()!=null && valueEquals(slot,entry.getValue());
+            }
+            return false;
+        }
+
+        @Override
+        public Iterator<Entry<K, V>> iterator() {
+            return new EntrySetItr();
+        }
+
+        @Override
+        public boolean add(Entry<K, V> kvEntry) {
+            if(contains(kvEntry)) {
+                return false;
+            }
+            putVal(kvEntry.getKey(),kvEntry.getValue(),false);
+            return true;
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            if(o instanceof Entry<?,?>) {
+                Entry<?,?> entry = (Entry<?,?>)o;
+                return OffHeapHashMap.this.remove(entry.getKey(),entry.getValue());
+            }
+            return false;
+        }
+
+        @Override
+        public boolean addAll(Collection<? extends Entry<K, V>> c) {
+            boolean changed = false;
+            for(Entry<K,V> entry: c) {
+                changed |= add(entry);
+            }
+            return changed;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(o==this) {
+                return true;
+            }
+            if(o instanceof Set<?>) {
+                Set<?> set = (Set<?>) o;
+                return set.size()==size && containsAll(set);
+            }
+            return false;
+        }
+
+        @Override
+        public int hashCode() {
+            return OffHeapHashMap.this.hashCode();
+        }
+
+    }
+
+    private class KeySet extends CommonCollectionOperation implements Set<K> {
+
+        @Override
+        public boolean contains(Object o) {
+            return findSlot(o)>=0;
+        }
+
+        @Override
+        public Iterator<K> iterator() {
+            return new KeyItr();
+        }
+
+        @Override
+        public boolean add(K k) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            int slot = findSlot(o);
+            if(slot<0) {
+                return false;
+            }
+            removeAt(slot);
+            return true;
+        }
+
+        @Override
+        public boolean addAll(Collection<? extends K> c) {
+            throw new UnsupportedOperationException();
+        }
+
+    }
+
+    private class Values extends CommonCollectionOperation implements Collection<V> {
+
+        @Override
+        public boolean contains(Object o) {
+            return containsValue(o);
+        }
+
+        @Override
+        public Iterator<V> iterator() {
+            return new ValueItr();
+        }
+
+        @Override
+        public boolean add(V v) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            Iterator<V> it = iterator();
+            while(it.hasNext()) {
+                V value = it.next();
+                if(Objects.equals(value,o)) {
+                    it.remove();
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public boolean addAll(Collection<? extends V> c) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean removeAll(Collection<?> c) {
+            boolean changed = false;
+            Iterator<V> it = iterator();
+            while(it.hasNext()) {
+                if(c.contains(it.next())) {
+                    it.remove();
+                    changed = true;
+                }
+            }
+            return changed;
+        }
+
+    }
+
+    //<------------------------------------------- Iterators --------------------------------------------->//
+
+    /**
+     * Walks the slots downwards from just below an empty slot, exactly like the iterator of
+     * {@link MyOpenHashMap}, so {@link #remove()} can shift entries without any being skipped or repeated.
+     */
+    private abstract class HashItr {
+        int currentSlot = -1;
+        int nextSlot;
+        int remaining;
+        int expectedModCount;
+
+        HashItr() {
+            checkOpen();
+            expectedModCount = modCount;
+            if(pages!=null && size>0) {
+                int start = capacity-1;
+                while(tag(start)!=0) {
+                    start--;
+                }
+                nextSlot = start;
+                remaining = capacity;
+                advance();
+            } else {
+                nextSlot = -1;
+            }
+        }
+
+        private void advance() {
+            do {
+                if(remaining==0) {
+                    nextSlot = -1;
+                    return;
+                }
+                remaining--;
+                nextSlot = (nextSlot-1) & (capacity-1);
+            } while(tag(nextSlot)==0);
+        }
+
+        public boolean hasNext() {
+            return nextSlot>=0;
+        }
+
+        int nextSlot() {
+            checkForConcurrentModification();
+            if(nextSlot<0) {
+                throw new NoSuchElementException();
+            }
+            currentSlot = nextSlot;
+            advance();
+            return currentSlot;
+        }
+
+        public void remove() {
+            checkForConcurrentModification();
+            if(currentSlot<0) {
+                throw new IllegalStateException();
+            }
+            removeAt(currentSlot);
+            currentSlot = -1;
+            expectedModCount = modCount;
+        }
+
+        private void checkForConcurrentModification() {
+            if(expectedModCount != modCount) {
+                throw new ConcurrentModificationException();
+            }
+        }
+    }
+
+    private class EntrySetItr extends HashItr implements Iterator<Entry<K,V>> {
+        @Override
+        public Entry<K,V> next() {
+            int slot = nextSlot();
+            return new CopiedEntry(readKey(slot),readValue(slot));
+        }
+    }
+
+    private class KeyItr extends HashItr implements Iterator<K> {
+        @Override
+        public K next() {
+            return readKey(nextSlot());
+        }
+    }
+
+    private class ValueItr extends HashItr implements Iterator<V> {
+        @Override
+        public V next() {
+            return readValue(nextSlot());
+        }
+    }
+
+    //<--------------------------------- Private Helper methods --------------------------------------->//
+
+    private V putVal(K key,V value,boolean onlyIfAbsent) {
+        Objects.requireNonNull(key);
+        Objects.requireNonNull(value);
+        checkOpen();
+        if(pages == null) {
+            resize();
+        }
+        int tag = tagFor(serializeKey(key));
+        int mask = capacity-1;
+        int slot = tag & mask;
+        int t;
+        while((t = tag(slot))!=0) {
+            if(t==tag && keyEquals(slot)) {
+                V oldValue = readValue(slot);
+                if(!onlyIfAbsent) {
+                    writeValue(slot,value);
+                }
+                return oldValue;
+            }
+            slot = (slot+1) & mask;
+        }
+        if(size >= threshold && capacity == MAX_CAP) {
+            throw new IllegalStateException("Capacity exhausted");
+        }
+        ByteBuffer page = page(slot);
+        int offset = offset(slot);
+        page.putInt(offset,tag);
+        copyFromScratch(keyScratch,page,offset+TAG_BYTES,keySize);
+        valueSerializer.write(page,offset+TAG_BYTES+keySize,value);
+        modCount++;
+        if(++size > threshold) {
+            resize();
+        }
+        return null;
+    }
+
+    /**
+     * Slot holding the key, or -1 if the key is absent or of a type the key serializer does not take.
+     */
+    @SuppressWarnings("unchecked")
+    private int findSlot(Object key) {
+        checkOpen();
+        if(pages == null || size == 0 || key == null) {
+            return -1;
+        }
+        int tag;
+        try {
+            tag = tagFor(serializeKey((K) key));
+        } catch (ClassCastException e) {
+            return -1;
+        }
+        int mask = capacity-1;
+        int slot = tag & mask;
+        int t;
+        while((t = tag(slot))!=0) {
+            if(t==tag && keyEquals(slot)) {
+                return slot;
+            }
+            slot = (slot+1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Backward shift deletion, see {@link MyOpenHashMap}; the home slot of an entry comes from its tag.
+     */
+    private void removeAt(int slot) {
+        int mask = capacity-1;
+        modCount++;
+        size--;
+        int gap = slot;
+        int i = (gap+1) & mask;
+        int t;
+        while((t = tag(i))!=0) {
+            int home = t & mask;
+            if(gap <= i ? (home <= gap || home > i) : (home <= gap && home > i)) {
+                copySlot(page(i),offset(i),page(gap),offset(gap));
+                gap = i;
+            }
+            i = (i+1) & mask;
+        }
+        page(gap).putInt(offset(gap),0);
+    }
+
+    private void resize() {
+        int oldCap = pages==null ? 0 : capacity;
+        int newCap;
+        if(oldCap>0) {
+            if(oldCap==MAX_CAP) {
+                return;
+            } else {
+                newCap = oldCap<<1;
+            }
+        } else if(threshold>0) {
+            newCap = threshold;
+        } else {
+            newCap = DEFAULT_CAP;
+        }
+        threshold = newCap==MAX_CAP ? MAX_CAP-1 : Math.min(newCap-1,(int)(newCap*loadFactor));
+
+        ByteBuffer[] oldPages = pages;
+        int oldShift = pageShift;
+        int pageSlots = Math.min(newCap,Integer.highestOneBit(MAX_PAGE_BYTES / slotSize));
+        ByteBuffer[] newPages = new ByteBuffer[newCap / pageSlots];
+        for(int p=0;p<newPages.length;p++) {
+            newPages[p] = ByteBuffer.allocateDirect(pageSlots * slotSize).order(ByteOrder.nativeOrder());
+        }
+        pages = newPages;
+        capacity = newCap;
+        pageShift = Integer.numberOfTrailingZeros(pageSlots);
+
+        int mask = newCap-1;
+        for(int i=0;i<oldCap;i++) {
+            ByteBuffer oldPage = oldPages[i >>> oldShift];
+            int oldOffset = (i & ((1 << oldShift)-1)) * slotSize;
+            int t = oldPage.getInt(oldOffset);
+            if(t!=0) {
+                int slot = t & mask;
+                while(tag(slot)!=0) {
+                    slot = (slot+1) & mask;
+                }
+                copySlot(oldPage,oldOffset,page(slot),offset(slot));
+            }
+        }
+        free(oldPages);
+    }
+
+    private ByteBuffer page(int slot) {
+        return pages[slot >>> pageShift];
+    }
+
+    private int offset(int slot) {
+        return (slot & ((1 << pageShift)-1)) * slotSize;
+    }
+
+    private int tag(int slot) {
+        return page(slot).getInt(offset(slot));
+    }
+
+    private K readKey(int slot) {
+        return keySerializer.read(page(slot),offset(slot)+TAG_BYTES);
+    }
+
+    private V readValue(int slot) {
+        return valueSerializer.read(page(slot),offset(slot)+TAG_BYTES+keySize);
+    }
+
+    private void writeValue(int slot,V value) {
+        valueSerializer.write(page(slot),offset(slot)+TAG_BYTES+keySize,value);
+    }
+
+    private ByteBuffer serializeKey(K key) {
+        keySerializer.write(keyScratch,0,key);
+        return keyScratch;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void serializeValue(Object value) {
+        valueSerializer.write(valueScratch,0,(V) value);
+    }
+
+    private boolean keyEquals(int slot) {
+        return bytesEqual(keyScratch,page(slot),offset(slot)+TAG_BYTES,keySize);
+    }
+
+    private boolean valueEquals(int slot) {
+        return bytesEqual(valueScratch,page(slot),offset(slot)+TAG_BYTES+keySize,valueSize);
+    }
+
+    private boolean valueEquals(int slot,Object value) {
+        try {
+            serializeValue(value);
+        } catch (ClassCastException e) {
+            return false;
+        }
+        return valueEquals(slot);
+    }
+
+    private void checkOpen() {
+        if(closed) {
+            throw new IllegalStateException("Map is closed");
+        }
+    }
+
+    private void copySlot(ByteBuffer src,int srcOffset,ByteBuffer dst,int dstOffset) {
+        int i = 0;
+        for(;i+Long.BYTES<=slotSize;i+=Long.BYTES) {
+            dst.putLong(dstOffset+i,src.getLong(srcOffset+i));
+        }
+        for(;i<slotSize;i++) {
+            dst.put(dstOffset+i,src.get(srcOffset+i));
+        }
+    }
+
+    //<----------------------------------- static utilities --------------------------------->//
+
+    private static int tableSizeForCap(int cap) {
+        int n = cap - 1;
+        n |= n >>> 1;
+        n |= n >>> 2;
+        n |= n >>> 4;
+        n |= n >>> 8;
+        n |= n >>> 16;
+        return n < 0 ? 1 : (n >= MAX_CAP ? MAX_CAP : n + 1);
+    }
+
+    /**
+     * Hash of the serialized key with the high bit set, so that a tag is never 0.
+     */
+    static int tagFor(ByteBuffer key) {
+        long h = 0;
+        int i = 0, n = key.capacity();
+        for(;i+Long.BYTES<=n;i+=Long.BYTES) {
+            h = (h ^ key.getLong(i)) * 0x9E3779B97F4A7C15L;
+        }
+        for(;i<n;i++) {
+            h = (h ^ key.get(i)) * 0x9E3779B97F4A7C15L;
+        }
+        h ^= h >>> 29;
+        return (int)(h ^ (h >>> 32)) | Integer.MIN_VALUE;
+    }
+
+    static boolean bytesEqual(ByteBuffer scratch,ByteBuffer page,int offset,int length) {
+        int i = 0;
+        for(;i+Long.BYTES<=length;i+=Long.BYTES) {
+            if(scratch.getLong(i)!=page.getLong(offset+i)) {
+                return false;
+            }
+        }
+        for(;i<length;i++) {
+            if(scratch.get(i)!=page.get(offset+i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static void copyFromScratch(ByteBuffer scratch,ByteBuffer page,int offset,int length) {
+        int i = 0;
+        for(;i+Long.BYTES<=length;i+=Long.BYTES) {
+            page.putLong(offset+i,scratch.getLong(i));
+        }
+        for(;i<length;i++) {
+            page.put(offset+i,scratch.get(i));
+        }
+    }
+
+    static void free(ByteBuffer[] pages) {
+        if(pages!=null) {
+            for(ByteBuffer page : pages) {
+                U.invokeCleaner(page);
+            }
+        }
+    }
+
+    /**
+     * Entry handed out by the entry set iterator, holding copies of the key and value; {@code setValue}
+     * writes through with {@link #put}.
+     */
+    private final class CopiedEntry implements Map.Entry<K,V> {
+        private final K key;
+        private V value;
+
+        CopiedEntry(K key,V value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        public K getKey() {
+            return key;
+        }
+
+        @Override
+        public V getValue() {
+            return value;
+        }
+
+        @Override
+        public V setValue(V value) {
+            V oldValue = put(key,value);
+            this.value = value;
+            return oldValue;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(key) ^ Objects.hashCode(value);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(o instanceof Entry<?,?>) {
+                Entry<?,?> entry = (Entry<?,?>) o;
+                return Objects.equals(key,entry.getKey()) && Objects.equals(value,entry.getValue());
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + value;
+        }
+    }
+}
@@ -0,0 +1,429 @@
+package concurrent;
+
+import sun.misc.Unsafe;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntBinaryOperator;
+import java.util.function.IntUnaryOperator;
+
+/**
+ * Concurrent int to int map without boxing. Every entry lives in one {@code long} slot of an open addressed
+ * table (key in the high half, value in the low half) and is updated with a single CAS, so no operation
+ * allocates. Key 0 is kept in its own slot because a slot with a zero key half is used for the control
+ * states {@link #EMPTY}, {@link #TOMBSTONE} and {@link #MOVED}.
+ *
+ * Absent keys are reported as {@code noEntryValue} (0 by default), and {@link #compute} removes a key when
+ * its function returns {@code noEntryValue}. Removed keys leave a tombstone behind: inserts only ever claim
+ * empty slots, so a tombstone is not reused and lookups probe past it until the next rebuild drops it.
+ * Tombstones count against the load factor, so a workload that keeps adding and removing distinct keys
+ * rebuilds the table every {@code threshold} inserts or so. A rebuild runs under {@code resizeLock} and marks
+ * every old slot {@link #MOVED}; operations that run into such a slot wait for the rebuild and retry on the
+ * new table.
+ */
+public class ConcurrentIntIntMap {
+
+    private static int MAX_CAP = 1<<30;
+    private static int DEFAULT_CAP = 16;
+    private static float DEFAULT_LOAD_FACTOR = 0.5F;
+
+    private static final long EMPTY = 0L;
+    private static final long TOMBSTONE = 1L;
+    private static final long MOVED = 2L;
+    private static final long ZERO_KEY_PRESENT = 1L << 32;
+
+    private static final int PUT = 0, PUT_IF_ABSENT = 1, ADD = 2, COMPUTE = 3, COMPUTE_IF_ABSENT = 4;
+
+    private final int noEntryValue;
+    private final float loadFactor;
+
+    private AtomicInteger size = new AtomicInteger();
+    private AtomicInteger used = new AtomicInteger();
+    private volatile int threshold;
+    private volatile long[] slots;
+    private volatile long zeroKeySlot;
+
+    private Object resizeLock = new Object();
+
+    private static final Unsafe U;
+    private static final long ABASE;
+    private static final int ASHIFT;
+    private static final long ZERO_KEY_SLOT;
+
+    static {
+        try {
+            Field f = Unsafe.class.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            U = (Unsafe) f.get(null);
+            ABASE = U.arrayBaseOffset(long[].class);
+            int scale = U.arrayIndexScale(long[].class);
+            if ((scale & (scale - 1)) != 0)
+                throw new Error("data type scale not a power of two");
+            ASHIFT = 31 - Integer.numberOfLeadingZeros(scale);
+            ZERO_KEY_SLOT = U.objectFieldOffset(ConcurrentIntIntMap.class.getDeclaredField("zeroKeySlot"));
+        } catch (Exception e) {
+            throw new Error(e);
+        }
+    }
+
+    //<----------------------------------------- Constructors ------------------------------------------>//
+
+    public ConcurrentIntIntMap(int cap,float loadFactor,int noEntryValue) {
+        if(cap<0) {
+            throw new IllegalArgumentException("Illegal Capacity:" + cap);
+        }
+        if(loadFactor<=0 || loadFactor>=1 || Float.isNaN(loadFactor)) {
+            throw new IllegalArgumentException("Illegal load factor" + loadFactor);
+        }
+        if(cap>MAX_CAP) {
+            cap = MAX_CAP;
+        }
+        this.loadFactor = loadFactor;
+        this.noEntryValue = noEntryValue;
+        int n = Math.max(2, tableSizeForCap(cap));
+        this.slots = new long[n];
+        this.threshold = thresholdFor(n);
+    }
+    public ConcurrentIntIntMap(int cap) {
+        this(cap,DEFAULT_LOAD_FACTOR,0);
+    }
+    public ConcurrentIntIntMap() {
+        this(DEFAULT_CAP);
+    }
+
+    //<----------------------------------------- Public Methods --------------------------------------->//
+
+    public int get(int key) {
+        return getOrDefault(key,noEntryValue);
+    }
+
+    public int getOrDefault(int key,int defaultValue) {
+        if(key == 0) {
+            long z = zeroKeySlot;
+            return (z & ZERO_KEY_PRESENT) != 0 ? (int) z : defaultValue;
+        }
+        long[] tab = slots;
+        while(true) {
+            int mask = tab.length - 1;
+            int i = mix(key) & mask;
+            long s;
+            while((s = getSlot(tab,i)) != EMPTY && s != MOVED) {
+                if((int) (s >>> 32) == key) {
+                    return (int) s;
+                }
+                i = (i + 1) & mask;
+            }
+            if(s == EMPTY) {
+                return defaultValue;
+            }
+            tab = awaitRebuild();
+        }
+    }
+
+    public boolean containsKey(int key) {
+        if(key == 0) {
+            return (zeroKeySlot & ZERO_KEY_PRESENT) != 0;
+        }
+        long[] tab = slots;
+        while(true) {
+            int mask = tab.length - 1;
+            int i = mix(key) & mask;
+            long s;
+            while((s = getSlot(tab,i)) != EMPTY && s != MOVED) {
+                if((int) (s >>> 32) == key) {
+                    return true;
+                }
+                i = (i + 1) & mask;
+            }
+            if(s == EMPTY) {
+                return false;
+            }
+            tab = awaitRebuild();
+        }
+    }
+
+    /**
+     * @return the previous value, or {@code noEntryValue} if the key was absent
+     */
+    public int put(int key,int value) {
+        return update(key,value,PUT,null,null);
+    }
+
+    /**
+     * @return the current value if the key was present, otherwise {@code noEntryValue} after storing {@code value}
+     */
+    public int putIfAbsent(int key,int value) {
+        return update(key,value,PUT_IF_ABSENT,null,null);
+    }
+
+    /**
+     * Adds {@code delta} to the value of {@code key}, starting from {@code noEntryValue} if it is absent.
+     *
+     * @return the new value
+     */
+    public int addTo(int key,int delta) {
+        return update(key,delta,ADD,null,null);
+    }
+
+    /**
+     * Atomically replaces the value of {@code key} with {@code remapping(key, oldValue)}, where {@code oldValue}
+     * is {@code noEntryValue} for an absent key. If the function returns {@code noEntryValue} the key is
+     * removed, or not added, the way {@link java.util.Map#compute} treats {@code null}. The function may be
+     * called again if another thread updates the same key in between, so it should be side effect free.
+     *
+     * @return the new value, {@code noEntryValue} if the key was removed
+     */
+    public int compute(int key,IntBinaryOperator remapping) {
+        return update(key,0,COMPUTE,remapping,null);
+    }
+
+    /**
+     * @return the current value if present, otherwise the value computed by {@code mapping} and stored
+     */
+    public int computeIfAbsent(int key,IntUnaryOperator mapping) {
+        return update(key,0,COMPUTE_IF_ABSENT,null,mapping);
+    }
+
+    /**
+     * @return the removed value, or {@code noEntryValue} if the key was absent
+     */
+    public int remove(int key) {
+        if(key == 0) {
+            long z;
+            do {
+                if(((z = zeroKeySlot) & ZERO_KEY_PRESENT) == 0) {
+                    return noEntryValue;
+                }
+            } while(!U.compareAndSwapLong(this,ZERO_KEY_SLOT,z,EMPTY));
+            size.decrementAndGet();
+            return (int) z;
+        }
+        long[] tab = slots;
+        while(true) {
+            int mask = tab.length - 1;
+            int i = mix(key) & mask;
+            long s;
+            while((s = getSlot(tab,i)) != EMPTY && s != MOVED) {
+                if((int) (s >>> 32) == key) {
+                    if(casSlot(tab,i,s,TOMBSTONE)) {
+                        size.decrementAndGet();
+                        return (int) s;
+                    }
+                    continue;
+                }
+                i = (i + 1) & mask;
+            }
+            if(s == EMPTY) {
+                return noEntryValue;
+            }
+            tab = awaitRebuild();
+        }
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    public boolean isEmpty() {
+        return size.get()==0;
+    }
+
+    public void clear() {
+        rebuild(slots,false);
+    }
+
+    public int getNoEntryValue() {
+        return noEntryValue;
+    }
+
+    //<--------------------------------- Private Helper methods --------------------------------------->//
+
+    private int update(int key,int operand,int op,IntBinaryOperator remapping,IntUnaryOperator mapping) {
+        if(key == 0) {
+            return updateZeroKey(operand,op,remapping,mapping);
+        }
+        long[] tab = slots;
+        while(true) {
+            int mask = tab.length - 1;
+            int i = mix(key) & mask;
+            long s;
+            while((s = getSlot(tab,i)) != MOVED) {
+                if(s == EMPTY) {
+                    int newValue = newValue(key,noEntryValue,operand,op,remapping,mapping);
+                    if(op == COMPUTE && newValue == noEntryValue) {
+                        return noEntryValue;
+                    }
+                    if(!casSlot(tab,i,EMPTY,pack(key,newValue))) {
+                        continue;
+                    }
+                    size.incrementAndGet();
+                    if(used.incrementAndGet() > threshold) {
+                        rebuild(tab,true);
+                    }
+                    return op == PUT || op == PUT_IF_ABSENT ? noEntryValue : newValue;
+                }
+                if((int) (s >>> 32) == key) {
+                    int oldValue = (int) s;
+                    if(op == PUT_IF_ABSENT || op == COMPUTE_IF_ABSENT) {
+                        return oldValue;
+                    }
+                    int newValue = newValue(key,oldValue,operand,op,remapping,mapping);
+                    if(op == COMPUTE && newValue == noEntryValue) {
+                        if(!casSlot(tab,i,s,TOMBSTONE)) {
+                            continue;
+                        }
+                        size.decrementAndGet();
+                        return noEntryValue;
+                    }
+                    if(!casSlot(tab,i,s,pack(key,newValue))) {
+                        continue;
+                    }
+                    return op == PUT ? oldValue : newValue;
+                }
+                i = (i + 1) & mask;
+            }
+            tab = awaitRebuild();
+        }
+    }
+
+    private int updateZeroKey(int operand,int op,IntBinaryOperator remapping,IntUnaryOperator mapping) {
+        while(true) {
+            long z = zeroKeySlot;
+            boolean present = (z & ZERO_KEY_PRESENT) != 0;
+            int oldValue = present ? (int) z : noEntryValue;
+            if(present && (op == PUT_IF_ABSENT || op == COMPUTE_IF_ABSENT)) {
+                return oldValue;
+            }
+            int newValue = newValue(0,oldValue,operand,op,remapping,mapping);
+            if(op == COMPUTE && newValue == noEntryValue) {
+                if(!present) {
+                    return noEntryValue;
+                }
+                if(U.compareAndSwapLong(this,ZERO_KEY_SLOT,z,EMPTY)) {
+                    size.decrementAndGet();
+                    return noEntryValue;
+                }
+                continue;
+            }
+            if(U.compareAndSwapLong(this,ZERO_KEY_SLOT,z,ZERO_KEY_PRESENT | (newValue & 0xFFFFFFFFL))) {
+                if(!present) {
+                    size.incrementAndGet();
+                }
+                if(op == PUT || op == PUT_IF_ABSENT) {
+                    return oldValue;
+                }
+                return newValue;
+            }
+        }
+    }
+
+    private static int newValue(int key,int oldValue,int operand,int op,IntBinaryOperator remapping,IntUnaryOperator mapping) {
+        switch (op) {
+            case ADD:
+                return oldValue + operand;
+            case COMPUTE:
+                return remapping.applyAsInt(key,oldValue);
+            case COMPUTE_IF_ABSENT:
+                return mapping.applyAsInt(key);
+            default:
+                return operand;
+        }
+    }
+
+    /**
+     * Replaces {@code tab} with a fresh table. Every old slot is first swapped to {@link #MOVED} so no
+     * update can land in it any more, live entries are then copied over (or dropped for {@link #clear}).
+     * The new table is sized for the live entries only, so tombstones never survive a rebuild.
+     */
+    private void rebuild(long[] tab,boolean keepEntries) {
+        synchronized (resizeLock) {
+            if(slots != tab) {
+                if(keepEntries) {
+                    return;
+                }
+                tab = slots;
+            }
+            int live = 0, dropped = 0;
+            long[] moved = keepEntries ? new long[tab.length] : null;
+            for(int i=0;i<tab.length;i++) {
+                long s;
+                do {
+                    s = getSlot(tab,i);
+                } while(!casSlot(tab,i,s,MOVED));
+                if(s == TOMBSTONE) {
+                    dropped++;
+                } else if(s != EMPTY) {
+                    if(keepEntries) {
+                        moved[live] = s;
+                    }
+                    live++;
+                }
+            }
+            int n = tab.length;
+            if(keepEntries) {
+                while(live > thresholdFor(n) / 2 && n < MAX_CAP) {
+                    n <<= 1;
+                }
+            }
+            long[] nextTab = new long[n];
+            int mask = n - 1;
+            for(int j=0;keepEntries && j<live;j++) {
+                int i = mix((int) (moved[j] >>> 32)) & mask;
+                while(nextTab[i] != EMPTY) {
+                    i = (i + 1) & mask;
+                }
+                nextTab[i] = moved[j];
+            }
+            if(keepEntries) {
+                used.addAndGet(-dropped);
+            } else {
+                used.addAndGet(-(live + dropped));
+                size.addAndGet(-live);
+                if((U.getAndSetLong(this,ZERO_KEY_SLOT,EMPTY) & ZERO_KEY_PRESENT) != 0) {
+                    size.decrementAndGet();
+                }
+            }
+            threshold = thresholdFor(n);
+            slots = nextTab;
+        }
+    }
+
+    private long[] awaitRebuild() {
+        synchronized (resizeLock) {
+            return slots;
+        }
+    }
+
+    private int thresholdFor(int n) {
+        return Math.min(n - 1, (int) (n * loadFactor));
+    }
+
+    //<----------------------------------- static utilities --------------------------------->//
+
+    private static int tableSizeForCap(int cap) {
+        int n = cap-1;
+        n |= n >>> 1;
+        n |= n >>> 2;
+        n |= n >>> 4;
+        n |= n >>> 8;
+        n |= n >>> 16;
+        return n + 1;
+    }
+
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static long pack(int key,int value) {
+        return ((long) key << 32) | (value & 0xFFFFFFFFL);
+    }
+
+    private static long getSlot(long[] tab,int i) {
+        return U.getLongVolatile(tab, ((long)i << ASHIFT) + ABASE);
+    }
+
+    private static boolean casSlot(long[] tab,int i,long expected,long v) {
+        return U.compareAndSwapLong(tab, ((long)i << ASHIFT) + ABASE, expected, v);
+    }
+}
@@ -1,32 +1,212 @@
 package concurrent;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
-public class FixedThreadPool implements ExecutorService {
+public class FixedThreadPool implements ExecutorService, FixedThreadPoolMXBean {
+
+    /**
+     * How tasks get to the workers.
+     * <ul>
+     *     <li>{@link #SHARED_QUEUE}: every task goes through one blocking queue that all workers poll.</li>
+     *     <li>{@link #WORK_STEALING}: every worker has its own deque. Tasks submitted from inside a worker go to
+     *     the front of that worker's deque, other submissions to a lock free injection queue, and a worker that
+     *     runs dry steals from the back of the others' deques before it parks. No lock is taken per task.</li>
+     *     <li>{@link #VIRTUAL_THREADS}: the shared queue, with every worker on a virtual thread. A worker
+     *     exits as soon as the queue is empty, since a new virtual thread costs next to nothing, so
+     *     the maximum pool size only limits how many tasks run at once, like the permits of a semaphore, and
+     *     thousands of tasks can be blocked in I/O at the same time. Needs a JVM with virtual threads
+     *     (Java 21, or 19 and 20 with preview features on), see {@link #isVirtualThreadsAvailable()}. The
+     *     pool's own locking uses {@link ReentrantLock}s rather than monitors, which would pin a worker's
+     *     carrier thread while it waits for them.</li>
+     * </ul>
+     */
+    public enum Mode {
+        SHARED_QUEUE, WORK_STEALING, VIRTUAL_THREADS
+    }
 
     private static long DEFAULT_KEEP_ALIVE_TIME = 1000L;
     private static TimeUnit DEFAULT_KEEP_ALIVE_TIME_UNIT = TimeUnit.MILLISECONDS;
+    private static final ThreadFactory VIRTUAL_THREAD_FACTORY = virtualThreadFactory();
+    private static final long BLOCKED_OFFER_RETRY_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+    private static final long DEFAULT_SAMPLE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final double THROUGHPUT_NOISE = 0.05;
+    private static final int DEFAULT_TIMING_SAMPLE_RATE = 64;
+    private static final VarHandle COMPLETED_TASKS;
+    private static final VarHandle IDLE_NANOS;
+    private static final VarHandle IDLE_SINCE;
+    static {
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            COMPLETED_TASKS = lookup.findVarHandle(Worker.class,"completedTasks",long.class);
+            IDLE_NANOS = lookup.findVarHandle(Worker.class,"idleNanos",long.class);
+            IDLE_SINCE = lookup.findVarHandle(Worker.class,"idleSince",long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
 
-    private int poolSize;
+    private volatile int corePoolSize;
+    private volatile int poolSize;   // the maximum
+    private volatile boolean allowCoreThreadTimeOut = true;
+    private volatile int growThreshold;
     private long keepAliveTime;
     private TimeUnit timeUnitForKeepAliveTime;
+    private final Mode mode;
+    private final ThreadFactory threadFactory;
+    private final int capacity;
+    private volatile RejectionPolicy rejectionPolicy;
 
     private AtomicInteger workerCounter = new AtomicInteger();
     private volatile HashSet<Worker> workerSet = new HashSet<>();
-    private BlockingQueue<Runnable> taskQueue = new LinkedBlockingQueue<>();
-    private Object lock = new Object();
-    private State currentState = State.RUNNING;
+    private BlockingQueue<Runnable> taskQueue;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition termination = lock.newCondition();
+    private volatile State currentState = State.RUNNING;
+    private volatile int batchSize = 1;
+
+    // adaptive sizing, SHARED_QUEUE only; the controller state is guarded by controllerLock
+    private volatile boolean adaptive;
+    private volatile int targetPoolSize;
+    private volatile long sampleIntervalNanos = DEFAULT_SAMPLE_INTERVAL_NANOS;
+    private final AtomicLong nextSample = new AtomicLong();
+    private final Object controllerLock = new Object();
+    private long lastCompleted;
+    private long lastSampleTime;
+    private double lastThroughput;
+    private int direction = 1;
+
+    // metrics; countTasks is set while either metrics or adaptive sizing need runWorker to count
+    private volatile boolean metricsEnabled;
+    private volatile boolean countTasks;
+    private volatile int timingSampleRate = DEFAULT_TIMING_SAMPLE_RATE;
+    private volatile long metricsEnabledAt;
+    private volatile ObjectName mbeanName;
+    private final LongAdder submittedTasks = new LongAdder();
+    private final LongAdder failedTasks = new LongAdder();
+    private final LongAdder rejectedTasks = new LongAdder();
+    // what exited workers leave behind, guarded by lock; the completed tasks also while only adaptive sizing is on
+    private final LatencyHistogram exitedQueueWaitTimes = new LatencyHistogram();
+    private final LatencyHistogram exitedRunTimes = new LatencyHistogram();
+    private long exitedCompletedTasks;
+    private long exitedBusyNanos;
+    private long exitedLifeNanos;
+
+    // WORK_STEALING only
+    private final Queue<Runnable> injectionQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger injectionCount = new AtomicInteger();   // only kept up when bounded
+    private final Queue<Worker> idleWorkers = new ConcurrentLinkedQueue<>();
+    private volatile Worker[] stealTargets = new Worker[0];
+    private final ThreadLocal<Worker> currentWorker = new ThreadLocal<>();
 
     public FixedThreadPool(int poolSize) {
         this(poolSize,DEFAULT_KEEP_ALIVE_TIME,DEFAULT_KEEP_ALIVE_TIME_UNIT);
     }
 
+    public FixedThreadPool(int poolSize,Mode mode) {
+        this(poolSize,DEFAULT_KEEP_ALIVE_TIME,DEFAULT_KEEP_ALIVE_TIME_UNIT,mode);
+    }
+
     public FixedThreadPool(int poolSize,long keepAliveTime,TimeUnit timeUnitForKeepAliveTime) {
+        this(poolSize,keepAliveTime,timeUnitForKeepAliveTime,Mode.SHARED_QUEUE);
+    }
+
+    public FixedThreadPool(int poolSize,long keepAliveTime,TimeUnit timeUnitForKeepAliveTime,Mode mode) {
+        this(poolSize,keepAliveTime,timeUnitForKeepAliveTime,mode,Integer.MAX_VALUE,RejectionPolicy.ABORT);
+    }
+
+    /**
+     * A pool that keeps up to {@code corePoolSize} workers and starts up to {@code maximumPoolSize} while the
+     * queue holds more than {@code corePoolSize} tasks, see {@link #setGrowThreshold}. Workers above the core
+     * size exit after {@code keepAliveTime} without work.
+     */
+    public FixedThreadPool(int corePoolSize,int maximumPoolSize,long keepAliveTime,TimeUnit timeUnitForKeepAliveTime) {
+        this(maximumPoolSize,keepAliveTime,timeUnitForKeepAliveTime);
+        setCorePoolSize(corePoolSize);
+        this.growThreshold = corePoolSize;
+        this.allowCoreThreadTimeOut = false;
+    }
+
+    public FixedThreadPool(int poolSize,int capacity,RejectionPolicy rejectionPolicy) {
+        this(poolSize,DEFAULT_KEEP_ALIVE_TIME,DEFAULT_KEEP_ALIVE_TIME_UNIT,Mode.SHARED_QUEUE,capacity,rejectionPolicy);
+    }
+
+    /**
+     * @param capacity how many tasks may wait in the queue before {@code rejectionPolicy} is applied. In the
+     *                 shared queue modes a batch packed by {@link #executeAll} counts as one. In
+     *                 {@link Mode#WORK_STEALING} only the injection queue is bounded: tasks a worker submits
+     *                 to its own deque are never rejected, as blocking or failing a worker on its own pool
+     *                 can deadlock it.
+     */
+    public FixedThreadPool(int poolSize,long keepAliveTime,TimeUnit timeUnitForKeepAliveTime,Mode mode,
+                           int capacity,RejectionPolicy rejectionPolicy) {
+        this(poolSize,keepAliveTime,timeUnitForKeepAliveTime,mode,capacity,
+                mode==Mode.WORK_STEALING ? null : new LinkedBlockingQueue<>(capacity),rejectionPolicy);
+    }
+
+    /**
+     * Shared queue modes with a queue of the caller's choice instead of a {@link LinkedBlockingQueue}, e.g. a
+     * {@link RingBufferTaskQueue} when submit to start latency and garbage matter. The queue has to be empty
+     * and must not be used by anyone else; its remaining capacity is the capacity of the pool.
+     */
+    public FixedThreadPool(int poolSize,long keepAliveTime,TimeUnit timeUnitForKeepAliveTime,Mode mode,
+                           BlockingQueue<Runnable> taskQueue,RejectionPolicy rejectionPolicy) {
+        this(poolSize,keepAliveTime,timeUnitForKeepAliveTime,mode,checkTaskQueue(taskQueue,mode).remainingCapacity(),
+                taskQueue,rejectionPolicy);
+    }
+
+    private FixedThreadPool(int poolSize,long keepAliveTime,TimeUnit timeUnitForKeepAliveTime,Mode mode,
+                            int capacity,BlockingQueue<Runnable> taskQueue,RejectionPolicy rejectionPolicy) {
+        if(poolSize<=0) {
+            throw new IllegalArgumentException("Illegal pool size:" + poolSize);
+        }
+        if(mode==null) {
+            throw new IllegalArgumentException("Mode is null");
+        }
+        if(mode==Mode.VIRTUAL_THREADS && VIRTUAL_THREAD_FACTORY==null) {
+            throw new UnsupportedOperationException("Virtual threads are not available on this JVM");
+        }
+        if(capacity<=0) {
+            throw new IllegalArgumentException("Illegal capacity:" + capacity);
+        }
+        if(rejectionPolicy==null) {
+            throw new IllegalArgumentException("Rejection policy is null");
+        }
+        this.corePoolSize = poolSize;
         this.poolSize = poolSize;
+        this.growThreshold = poolSize;
         this.keepAliveTime = keepAliveTime;
         this.timeUnitForKeepAliveTime = timeUnitForKeepAliveTime;
+        this.mode = mode;
+        this.threadFactory = mode==Mode.VIRTUAL_THREADS ? VIRTUAL_THREAD_FACTORY : Thread::new;
+        this.capacity = capacity;
+        this.rejectionPolicy = rejectionPolicy;
+        this.taskQueue = taskQueue==null ? new LinkedBlockingQueue<>() : taskQueue;
+    }
+
+    private static BlockingQueue<Runnable> checkTaskQueue(BlockingQueue<Runnable> taskQueue,Mode mode) {
+        if(taskQueue==null) {
+            throw new IllegalArgumentException("Task queue is null");
+        }
+        if(!taskQueue.isEmpty()) {
+            throw new IllegalArgumentException("Task queue is not empty");
+        }
+        if(mode==Mode.WORK_STEALING) {
+            throw new IllegalArgumentException("Work stealing mode has no shared task queue");
+        }
+        return taskQueue;
     }
 
     @Override
@@ -35,60 +215,559 @@ public class FixedThreadPool implements ExecutorService {
         if(currentState != State.RUNNING) {
             throw new RejectedExecutionException();
         }
+        if(metricsEnabled) {
+            submittedTasks.increment();
+            command = stamp(command);
+        }
+
+        if(!tryStartWorker(command,corePoolSize) && !enqueue(command)) {
+            reject(command);
+        }
+    }
+
+    /**
+     * Like {@link #execute}, but returns false instead of applying the rejection policy when the queue is
+     * full, and never blocks.
+     */
+    public boolean tryExecute(Runnable command) {
+        Objects.requireNonNull(command);
+        if(currentState != State.RUNNING) {
+            throw new RejectedExecutionException();
+        }
+        if(metricsEnabled) {
+            submittedTasks.increment();
+            command = stamp(command);
+        }
+        if(tryStartWorker(command,corePoolSize) || enqueue(command)) {
+            return true;
+        }
+        if(metricsEnabled) {
+            rejectedTasks.increment();
+        }
+        return false;
+    }
+
+    /**
+     * Like {@link #submit(Callable)}, but returns null when the queue is full, so that a producer can back
+     * off or do something else rather than block or pile up tasks.
+     */
+    public <T> Future<T> trySubmit(Callable<T> task) {
+        FutureTask<T> futureTask = new FutureTask<>(Objects.requireNonNull(task));
+        return tryExecute(futureTask) ? futureTask : null;
+    }
+
+    /**
+     * How many more tasks fit in the queue, {@code Integer.MAX_VALUE} if it is unbounded.
+     */
+    public int remainingCapacity() {
+        if(capacity == Integer.MAX_VALUE) {
+            return Integer.MAX_VALUE;
+        }
+        return mode == Mode.WORK_STEALING ? Math.max(0,capacity - injectionCount.get()) : taskQueue.remainingCapacity();
+    }
 
-        if(workerCounter.get() < poolSize) {
-            if (workerCounter.incrementAndGet() <= poolSize) {
-                Worker w = new Worker(command);
-                synchronized (lock) {
-                    workerSet.add(w);
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public void setRejectionPolicy(RejectionPolicy rejectionPolicy) {
+        this.rejectionPolicy = Objects.requireNonNull(rejectionPolicy);
+    }
+
+    public RejectionPolicy getRejectionPolicy() {
+        return rejectionPolicy;
+    }
+
+    /**
+     * Submits all of {@code commands} at once. Idle worker slots are filled first, as with {@link #execute},
+     * and the rest goes to the queue in one go: in {@link Mode#WORK_STEALING} the tasks are spliced into the
+     * injection queue with a single CAS, or pushed onto the caller's own deque when it is a worker; in the
+     * shared queue modes they are packed into entries of {@link #getBatchSize()} tasks, so a batch size of n
+     * takes the queue lock once per n tasks. With the default batch size of 1 the tasks are added one by one.
+     *
+     * If a task is null nothing is submitted. Tasks that do not fit in a bounded queue go to the rejection
+     * policy one by one, after the others have been queued.
+     */
+    public void executeAll(Collection<? extends Runnable> commands) {
+        Runnable[] tasks = commands.toArray(new Runnable[0]);
+        for(Runnable task : tasks) {
+            Objects.requireNonNull(task);
+        }
+        if(currentState != State.RUNNING) {
+            throw new RejectedExecutionException();
+        }
+        if(metricsEnabled) {
+            submittedTasks.add(tasks.length);
+        }
+
+        int i = 0;
+        int n = tasks.length;
+        while(i < n && tryStartWorker(tasks[i],corePoolSize)) {
+            i++;
+        }
+        if(i == n) {
+            return;
+        }
+        for(int j = i; j < n; j++) {
+            tasks[j] = stamp(tasks[j]);
+        }
+        if(mode == Mode.WORK_STEALING) {
+            Worker w = currentWorker.get();
+            int queued = n - i;
+            if(w != null) {
+                for(int j = i; j < n; j++) {
+                    w.deque.push(tasks[j]);
                 }
-                w.t.start();
             } else {
-                workerCounter.decrementAndGet();
+                queued = reserveInjectionSlots(n - i);
+                injectionQueue.addAll(Arrays.asList(tasks).subList(i,i + queued));
+            }
+            for(int k = Math.min(queued,poolSize); k > 0; k--) {
+                signalWork();
+            }
+            for(int j = i + queued; j < n; j++) {
+                reject(tasks[j]);
             }
         } else {
-            taskQueue.add(command);
+            int size = batchSize;
+            List<Runnable> entries;
+            if(size == 1) {
+                entries = Arrays.asList(tasks).subList(i,n);
+            } else {
+                entries = new ArrayList<>((n - i + size - 1) / size);
+                for(int j = i; j < n; j += size) {
+                    entries.add(new TaskBatch(Arrays.copyOfRange(tasks,j,Math.min(j + size,n))));
+                }
+            }
+            int queued = 0;
+            while(queued < entries.size() && taskQueue.offer(entries.get(queued))) {
+                queued++;
+            }
+            if(mode == Mode.VIRTUAL_THREADS) {
+                // see enqueue, and start as many workers as there are entries and free permits
+                for(int k = 0; k < queued; k++) {
+                    if(!tryStartWorker(null,poolSize)) {
+                        break;
+                    }
+                }
+            } else if(queued > 0) {
+                afterEnqueue();
+            }
+            List<Runnable> rejected = new ArrayList<>();
+            for(int j = queued; j < entries.size(); j++) {
+                addTasks(entries.get(j),rejected);
+            }
+            for(Runnable task : rejected) {
+                reject(task);
+            }
+        }
+    }
+
+    /**
+     * Shared queue modes only. A worker that takes a task off the queue also takes up to
+     * {@code batchSize - 1} more entries in the same call, and a batch packed by {@link #executeAll} is taken
+     * whole. The worker keeps them in a local deque and runs them in order before it goes back to the queue,
+     * so the queue lock is paid once per batch instead of once per task. The cost is fairness: tasks in a
+     * worker's batch wait for that worker even if others are idle, so keep it small for tasks of uneven
+     * length. Tasks still in a local batch are returned by {@link #shutdownNow()}.
+     *
+     * Takes effect on the next queue access of every worker. Ignored in {@link Mode#WORK_STEALING}, where
+     * taking a task needs no lock.
+     */
+    public void setBatchSize(int batchSize) {
+        if(batchSize<=0) {
+            throw new IllegalArgumentException("Illegal batch size:" + batchSize);
         }
+        this.batchSize = batchSize;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Workers up to the core size are started for each submission even when others are idle, and are kept
+     * after the keep alive time unless {@link #allowCoreThreadTimeOut} is on.
+     */
+    public void setCorePoolSize(int corePoolSize) {
+        if(corePoolSize<0 || corePoolSize>poolSize) {
+            throw new IllegalArgumentException("Illegal core pool size:" + corePoolSize);
+        }
+        this.corePoolSize = corePoolSize;
+        if(adaptive && targetPoolSize < corePoolSize) {
+            targetPoolSize = corePoolSize;
+        }
+    }
+
+    public int getCorePoolSize() {
+        return corePoolSize;
+    }
+
+    /**
+     * Workers above the new maximum exit once they finish their current task, or in
+     * {@link Mode#WORK_STEALING} once they run out of work for the keep alive time.
+     */
+    public void setMaximumPoolSize(int maximumPoolSize) {
+        if(maximumPoolSize<=0 || maximumPoolSize<corePoolSize) {
+            throw new IllegalArgumentException("Illegal maximum pool size:" + maximumPoolSize);
+        }
+        this.poolSize = maximumPoolSize;
+        if(adaptive && targetPoolSize > maximumPoolSize) {
+            targetPoolSize = maximumPoolSize;
+        }
+    }
+
+    public int getMaximumPoolSize() {
+        return poolSize;
+    }
+
+    /**
+     * How many workers there are right now.
+     */
+    public int getPoolSize() {
+        return Math.max(0,workerCounter.get());
+    }
+
+    /**
+     * On (the default for pools built with a single pool size) every worker exits after the keep alive time
+     * without work, off the core workers stay.
+     */
+    public void allowCoreThreadTimeOut(boolean value) {
+        this.allowCoreThreadTimeOut = value;
+    }
+
+    public boolean allowsCoreThreadTimeOut() {
+        return allowCoreThreadTimeOut;
+    }
+
+    /**
+     * Shared queue mode: once the core workers are running, another one is started for a submission while
+     * the queue holds more than {@code growThreshold} tasks, up to the maximum. 0 grows as soon as anything
+     * waits, a large value keeps the pool at its core size unless the backlog is long. Defaults to the core
+     * size.
+     */
+    public void setGrowThreshold(int growThreshold) {
+        if(growThreshold<0) {
+            throw new IllegalArgumentException("Illegal grow threshold:" + growThreshold);
+        }
+        this.growThreshold = growThreshold;
+    }
+
+    public int getGrowThreshold() {
+        return growThreshold;
+    }
+
+    /**
+     * Lets the pool look for the number of workers between the core and the maximum size that gets the most
+     * tasks done, instead of growing to the maximum whenever there is a backlog. Every sample interval it
+     * compares the throughput with that of the last interval and moves the target size by a step: on in the
+     * same direction if throughput went up, back if it went down, and down if it did not change beyond noise,
+     * so that among equally good sizes it settles on the smallest. CPU bound tasks end up near the number of
+     * cores, tasks that block a lot climb higher. This is the hill climbing of the .NET thread pool, without
+     * its signal processing. Intervals in which the queue ran empty are skipped, as the throughput then says
+     * how much work came in rather than how fast the pool is.
+     *
+     * Workers above the target exit when they finish their current task. While this is on every worker counts
+     * the tasks it completes in a field of its own, which the sample adds up. Shared queue mode only.
+     */
+    public void setAdaptiveSizing(boolean enabled) {
+        if(enabled && mode != Mode.SHARED_QUEUE) {
+            throw new UnsupportedOperationException("Adaptive sizing needs the shared queue mode");
+        }
+        if(enabled && !adaptive) {
+            synchronized (controllerLock) {
+                long now = System.nanoTime();
+                lastCompleted = completedTaskCount();
+                lastSampleTime = now;
+                lastThroughput = 0;
+                direction = 1;
+                targetPoolSize = Math.min(poolSize,Math.max(Math.max(1,corePoolSize),getPoolSize()));
+                nextSample.set(now + sampleIntervalNanos);
+            }
+        }
+        this.adaptive = enabled;
+        this.countTasks = enabled || metricsEnabled;
+    }
+
+    public boolean isAdaptiveSizing() {
+        return adaptive;
+    }
+
+    /**
+     * Long enough to average out the run time of single tasks, 100 ms by default.
+     */
+    public void setAdaptiveSampleInterval(long interval,TimeUnit unit) {
+        if(interval<=0) {
+            throw new IllegalArgumentException("Illegal sample interval:" + interval);
+        }
+        this.sampleIntervalNanos = unit.toNanos(interval);
+    }
+
+    /**
+     * The size the adaptive controller is aiming for, or the maximum size when it is off.
+     */
+    public int getTargetPoolSize() {
+        return workerLimit();
+    }
+
+    /**
+     * Counts submitted, completed, failed and rejected tasks, and for a sample of the tasks how long they
+     * waited in the queue and ran, see {@link #getMetrics()}. Off by default. The cost is kept to a few ns per
+     * task: a worker counts its completed tasks in a field only it writes, published without a fence; a
+     * submission is counted in a {@link LongAdder}, striped so that submitters do not contend, and takes one
+     * random draw, as only one in {@link #setTimingSampleRate sample rate} is timed, which takes three
+     * {@link System#nanoTime()} calls and a wrapper object. Failed and rejected tasks are rare and counted in
+     * {@link LongAdder}s as well. For the busy time a worker reads the clock
+     * when it blocks for lack of work and when it wakes, which costs nothing while tasks keep coming.
+     *
+     * Everything is counted only while metrics are on, except completed tasks, which adaptive sizing counts as
+     * well, and switching them off keeps what was counted.
+     */
+    @Override
+    public void setMetricsEnabled(boolean enabled) {
+        if(enabled && metricsEnabledAt == 0) {
+            metricsEnabledAt = System.nanoTime();
+        }
+        this.metricsEnabled = enabled;
+        this.countTasks = enabled || adaptive;
+    }
+
+    @Override
+    public boolean isMetricsEnabled() {
+        return metricsEnabled;
+    }
+
+    /**
+     * Times one in {@code rate} tasks, picked at random, 64 by default; 1 times every task. Only the timing is
+     * sampled, the task counts are exact either way. A timed task costs three
+     * {@link System#nanoTime()} calls and a wrapper object, some 100 to 200 ns, so the default keeps that to
+     * a few ns per task.
+     */
+    public void setTimingSampleRate(int rate) {
+        if(rate<=0) {
+            throw new IllegalArgumentException("Illegal timing sample rate:" + rate);
+        }
+        this.timingSampleRate = rate;
+    }
+
+    public int getTimingSampleRate() {
+        return timingSampleRate;
+    }
+
+    /**
+     * A snapshot of the metrics; all zero if they were never switched on.
+     */
+    public PoolMetrics getMetrics() {
+        long now = System.nanoTime();
+        Worker[] workers;
+        LatencyHistogram queueWaitTimes;
+        LatencyHistogram runTimes;
+        long completed;
+        long busy;
+        long life;
+        lock.lock();
+        try {
+            workers = workerSet.toArray(new Worker[0]);
+            queueWaitTimes = exitedQueueWaitTimes.copy();
+            runTimes = exitedRunTimes.copy();
+            completed = exitedCompletedTasks;
+            busy = exitedBusyNanos;
+            life = exitedLifeNanos;
+        } finally {
+            lock.unlock();
+        }
+        List<PoolMetrics.WorkerMetrics> workerMetrics = new ArrayList<>(workers.length);
+        for(Worker w : workers) {
+            long workerLife = w.lifeNanos(now);
+            long workerBusy = w.busyNanos(now);
+            long workerCompleted = w.completedTasks();
+            completed += workerCompleted;
+            busy += workerBusy;
+            life += workerLife;
+            w.addTimes(queueWaitTimes,runTimes);
+            workerMetrics.add(new PoolMetrics.WorkerMetrics(w.t.getName(),workerCompleted,workerBusy,
+                    ratio(workerBusy,workerLife)));
+        }
+        return new PoolMetrics(workers.length,activeCount(workers),getQueueDepth(),submittedTasks.sum(),completed,
+                failedTasks.sum(),rejectedTasks.sum(),ratio(busy,life),queueWaitTimes,runTimes,workerMetrics);
+    }
+
+    /**
+     * Registers the pool with the platform MBean server as {@code concurrent:type=FixedThreadPool,name=<name>},
+     * so that jconsole and the like can watch it. Does not switch metrics on.
+     */
+    public void registerMBean(String name) throws JMException {
+        ObjectName objectName = new ObjectName("concurrent:type=FixedThreadPool,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this,objectName);
+        mbeanName = objectName;
+    }
+
+    public void unregisterMBean() throws JMException {
+        ObjectName objectName = mbeanName;
+        if(objectName != null) {
+            mbeanName = null;
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+        }
+    }
+
+    /**
+     * Workers that are not waiting for a task.
+     */
+    @Override
+    public int getActiveCount() {
+        Worker[] workers;
+        lock.lock();
+        try {
+            workers = workerSet.toArray(new Worker[0]);
+        } finally {
+            lock.unlock();
+        }
+        return activeCount(workers);
+    }
+
+    /**
+     * Queued tasks, counting a batch from {@link #executeAll} as one, plus in work stealing mode those in the
+     * workers' deques.
+     */
+    @Override
+    public int getQueueDepth() {
+        if(mode != Mode.WORK_STEALING) {
+            return taskQueue.size();
+        }
+        int depth = capacity == Integer.MAX_VALUE ? injectionQueue.size() : injectionCount.get();
+        for(Worker w : stealTargets) {
+            depth += w.deque.size();
+        }
+        return depth;
+    }
+
+    @Override
+    public long getSubmittedTaskCount() {
+        return submittedTasks.sum();
+    }
+
+    @Override
+    public long getCompletedTaskCount() {
+        return completedTaskCount();
+    }
+
+    @Override
+    public long getFailedTaskCount() {
+        return failedTasks.sum();
+    }
+
+    @Override
+    public long getRejectedTaskCount() {
+        return rejectedTasks.sum();
+    }
+
+    @Override
+    public double getBusyRatio() {
+        long now = System.nanoTime();
+        lock.lock();
+        try {
+            long busy = exitedBusyNanos;
+            long life = exitedLifeNanos;
+            for(Worker w : workerSet) {
+                busy += w.busyNanos(now);
+                life += w.lifeNanos(now);
+            }
+            return ratio(busy,life);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getQueueWaitP50() {
+        return mergedTimes(false).valueAtPercentile(50);
+    }
+
+    @Override
+    public long getQueueWaitP99() {
+        return mergedTimes(false).valueAtPercentile(99);
+    }
+
+    @Override
+    public long getRunTimeP50() {
+        return mergedTimes(true).valueAtPercentile(50);
+    }
+
+    @Override
+    public long getRunTimeP99() {
+        return mergedTimes(true).valueAtPercentile(99);
+    }
+
+    public static boolean isVirtualThreadsAvailable() {
+        return VIRTUAL_THREAD_FACTORY != null;
     }
 
     @Override
     public void shutdown() {
-        if(currentState == State.RUNNING) {
-            currentState = State.SHUTDOWN;
+        lock.lock();
+        try {
+            if(currentState == State.RUNNING) {
+                currentState = State.SHUTDOWN;
+                for(Worker w : idleWorkers) {
+                    LockSupport.unpark(w.t);
+                }
+                for(Worker w : workerSet) {
+                    w.interruptIfIdle();
+                }
+                tryTerminate();
+            }
+        } finally {
+            lock.unlock();
         }
     }
 
     @Override
     public List<Runnable> shutdownNow() {
         if(currentState == State.RUNNING || currentState == State.SHUTDOWN) {
-            synchronized (lock) {
+            lock.lock();
+            try {
                 if (currentState == State.RUNNING || currentState == State.SHUTDOWN) {
                     currentState = State.SHUTDOWN_NOW;
+                    Worker[] workers = workerSet.toArray(new Worker[0]);
                     stopAllWorkers();
-                    List<Runnable> remainingTasks = new ArrayList<>(taskQueue.size());
-                    taskQueue.drainTo(remainingTasks);
+                    List<Runnable> drained = new ArrayList<>(taskQueue.size());
+                    taskQueue.drainTo(drained);
+                    List<Runnable> remainingTasks = new ArrayList<>(drained.size());
+                    for(Runnable entry : drained) {
+                        addOriginalTasks(entry,remainingTasks);
+                    }
+                    drainWorkerQueues(workers,remainingTasks);
                     currentState = State.TERMINATED;
-                    lock.notifyAll();
+                    termination.signalAll();
                     return remainingTasks;
                 }
+            } finally {
+                lock.unlock();
             }
         }
         return new ArrayList<>();
     }
 
     @Override
-    public boolean awaitTermination(long timeout, TimeUnit unit) {
-        if(currentState == State.TERMINATED) {
-            return true;
-        }
-        synchronized (lock) {
-            try {
-                lock.wait(unit.toMillis(timeout));
-            } catch (InterruptedException e) {
-                //
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while(currentState != State.TERMINATED) {
+                long remaining = deadline - System.nanoTime();
+                if(remaining <= 0) {
+                    return false;
+                }
+                termination.awaitNanos(remaining);
             }
+        } finally {
+            lock.unlock();
         }
-        return false;
+        return true;
     }
 
     @Override
@@ -184,49 +863,700 @@ public class FixedThreadPool implements ExecutorService {
 
     //<----------------------------------------- Private Helper Methods ------------------------------------>//
 
+    /**
+     * Starts a worker for {@code firstTask} if there are fewer than {@code limit}.
+     */
+    private boolean tryStartWorker(Runnable firstTask,int limit) {
+        for(int c = workerCounter.get(); c < limit; c = workerCounter.get()) {
+            if(workerCounter.compareAndSet(c,c + 1)) {
+                startWorker(firstTask);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Called by workers after each task while adaptive sizing is on; the worker that finds the sample interval
+     * over takes the sample, the others go on.
+     */
+    private void maybeAdjustPoolSize() {
+        long next = nextSample.get();
+        long now = System.nanoTime();
+        if(now - next < 0 || !nextSample.compareAndSet(next,now + sampleIntervalNanos)) {
+            return;
+        }
+        int target;
+        synchronized (controllerLock) {
+            if(!adaptive) {
+                return;
+            }
+            long completed = completedTaskCount();
+            double throughput = (completed - lastCompleted) * 1e9 / Math.max(1,now - lastSampleTime);
+            lastCompleted = completed;
+            lastSampleTime = now;
+            if(taskQueue.isEmpty()) {
+                lastThroughput = 0;
+                return;
+            }
+            target = targetPoolSize;
+            if(lastThroughput > 0) {
+                if(throughput < lastThroughput * (1 - THROUGHPUT_NOISE)) {
+                    direction = -direction;
+                } else if(throughput <= lastThroughput * (1 + THROUGHPUT_NOISE)) {
+                    direction = -1;
+                }
+            }
+            int step = Math.max(1,target / 8);
+            target = Math.max(Math.max(1,corePoolSize),Math.min(poolSize,target + direction * step));
+            lastThroughput = throughput;
+            targetPoolSize = target;
+        }
+        // grow to the new target right away, shrinking happens as workers finish their tasks
+        while(workerCounter.get() < target && !taskQueue.isEmpty()) {
+            if(!tryStartWorker(null,target)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * How many workers the pool may have right now: the maximum, or the target of the adaptive controller.
+     */
+    private int workerLimit() {
+        return adaptive ? targetPoolSize : poolSize;
+    }
+
+    /**
+     * Shared queue modes, after a task went into the queue. Starts a worker if there is none, which closes the
+     * race with the last worker timing out just before the task arrived: that worker decrements the counter
+     * before it looks at the queue a last time, and the submitter adds to the queue before it looks at the
+     * counter, so one of them sees the other. Past that the pool grows above the core size while the backlog
+     * is deeper than the grow threshold.
+     */
+    private void afterEnqueue() {
+        if(mode == Mode.VIRTUAL_THREADS) {
+            // the last worker may have found the queue empty just before the offer
+            tryStartWorker(null,poolSize);
+            return;
+        }
+        int c = workerCounter.get();
+        if(c == 0 || (c < workerLimit() && taskQueue.size() > growThreshold)) {
+            tryStartWorker(null,Math.max(1,workerLimit()));
+        }
+    }
+
+    /**
+     * Queues a task without blocking, returns false if the queue is full.
+     */
+    private boolean enqueue(Runnable command) {
+        if(mode == Mode.WORK_STEALING) {
+            Worker w = currentWorker.get();
+            if(w != null) {
+                w.deque.push(command);
+            } else if(reserveInjectionSlots(1) == 1) {
+                injectionQueue.offer(command);
+            } else {
+                return false;
+            }
+            signalWork();
+        } else {
+            if(!taskQueue.offer(command)) {
+                return false;
+            }
+            afterEnqueue();
+        }
+        return true;
+    }
+
+    /**
+     * For {@link RejectionPolicy#blockWithTimeout}: waits up to {@code timeoutNanos} for room in the queue.
+     * A task that gets in only after the pool was shut down is taken out again and rejected.
+     */
+    boolean offer(Runnable task,long timeoutNanos) throws InterruptedException {
+        task = stamp(task);
+        if(mode == Mode.WORK_STEALING) {
+            // there is nothing to wait on in a lock free queue, so look again every now and then
+            long deadline = System.nanoTime() + timeoutNanos;
+            while(!enqueue(task)) {
+                long remaining = deadline - System.nanoTime();
+                if(remaining <= 0) {
+                    return false;
+                }
+                LockSupport.parkNanos(this,Math.min(remaining,BLOCKED_OFFER_RETRY_NANOS));
+                if(Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        } else {
+            if(!taskQueue.offer(task,timeoutNanos,TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+            afterEnqueue();
+        }
+        if(currentState != State.RUNNING && removeQueued(task)) {
+            throw new RejectedExecutionException("Pool was shut down while waiting for room in the queue");
+        }
+        return true;
+    }
+
+    /**
+     * Takes a task back out of the queue, if the queue allows that.
+     */
+    private boolean removeQueued(Runnable task) {
+        try {
+            return taskQueue.remove(task) || injectionQueue.remove(task);
+        } catch (UnsupportedOperationException e) {
+            return false;   // left for the workers, which drain the queue before they exit
+        }
+    }
+
+    /**
+     * For {@link RejectionPolicy#DROP_OLDEST}: drops the entry at the head of the queue, cancelling the
+     * tasks in it that are futures so that nobody waits on them forever.
+     */
+    void discardOldest() {
+        Runnable entry = mode == Mode.WORK_STEALING ? pollInjectionQueue() : taskQueue.poll();
+        if(entry == null) {
+            return;
+        }
+        List<Runnable> dropped = new ArrayList<>();
+        addOriginalTasks(entry,dropped);
+        for(Runnable task : dropped) {
+            if(task instanceof Future) {
+                ((Future<?>) task).cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Takes up to {@code n} slots of a bounded injection queue, returns how many it got.
+     */
+    private int reserveInjectionSlots(int n) {
+        if(capacity == Integer.MAX_VALUE) {
+            return n;
+        }
+        while(true) {
+            int count = injectionCount.get();
+            int reserved = Math.min(n,capacity - count);
+            if(reserved <= 0) {
+                return 0;
+            }
+            if(injectionCount.compareAndSet(count,count + reserved)) {
+                return reserved;
+            }
+        }
+    }
+
+    private Runnable pollInjectionQueue() {
+        Runnable task = injectionQueue.poll();
+        if(task != null && capacity != Integer.MAX_VALUE) {
+            injectionCount.decrementAndGet();
+        }
+        return task;
+    }
+
+    private void startWorker(Runnable firstTask) {
+        Worker w = new Worker(firstTask);
+        lock.lock();
+        try {
+            workerSet.add(w);
+            if(mode == Mode.WORK_STEALING) {
+                stealTargets = workerSet.toArray(new Worker[0]);
+            }
+        } finally {
+            lock.unlock();
+        }
+        w.t.start();
+    }
+
     private void runWorker(Worker w) {
         Runnable task = w.task;
         w.task = null;
-        while(task!=null) {
-            task.run();
-            task = getTask();
+        if(mode == Mode.WORK_STEALING) {
+            currentWorker.set(w);
+        }
+        try {
+            if(task == null) {
+                task = mode == Mode.WORK_STEALING ? stealTask(w) : getTask(w);
+            }
+            while(task!=null) {
+                runTask(w,task);
+                task = mode == Mode.WORK_STEALING ? stealTask(w) : getTask(w);
+            }
+        } finally {
+            exitWorker(w);
+        }
+    }
+
+    /**
+     * Runs under a {@code finally}, so a task that throws costs the worker but not the pool's bookkeeping; the
+     * exception still goes to the thread's uncaught exception handler, the tasks left in the worker's deque go
+     * back to the queue, and a new worker takes over.
+     */
+    private void exitWorker(Worker w) {
+        if(!w.retired) {
+            workerCounter.decrementAndGet();
         }
-        workerCounter.decrementAndGet();
-        synchronized (lock) {
+        List<Runnable> overflow = null;
+        lock.lock();
+        try {
             workerSet.remove(w);
-            if(workerSet.size()==0 && currentState == State.SHUTDOWN && taskQueue.size()==0) {
-                lock.notifyAll();
+            addExitedWorker(w,System.nanoTime());
+            if(mode == Mode.WORK_STEALING) {
+                stealTargets = workerSet.toArray(new Worker[0]);
+            }
+            if(!isStopped()) {
+                overflow = requeueLocalTasks(w);
             }
+            tryTerminate();
+        } finally {
+            lock.unlock();
+        }
+        if(overflow != null) {
+            for(Runnable task : overflow) {
+                reject(task);
+            }
+        }
+        if(mode == Mode.WORK_STEALING && !isStopped() && !injectionQueue.isEmpty()) {
+            // a task may have been queued just as this worker timed out, or it left tasks behind
+            signalWork();
+        }
+        if(mode != Mode.WORK_STEALING && !isStopped() && !taskQueue.isEmpty()) {
+            // the other half of afterEnqueue: a task came in while this worker was on its way out
+            tryStartWorker(null,mode == Mode.VIRTUAL_THREADS ? poolSize : Math.max(1,workerLimit()));
         }
     }
 
-    private Runnable getTask() {
-        Runnable task = null;
+    private void runTask(Worker w,Runnable task) {
+        if(!countTasks) {
+            original(task).run();
+            return;
+        }
+        TimedTask timed = task instanceof TimedTask ? (TimedTask) task : null;
+        long start = timed == null ? 0 : System.nanoTime();
+        boolean failed = true;
         try {
-            task = currentState == State.SHUTDOWN ? taskQueue.poll() : taskQueue.poll(keepAliveTime,timeUnitForKeepAliveTime);
-        } catch (InterruptedException e) {
-//            System.out.println("Interrupted while fetching task from queue !");
+            original(task).run();
+            failed = false;
+        } finally {
+            w.taskCompleted();
+            if(metricsEnabled) {
+                if(failed) {
+                    failedTasks.increment();
+                }
+                if(timed != null) {
+                    w.record(start - timed.queuedAt,System.nanoTime() - start);
+                }
+            }
+            if(adaptive) {
+                maybeAdjustPoolSize();
+            }
+        }
+    }
+
+    /**
+     * Wraps a task that is going into a queue with the time, for one in {@code timingSampleRate} tasks while
+     * metrics are on.
+     */
+    private Runnable stamp(Runnable task) {
+        if(!metricsEnabled || task instanceof TimedTask) {
+            return task;
+        }
+        int rate = timingSampleRate;
+        if(rate > 1 && ThreadLocalRandom.current().nextInt(rate) != 0) {
+            return task;
+        }
+        return new TimedTask(task,System.nanoTime());
+    }
+
+    /**
+     * Called with {@code lock} held, so that {@link #shutdownNow()} either finds the tasks in the worker's deque
+     * or in the queue. Only a worker whose task threw leaves any. Returns what a bounded queue had no room for.
+     */
+    private List<Runnable> requeueLocalTasks(Worker w) {
+        WorkStealingDeque deque = w.deque;
+        if(deque == null || deque.isEmpty()) {
+            return null;
+        }
+        List<Runnable> overflow = null;
+        for(Runnable task; (task = deque.steal()) != null || !deque.isEmpty(); ) {
+            if(task == null) {
+                continue;
+            }
+            if(mode == Mode.WORK_STEALING) {
+                if(capacity != Integer.MAX_VALUE) {
+                    injectionCount.incrementAndGet();   // may go over the capacity for a moment
+                }
+                injectionQueue.offer(task);
+            } else if(!taskQueue.offer(task)) {
+                if(overflow == null) {
+                    overflow = new ArrayList<>();
+                }
+                overflow.add(task);
+            }
+        }
+        return overflow;
+    }
+
+    /**
+     * Called with {@code lock} held.
+     */
+    private void addExitedWorker(Worker w,long now) {
+        exitedCompletedTasks += w.completedTasks();
+        exitedBusyNanos += w.busyNanos(now);
+        exitedLifeNanos += w.lifeNanos(now);
+        w.addTimes(exitedQueueWaitTimes,exitedRunTimes);
+    }
+
+    /**
+     * Completed tasks of the live and the exited workers, counted while metrics or adaptive sizing were on.
+     */
+    private long completedTaskCount() {
+        lock.lock();
+        try {
+            long completed = exitedCompletedTasks;
+            for(Worker w : workerSet) {
+                completed += w.completedTasks();
+            }
+            return completed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The run times, or the queue wait times, of the live and the exited workers in one histogram, for the
+     * MXBean getters, which need one percentile of one of them rather than a {@link #getMetrics()} snapshot.
+     */
+    private LatencyHistogram mergedTimes(boolean runTimes) {
+        LatencyHistogram merged = new LatencyHistogram();
+        Worker[] workers;
+        lock.lock();
+        try {
+            merged.add(runTimes ? exitedRunTimes : exitedQueueWaitTimes);
+            workers = workerSet.toArray(new Worker[0]);
+        } finally {
+            lock.unlock();
+        }
+        for(Worker w : workers) {
+            LatencyHistogram times = runTimes ? w.runTimes : w.queueWaitTimes;
+            if(times != null) {
+                merged.add(times);
+            }
+        }
+        return merged;
+    }
+
+    private int activeCount(Worker[] workers) {
+        if(mode == Mode.WORK_STEALING) {
+            return Math.max(0,workers.length - idleWorkers.size());
+        }
+        int active = 0;
+        for(Worker w : workers) {
+            if(!w.idle) {
+                active++;
+            }
+        }
+        return active;
+    }
+
+    private static double ratio(long part,long whole) {
+        return whole <= 0 ? 0 : Math.min(1,(double) part / whole);
+    }
+
+    private void reject(Runnable task) {
+        if(metricsEnabled) {
+            rejectedTasks.increment();
+        }
+        rejectionPolicy.rejected(original(task),this);
+    }
+
+    /**
+     * Called with {@code lock} held.
+     */
+    private void tryTerminate() {
+        if(currentState == State.SHUTDOWN && workerSet.isEmpty() && taskQueue.isEmpty() && injectionQueue.isEmpty()) {
+            currentState = State.TERMINATED;
+            termination.signalAll();
+        }
+    }
+
+    /**
+     * Shared queue modes: the worker's local batch first, then the queue. Returns null when the worker should
+     * exit: the pool is stopped, or shut down and out of tasks, or the worker is above the current limit, or
+     * it waited the keep alive time for nothing and is not a core worker that is kept.
+     */
+    private Runnable getTask(Worker w) {
+        boolean timedOut = false;
+        while(true) {
+            Runnable task = null;
+            if(isStopped()) {
+                return null;
+            }
+            WorkStealingDeque local = w.deque;
+            if(local != null) {
+                while(task == null && !local.isEmpty()) {
+                    task = local.steal();
+                }
+                if(task != null) {
+                    return task;
+                }
+            }
+            int c = workerCounter.get();
+            boolean timed = allowCoreThreadTimeOut || c > corePoolSize;
+            if(c > workerLimit() || (timedOut && timed)) {
+                if(retire(w,c)) {
+                    return null;
+                }
+                continue;
+            }
+            boolean wait = currentState == State.RUNNING && mode != Mode.VIRTUAL_THREADS;
+            task = taskQueue.poll();
+            if(task == null && wait) {
+                try {
+                    w.idle = true;
+                    w.idleStarted();
+                    if(currentState == State.RUNNING) {
+                        task = timed ? taskQueue.poll(keepAliveTime,timeUnitForKeepAliveTime) : taskQueue.take();
+                    }
+                } catch (InterruptedException e) {
+//                    System.out.println("Interrupted while fetching task from queue !");
+                } finally {
+                    w.idleEnded();
+                    w.leaveIdle();
+                }
+            }
+            if(task != null) {
+                return batchSize > 1 || task instanceof TaskBatch ? takeBatch(w,task) : task;
+            }
+            if(!wait) {
+                return null;
+            }
+            timedOut = true;
+        }
+    }
+
+    /**
+     * Takes the worker out of the count if the count is still {@code c}, so that two workers cannot both
+     * decide that the pool has one too many.
+     */
+    private boolean retire(Worker w,int c) {
+        if(workerCounter.compareAndSet(c,c - 1)) {
+            w.retired = true;
+            return true;
         }
+        return false;
+    }
+
+    /**
+     * Moves {@code first} and up to {@code batchSize - 1} more queue entries into the worker's local deque,
+     * unpacking batches from {@link #executeAll}, and returns the first task. The deque is only used as a
+     * FIFO here: the owner takes from the top like a thief, and {@link #shutdownNow()} can empty it from
+     * another thread.
+     */
+    private Runnable takeBatch(Worker w,Runnable first) {
+        List<Runnable> taken = w.taken;
+        if(taken == null) {
+            taken = w.taken = new ArrayList<>();
+        }
+        addTasks(first,taken);
+        int size = batchSize;
+        if(size > 1 && !(first instanceof TaskBatch)) {
+            taskQueue.drainTo(taken,size - 1);
+        }
+        Runnable task = taken.get(0);
+        int n = taken.size();
+        if(n > 1) {
+            WorkStealingDeque local = w.deque;
+            if(local == null) {
+                local = w.deque = new WorkStealingDeque();
+            }
+            for(int i = 1; i < n; i++) {
+                addTasks(taken.get(i),local);
+            }
+        }
+        taken.clear();
         return task;
     }
 
+    private static void addTasks(Runnable entry,List<Runnable> to) {
+        if(entry instanceof TaskBatch) {
+            Collections.addAll(to,((TaskBatch) entry).tasks);
+        } else {
+            to.add(entry);
+        }
+    }
+
+    /**
+     * For handing tasks back: unpacks batches and strips the timestamps added by {@link #stamp}.
+     */
+    private static void addOriginalTasks(Runnable entry,List<Runnable> to) {
+        if(entry instanceof TaskBatch) {
+            for(Runnable task : ((TaskBatch) entry).tasks) {
+                to.add(original(task));
+            }
+        } else {
+            to.add(original(entry));
+        }
+    }
+
+    private static Runnable original(Runnable task) {
+        return task instanceof TimedTask ? ((TimedTask) task).task : task;
+    }
+
+    private static void addTasks(Runnable entry,WorkStealingDeque to) {
+        if(entry instanceof TaskBatch) {
+            for(Runnable task : ((TaskBatch) entry).tasks) {
+                to.push(task);
+            }
+        } else {
+            to.push(entry);
+        }
+    }
+
+    /**
+     * WORK_STEALING: own deque first, newest task first, then the injection queue, then the other workers.
+     * Before parking the worker registers as idle and looks once more, so a task queued meanwhile either is
+     * found here or its submitter sees the worker in {@code idleWorkers} and unparks it. A worker that stays
+     * idle for the keep alive time exits, and so does every worker once the pool is shut down and it finds
+     * nothing left.
+     */
+    private Runnable stealTask(Worker w) {
+        long keepAliveNanos = timeUnitForKeepAliveTime.toNanos(keepAliveTime);
+        long deadline = System.nanoTime() + keepAliveNanos;
+        while(true) {
+            if(isStopped()) {
+                return null;
+            }
+            Runnable task = findTask(w);
+            if(task != null) {
+                return task;
+            }
+            if(currentState != State.RUNNING) {
+                return null;
+            }
+            idleWorkers.offer(w);
+            task = findTask(w);
+            if(task != null) {
+                idleWorkers.remove(w);
+                return task;
+            }
+            long remaining = deadline - System.nanoTime();
+            if(currentState != State.RUNNING) {
+                idleWorkers.remove(w);
+                return findTask(w);
+            }
+            if(remaining <= 0) {
+                idleWorkers.remove(w);
+                task = findTask(w);
+                if(task != null) {
+                    return task;
+                }
+                int c = workerCounter.get();
+                if((allowCoreThreadTimeOut || c > corePoolSize) && retire(w,c)) {
+                    return null;
+                }
+                deadline = System.nanoTime() + keepAliveNanos;
+                continue;
+            }
+            w.idleStarted();
+            LockSupport.parkNanos(this,remaining);
+            w.idleEnded();
+            idleWorkers.remove(w);
+            Thread.interrupted();
+        }
+    }
+
+    /**
+     * After {@link #shutdownNow()} workers take no more tasks, so that what is left is returned by it.
+     */
+    private boolean isStopped() {
+        State state = currentState;
+        return state == State.SHUTDOWN_NOW || state == State.TERMINATED;
+    }
+
+    private Runnable findTask(Worker w) {
+        Runnable task = w.deque.pop();
+        if(task == null) {
+            task = pollInjectionQueue();
+        }
+        if(task == null) {
+            Worker[] targets = stealTargets;
+            int n = targets.length;
+            int start = n == 0 ? 0 : ThreadLocalRandom.current().nextInt(n);
+            for(int i = 0; i < n && task == null; i++) {
+                Worker victim = targets[(start + i) % n];
+                if(victim != w) {
+                    task = victim.deque.steal();
+                }
+            }
+        }
+        return task;
+    }
+
+    /**
+     * Wakes one idle worker, or starts one if there is room and none is idle.
+     */
+    private void signalWork() {
+        Worker idle = idleWorkers.poll();
+        if(idle != null) {
+            LockSupport.unpark(idle.t);
+        } else {
+            tryStartWorker(null,poolSize);
+        }
+    }
+
+    private void drainWorkerQueues(Worker[] workers,List<Runnable> remainingTasks) {
+        for(Runnable task; (task = pollInjectionQueue()) != null; ) {
+            remainingTasks.add(original(task));
+        }
+        for(Worker w : workers) {
+            WorkStealingDeque deque = w.deque;
+            if(deque == null) {
+                continue;
+            }
+            for(Runnable task; (task = deque.steal()) != null || !deque.isEmpty(); ) {
+                if(task != null) {
+                    remainingTasks.add(original(task));
+                }
+            }
+        }
+    }
+
     private void stopAllWorkers() {
-        synchronized (lock) {
+        lock.lock();
+        try {
             for (Worker w : workerSet) {
                 w.interrupt();
             }
             workerSet.clear();
+        } finally {
+            lock.unlock();
         }
-        workerCounter.getAndSet(0);
     }
 
     private class Worker implements Runnable {
         Thread t;
         Runnable task;
+        // WORK_STEALING: the worker's deque. Shared queue modes: its local batch, created on first use.
+        volatile WorkStealingDeque deque = mode == Mode.WORK_STEALING ? new WorkStealingDeque() : null;
+        List<Runnable> taken;
+        volatile boolean idle;
+        // not a monitor, which would pin the carrier thread of a virtual worker
+        final ReentrantLock idleLock = new ReentrantLock();
+        boolean retired;
+        // metrics, written by the worker only; the histograms are created on first use
+        final long startNanos = System.nanoTime();
+        long completedTasks;   // through COMPLETED_TASKS
+        long idleNanos;        // through IDLE_NANOS
+        long idleSince;        // through IDLE_SINCE, 0 unless blocked for lack of work with metrics on
+        volatile LatencyHistogram queueWaitTimes;
+        volatile LatencyHistogram runTimes;
 
         public Worker(Runnable task) {
             this.task = task;
-            t = new Thread(this);
+            t = threadFactory.newThread(this);
         }
 
         @Override
@@ -239,10 +1569,159 @@ public class FixedThreadPool implements ExecutorService {
                 t.interrupt();
             }
         }
+
+        /**
+         * For {@link #shutdown()}, which has to wake workers blocked on the queue but must not interrupt a
+         * running task.
+         */
+        void interruptIfIdle() {
+            idleLock.lock();
+            try {
+                if(idle) {
+                    interrupt();
+                }
+            } finally {
+                idleLock.unlock();
+            }
+        }
+
+        /**
+         * An opaque write: other threads see the count without the worker paying for a fence per task, they
+         * may only see it a little late.
+         */
+        void taskCompleted() {
+            COMPLETED_TASKS.setOpaque(this,completedTasks + 1);
+        }
+
+        long completedTasks() {
+            return (long) COMPLETED_TASKS.getOpaque(this);
+        }
+
+        void record(long queueWaitNanos,long runNanos) {
+            if(queueWaitTimes == null) {
+                queueWaitTimes = new LatencyHistogram();
+                runTimes = new LatencyHistogram();
+            }
+            queueWaitTimes.record(queueWaitNanos);
+            runTimes.record(runNanos);
+        }
+
+        void addTimes(LatencyHistogram queueWaitTo,LatencyHistogram runTo) {
+            LatencyHistogram queueWait = queueWaitTimes;
+            LatencyHistogram run = runTimes;
+            if(queueWait != null && run != null) {
+                queueWaitTo.add(queueWait);
+                runTo.add(run);
+            }
+        }
+
+        /**
+         * Time alive while metrics were on, give or take periods in which they were switched off.
+         */
+        long lifeNanos(long now) {
+            long from = Math.max(startNanos,metricsEnabledAt);
+            return metricsEnabledAt == 0 ? 0 : Math.max(0,now - from);
+        }
+
+        /**
+         * Called before the worker blocks for lack of work. Once metrics were on the time is kept, also while
+         * they are off again, as {@link #lifeNanos} counts on as well.
+         */
+        void idleStarted() {
+            if(metricsEnabledAt != 0) {
+                IDLE_SINCE.setOpaque(this,System.nanoTime());
+            }
+        }
+
+        void idleEnded() {
+            long since = idleSince;
+            if(since != 0) {
+                IDLE_NANOS.setOpaque(this,idleNanos + System.nanoTime() - since);
+                IDLE_SINCE.setOpaque(this,0L);
+            }
+        }
+
+        /**
+         * Life time less the time blocked for work, a wait in progress included. Read by other threads without
+         * a fence, so it can be off by the wait that just ended.
+         */
+        long busyNanos(long now) {
+            long life = lifeNanos(now);
+            long idle = (long) IDLE_NANOS.getOpaque(this);
+            long since = (long) IDLE_SINCE.getOpaque(this);
+            if(since != 0) {
+                idle += Math.max(0,now - since);
+            }
+            return Math.max(0,life - idle);
+        }
+
+        void leaveIdle() {
+            idleLock.lock();
+            try {
+                idle = false;
+                if(currentState != State.RUNNING) {
+                    // an interrupt from shutdown may have come in after the task was taken
+                    Thread.interrupted();
+                }
+            } finally {
+                idleLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * A queue entry holding several tasks from {@link #executeAll}. Workers unpack it rather than run it.
+     */
+    private static final class TaskBatch implements Runnable {
+        final Runnable[] tasks;
+
+        TaskBatch(Runnable[] tasks) {
+            this.tasks = tasks;
+        }
+
+        @Override
+        public void run() {
+            for(Runnable task : tasks) {
+                task.run();
+            }
+        }
+    }
+
+    /**
+     * A queued task that carries the time it was submitted, for the metrics. Unwrapped before it runs or is
+     * handed back.
+     */
+    private static final class TimedTask implements Runnable {
+        final Runnable task;
+        final long queuedAt;
+
+        TimedTask(Runnable task,long queuedAt) {
+            this.task = task;
+            this.queuedAt = queuedAt;
+        }
+
+        @Override
+        public void run() {
+            task.run();
+        }
     }
 
     private enum State { RUNNING, SHUTDOWN, SHUTDOWN_NOW , TERMINATED }
 
+    /**
+     * {@code Thread.ofVirtual().factory()}, looked up reflectively so that the pool still compiles and runs
+     * on JVMs without virtual threads; null there.
+     */
+    private static ThreadFactory virtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
     //<------------------------------------ NOT Implemented Methods ------------------------------------>//
 
     @Override
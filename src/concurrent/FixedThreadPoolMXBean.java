@@ -0,0 +1,40 @@
+package concurrent;
+
+/**
+ * The JMX view of a {@link FixedThreadPool}, see {@link FixedThreadPool#registerMBean}. The counters and
+ * latencies stay at 0 while metrics are off; latencies are in nanoseconds.
+ */
+public interface FixedThreadPoolMXBean {
+
+    int getPoolSize();
+
+    int getCorePoolSize();
+
+    int getMaximumPoolSize();
+
+    int getActiveCount();
+
+    int getQueueDepth();
+
+    long getSubmittedTaskCount();
+
+    long getCompletedTaskCount();
+
+    long getFailedTaskCount();
+
+    long getRejectedTaskCount();
+
+    double getBusyRatio();
+
+    long getQueueWaitP50();
+
+    long getQueueWaitP99();
+
+    long getRunTimeP50();
+
+    long getRunTimeP99();
+
+    boolean isMetricsEnabled();
+
+    void setMetricsEnabled(boolean enabled);
+}
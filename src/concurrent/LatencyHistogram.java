@@ -0,0 +1,139 @@
+package concurrent;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Durations in nanoseconds counted in buckets that grow with the value, as in HdrHistogram: every power of two
+ * is split into 8 equal buckets, so a value is known to within 12.5%, from 1 ns up to 2^40 ns (about 18
+ * minutes) in 304 buckets. Anything longer lands in the last bucket. Recording is an array increment, with no
+ * allocation and no search.
+ *
+ * Only one thread may record into a histogram, but any thread can read it or copy it meanwhile; a reader sees
+ * every bucket either before or after a concurrent increment.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+    private static final int SUM = BUCKETS;
+    private static final int MAX = BUCKETS + 1;
+
+    // the buckets, then the sum and the maximum of all values
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS + 2);
+
+    /**
+     * Single writer.
+     */
+    public void record(long nanos) {
+        if(nanos < 0) {
+            nanos = 0;   // System.nanoTime of two different threads
+        }
+        int bucket = bucketOf(nanos);
+        counts.lazySet(bucket,counts.get(bucket) + 1);
+        counts.lazySet(SUM,counts.get(SUM) + nanos);
+        if(nanos > counts.get(MAX)) {
+            counts.lazySet(MAX,nanos);
+        }
+    }
+
+    /**
+     * Adds the counts of {@code other} to this one. Like {@link #record}, one writer at a time.
+     */
+    public void add(LatencyHistogram other) {
+        for(int i=0;i<BUCKETS;i++) {
+            long c = other.counts.get(i);
+            if(c != 0) {
+                counts.lazySet(i,counts.get(i) + c);
+            }
+        }
+        counts.lazySet(SUM,counts.get(SUM) + other.counts.get(SUM));
+        counts.lazySet(MAX,Math.max(counts.get(MAX),other.counts.get(MAX)));
+    }
+
+    public LatencyHistogram copy() {
+        LatencyHistogram copy = new LatencyHistogram();
+        copy.add(this);
+        return copy;
+    }
+
+    public long count() {
+        long count = 0;
+        for(int i=0;i<BUCKETS;i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    public double mean() {
+        long count = count();
+        return count == 0 ? 0 : (double) counts.get(SUM) / count;
+    }
+
+    public long max() {
+        return counts.get(MAX);
+    }
+
+    /**
+     * The value below which {@code percentile} percent of the recorded values lie, rounded up to the top of
+     * its bucket; 0 if nothing was recorded.
+     */
+    public long valueAtPercentile(double percentile) {
+        if(percentile<0 || percentile>100) {
+            throw new IllegalArgumentException("Illegal percentile:" + percentile);
+        }
+        long count = count();
+        if(count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1,(long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for(int i=0;i<BUCKETS;i++) {
+            seen += counts.get(i);
+            if(seen >= rank) {
+                return Math.min(highestValueIn(i),max());
+            }
+        }
+        return max();
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + count() + " mean=" + micros((long) mean()) + " p50=" + micros(valueAtPercentile(50))
+                + " p90=" + micros(valueAtPercentile(90)) + " p99=" + micros(valueAtPercentile(99))
+                + " p99.9=" + micros(valueAtPercentile(99.9)) + " max=" + micros(max());
+    }
+
+    //<----------------------------------------- Private Helper Methods ------------------------------------>//
+
+    /**
+     * Values below 8 get a bucket each; above that the top four bits pick the bucket, the highest set bit
+     * the power of two and the three below it the eighth within it.
+     */
+    private static int bucketOf(long nanos) {
+        if(nanos < SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if(exponent >= MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int shift = exponent - SUB_BUCKET_BITS;
+        return ((shift + 1) << SUB_BUCKET_BITS) + (int) ((nanos >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    private static long highestValueIn(int bucket) {
+        if(bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket >>> SUB_BUCKET_BITS) - 1;
+        long lowest = (long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1))) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    private static String micros(long nanos) {
+        return String.format("%.1fus",nanos / (double) TimeUnit.MICROSECONDS.toNanos(1));
+    }
+}
@@ -0,0 +1,540 @@
+package concurrent;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Throughput runs for {@link MyConcurrentHashMap}, with {@link ConcurrentHashMap} as the baseline:
+ * {@code MapBenchmark <benchmark> [name=value ...]}, run without arguments for the list. Every measurement is
+ * taken once per thread count, after a warm up run of the same length, and reported in millions of
+ * operations per second over all threads.
+ *
+ * These are plain timing loops, not JMH. Run them on an otherwise idle machine with a fixed heap
+ * ({@code -Xms} equal to {@code -Xmx}) and compare the maps within one run rather than across runs; with
+ * fewer cores than threads the numbers show the cost of the operations, not how they scale.
+ */
+public class MapBenchmark {
+
+    private static final int BATCH = 1024;
+
+    static volatile long blackhole;
+    // every operation run so far, warm ups included, for benchmarks that check the map against it
+    private static long operationsRun;
+
+    public static void main(String[] args) throws InterruptedException {
+        if(args.length<1) {
+            usage();
+        }
+        Map<String,String> options = parseOptions(args);
+        switch(args[0]) {
+            case "read":
+                read(options);
+                break;
+            case "footprint":
+                footprint(options);
+                break;
+            case "write":
+                write(options);
+                break;
+            case "merge":
+                merge(options);
+                break;
+            case "resize":
+                resize(options);
+                break;
+            default:
+                usage();
+        }
+    }
+
+    //<----------------------------------------- Benchmarks ------------------------------------------->//
+
+    /**
+     * Random gets of keys that are all present, with {@code writes} percent of the operations replaced by a
+     * put of an existing key. Options: threads, keys, writes, seconds.
+     */
+    static void read(Map<String,String> options) throws InterruptedException {
+        int keyCount = intOption(options,"keys",1_000_000);
+        int writePercent = intOption(options,"writes",0);
+        Integer[] keys = keys(keyCount);
+        System.out.println("read: " + keyCount + " keys, " + writePercent + "% puts");
+        compare(options,() -> {
+            Map<Integer,Integer> map = new MyConcurrentHashMap<>();
+            fill(map,keys);
+            return map;
+        },() -> {
+            Map<Integer,Integer> map = new ConcurrentHashMap<>();
+            fill(map,keys);
+            return map;
+        },map -> random -> {
+            Integer key = keys[random.nextInt(keyCount)];
+            if(writePercent>0 && random.nextInt(100)<writePercent) {
+                map.put(key,key);
+                return 1;
+            }
+            return map.get(key);
+        });
+    }
+
+    /**
+     * Heap taken by an empty table of each capacity, and what filling a map to each size allocates when it
+     * starts small and resizes on the way, against a map presized for it. "eager" is the table layout this map
+     * had before buckets were created lazily, a {@code Bucket} holding a {@code ReentrantLock} in every slot,
+     * rebuilt here for comparison; it is skipped where it would not fit in the heap. Last, the heap a full map
+     * takes per entry, {@link ConcurrentIntIntMap} against the boxed maps, whose keys and values are boxed
+     * apart as they would be in use. The maps are filled from their default size, so each has the table its
+     * resizes left it with. Options: capacities, grow, entries.
+     */
+    static void footprint(Map<String,String> options) {
+        int[] capacities = intsOption(options,"capacities",new int[]{1_000_000,10_000_000,50_000_000});
+        int[] growSizes = intsOption(options,"grow",new int[]{1_000_000,4_000_000});
+        int[] entryCounts = intsOption(options,"entries",new int[]{1_000_000,4_000_000});
+        System.out.println("empty table, bytes per slot");
+        System.out.printf("%12s %22s %20s %20s%n","capacity","MyConcurrentHashMap","ConcurrentHashMap","eager");
+        double eagerBytesPerSlot = 0;
+        for(int capacity : capacities) {
+            double mine = bytesPerSlot(capacity,() -> {
+                Map<Integer,Integer> map = new MyConcurrentHashMap<>(capacity);
+                map.put(0,0);
+                return map;
+            });
+            double jdk = bytesPerSlot(capacity,() -> {
+                Map<Integer,Integer> map = new ConcurrentHashMap<>(capacity);
+                map.put(0,0);
+                return map;
+            });
+            String eager;
+            long free = Runtime.getRuntime().maxMemory() - usedHeap();
+            if(eagerBytesPerSlot==0 || eagerBytesPerSlot * tableSizeFor(capacity) < free * 0.8) {
+                eagerBytesPerSlot = bytesPerSlot(capacity,() -> eagerTable(capacity));
+                eager = String.format("%20.1f",eagerBytesPerSlot);
+            } else {
+                eager = String.format("%20s","skipped, needs " + ((long) (eagerBytesPerSlot * tableSizeFor(capacity)) >> 20) + " MB");
+            }
+            System.out.printf("%12d %22.1f %20.1f %s%n",capacity,mine,jdk,eager);
+        }
+        System.out.println("filling a map, MB allocated and ms taken, growing from the default size vs presized");
+        System.out.printf("%12s %22s %22s %22s %22s%n","entries","MyCHM growing","MyCHM presized","CHM growing","CHM presized");
+        for(int n : growSizes) {
+            Integer[] keys = keys(n);
+            String myGrowing = fillCost(keys,new MyConcurrentHashMap<>());
+            String myPresized = fillCost(keys,new MyConcurrentHashMap<>(n));
+            String jdkGrowing = fillCost(keys,new ConcurrentHashMap<>());
+            String jdkPresized = fillCost(keys,new ConcurrentHashMap<>(n));
+            System.out.printf("%12d %22s %22s %22s %22s%n",n,myGrowing,myPresized,jdkGrowing,jdkPresized);
+        }
+        System.out.println("full map, bytes per entry");
+        System.out.printf("%12s %22s %22s %20s%n","entries","ConcurrentIntIntMap","MyConcurrentHashMap","ConcurrentHashMap");
+        for(int n : entryCounts) {
+            double ints = (double) heapGrowth(() -> {
+                ConcurrentIntIntMap map = new ConcurrentIntIntMap();
+                for(int i=0;i<n;i++) {
+                    map.put(i,i);
+                }
+                return map;
+            }) / n;
+            double mine = (double) heapGrowth(() -> boxedMap(new MyConcurrentHashMap<>(),n)) / n;
+            double jdk = (double) heapGrowth(() -> boxedMap(new ConcurrentHashMap<>(),n)) / n;
+            System.out.printf("%12d %22.1f %22.1f %20.1f%n",n,ints,mine,jdk);
+        }
+    }
+
+    /**
+     * Inserts and removals only, so every operation changes the size: a random key is removed if present and
+     * put otherwise. "shared counter" runs the same operations on {@link MyConcurrentHashMap} and also counts
+     * every size change on one {@link AtomicInteger}, as the map did before its counter was striped, which
+     * shows what that cache line costs. Options: threads, keys, seconds.
+     */
+    static void write(Map<String,String> options) throws InterruptedException {
+        int keyCount = intOption(options,"keys",1 << 16);
+        int[] threadCounts = intsOption(options,"threads",defaultThreadCounts());
+        double seconds = doubleOption(options,"seconds",2);
+        Integer[] keys = keys(keyCount);
+        System.out.println("write: put or remove of " + keyCount + " keys");
+        System.out.printf("%8s %22s %22s %22s%n","threads","MyConcurrentHashMap","+ shared counter","ConcurrentHashMap");
+        Map<Integer,Integer> myMap = new MyConcurrentHashMap<>(keyCount);
+        Map<Integer,Integer> jdkMap = new ConcurrentHashMap<>(keyCount);
+        AtomicInteger sharedCounter = new AtomicInteger();
+        for(int threads : threadCounts) {
+            double mine = measure(threads,seconds,putOrRemove(myMap,keys,null));
+            double shared = measure(threads,seconds,putOrRemove(myMap,keys,sharedCounter));
+            double jdk = measure(threads,seconds,putOrRemove(jdkMap,keys,null));
+            System.out.printf("%8d %17.2f Mop/s %17.2f Mop/s %17.2f Mop/s%n",threads,mine,shared,jdk);
+        }
+    }
+
+    /**
+     * Counter increments with {@code merge(key, 1, Integer::sum)} on a few hot keys, so threads keep meeting
+     * on the same bins. After each run the counters are added up and compared with the number of increments:
+     * "lost" has to be 0 for the atomic merges, while the get-then-put column, the non-atomic shape of
+     * the same update, shows what is lost without it. Options: threads, keys, seconds.
+     */
+    static void merge(Map<String,String> options) throws InterruptedException {
+        int keyCount = intOption(options,"keys",64);
+        int[] threadCounts = intsOption(options,"threads",defaultThreadCounts());
+        double seconds = doubleOption(options,"seconds",2);
+        Integer[] keys = keys(keyCount);
+        System.out.println("merge: counter increments on " + keyCount + " keys");
+        System.out.printf("%8s %28s %28s %28s%n","threads","MyConcurrentHashMap merge","ConcurrentHashMap merge",
+                "MyConcurrentHashMap get+put");
+        for(int threads : threadCounts) {
+            String mine = countIncrements(threads,seconds,new MyConcurrentHashMap<>(),keys,true);
+            String jdk = countIncrements(threads,seconds,new ConcurrentHashMap<>(),keys,true);
+            String racy = countIncrements(threads,seconds,new MyConcurrentHashMap<>(),keys,false);
+            System.out.printf("%8d %28s %28s %28s%n",threads,mine,jdk,racy);
+        }
+    }
+
+    /**
+     * Resizes under concurrent writers: the threads put {@code entries} keys between them, interleaved so that
+     * they spread over the whole table, into a map that starts at the default size and into one presized for
+     * them. The difference is the time spent growing the table. In {@link MyConcurrentHashMap} every writer
+     * that runs into a moved bin helps move the rest, so it should fall as writers are added, up to the number
+     * of cores. Median of {@code rounds} after a warm up. Options: threads, entries, rounds.
+     */
+    static void resize(Map<String,String> options) throws InterruptedException {
+        int entries = intOption(options,"entries",4_000_000);
+        int[] threadCounts = intsOption(options,"threads",defaultThreadCounts());
+        int rounds = intOption(options,"rounds",5);
+        Integer[] keys = keys(entries);
+        System.out.println("resize: " + entries + " puts split over the threads, ms, growing from the default size vs presized");
+        System.out.printf("%8s %16s %16s %16s %16s %16s %16s%n","threads","MyCHM growing","MyCHM presized",
+                "MyCHM resize","CHM growing","CHM presized","CHM resize");
+        for(int threads : threadCounts) {
+            double[] mine = resizeCost(threads,keys,rounds,MyConcurrentHashMap::new,() -> new MyConcurrentHashMap<>(entries));
+            double[] jdk = resizeCost(threads,keys,rounds,ConcurrentHashMap::new,() -> new ConcurrentHashMap<>(entries));
+            System.out.printf("%8d %16.1f %16.1f %16.1f %16.1f %16.1f %16.1f%n",threads,mine[0],mine[1],mine[0] - mine[1],
+                    jdk[0],jdk[1],jdk[0] - jdk[1]);
+        }
+    }
+
+    //<--------------------------------- Private Helper methods --------------------------------------->//
+
+    /**
+     * Median ms to fill a growing and a presized map, in that order, for {@link #resize}.
+     */
+    private static double[] resizeCost(int threads,Integer[] keys,int rounds,Supplier<Map<Integer,Integer>> growing,
+                                       Supplier<Map<Integer,Integer>> presized) throws InterruptedException {
+        double[] grown = new double[rounds];
+        double[] sized = new double[rounds];
+        fillTime(threads,keys,growing.get());
+        fillTime(threads,keys,presized.get());
+        for(int r=0;r<rounds;r++) {
+            grown[r] = fillTime(threads,keys,growing.get());
+            sized[r] = fillTime(threads,keys,presized.get());
+        }
+        Arrays.sort(grown);
+        Arrays.sort(sized);
+        return new double[]{grown[rounds / 2],sized[rounds / 2]};
+    }
+
+    /**
+     * Ms for {@code threads} threads to put every key into {@code map}, thread {@code t} taking keys
+     * {@code t}, {@code t + threads} and so on.
+     */
+    private static double fillTime(int threads,Integer[] keys,Map<Integer,Integer> map) throws InterruptedException {
+        usedHeap();
+        Thread[] workers = new Thread[threads];
+        CountDownLatch start = new CountDownLatch(1);
+        for(int t=0;t<threads;t++) {
+            int id = t;
+            workers[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for(int i=id;i<keys.length;i+=threads) {
+                    map.put(keys[i],keys[i]);
+                }
+            });
+            workers[t].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for(Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+        if(map.size()!=keys.length) {
+            throw new IllegalStateException("Illegal size after fill:" + map.size());
+        }
+        return elapsed / 1e6;
+    }
+
+
+    private static String countIncrements(int threads,double seconds,Map<Integer,Integer> map,Integer[] keys,
+                                          boolean atomic) throws InterruptedException {
+        long before = operationsRun;
+        double throughput = measure(threads,seconds,random -> {
+            Integer key = keys[random.nextInt(keys.length)];
+            if(atomic) {
+                return map.merge(key,1,Integer::sum);
+            }
+            Integer count = map.get(key);
+            map.put(key,count==null ? 1 : count + 1);
+            return 1;
+        });
+        long increments = operationsRun - before;
+        long counted = 0;
+        for(Integer count : map.values()) {
+            counted += count;
+        }
+        return String.format("%.2f Mop/s, lost %d",throughput,increments - counted);
+    }
+
+    private static Operation putOrRemove(Map<Integer,Integer> map,Integer[] keys,AtomicInteger counter) {
+        return random -> {
+            Integer key = keys[random.nextInt(keys.length)];
+            if(map.remove(key)!=null) {
+                return counter==null ? 0 : counter.decrementAndGet();
+            }
+            map.put(key,key);
+            return counter==null ? 1 : counter.incrementAndGet();
+        };
+    }
+
+    /**
+     * The slot layout before lazy buckets, for {@link #footprint}.
+     */
+    private static final class EagerBucket {
+        Object node;
+        final ReentrantLock lock = new ReentrantLock();
+    }
+
+    private static Object[] eagerTable(int capacity) {
+        Object[] table = new Object[tableSizeFor(capacity)];
+        for(int i=0;i<table.length;i++) {
+            table[i] = new EagerBucket();
+        }
+        return table;
+    }
+
+    /**
+     * Heap growth from building what {@code build} returns, per slot of a table for {@code capacity}.
+     */
+    private static double bytesPerSlot(int capacity,Supplier<Object> build) {
+        return (double) heapGrowth(build) / tableSizeFor(capacity);
+    }
+
+    /**
+     * Live heap added by building what {@code build} returns, which is held until it is measured.
+     */
+    private static long heapGrowth(Supplier<Object> build) {
+        long before = usedHeap();
+        Object held = build.get();
+        long after = usedHeap();
+        blackhole = held.hashCode();
+        return after - before;
+    }
+
+    private static Map<Integer,Integer> boxedMap(Map<Integer,Integer> map,int n) {
+        for(int i=0;i<n;i++) {
+            map.put(i,i);
+        }
+        return map;
+    }
+
+    private static String fillCost(Integer[] keys,Map<Integer,Integer> map) {
+        usedHeap();
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long id = Thread.currentThread().getId();
+        long allocated = threads.getThreadAllocatedBytes(id);
+        long begin = System.nanoTime();
+        for(Integer key : keys) {
+            map.put(key,key);
+        }
+        long elapsed = System.nanoTime() - begin;
+        allocated = threads.getThreadAllocatedBytes(id) - allocated;
+        blackhole = map.size();
+        return String.format("%7.1f MB %7.1f ms",allocated / 1048576.0,elapsed / 1e6);
+    }
+
+    /**
+     * Heap in use after a few collections, so that only live objects are counted.
+     */
+    private static long usedHeap() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        long used = Long.MAX_VALUE;
+        for(int i=0;i<3;i++) {
+            System.gc();
+            used = Math.min(used,memory.getHeapMemoryUsage().getUsed());
+        }
+        return used;
+    }
+
+    private static int tableSizeFor(int capacity) {
+        int n = -1 >>> Integer.numberOfLeadingZeros(Math.max(capacity,2) - 1);
+        return n + 1;
+    }
+
+    /**
+     * One operation on the map; the result is summed up so the JIT can not drop the call.
+     */
+    interface Operation {
+        long run(ThreadLocalRandom random);
+    }
+
+    interface OperationFactory {
+        Operation on(Map<Integer,Integer> map);
+    }
+
+    /**
+     * Prints a row per thread count with the throughput of both maps. Each map is built once and shared by
+     * the warm up and the measured run.
+     */
+    private static void compare(Map<String,String> options,Supplier<Map<Integer,Integer>> mine,
+                                Supplier<Map<Integer,Integer>> jdk,OperationFactory factory) throws InterruptedException {
+        int[] threadCounts = intsOption(options,"threads",defaultThreadCounts());
+        double seconds = doubleOption(options,"seconds",2);
+        System.out.printf("%8s %22s %22s%n","threads","MyConcurrentHashMap","ConcurrentHashMap");
+        Map<Integer,Integer> myMap = mine.get();
+        Map<Integer,Integer> jdkMap = jdk.get();
+        for(int threads : threadCounts) {
+            double myThroughput = measure(threads,seconds,factory.on(myMap));
+            double jdkThroughput = measure(threads,seconds,factory.on(jdkMap));
+            System.out.printf("%8d %17.2f Mop/s %17.2f Mop/s%n",threads,myThroughput,jdkThroughput);
+        }
+    }
+
+    /**
+     * Warms up for {@code seconds}, then runs {@code operation} on {@code threads} threads for
+     * {@code seconds} and returns millions of operations per second.
+     */
+    static double measure(int threads,double seconds,Operation operation) throws InterruptedException {
+        run(threads,seconds,operation);
+        return run(threads,seconds,operation);
+    }
+
+    private static double run(int threads,double seconds,Operation operation) throws InterruptedException {
+        Thread[] workers = new Thread[threads];
+        long[] counts = new long[threads];
+        long[] sinks = new long[threads];
+        CountDownLatch start = new CountDownLatch(1);
+        Stop flag = new Stop();
+        for(int t=0;t<threads;t++) {
+            int id = t;
+            workers[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long n = 0, sink = 0;
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                while(!flag.stopped) {
+                    for(int i=0;i<BATCH;i++) {
+                        sink += operation.run(random);
+                    }
+                    n += BATCH;
+                }
+                counts[id] = n;
+                sinks[id] = sink;
+            });
+            workers[t].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        Thread.sleep((long) (seconds * 1000));
+        flag.stopped = true;
+        long elapsed = System.nanoTime() - begin;
+        long total = 0, sink = 0;
+        for(int t=0;t<threads;t++) {
+            workers[t].join();
+            total += counts[t];
+            sink += sinks[t];
+        }
+        blackhole = sink;
+        operationsRun += total;
+        return total / (elapsed / 1e9) / 1e6;
+    }
+
+    private static final class Stop {
+        volatile boolean stopped;
+    }
+
+    static Integer[] keys(int n) {
+        Integer[] keys = new Integer[n];
+        for(int i=0;i<n;i++) {
+            keys[i] = i;
+        }
+        return keys;
+    }
+
+    private static void fill(Map<Integer,Integer> map,Integer[] keys) {
+        for(Integer key : keys) {
+            map.put(key,key);
+        }
+    }
+
+    private static int[] defaultThreadCounts() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        int n = 1;
+        while((1 << n) <= Math.max(cores,4)) {
+            n++;
+        }
+        int[] counts = new int[n];
+        for(int i=0;i<n;i++) {
+            counts[i] = 1 << i;
+        }
+        return counts;
+    }
+
+    /**
+     * {@code name=value} pairs after the benchmark name.
+     */
+    static Map<String,String> parseOptions(String[] args) {
+        Map<String,String> options = new HashMap<>();
+        for(int i=1;i<args.length;i++) {
+            int eq = args[i].indexOf('=');
+            if(eq<=0) {
+                System.out.println("Error: expected name=value, not " + args[i]);
+                System.exit(0);
+            }
+            options.put(args[i].substring(0,eq),args[i].substring(eq + 1));
+        }
+        return options;
+    }
+
+    static int intOption(Map<String,String> options,String name,int defaultValue) {
+        String value = options.get(name);
+        return value==null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    static double doubleOption(Map<String,String> options,String name,double defaultValue) {
+        String value = options.get(name);
+        return value==null ? defaultValue : Double.parseDouble(value.trim());
+    }
+
+    static int[] intsOption(Map<String,String> options,String name,int[] defaultValue) {
+        String value = options.get(name);
+        if(value==null) {
+            return defaultValue;
+        }
+        String[] parts = value.split(",");
+        int[] values = new int[parts.length];
+        for(int i=0;i<parts.length;i++) {
+            values[i] = Integer.parseInt(parts[i].trim());
+        }
+        return values;
+    }
+
+    private static void usage() {
+        System.out.println("Usage: MapBenchmark <benchmark> [name=value ...]");
+        System.out.println("  read       threads=1,2,4 keys=1000000 writes=0 seconds=2   gets of present keys, writes% puts");
+        System.out.println("  footprint  capacities=1000000,10000000,50000000 grow=1000000,4000000 entries=1000000,4000000   empty tables, resize cost, bytes per entry");
+        System.out.println("  write      threads=1,2,4 keys=65536 seconds=2   put or remove, every operation changes the size");
+        System.out.println("  merge      threads=1,2,4 keys=64 seconds=2   merge increments on hot keys, checks for lost updates");
+        System.out.println("  resize     threads=1,2,4 entries=4000000 rounds=5   fill time growing vs presized, resize under N writers");
+        System.exit(0);
+    }
+}
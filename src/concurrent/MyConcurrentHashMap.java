@@ -1,26 +1,53 @@
 package concurrent;
 
+import collection_framework.ChainStats;
+import collection_framework.FixedSerializer;
+import collection_framework.HashStrategy;
+import collection_framework.MappedSnapshot;
 import sun.misc.Unsafe;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongBinaryOperator;
+import java.util.function.ToLongFunction;
 import java.lang.reflect.Field;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
 
-public class MyConcurrentHashMap<K extends Integer,V extends Integer> implements Map<K,V>{
+public class MyConcurrentHashMap<K,V> implements Map<K,V>{
 
     private static int MAX_CAP = 1<<30;
     private static int DEFAULT_CAP = 16;
     private static float DEFAULT_LOAD_FACTOR = 0.75F;
+    private static final int MIN_TRANSFER_STRIDE = 16;
+    private static final int NCPU = Runtime.getRuntime().availableProcessors();
+    private static final int ONLY_IF_ABSENT = 1, ONLY_IF_PRESENT = 2, RETURN_OLD = 4;
+    private static final int TREEIFY_THRESHOLD = 8;
+    private static final int UNTREEIFY_THRESHOLD = 6;
+    private static final int MIN_TREEIFY_CAPACITY = 64;
+    private static final int MAX_TREE_SEARCH_STEPS = 64;
+    private static final int MIN_BULK_LOAD_RANGE = 1 << 12;
 
-    private AtomicInteger size = new AtomicInteger();
+    private volatile long baseCount;
+    private volatile CounterCell[] counterCells;
+    private volatile int cellsBusy;
     private volatile int threshold;
     private float loadFactor;
-    private volatile int nextTableLength;
-    private volatile int resizingIndex;
+    private final HashStrategy hashStrategy;
 
     private volatile Bucket<K,V>[] table, nextTable;
+    private volatile Transfer<K,V> transfer;
 
     private Object resizeLock = new Object();
 
@@ -31,6 +58,11 @@ public class MyConcurrentHashMap<K extends Integer,V extends Integer> implements
     private static final Unsafe U;
     private static final long ABASE;
     private static final int ASHIFT;
+    private static final long BASECOUNT;
+    private static final long CELLSBUSY;
+    private static final long CELLVALUE;
+    private static final long PROBE;
+    private static final long LOCKSTATE;
 
     static {
         try {
@@ -43,6 +75,11 @@ public class MyConcurrentHashMap<K extends Integer,V extends Integer> implements
             if ((scale & (scale - 1)) != 0)
                 throw new Error("data type scale not a power of two");
             ASHIFT = 31 - Integer.numberOfLeadingZeros(scale);
+            BASECOUNT = U.objectFieldOffset(MyConcurrentHashMap.class.getDeclaredField("baseCount"));
+            CELLSBUSY = U.objectFieldOffset(MyConcurrentHashMap.class.getDeclaredField("cellsBusy"));
+            CELLVALUE = U.objectFieldOffset(CounterCell.class.getDeclaredField("value"));
+            PROBE = U.objectFieldOffset(Thread.class.getDeclaredField("threadLocalRandomProbe"));
+            LOCKSTATE = U.objectFieldOffset(TreeBin.class.getDeclaredField("lockState"));
         } catch (Exception e) {
             throw new Error(e);
         }
@@ -50,42 +87,106 @@ public class MyConcurrentHashMap<K extends Integer,V extends Integer> implements
 
     //<----------------------------------------- Constructors ------------------------------------------>//
 
-    public MyConcurrentHashMap(int cap,float loadFactor) {
+    public MyConcurrentHashMap(int cap,float loadFactor,HashStrategy hashStrategy) {
         if(cap<0) {
             throw new IllegalArgumentException("Illegal Capacity:" + cap);
         }
         if(loadFactor<=0 || Float.isNaN(loadFactor)) {
             throw new IllegalArgumentException("Illegal load factor" + loadFactor);
         }
+        if(hashStrategy==null) {
+            throw new IllegalArgumentException("Hash strategy is null");
+        }
         if(cap>MAX_CAP) {
             cap = MAX_CAP;
         }
         this.loadFactor = loadFactor;
         this.threshold = tableSizeForCap(cap);
+        this.hashStrategy = hashStrategy;
+    }
+    public MyConcurrentHashMap(int cap,float loadFactor) {
+        this(cap,loadFactor,HashStrategy.SPREAD);
     }
     public MyConcurrentHashMap(int cap) {
         this(cap,DEFAULT_LOAD_FACTOR);
     }
-    public MyConcurrentHashMap() {
+    public MyConcurrentHashMap(HashStrategy hashStrategy) {
+        if(hashStrategy==null) {
+            throw new IllegalArgumentException("Hash strategy is null");
+        }
         this.loadFactor = DEFAULT_LOAD_FACTOR;
+        this.hashStrategy = hashStrategy;
+    }
+    public MyConcurrentHashMap() {
+        this(HashStrategy.SPREAD);
     }
 
     //<----------------------------------------- Public Methods --------------------------------------->//
 
     @Override
     public V put(K key,V value) {
-        return putVal(key,value);
+        return putVal(key,value,false);
     }
 
     @Override
     public void putAll(Map<? extends K, ? extends V> m) {
         if(m!=null) {
+            tryPresize(m.size());
             for (Entry<? extends K, ? extends V> entry : m.entrySet()) {
-                putVal(entry.getKey(), entry.getValue());
+                putVal(entry.getKey(), entry.getValue(), false);
             }
         }
     }
 
+    /**
+     * Puts {@code keys[i] -> values[i]} for every {@code i}. The table is grown once up front for all the new
+     * keys and the arrays are then split between the threads of the common pool, each putting its own range,
+     * so loading a snapshot neither resizes along the way nor runs on one core. When a key occurs more than
+     * once it is unspecified which of its values ends up in the map.
+     */
+    public void bulkLoad(K[] keys,V[] values) {
+        if(keys==null || values==null || keys.length!=values.length) {
+            throw new IllegalArgumentException("Keys and values must be non null arrays of the same length");
+        }
+        tryPresize(sumCount() + keys.length);
+        int batch = keys.length < MIN_BULK_LOAD_RANGE << 1 ? 0 : ForkJoinPool.getCommonPoolParallelism() << 2;
+        BulkLoadTask task = new BulkLoadTask(keys,values,0,keys.length,batch);
+        if(batch > 0) {
+            ForkJoinPool.commonPool().invoke(task);
+        } else {
+            task.compute();
+        }
+    }
+
+    /**
+     * Writes the entries to {@code path} in the format of {@link MappedSnapshot}. Like the views this is weakly
+     * consistent and never blocks writers: entries updated while it runs may or may not be in the file.
+     *
+     * @throws IllegalArgumentException if the map holds a null key or value, which a snapshot can not store;
+     *                                  checked before anything is written, though a null put while the file is
+     *                                  written still fails it with {@link NullPointerException}
+     */
+    public void snapshot(Path path,FixedSerializer<K> keySerializer,FixedSerializer<V> valueSerializer) throws IOException {
+        if(containsKey(null) || containsValue(null)) {
+            throw new IllegalArgumentException("A snapshot can not hold null keys or values");
+        }
+        MappedSnapshot.write(path,size(),entrySet(),keySerializer,valueSerializer);
+    }
+
+    /**
+     * Rebuilds a map written by {@link #snapshot}, or by {@code MyHashMap.snapshot}, with the table sized for
+     * all the entries up front and one pass over the memory mapped file.
+     */
+    public static <K,V> MyConcurrentHashMap<K,V> restore(Path path,FixedSerializer<K> keySerializer,
+                                                         FixedSerializer<V> valueSerializer) throws IOException {
+        try(MappedSnapshot<K,V> snapshot = MappedSnapshot.open(path,keySerializer,valueSerializer)) {
+            MyConcurrentHashMap<K,V> map = new MyConcurrentHashMap<>();
+            map.tryPresize(snapshot.size());
+            snapshot.forEach((k,v) -> map.putVal(k,v,false));
+            return map;
+        }
+    }
+
     @Override
     public boolean remove(Object key, Object value) {
         Node<K,V> removedNode = removeNode(key,value,true);
@@ -98,26 +199,97 @@ public class MyConcurrentHashMap<K extends Integer,V extends Integer> implements
         return removedNode==null ? null : removedNode.value;
     }
 
+    @Override
+    public V putIfAbsent(K key, V value) {
+        return putVal(key,value,true);
+    }
+
     @Override
     public boolean replace(K key, V oldValue, V newValue) {
-        V foundValue = get(key);
-        if(Objects.equals(oldValue,foundValue)) {
-            putVal(key,newValue);
-            return true;
-        }
-        return false;
+        Objects.requireNonNull(newValue);
+        V foundValue = computeVal(key,(k,v) -> Objects.equals(v,oldValue) ? newValue : v,ONLY_IF_PRESENT|RETURN_OLD);
+        return foundValue!=null && Objects.equals(oldValue,foundValue);
     }
 
     @Override
     public V replace(K key, V value) {
-        return putVal(key,value);
+        Objects.requireNonNull(value);
+        return computeVal(key,(k,v) -> value,ONLY_IF_PRESENT|RETURN_OLD);
+    }
+
+    @Override
+    public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+        Objects.requireNonNull(mappingFunction);
+        V value = get(key);
+        return value!=null ? value : computeVal(key,(k,v) -> mappingFunction.apply(k),ONLY_IF_ABSENT);
+    }
+
+    @Override
+    public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        Objects.requireNonNull(remappingFunction);
+        return computeVal(key,remappingFunction,ONLY_IF_PRESENT);
+    }
+
+    @Override
+    public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+        Objects.requireNonNull(remappingFunction);
+        return computeVal(key,remappingFunction,0);
+    }
+
+    @Override
+    public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+        Objects.requireNonNull(value);
+        Objects.requireNonNull(remappingFunction);
+        return computeVal(key,(k,v) -> v==null ? value : remappingFunction.apply(v,value),0);
+    }
+
+    @Override
+    public V getOrDefault(Object key, V defaultValue) {
+        Node<K,V> node = getNode(key);
+        return node==null ? defaultValue : node.value;
+    }
+
+    @Override
+    public void forEach(BiConsumer<? super K, ? super V> action) {
+        forEach(Long.MAX_VALUE,action);
+    }
+
+    @Override
+    public void replaceAll(BiFunction<? super K, ? super V, ? extends V> function) {
+        Objects.requireNonNull(function);
+        Bucket<K,V>[] tab = table;
+        if(tab!=null) {
+            Traverser<K,V> it = new Traverser<>(tab,0,tab.length);
+            for(Node<K,V> node; (node = it.advance()) != null; ) {
+                computeVal(node.key,(k,v) -> Objects.requireNonNull(function.apply(k,v)),ONLY_IF_PRESENT);
+            }
+        }
     }
 
     @Override
     public void clear() {
-        if(table!=null) {
-            Arrays.fill(table,null);
-            size.set(0);
+        Bucket<K,V>[] tab = table;
+        int i = 0;
+        while(tab != null && i < tab.length) {
+            Bucket<K,V> bucket = getBucket(tab,i);
+            if(bucket == null) {
+                i++;
+            } else if(bucket instanceof ForwardingBucket) {
+                tab = helpTransfer((ForwardingBucket<K,V>) bucket);
+                i = 0;
+            } else {
+                synchronized (bucket) {
+                    if(getBucket(tab,i) == bucket) {
+                        int removed = 0;
+                        for(Node<K,V> node = bucket.node; node != null; node = node.next) {
+                            removed++;
+                        }
+                        setTabAt(tab,i,null);
+                        addCount(-removed,-1);
+                        i++;
+                    }
+                }
+            }
         }
     }
 
@@ -134,14 +306,12 @@ public class MyConcurrentHashMap<K extends Integer,V extends Integer> implements
 
     @Override
     public boolean containsValue(Object value) {
-        if(table!=null) {
-            for(Bucket<K,V> bucket:table) {
-                Node<K,V> node = bucket.node;
-                while(node!=null) {
-                    if(Objects.equals(value,node.value)) {
-                        return true;
-                    }
-                    node = node.next;
+        Bucket<K,V>[] tab = table;
+        if(tab!=null) {
+            Traverser<K,V> it = new Traverser<>(tab,0,tab.length);
+            for(Node<K,V> node; (node = it.advance()) != null; ) {
+                if(Objects.equals(value,node.value)) {
+                    return true;
                 }
             }
         }
@@ -150,12 +320,13 @@ public class MyConcurrentHashMap<K extends Integer,V extends Integer> implements
 
     @Override
     public boolean isEmpty() {
-        return size.get()==0;
+        return sumCount()<=0L;
     }
 
     @Override
     public int size() {
-        return size.get();
+        long n = sumCount();
+        return n < 0L ? 0 : n > (long) Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) n;
     }
 
     @Override
@@ -165,6 +336,13 @@ public class MyConcurrentHashMap<K extends Integer,V extends Integer> implements
         }
         if(o instanceof Map<?,?>) {
             Map<?,?> map = (Map<?,?>)o;
+            Traverser<K,V> it = new Traverser<>(table);
+            for(Node<K,V> node; (node = it.advance()) != null; ) {
+                Object value = map.get(node.key);
+                if(!Objects.equals(value,node.value) || (value == null && !map.containsKey(node.key))) {
+                    return false;
+                }
+            }
             Set<Entry<K,V>> entrySet = entrySet();
             for(Entry<?,?> entry: map.entrySet()) {
                 if(!entrySet.contains(entry)) {
@@ -181,383 +359,2093 @@ public class MyConcurrentHashMap<K extends Integer,V extends Integer> implements
         return entrySet().hashCode();
     }
 
+    /**
+     * Chain length distribution of the table, see {@link ChainStats}. Like {@link #clear()} it first helps
+     * any running resize to finish, so the report always describes a single table. Buckets are read without
+     * locking, so under concurrent writes the result is only approximate.
+     */
+    public ChainStats chainStats() {
+        Bucket<K,V>[] tab = table;
+        while(true) {
+            if(tab == null) {
+                return ChainStats.of(new int[0],0);
+            }
+            int[] chainLengths = new int[tab.length];
+            int treeBins = 0;
+            boolean moved = false;
+            for(int i = 0; i < tab.length; i++) {
+                Bucket<K,V> bucket = getBucket(tab,i);
+                if(bucket instanceof ForwardingBucket) {
+                    tab = helpTransfer((ForwardingBucket<K,V>) bucket);
+                    moved = true;
+                    break;
+                }
+                if(bucket instanceof TreeBin) {
+                    treeBins++;
+                }
+                for(Node<K,V> node = bucket == null ? null : bucket.node; node != null; node = node.next) {
+                    chainLengths[i]++;
+                }
+            }
+            if(!moved) {
+                return ChainStats.of(chainLengths,treeBins);
+            }
+        }
+    }
+
+    //<------------------------- Methods that returns view(mutable) of ConcurrentHashMap -------------------->//
+
+    /*
+     * The views are backed by the map and weakly consistent: their iterators and spliterators walk the table
+     * with a Traverser, never lock, never throw ConcurrentModificationException and see every mapping that
+     * exists for the whole walk exactly once, while mappings changed during the walk may or may not be seen.
+     * size() and isEmpty() are the map's, so they are only estimates while the map is being updated.
+     */
+
     @Override
     public Set<Entry<K, V>> entrySet() {
-        return null;
+        Set<Entry<K,V>> es = this.es;
+        return es==null ? this.es = new EntrySet() : es;
     }
+
     @Override
     public Set<K> keySet() {
-        return null;
+        Set<K> ks = this.ks;
+        return ks==null ? this.ks = new KeySet() : ks;
     }
+
     @Override
     public Collection<V> values() {
-        return null;
+        Collection<V> values = this.values;
+        return values==null ? this.values = new Values() : values;
     }
 
-    //<--------------------------------- Private Helper methods --------------------------------------->//
-
-    private V putVal(K key,V value) {
-        if(table == null || table.length == 0) {
-            synchronized (resizeLock) {
-                if (table == null || table.length == 0) {
-                    nextTableLength = threshold > 0 ? threshold : DEFAULT_CAP;
-                    float ft = (float) nextTableLength * loadFactor;
-                    threshold = ft >= (float) Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) ft;
-                    table = (Bucket<K, V>[]) new Bucket[nextTableLength];
-                    for(int i=0;i<nextTableLength;i++) {
-                        setTabAt(table,i,new Bucket<>());
-                    }
-                    nextTable = table;
-                }
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        Traverser<K,V> it = new Traverser<>(table);
+        for(Node<K,V> node = it.advance(); node != null; ) {
+            sb.append(node.key==this ? "(this Map)" : node.key).append('=')
+                    .append(node.value==this ? "(this Map)" : node.value);
+            if((node = it.advance()) != null) {
+                sb.append(", ");
             }
         }
-        Lock bucketLock = null;
-        while(true) {
-            int n = table.length;
-            int hash = hash(key);
-            int index = hash & (n - 1);
+        return sb.append('}').toString();
+    }
 
-            Node prevNode = getFirstNode(table,index);
-            if (prevNode == null && (n==nextTableLength || (2*n==nextTableLength && resizingIndex<=index))) {
-                bucketLock = getLock(table,index);
-                if(bucketLock==null) {
-                    continue;
-                }
-                bucketLock.lock();
-                if (getFirstNode(table,index) == null && (n==table.length || (2*n==nextTableLength && resizingIndex<=index))) {
-                    Bucket<K,V> bucket = getBucket(table,index);
-                    bucket.node = new Node(hash,key,value,null);
-                    setTabAt(table,index,bucket);
-                    break;
-                }
-            } else if(n*2==nextTableLength && resizingIndex>index && getFirstNode(nextTable,hash &(nextTableLength-1))==null) {
-                int nextIndex = hash & (nextTableLength-1);
-                bucketLock = getLock(nextTable,nextIndex);
-                if(bucketLock==null) {
-                    continue;
-                }
-                bucketLock.lock();
-                if(n*2==nextTableLength && getFirstNode(nextTable,nextIndex)==null && resizingIndex>index) {
-                    Bucket<K,V> bucket = getBucket(nextTable,nextIndex);
-                    bucket.node = new Node(hash,key,value,null);;
-                    setTabAt(nextTable,nextIndex,bucket);
-                    break;
-                }
-            } else {
-                Node<K, V> foundNode;
-                boolean addInNextTable = false;
-                if(nextTableLength == n*2 && resizingIndex>index) {
-                    int nextTableIndex = hash&(nextTableLength-1);
-                    prevNode = getFirstNode(nextTable,nextTableIndex);
-                    bucketLock = getLock(nextTable,nextTableIndex);
-                    if(prevNode==null || bucketLock==null) {
-                        continue;
-                    }
-                    addInNextTable = true;
-                }
-                bucketLock = getLock(table,index);
-                if(prevNode==null || bucketLock==null) {
-                    continue;
-                }
-                bucketLock.lock();
-                if (hash == prevNode.hash && Objects.equals(key, prevNode.key)) {
-                    foundNode = prevNode;
-                } else {
-                    while ((foundNode = prevNode.next) != null) {
-                        if (hash == foundNode.hash && Objects.equals(key, foundNode.key)) {
-                            break;
-                        }
-                        prevNode = prevNode.next;
-                    }
-                }
-                if((n==nextTableLength && resizingIndex<=index) || (addInNextTable && nextTableLength == n*2 && resizingIndex>index)) {
-                    if (foundNode != null) {
-                        V oldValue = foundNode.value;
-                        foundNode.value = value;
-                        bucketLock.unlock();
-                        return oldValue;
-                    } else {
-                        prevNode.next = new Node<>(hash, key, value, null);
-                    }
-                    break;
-                }
+    //<------------------------------------- Views of ConcurrentHashMap ------------------------------------->//
 
-            }
-            bucketLock.unlock();
+    private abstract class CommonCollectionOperation<E> implements Collection<E> {
+        @Override
+        public int size() {
+            return MyConcurrentHashMap.this.size();
         }
-        bucketLock.unlock();
-        if (size.incrementAndGet() > threshold) {
-            resize();
+        @Override
+        public boolean isEmpty() {
+            return MyConcurrentHashMap.this.isEmpty();
         }
-        return null;
-    }
-
-    private Node<K,V> removeNode(Object key,Object value,boolean matchValue) {
-        if(table!=null && table.length>0) {
-            Lock bucketLock = null;
-            while(true) {
-                int hash = hash(key);
-                int n = table.length;
-                int index = hash & (n - 1);
-                int nextTableIndex = index;
-                boolean searchInNextTable = false;
-                Node<K, V> prevNode;
-                bucketLock = getLock(table,index);
-                if(n*2==nextTableLength && resizingIndex>index) {
-                    searchInNextTable = true;
-                    nextTableIndex = hash & (nextTableLength-1);
-                    bucketLock = getLock(nextTable,nextTableIndex);
-                }
-                if(bucketLock==null) {
-                    continue;
-                }
-                bucketLock.lock();
-                Bucket<K,V>[] tab = table;
-                if(n==nextTableLength || (n*2==nextTableIndex && resizingIndex<=index)) {
-                    prevNode = getFirstNode(table,index);
-                } else {
-                    nextTableIndex = hash & (nextTableLength-1);
-                    prevNode = getFirstNode(nextTable,nextTableIndex);
-                    tab = nextTable;
-                }
-                if((n==nextTableLength || (n*2==nextTableIndex && resizingIndex<=index)) || (searchInNextTable && (n*2==nextTableLength && resizingIndex>index))) {
-                    if (prevNode != null) {
-                        Node<K, V> foundNode;
-                        if (hash == prevNode.hash && Objects.equals(key, prevNode.key)) {
-                            foundNode = prevNode;
-                        } else {
-                            while ((foundNode = prevNode.next) != null) {
-                                if (hash == foundNode.hash && Objects.equals(key, foundNode.key)) {
-                                    break;
-                                }
-                                prevNode = prevNode.next;
-                            }
-                        }
-                        if (foundNode != null && (!matchValue || Objects.equals(value, foundNode.value))) {
-                            if (prevNode == foundNode) {
-                                Bucket<K,V> bucket = getBucket(tab,nextTableIndex);
-                                bucket.node = foundNode.next;
-                                setTabAt(tab,nextTableIndex,bucket);
-                            } else {
-                                prevNode.next = foundNode.next;
-                            }
-                            size.decrementAndGet();
-                            foundNode.next = null;
-                            bucketLock.unlock();
-                            return foundNode;
-                        } else {
-                            break;
-                        }
-                    } else {
-                        break;
+        @Override
+        public void clear() {
+            MyConcurrentHashMap.this.clear();
+        }
+        @Override
+        public boolean containsAll(Collection<?> c) {
+            if(c != this) {
+                for(Object o : c) {
+                    if(!contains(o)) {
+                        return false;
                     }
                 }
-                bucketLock.unlock();
             }
-            bucketLock.unlock();
+            return true;
         }
-        return null;
-    }
-
-    private Node<K,V> getNode(Object key) {
-        if(table!=null && table.length!=0) {
-            Lock bucketLock = null;
-            while(true) {
-                int h = hash(key);
-                int n = table.length;
-                int index = h & (n - 1);
-                int nextTableIndex = index;
-                boolean searchInNextTable = false;
-                Node<K,V> node = null;
-                bucketLock = getLock(table,index);
-                if(n*2==nextTableLength && resizingIndex>index) {
-                    searchInNextTable = true;
-                    nextTableIndex = h & (nextTableLength-1);
-                    bucketLock = getLock(nextTable,nextTableIndex);
-                }
-                if(bucketLock==null) {
-                    continue;
-                }
-                bucketLock.lock();
-                if(n==nextTableLength || (n*2==nextTableIndex && resizingIndex<=index)) {
-                    node = getFirstNode(table,index);
-                } else {
-                    node = getFirstNode(nextTable,nextTableIndex);
+        @Override
+        public boolean removeAll(Collection<?> c) {
+            Objects.requireNonNull(c);
+            boolean changed = false;
+            for(Iterator<E> it = iterator(); it.hasNext(); ) {
+                if(c.contains(it.next())) {
+                    it.remove();
+                    changed = true;
                 }
-                if((n==nextTableLength || (n*2==nextTableIndex && resizingIndex<=index)) || (searchInNextTable && (n*2==nextTableLength && resizingIndex>index))) {
-                    while (node != null) {
-                        if (h == hash(node.key) && Objects.equals(key, node.key)) {
-                            bucketLock.unlock();
-                            return node;
-                        }
-                        node = node.next;
-                    }
-                    break;
-                } else {
-                    bucketLock.unlock();
+            }
+            return changed;
+        }
+        @Override
+        public boolean retainAll(Collection<?> c) {
+            Objects.requireNonNull(c);
+            boolean changed = false;
+            for(Iterator<E> it = iterator(); it.hasNext(); ) {
+                if(!c.contains(it.next())) {
+                    it.remove();
+                    changed = true;
                 }
             }
-            bucketLock.unlock();
+            return changed;
         }
-        return null;
-    }
-
-    private void resize() {
-        if (size.get() < threshold || table.length == MAX_CAP) {
-            return;
+        /**
+         * Collects into a list first, as the size can change while the elements are copied.
+         */
+        @Override
+        public Object[] toArray() {
+            List<E> list = new ArrayList<>(size());
+            for(E e : this) {
+                list.add(e);
+            }
+            return list.toArray();
         }
-        synchronized (resizeLock) {
-            if (size.get() < threshold || table.length == MAX_CAP) {
-                return;
+        @Override
+        public <T> T[] toArray(T[] a) {
+            List<E> list = new ArrayList<>(size());
+            for(E e : this) {
+                list.add(e);
             }
-            int oldCap = table.length;
-            if (oldCap > 0) {
-                if (oldCap == MAX_CAP) {
-                    return;
-                } else {
-                    nextTableLength = oldCap << 1;
-                }
+            return list.toArray(a);
+        }
+        @Override
+        public String toString() {
+            StringJoiner joiner = new StringJoiner(", ","[","]");
+            for(E e : this) {
+                joiner.add(e==this ? "(this Collection)" : String.valueOf(e));
             }
-            float ft = (float) nextTableLength * loadFactor;
-            threshold = ft >= (float) Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) ft;
+            return joiner.toString();
+        }
+    }
 
-            nextTable = (Bucket<K, V>[]) new Bucket[nextTableLength];
-            for(int i=0;i<nextTableLength;i++) {
-                setTabAt(nextTable,i,new Bucket<>());
+    private abstract class SetView<E> extends CommonCollectionOperation<E> implements Set<E> {
+        @Override
+        public boolean equals(Object o) {
+            if(o == this) {
+                return true;
             }
-            resizingIndex = 0;
-            for (int i = 0; i < oldCap; i++) {
-                Lock bucketLock=getLock(table,i);;
-                if(bucketLock==null) {
-                    i--;
-                    continue;
-                }
-                bucketLock.lock();
-                Node<K, V> node = getFirstNode(table, i);
-                if (node != null) {
-                    Node<K, V> highHead = null, highTail = null, lowHead = null, lowTail = null;
-                    while (node != null) {
-                        if ((node.hash & oldCap) == 0) {
-                            if (lowHead == null) {
-                                lowHead = lowTail = node;
-                            } else {
-                                lowTail = lowTail.next = node;
-                            }
-                        } else {
-                            if (highHead == null) {
-                                highHead = highTail = node;
-                            } else {
-                                highTail = highTail.next = node;
-                            }
-                        }
-                        node = node.next;
-                    }
-                    if (lowHead != null) {
-                        Bucket<K,V> bucket = getBucket(nextTable,i);
-                        lowTail.next = null;
-                        bucket.node = lowHead;
-                        setTabAt(nextTable,i,bucket);
-                    }
-                    if (highHead != null) {
-                        Bucket<K,V> bucket = getBucket(nextTable,i+oldCap);
-                        highTail.next = null;
-                        bucket.node = highHead;
-                        setTabAt(nextTable,i+oldCap,bucket);
-                    }
-                }
-                resizingIndex++;
-                bucketLock.unlock();
+            if(o instanceof Set<?>) {
+                Set<?> set = (Set<?>) o;
+                return containsAll(set) && set.containsAll(this);
+            }
+            return false;
+        }
+        @Override
+        public int hashCode() {
+            int hashCode = 0;
+            for(E e : this) {
+                hashCode += Objects.hashCode(e);
             }
-            table = nextTable;
-            resizingIndex = -1;
+            return hashCode;
         }
     }
 
-    //<----------------------------------- static utilities --------------------------------->//
+    private final class EntrySet extends SetView<Entry<K,V>> {
 
-    private static int tableSizeForCap(int cap) {
-        int n = cap-1;
-        n |= n >>> 1;
-        n |= n >>> 2;
-        n |= n >>> 4;
-        n |= n >>> 8;
-        n |= n >>> 16;
-        return n + 1;
-    }
+        @Override
+        public boolean contains(Object o) {
+            if(o instanceof Entry<?,?>) {
+                Entry<?,?> entry = (Entry<?,?>) o;
+                Node<K,V> node = getNode(entry.getKey());
+                return node != null && Objects.equals(node.value,entry.getValue());
+            }
+            return false;
+        }
 
-    private int hash(Object key) {
-        return key==null ? 0 : (Integer) key;
-    }
+        @Override
+        public Iterator<Entry<K, V>> iterator() {
+            return new EntryIterator();
+        }
 
-    private static <K,V> Node<K,V> getFirstNode(Bucket<K,V>[] table,int index) {
-        Bucket<K,V> bucket = getBucket(table,index);
-        return bucket==null ? null : getBucket(table,index).node;
-    }
+        @Override
+        public Spliterator<Entry<K, V>> spliterator() {
+            return newSpliterator(node -> new MapEntry(node.key,node.value),Spliterator.DISTINCT);
+        }
 
-    private static <K,V> Bucket<K,V> getBucket(Bucket<K,V>[] table, int index) {
-        return (MyConcurrentHashMap.Bucket<K,V>)U.getObjectVolatile(table, ((long)index << ASHIFT) + ABASE);
-    }
+        /**
+         * @return true if the key was not mapped yet
+         */
+        @Override
+        public boolean add(Entry<K, V> entry) {
+            return putVal(entry.getKey(),entry.getValue(),false) == null;
+        }
 
-    static final <K,V> void setTabAt (Bucket<K,V>[] tab, int i, Bucket<K,V> v) {
-        U.putObjectVolatile(tab, ((long)i << ASHIFT) + ABASE, v);
-    }
+        @Override
+        public boolean remove(Object o) {
+            if(o instanceof Entry<?,?>) {
+                Entry<?,?> entry = (Entry<?,?>) o;
+                return MyConcurrentHashMap.this.remove(entry.getKey(),entry.getValue());
+            }
+            return false;
+        }
 
-    private static <K,V> Lock getLock(Bucket<K,V>[] table,int index) {
-        Bucket<K,V> bucket = getBucket(table,index);
-        return bucket==null ? null:getBucket(table,index).bucketLock ;
+        @Override
+        public boolean addAll(Collection<? extends Entry<K, V>> c) {
+            boolean added = false;
+            for(Entry<K,V> entry : c) {
+                added |= add(entry);
+            }
+            return added;
+        }
     }
 
-    private static class Node<K,V> implements Map.Entry<K,V> {
-        final int hash;
-        final K key;
-        V value;
-        Node<K,V> next;
+    private final class KeySet extends SetView<K> {
 
-        Node(int hash,K key,V value,Node<K,V> next) {
-            this.hash = hash;
-            this.key = key;
-            this.value = value;
-            this.next = next;
+        @Override
+        public boolean contains(Object o) {
+            return containsKey(o);
         }
 
         @Override
-        public K getKey() {
-            return key;
+        public Iterator<K> iterator() {
+            return new KeyIterator();
         }
 
         @Override
-        public V getValue() {
-            return value;
+        public Spliterator<K> spliterator() {
+            return newSpliterator(node -> node.key,Spliterator.DISTINCT);
         }
 
         @Override
-        public V setValue(V value) {
-            V oldValue = this.value;
-            this.value = value;
-            return oldValue;
+        public boolean add(K k) {
+            throw new UnsupportedOperationException();
         }
 
         @Override
-        public int hashCode() {
-            return hash ;
+        public boolean remove(Object o) {
+            return removeNode(o,null,false) != null;
         }
 
         @Override
-        public boolean equals(Object o) {
-            if(o instanceof Entry<?,?>) {
-                Entry<?,?> entry = (Entry<?,?>) o;
+        public boolean addAll(Collection<? extends K> c) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private final class Values extends CommonCollectionOperation<V> {
+
+        @Override
+        public boolean contains(Object o) {
+            return containsValue(o);
+        }
+
+        @Override
+        public Iterator<V> iterator() {
+            return new ValueIterator();
+        }
+
+        @Override
+        public Spliterator<V> spliterator() {
+            return newSpliterator(node -> node.value,0);
+        }
+
+        @Override
+        public boolean add(V v) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean remove(Object o) {
+            for(Iterator<V> it = iterator(); it.hasNext(); ) {
+                if(Objects.equals(o,it.next())) {
+                    it.remove();
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public boolean addAll(Collection<? extends V> c) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Entry handed out by the entry set. It holds a copy of the mapping, and {@code setValue} writes through
+     * with {@link #put}, so it never touches a node outside its bucket lock.
+     */
+    private final class MapEntry implements Entry<K,V> {
+        private final K key;
+        private V value;
+
+        MapEntry(K key,V value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        @Override
+        public K getKey() {
+            return key;
+        }
+
+        @Override
+        public V getValue() {
+            return value;
+        }
+
+        @Override
+        public V setValue(V value) {
+            V oldValue = this.value;
+            this.value = value;
+            put(key,value);
+            return oldValue;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(key) ^ Objects.hashCode(value);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(o instanceof Entry<?,?>) {
+                Entry<?,?> entry = (Entry<?,?>) o;
+                return Objects.equals(key,entry.getKey()) && Objects.equals(value,entry.getValue());
+            }
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + value;
+        }
+    }
+
+    //<------------------------------------------- Iterators --------------------------------------------->//
+
+    private abstract class BaseIterator extends Traverser<K,V> {
+        Node<K,V> lastReturned;
+
+        BaseIterator() {
+            super(table);
+            advance();
+        }
+
+        public final boolean hasNext() {
+            return next != null;
+        }
+
+        final Node<K,V> nextNode() {
+            Node<K,V> node = next;
+            if(node == null) {
+                throw new NoSuchElementException();
+            }
+            lastReturned = node;
+            advance();
+            return node;
+        }
+
+        /**
+         * Removes the key of the last returned mapping from the map, whatever it is mapped to by now.
+         */
+        public final void remove() {
+            Node<K,V> node = lastReturned;
+            if(node == null) {
+                throw new IllegalStateException();
+            }
+            lastReturned = null;
+            removeNode(node.key,null,false);
+        }
+    }
+
+    private final class EntryIterator extends BaseIterator implements Iterator<Entry<K,V>> {
+        @Override
+        public Entry<K,V> next() {
+            Node<K,V> node = nextNode();
+            return new MapEntry(node.key,node.value);
+        }
+    }
+
+    private final class KeyIterator extends BaseIterator implements Iterator<K> {
+        @Override
+        public K next() {
+            return nextNode().key;
+        }
+    }
+
+    private final class ValueIterator extends BaseIterator implements Iterator<V> {
+        @Override
+        public V next() {
+            return nextNode().value;
+        }
+    }
+
+    private <T> Spliterator<T> newSpliterator(Function<Node<K,V>,T> extractor,int characteristics) {
+        Bucket<K,V>[] tab = table;
+        int n = tab==null ? 0 : tab.length;
+        long size = sumCount();
+        return new MapSpliterator<>(tab,0,n,Math.max(size,0L),extractor,characteristics);
+    }
+
+    /**
+     * Splits by bin range of the table it started on; bins that were moved by a resize are followed into
+     * the next table by the {@link Traverser} of whichever half owns their index, like the bulk tasks do.
+     * The size is only an estimate, so it never reports {@link Spliterator#SIZED}.
+     */
+    private static final class MapSpliterator<K,V,T> extends Traverser<K,V> implements Spliterator<T> {
+        private final Function<Node<K,V>,T> extractor;
+        private final int characteristics;
+        private long est;
+
+        MapSpliterator(Bucket<K,V>[] tab,int baseIndex,int baseLimit,long est,
+                       Function<Node<K,V>,T> extractor,int characteristics) {
+            super(tab,baseIndex,baseLimit);
+            this.est = est;
+            this.extractor = extractor;
+            this.characteristics = characteristics;
+        }
+
+        @Override
+        public Spliterator<T> trySplit() {
+            int lo = baseIndex, hi = baseLimit, mid = (lo + hi) >>> 1;
+            if(mid <= lo) {
+                return null;
+            }
+            baseLimit = mid;
+            return new MapSpliterator<>(tab,mid,hi,est >>>= 1,extractor,characteristics);
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super T> action) {
+            Objects.requireNonNull(action);
+            Node<K,V> node = advance();
+            if(node == null) {
+                return false;
+            }
+            action.accept(extractor.apply(node));
+            return true;
+        }
+
+        @Override
+        public void forEachRemaining(Consumer<? super T> action) {
+            Objects.requireNonNull(action);
+            for(Node<K,V> node; (node = advance()) != null; ) {
+                action.accept(extractor.apply(node));
+            }
+        }
+
+        @Override
+        public long estimateSize() {
+            return est;
+        }
+
+        @Override
+        public int characteristics() {
+            return characteristics | Spliterator.CONCURRENT;
+        }
+    }
+
+    //<------------------------------------------ Bulk operations ----------------------------------------->//
+
+    /**
+     * Performs {@code action} for every mapping. The table is split into ranges that run on the common
+     * {@code ForkJoinPool} once the map holds at least {@code parallelismThreshold} mappings. Like the rest of
+     * the bulk operations this is weakly consistent: it is safe during updates and resizes, but mappings
+     * changed while it runs may or may not be seen.
+     */
+    public void forEach(long parallelismThreshold, BiConsumer<? super K, ? super V> action) {
+        Objects.requireNonNull(action);
+        Bucket<K,V>[] tab = table;
+        if (tab != null) {
+            invokeBulk(new ForEachTask<>(tab, 0, tab.length, batchFor(parallelismThreshold), action));
+        }
+    }
+
+    /**
+     * Sums up {@code transformer(value)} of every mapping with {@code reducer}, starting from {@code basis}.
+     * The reducer must be associative and {@code basis} its identity, since every range starts from it.
+     */
+    public long reduceValuesToLong(long parallelismThreshold, ToLongFunction<? super V> transformer,
+                                   long basis, LongBinaryOperator reducer) {
+        Objects.requireNonNull(transformer);
+        Objects.requireNonNull(reducer);
+        Bucket<K,V>[] tab = table;
+        if (tab == null) {
+            return basis;
+        }
+        return invokeBulk(new ReduceValuesToLongTask<>(tab, 0, tab.length, batchFor(parallelismThreshold),
+                transformer, basis, reducer));
+    }
+
+    /**
+     * Returns a non null result of {@code searchFunction} for some mapping, or null if there is none. Once any
+     * range finds a result the other ranges stop early.
+     */
+    public <U> U search(long parallelismThreshold, BiFunction<? super K, ? super V, ? extends U> searchFunction) {
+        Objects.requireNonNull(searchFunction);
+        Bucket<K,V>[] tab = table;
+        if (tab == null) {
+            return null;
+        }
+        return invokeBulk(new SearchTask<K,V,U>(tab, 0, tab.length, batchFor(parallelismThreshold),
+                searchFunction, new AtomicReference<>()));
+    }
+
+    //<--------------------------------- Private Helper methods --------------------------------------->//
+
+    private V putVal(K key,V value,boolean onlyIfAbsent) {
+        int hash = hash(key);
+        int binCount = 0;
+        Bucket<K,V>[] tab = table;
+        while(true) {
+            int n;
+            if(tab == null || (n = tab.length) == 0) {
+                tab = initTable();
+                continue;
+            }
+            int index = hash & (n - 1);
+            Bucket<K,V> bucket = getBucket(tab,index);
+            if(bucket == null) {
+                if(casTabAt(tab,index,null,new Bucket<>(new Node<>(hash,key,value,null)))) {
+                    break;
+                }
+                continue;
+            }
+            if(bucket instanceof ForwardingBucket) {
+                tab = helpTransfer((ForwardingBucket<K,V>) bucket);
+                continue;
+            }
+            synchronized (bucket) {
+                if(getBucket(tab,index) != bucket) {
+                    continue;
+                }
+                if(bucket instanceof TreeBin) {
+                    binCount = 2;
+                    TreeNode<K,V> foundNode = ((TreeBin<K,V>) bucket).putTreeVal(hash,key,value);
+                    if(foundNode != null) {
+                        V oldValue = foundNode.value;
+                        if(!onlyIfAbsent || oldValue == null) {
+                            foundNode.value = value;
+                        }
+                        return oldValue;
+                    }
+                    break;
+                }
+                Node<K,V> prevNode = bucket.node;
+                binCount = 1;
+                if(prevNode == null) {
+                    bucket.node = new Node<>(hash,key,value,null);
+                } else {
+                    Node<K,V> foundNode;
+                    if (hash == prevNode.hash && Objects.equals(key, prevNode.key)) {
+                        foundNode = prevNode;
+                    } else {
+                        while ((foundNode = prevNode.next) != null) {
+                            if (hash == foundNode.hash && Objects.equals(key, foundNode.key)) {
+                                break;
+                            }
+                            prevNode = prevNode.next;
+                            binCount++;
+                        }
+                    }
+                    if (foundNode != null) {
+                        V oldValue = foundNode.value;
+                        if (!onlyIfAbsent || oldValue == null) {
+                            foundNode.value = value;
+                        }
+                        return oldValue;
+                    }
+                    prevNode.next = new Node<>(hash, key, value, null);
+                }
+            }
+            if(binCount >= TREEIFY_THRESHOLD) {
+                treeifyBin(tab,index);
+            }
+            break;
+        }
+        addCount(1L,binCount);
+        return null;
+    }
+
+    /**
+     * Shared body of the compute/merge/replace family. The node for {@code key} is found, the remapping
+     * function applied and the node inserted, updated or unlinked all under a single bucket lock, so none
+     * of these operations can interleave with another write to the same key. The function therefore runs
+     * while the bucket is locked: it should be short and must not update this map.
+     *
+     * A null value counts as absent and a null result removes the mapping. Returns the new value, or the
+     * previous one when {@link #RETURN_OLD} is set.
+     */
+    private V computeVal(K key,BiFunction<? super K, ? super V, ? extends V> remapping,int mode) {
+        int hash = hash(key);
+        int binCount = 0, delta = 0;
+        V result;
+        Bucket<K,V>[] tab = table;
+        while(true) {
+            int n;
+            if(tab == null || (n = tab.length) == 0) {
+                tab = initTable();
+                continue;
+            }
+            int index = hash & (n - 1);
+            Bucket<K,V> bucket = getBucket(tab,index);
+            if(bucket == null) {
+                if((mode & ONLY_IF_PRESENT) != 0) {
+                    return null;
+                }
+                casTabAt(tab,index,null,new Bucket<>(null));
+                continue;
+            }
+            if(bucket instanceof ForwardingBucket) {
+                tab = helpTransfer((ForwardingBucket<K,V>) bucket);
+                continue;
+            }
+            synchronized (bucket) {
+                if(getBucket(tab,index) != bucket) {
+                    continue;
+                }
+                if(bucket instanceof TreeBin) {
+                    binCount = 2;
+                    TreeBin<K,V> treeBin = (TreeBin<K,V>) bucket;
+                    TreeNode<K,V> foundNode = treeBin.findTreeNode(hash,key);
+                    V oldValue = foundNode == null ? null : foundNode.value;
+                    if(((mode & ONLY_IF_ABSENT) != 0 && oldValue != null) || ((mode & ONLY_IF_PRESENT) != 0 && oldValue == null)) {
+                        return oldValue;
+                    }
+                    V newValue = remapping.apply(key,oldValue);
+                    if(newValue != null) {
+                        if(foundNode != null) {
+                            foundNode.value = newValue;
+                        } else {
+                            treeBin.putTreeVal(hash,key,newValue);
+                            delta = 1;
+                        }
+                    } else if(foundNode != null) {
+                        if(treeBin.removeTreeNode(foundNode)) {
+                            setTabAt(tab,index,new Bucket<>(untreeify(treeBin.node)));
+                        }
+                        delta = -1;
+                    }
+                    result = (mode & RETURN_OLD) != 0 ? oldValue : newValue;
+                    break;
+                }
+                Node<K,V> prevNode = null, foundNode = bucket.node;
+                binCount = 1;
+                while (foundNode != null && (hash != foundNode.hash || !Objects.equals(key, foundNode.key))) {
+                    prevNode = foundNode;
+                    foundNode = foundNode.next;
+                    binCount++;
+                }
+                V oldValue = foundNode == null ? null : foundNode.value;
+                if(((mode & ONLY_IF_ABSENT) != 0 && oldValue != null) || ((mode & ONLY_IF_PRESENT) != 0 && oldValue == null)) {
+                    return oldValue;
+                }
+                V newValue = remapping.apply(key,oldValue);
+                if(newValue != null) {
+                    if(foundNode != null) {
+                        foundNode.value = newValue;
+                    } else if(prevNode != null) {
+                        prevNode.next = new Node<>(hash,key,newValue,null);
+                        delta = 1;
+                    } else {
+                        bucket.node = new Node<>(hash,key,newValue,null);
+                        delta = 1;
+                    }
+                } else if(foundNode != null) {
+                    if(prevNode == null) {
+                        bucket.node = foundNode.next;
+                    } else {
+                        prevNode.next = foundNode.next;
+                    }
+                    delta = -1;
+                }
+                result = (mode & RETURN_OLD) != 0 ? oldValue : newValue;
+            }
+            if(delta > 0 && binCount >= TREEIFY_THRESHOLD) {
+                treeifyBin(tab,index);
+            }
+            break;
+        }
+        if(delta != 0) {
+            addCount(delta,delta > 0 ? binCount : -1);
+        }
+        return result;
+    }
+
+    private Node<K,V> removeNode(Object key,Object value,boolean matchValue) {
+        int hash = hash(key);
+        Bucket<K,V>[] tab = table;
+        while(tab != null && tab.length > 0) {
+            int index = hash & (tab.length - 1);
+            Bucket<K,V> bucket = getBucket(tab,index);
+            if(bucket == null) {
+                break;
+            }
+            if(bucket instanceof ForwardingBucket) {
+                tab = helpTransfer((ForwardingBucket<K,V>) bucket);
+                continue;
+            }
+            synchronized (bucket) {
+                if(getBucket(tab,index) != bucket) {
+                    continue;
+                }
+                if(bucket instanceof TreeBin) {
+                    TreeBin<K,V> treeBin = (TreeBin<K,V>) bucket;
+                    TreeNode<K,V> foundNode = treeBin.findTreeNode(hash,key);
+                    if (foundNode == null || (matchValue && !Objects.equals(value, foundNode.value))) {
+                        break;
+                    }
+                    if(treeBin.removeTreeNode(foundNode)) {
+                        setTabAt(tab,index,new Bucket<>(untreeify(treeBin.node)));
+                    }
+                    addCount(-1L,-1);
+                    return foundNode;
+                }
+                Node<K,V> prevNode = bucket.node;
+                if (prevNode == null) {
+                    break;
+                }
+                Node<K, V> foundNode;
+                if (hash == prevNode.hash && Objects.equals(key, prevNode.key)) {
+                    foundNode = prevNode;
+                } else {
+                    while ((foundNode = prevNode.next) != null) {
+                        if (hash == foundNode.hash && Objects.equals(key, foundNode.key)) {
+                            break;
+                        }
+                        prevNode = prevNode.next;
+                    }
+                }
+                if (foundNode == null || (matchValue && !Objects.equals(value, foundNode.value))) {
+                    break;
+                }
+                if (prevNode == foundNode) {
+                    bucket.node = foundNode.next;
+                } else {
+                    prevNode.next = foundNode.next;
+                }
+                addCount(-1L,-1);
+                return foundNode;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Lock free lookup. Readers never take a bucket lock, they only read volatile links, so a chain
+     * is always seen either before or after a concurrent write. A bucket that was already moved by a
+     * resize holds a {@link ForwardingBucket}, and the lookup simply continues in the table it points to.
+     * A {@link TreeBin} validates its own tree search, see {@link TreeBin#find}.
+     */
+    private Node<K,V> getNode(Object key) {
+        int h = hash(key);
+        Bucket<K,V>[] tab = table;
+        while(tab != null && tab.length != 0) {
+            Bucket<K,V> bucket = getBucket(tab,h & (tab.length - 1));
+            if(bucket instanceof ForwardingBucket) {
+                tab = ((ForwardingBucket<K,V>) bucket).nextTable;
+                continue;
+            }
+            if(bucket instanceof TreeBin) {
+                return ((TreeBin<K,V>) bucket).find(h,key);
+            }
+            Node<K,V> node = bucket == null ? null : bucket.node;
+            while (node != null) {
+                if (h == node.hash && Objects.equals(key, node.key)) {
+                    return node;
+                }
+                node = node.next;
+            }
+            break;
+        }
+        return null;
+    }
+
+    /**
+     * Adds {@code x} to the size. The count is striped the same way as {@code LongAdder}: threads first try
+     * {@code baseCount} and move to a {@link CounterCell} picked by their probe once that CAS is contended.
+     * {@code check} is the bin length seen by the caller (negative means never resize); when the cells are
+     * contended only inserts into an already crowded bin pay for summing the cells to check the threshold.
+     */
+    private void addCount(long x, int check) {
+        CounterCell[] cs = counterCells;
+        long b, s;
+        if (cs != null || !U.compareAndSwapLong(this, BASECOUNT, b = baseCount, s = b + x)) {
+            CounterCell c;
+            long v;
+            boolean uncontended = true;
+            if (cs == null || cs.length == 0 || (c = cs[getProbe() & (cs.length - 1)]) == null ||
+                    !(uncontended = U.compareAndSwapLong(c, CELLVALUE, v = c.value, v + x))) {
+                fullAddCount(x, uncontended);
+                return;
+            }
+            if (check <= 1) {
+                return;
+            }
+            s = sumCount();
+        }
+        if (check >= 0 && s > threshold) {
+            resize();
+        }
+    }
+
+    private void fullAddCount(long x, boolean wasUncontended) {
+        int h = getProbe();
+        if (h == 0) {
+            h = initProbe();
+            wasUncontended = true;
+        }
+        boolean collide = false;
+        while (true) {
+            CounterCell[] cs = counterCells;
+            int n;
+            if (cs != null && (n = cs.length) > 0) {
+                CounterCell c = cs[h & (n - 1)];
+                long v;
+                if (c == null) {
+                    if (cellsBusy == 0) {
+                        CounterCell r = new CounterCell(x);
+                        if (cellsBusy == 0 && U.compareAndSwapInt(this, CELLSBUSY, 0, 1)) {
+                            try {
+                                CounterCell[] rs = counterCells;
+                                int j;
+                                if (rs != null && rs.length > 0 && rs[j = h & (rs.length - 1)] == null) {
+                                    rs[j] = r;
+                                    return;
+                                }
+                            } finally {
+                                cellsBusy = 0;
+                            }
+                            continue;
+                        }
+                    }
+                    collide = false;
+                } else if (!wasUncontended) {
+                    wasUncontended = true;
+                } else if (U.compareAndSwapLong(c, CELLVALUE, v = c.value, v + x)) {
+                    return;
+                } else if (counterCells != cs || n >= NCPU) {
+                    collide = false;
+                } else if (!collide) {
+                    collide = true;
+                } else if (cellsBusy == 0 && U.compareAndSwapInt(this, CELLSBUSY, 0, 1)) {
+                    try {
+                        if (counterCells == cs) {
+                            counterCells = Arrays.copyOf(cs, n << 1);
+                        }
+                    } finally {
+                        cellsBusy = 0;
+                    }
+                    collide = false;
+                    continue;
+                }
+                h = advanceProbe(h);
+            } else if (cellsBusy == 0 && counterCells == cs && U.compareAndSwapInt(this, CELLSBUSY, 0, 1)) {
+                try {
+                    if (counterCells == cs) {
+                        CounterCell[] rs = new CounterCell[2];
+                        rs[h & 1] = new CounterCell(x);
+                        counterCells = rs;
+                        return;
+                    }
+                } finally {
+                    cellsBusy = 0;
+                }
+            } else {
+                long b;
+                if (U.compareAndSwapLong(this, BASECOUNT, b = baseCount, b + x)) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Approximate size: cells that are being updated while we add them up may or may not be counted.
+     */
+    private long sumCount() {
+        CounterCell[] cs = counterCells;
+        long sum = baseCount;
+        if (cs != null) {
+            for (CounterCell c : cs) {
+                if (c != null) {
+                    sum += c.value;
+                }
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Grows the table until {@code size} entries fit below the threshold. Before the table exists this only
+     * raises the initial capacity; afterwards it forces one doubling after the other, joining resizes that
+     * other threads may have started meanwhile.
+     */
+    private void tryPresize(long size) {
+        int cap = tableSizeForCap((int)Math.min(MAX_CAP,(long)Math.ceil(size/loadFactor)));
+        if(table == null) {
+            synchronized (resizeLock) {
+                if(table == null && cap > threshold) {
+                    threshold = cap;
+                }
+            }
+            initTable();
+        }
+        Bucket<K,V>[] tab;
+        while((tab = table).length < cap && tab.length < MAX_CAP) {
+            resize(tab);
+        }
+    }
+
+    private Bucket<K,V>[] initTable() {
+        synchronized (resizeLock) {
+            if (table == null || table.length == 0) {
+                int n = threshold > 0 ? threshold : DEFAULT_CAP;
+                float ft = (float) n * loadFactor;
+                Bucket<K, V>[] tab = newTable(n);
+                threshold = ft >= (float) Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) ft;
+                table = tab;
+            }
+            return table;
+        }
+    }
+
+    /**
+     * Starts a resize if none is running yet and then helps with it. The first thread only allocates
+     * {@code nextTable} under {@code resizeLock}; the buckets themselves are moved by every thread that
+     * calls {@link #transfer}, each claiming a stride of the old table at a time.
+     */
+    private void resize() {
+        resize(null);
+    }
+
+    /**
+     * {@code smallTable}, when given, forces the resize as long as that table is still the current one;
+     * {@link #treeifyBin} uses this to grow a small table instead of building a tree.
+     */
+    private void resize(Bucket<K,V>[] smallTable) {
+        Transfer<K,V> t;
+        synchronized (resizeLock) {
+            Bucket<K,V>[] tab = table;
+            if ((tab != smallTable && sumCount() <= threshold) || tab.length == MAX_CAP) {
+                return;
+            }
+            if ((t = transfer) == null) {
+                int n = tab.length;
+                Bucket<K,V>[] nextTab = newTable(n << 1);
+                t = transfer = new Transfer<>(tab,nextTab,Math.max(MIN_TRANSFER_STRIDE, (n >>> 3) / NCPU));
+                nextTable = nextTab;
+            }
+        }
+        transfer(t);
+    }
+
+    private Bucket<K,V>[] helpTransfer(ForwardingBucket<K,V> forwardingBucket) {
+        Transfer<K,V> t = forwardingBucket.transfer;
+        if (t.transferIndex.get() > 0) {
+            transfer(t);
+        }
+        return forwardingBucket.nextTable;
+    }
+
+    private void transfer(Transfer<K,V> t) {
+        int n = t.tab.length;
+        while (true) {
+            int upper = t.transferIndex.get();
+            if (upper <= 0) {
+                return;
+            }
+            int lower = Math.max(0, upper - t.stride);
+            if (!t.transferIndex.compareAndSet(upper, lower)) {
+                continue;
+            }
+            for (int i = upper - 1; i >= lower; i--) {
+                moveBucket(t, i, n);
+            }
+            if (t.remaining.addAndGet(lower - upper) == 0) {
+                synchronized (resizeLock) {
+                    int newCap = t.nextTab.length;
+                    float ft = (float) newCap * loadFactor;
+                    threshold = ft >= (float) Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) ft;
+                    table = t.nextTab;
+                    nextTable = null;
+                    transfer = null;
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Copies bucket {@code i} of the old table into {@code i} and {@code i+n} of the next table and then
+     * leaves the forwarding marker behind. The old chain is left untouched for lock free readers: the
+     * tail that already goes to a single half is reused as it is and only the nodes in front of it are copied.
+     */
+    private void moveBucket(Transfer<K,V> t, int i, int n) {
+        Bucket<K,V>[] tab = t.tab, nextTab = t.nextTab;
+        while (true) {
+            Bucket<K,V> bucket = getBucket(tab, i);
+            if (bucket == null) {
+                if (casTabAt(tab, i, null, t.forwardingBucket)) {
+                    return;
+                }
+                continue;
+            }
+            synchronized (bucket) {
+                if (getBucket(tab, i) != bucket) {
+                    continue;
+                }
+                if (bucket instanceof TreeBin) {
+                    splitTreeBin((TreeBin<K,V>) bucket, nextTab, i, n);
+                    setTabAt(tab, i, t.forwardingBucket);
+                    return;
+                }
+                Node<K, V> node = bucket.node;
+                if (node != null) {
+                    Node<K, V> lastRun = node;
+                    int runBit = node.hash & n;
+                    for (Node<K, V> p = node.next; p != null; p = p.next) {
+                        int bit = p.hash & n;
+                        if (bit != runBit) {
+                            runBit = bit;
+                            lastRun = p;
+                        }
+                    }
+                    Node<K, V> lowHead = null, highHead = null;
+                    if (runBit == 0) {
+                        lowHead = lastRun;
+                    } else {
+                        highHead = lastRun;
+                    }
+                    for (Node<K, V> p = node; p != lastRun; p = p.next) {
+                        if ((p.hash & n) == 0) {
+                            lowHead = new Node<>(p.hash, p.key, p.value, lowHead);
+                        } else {
+                            highHead = new Node<>(p.hash, p.key, p.value, highHead);
+                        }
+                    }
+                    if (lowHead != null) {
+                        setTabAt(nextTab, i, new Bucket<>(lowHead));
+                    }
+                    if (highHead != null) {
+                        setTabAt(nextTab, i + n, new Bucket<>(highHead));
+                    }
+                }
+                setTabAt(tab, i, t.forwardingBucket);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Splits a tree bin between {@code i} and {@code i+n} of the next table. The nodes are copied, the old
+     * bin stays intact for readers, and a half that ends up short goes back to a plain chain.
+     */
+    private void splitTreeBin(TreeBin<K,V> treeBin, Bucket<K,V>[] nextTab, int i, int n) {
+        TreeNode<K,V> lo = null, loTail = null, hi = null, hiTail = null;
+        int lc = 0, hc = 0;
+        for (Node<K,V> e = treeBin.node; e != null; e = e.next) {
+            TreeNode<K,V> p = new TreeNode<>(e.hash, e.key, e.value, null, null);
+            if ((e.hash & n) == 0) {
+                if ((p.prev = loTail) == null) {
+                    lo = p;
+                } else {
+                    loTail.next = p;
+                }
+                loTail = p;
+                lc++;
+            } else {
+                if ((p.prev = hiTail) == null) {
+                    hi = p;
+                } else {
+                    hiTail.next = p;
+                }
+                hiTail = p;
+                hc++;
+            }
+        }
+        if (lo != null) {
+            setTabAt(nextTab, i, lc <= UNTREEIFY_THRESHOLD ? new Bucket<>(untreeify(lo)) : new TreeBin<>(lo));
+        }
+        if (hi != null) {
+            setTabAt(nextTab, i + n, hc <= UNTREEIFY_THRESHOLD ? new Bucket<>(untreeify(hi)) : new TreeBin<>(hi));
+        }
+    }
+
+    /**
+     * Replaces the chain at {@code index} by a {@link TreeBin}, or grows the table instead while it is
+     * smaller than {@link #MIN_TREEIFY_CAPACITY}. Called without any lock held, after the insert that made
+     * the chain too long.
+     */
+    private void treeifyBin(Bucket<K,V>[] tab, int index) {
+        if (tab.length < MIN_TREEIFY_CAPACITY) {
+            resize(tab);
+            return;
+        }
+        Bucket<K,V> bucket = getBucket(tab, index);
+        if (bucket == null || bucket instanceof ForwardingBucket || bucket instanceof TreeBin) {
+            return;
+        }
+        synchronized (bucket) {
+            if (getBucket(tab, index) == bucket) {
+                TreeNode<K,V> hd = null, tl = null;
+                for (Node<K,V> e = bucket.node; e != null; e = e.next) {
+                    TreeNode<K,V> p = new TreeNode<>(e.hash, e.key, e.value, null, null);
+                    if ((p.prev = tl) == null) {
+                        hd = p;
+                    } else {
+                        tl.next = p;
+                    }
+                    tl = p;
+                }
+                if (hd != null) {
+                    setTabAt(tab, index, new TreeBin<>(hd));
+                }
+            }
+        }
+    }
+
+    /**
+     * Plain chain with copies of the given tree nodes, so readers still walking the old bin are unaffected.
+     */
+    private static <K,V> Node<K,V> untreeify(Node<K,V> list) {
+        Node<K,V> hd = null, tl = null;
+        for (Node<K,V> q = list; q != null; q = q.next) {
+            Node<K,V> p = new Node<>(q.hash, q.key, q.value, null);
+            if (tl == null) {
+                hd = p;
+            } else {
+                tl.next = p;
+            }
+            tl = p;
+        }
+        return hd;
+    }
+
+    /**
+     * Number of leaf tasks a bulk operation is split into, 0 meaning run it sequentially in the caller.
+     * Same contract as {@code ConcurrentHashMap}: {@code Long.MAX_VALUE} never goes parallel and 1 gives
+     * the most parallelism.
+     */
+    private int batchFor(long parallelismThreshold) {
+        long n;
+        if (parallelismThreshold == Long.MAX_VALUE || (n = sumCount()) <= 1L || n < parallelismThreshold) {
+            return 0;
+        }
+        int sp = ForkJoinPool.getCommonPoolParallelism() << 2;
+        return (parallelismThreshold <= 0L || (n /= parallelismThreshold) >= sp) ? sp : (int) n;
+    }
+
+    private static <K,V,R> R invokeBulk(BulkTask<K,V,R> task) {
+        return task.batch > 0 ? ForkJoinPool.commonPool().invoke(task) : task.compute();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K,V> Bucket<K,V>[] newTable(int n) {
+        return (Bucket<K,V>[]) new Bucket<?,?>[n];
+    }
+
+    //<----------------------------------- static utilities --------------------------------->//
+
+    private static int tableSizeForCap(int cap) {
+        int n = cap-1;
+        n |= n >>> 1;
+        n |= n >>> 2;
+        n |= n >>> 4;
+        n |= n >>> 8;
+        n |= n >>> 16;
+        return n + 1;
+    }
+
+    private int hash(Object key) {
+        return key==null ? 0 : hashStrategy.hash(key.hashCode());
+    }
+
+    private static <K,V> Bucket<K,V> getBucket(Bucket<K,V>[] table, int index) {
+        return (MyConcurrentHashMap.Bucket<K,V>)U.getObjectVolatile(table, ((long)index << ASHIFT) + ABASE);
+    }
+
+    static final <K,V> void setTabAt (Bucket<K,V>[] tab, int i, Bucket<K,V> v) {
+        U.putObjectVolatile(tab, ((long)i << ASHIFT) + ABASE, v);
+    }
+
+    private static int getProbe() {
+        return U.getInt(Thread.currentThread(), PROBE);
+    }
+
+    private static int initProbe() {
+        ThreadLocalRandom.current();
+        int h = getProbe();
+        return h != 0 ? h : advanceProbe(1);
+    }
+
+    private static int advanceProbe(int h) {
+        h ^= h << 13;
+        h ^= h >>> 17;
+        h ^= h << 5;
+        U.putInt(Thread.currentThread(), PROBE, h);
+        return h;
+    }
+
+    /**
+     * Returns the class of {@code x} if it is of the form {@code class C implements Comparable<C>}, else null.
+     * Tree bins only use {@code compareTo} between keys of that same class.
+     */
+    private static Class<?> comparableClassFor(Object x) {
+        if(x instanceof Comparable) {
+            Class<?> c = x.getClass();
+            if(c == String.class) {
+                return c;
+            }
+            for(Type t : c.getGenericInterfaces()) {
+                if(t instanceof ParameterizedType) {
+                    ParameterizedType p = (ParameterizedType) t;
+                    Type[] as = p.getActualTypeArguments();
+                    if(p.getRawType() == Comparable.class && as.length == 1 && as[0] == c) {
+                        return c;
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    @SuppressWarnings({"rawtypes","unchecked"})
+    private static int compareComparables(Class<?> kc,Object k,Object x) {
+        return x == null || x.getClass() != kc ? 0 : ((Comparable) k).compareTo(x);
+    }
+
+    /**
+     * Last resort ordering for keys with equal hashes that are not mutually comparable. It does not have to
+     * be consistent over time, it only has to put a new node somewhere; lookups then search both subtrees.
+     */
+    private static int tieBreakOrder(Object a,Object b) {
+        int d;
+        if(a == null || b == null || (d = a.getClass().getName().compareTo(b.getClass().getName())) == 0) {
+            d = System.identityHashCode(a) <= System.identityHashCode(b) ? -1 : 1;
+        }
+        return d;
+    }
+
+    private static <K,V> boolean casTabAt(Bucket<K,V>[] tab, int i, Bucket<K,V> expected, Bucket<K,V> v) {
+        return U.compareAndSwapObject(tab, ((long)i << ASHIFT) + ABASE, expected, v);
+    }
+
+    private static class Node<K,V> implements Map.Entry<K,V> {
+        final int hash;
+        final K key;
+        volatile V value;
+        volatile Node<K,V> next;
+
+        Node(int hash,K key,V value,Node<K,V> next) {
+            this.hash = hash;
+            this.key = key;
+            this.value = value;
+            this.next = next;
+        }
+
+        @Override
+        public K getKey() {
+            return key;
+        }
+
+        @Override
+        public V getValue() {
+            return value;
+        }
+
+        @Override
+        public V setValue(V value) {
+            V oldValue = this.value;
+            this.value = value;
+            return oldValue;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(key) ^ Objects.hashCode(value);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(o instanceof Entry<?,?>) {
+                Entry<?,?> entry = (Entry<?,?>) o;
                 return Objects.equals(key,entry.getKey()) && Objects.equals(value,entry.getValue());
             }
             return false;
         }
     }
 
+    /**
+     * Head of a non empty slot. Buckets are only created, with a CAS, when the first node goes into a slot,
+     * and the bucket's own monitor is the lock for the whole chain.
+     */
     private static class Bucket<K,V> {
-        Node<K,V> node;
-        Lock bucketLock;
+        volatile Node<K,V> node;
+
+        Bucket(Node<K,V> node) {
+            this.node = node;
+        }
+    }
+
+    /**
+     * Left in a bucket of the old table once it has been moved. Readers follow it to {@code nextTable},
+     * writers join the transfer before retrying there.
+     */
+    private static final class ForwardingBucket<K,V> extends Bucket<K,V> {
+        final Bucket<K,V>[] nextTable;
+        final Transfer<K,V> transfer;
+
+        ForwardingBucket(Transfer<K,V> transfer) {
+            super(null);
+            this.nextTable = transfer.nextTab;
+            this.transfer = transfer;
+        }
+    }
+
+    /**
+     * Node of a {@link TreeBin}. Besides the tree links it keeps {@code prev}, so it can be unlinked from
+     * the bin's list without a scan.
+     */
+    private static final class TreeNode<K,V> extends Node<K,V> {
+        TreeNode<K,V> parent;
+        TreeNode<K,V> left;
+        TreeNode<K,V> right;
+        TreeNode<K,V> prev;
+        boolean red;
+
+        TreeNode(int hash,K key,V value,Node<K,V> next,TreeNode<K,V> parent) {
+            super(hash,key,value,next);
+            this.parent = parent;
+        }
+
+        /**
+         * Full search used by writers, which hold the bucket lock and so always see a consistent tree.
+         */
+        TreeNode<K,V> findTreeNode(int h,Object k,Class<?> kc) {
+            TreeNode<K,V> p = this;
+            do {
+                int ph, dir;
+                K pk;
+                TreeNode<K,V> pl = p.left, pr = p.right, q;
+                if((ph = p.hash) > h) {
+                    p = pl;
+                } else if(ph < h) {
+                    p = pr;
+                } else if((pk = p.key) == k || (k != null && k.equals(pk))) {
+                    return p;
+                } else if(pl == null) {
+                    p = pr;
+                } else if(pr == null) {
+                    p = pl;
+                } else if((kc != null || (kc = comparableClassFor(k)) != null) && (dir = compareComparables(kc,k,pk)) != 0) {
+                    p = dir < 0 ? pl : pr;
+                } else if((q = pr.findTreeNode(h,k,kc)) != null) {
+                    return q;
+                } else {
+                    p = pl;
+                }
+            } while(p != null);
+            return null;
+        }
+    }
+
+    /**
+     * Bucket whose nodes are kept in a red-black tree ordered by hash and then by {@code compareTo}, used
+     * once a chain grows past {@link #TREEIFY_THRESHOLD}. {@code node} still heads a list of all the tree
+     * nodes, so the traversers and the transfer need no special casing.
+     *
+     * Writers hold the bucket monitor like for any other bucket and bump {@code lockState} to an odd value
+     * while they restructure the tree. Readers stay lock free: they search the tree and only trust the
+     * result if {@code lockState} was even and unchanged around the search (a seqlock), otherwise they
+     * fall back to scanning the list, which is always safe to read.
+     */
+    private static final class TreeBin<K,V> extends Bucket<K,V> {
+        TreeNode<K,V> root;
+        volatile int lockState;
+
+        TreeBin(TreeNode<K,V> list) {
+            super(list);
+            TreeNode<K,V> r = null;
+            for(TreeNode<K,V> x = list, next; x != null; x = next) {
+                next = (TreeNode<K,V>) x.next;
+                x.left = x.right = null;
+                if(r == null) {
+                    x.parent = null;
+                    x.red = false;
+                    r = x;
+                } else {
+                    K k = x.key;
+                    int h = x.hash;
+                    Class<?> kc = null;
+                    for(TreeNode<K,V> p = r;;) {
+                        int dir, ph;
+                        K pk = p.key;
+                        if((ph = p.hash) > h) {
+                            dir = -1;
+                        } else if(ph < h) {
+                            dir = 1;
+                        } else if((kc == null && (kc = comparableClassFor(k)) == null) || (dir = compareComparables(kc,k,pk)) == 0) {
+                            dir = tieBreakOrder(k,pk);
+                        }
+                        TreeNode<K,V> xp = p;
+                        if((p = dir <= 0 ? p.left : p.right) == null) {
+                            x.parent = xp;
+                            if(dir <= 0) {
+                                xp.left = x;
+                            } else {
+                                xp.right = x;
+                            }
+                            r = balanceInsertion(r,x);
+                            break;
+                        }
+                    }
+                }
+            }
+            this.root = r;
+        }
+
+        private void lockRoot() {
+            U.getAndAddInt(this,LOCKSTATE,1);
+        }
+
+        private void unlockRoot() {
+            U.getAndAddInt(this,LOCKSTATE,1);
+        }
+
+        /**
+         * Lock free lookup. The tree walk is bounded, because a walk racing a rotation can see links that
+         * do not form a tree; such a walk fails validation anyway.
+         */
+        Node<K,V> find(int h,Object k) {
+            int stamp = lockState;
+            if((stamp & 1) == 0) {
+                TreeNode<K,V> p = root, found = null;
+                Class<?> kc = null;
+                boolean complete = false;
+                for(int steps = 0; steps < MAX_TREE_SEARCH_STEPS; steps++) {
+                    if(p == null) {
+                        complete = true;
+                        break;
+                    }
+                    int ph, dir;
+                    K pk;
+                    TreeNode<K,V> pl = p.left, pr = p.right;
+                    if((ph = p.hash) > h) {
+                        p = pl;
+                    } else if(ph < h) {
+                        p = pr;
+                    } else if((pk = p.key) == k || (k != null && k.equals(pk))) {
+                        found = p;
+                        complete = true;
+                        break;
+                    } else if(pl == null) {
+                        p = pr;
+                    } else if(pr == null) {
+                        p = pl;
+                    } else if((kc != null || (kc = comparableClassFor(k)) != null) && (dir = compareComparables(kc,k,pk)) != 0) {
+                        p = dir < 0 ? pl : pr;
+                    } else {
+                        break;
+                    }
+                }
+                U.loadFence();
+                if(complete && lockState == stamp) {
+                    return found;
+                }
+            }
+            for(Node<K,V> e = node; e != null; e = e.next) {
+                if(e.hash == h && Objects.equals(k,e.key)) {
+                    return e;
+                }
+            }
+            return null;
+        }
+
+        TreeNode<K,V> findTreeNode(int h,Object k) {
+            return root == null ? null : root.findTreeNode(h,k,null);
+        }
+
+        /**
+         * Caller holds the bucket lock. Returns the existing node for the key, or null after inserting one.
+         */
+        TreeNode<K,V> putTreeVal(int h,K k,V v) {
+            Class<?> kc = null;
+            boolean searched = false;
+            for(TreeNode<K,V> p = root;;) {
+                int dir, ph;
+                K pk;
+                if(p == null) {
+                    node = root = new TreeNode<>(h,k,v,null,null);
+                    break;
+                } else if((ph = p.hash) > h) {
+                    dir = -1;
+                } else if(ph < h) {
+                    dir = 1;
+                } else if((pk = p.key) == k || (k != null && k.equals(pk))) {
+                    return p;
+                } else if((kc == null && (kc = comparableClassFor(k)) == null) || (dir = compareComparables(kc,k,pk)) == 0) {
+                    if(!searched) {
+                        TreeNode<K,V> q, ch;
+                        searched = true;
+                        if(((ch = p.left) != null && (q = ch.findTreeNode(h,k,kc)) != null) ||
+                                ((ch = p.right) != null && (q = ch.findTreeNode(h,k,kc)) != null)) {
+                            return q;
+                        }
+                    }
+                    dir = tieBreakOrder(k,pk);
+                }
+                TreeNode<K,V> xp = p;
+                if((p = dir <= 0 ? p.left : p.right) == null) {
+                    TreeNode<K,V> x, f = (TreeNode<K,V>) node;
+                    x = new TreeNode<>(h,k,v,f,xp);
+                    if(f != null) {
+                        f.prev = x;
+                    }
+                    lockRoot();
+                    try {
+                        node = x;
+                        if(dir <= 0) {
+                            xp.left = x;
+                        } else {
+                            xp.right = x;
+                        }
+                        root = balanceInsertion(root,x);
+                    } finally {
+                        unlockRoot();
+                    }
+                    break;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Caller holds the bucket lock. Unlinks {@code p} from the list and the tree and returns true if the
+         * bin became so small that the caller should turn it back into a plain chain instead.
+         */
+        boolean removeTreeNode(TreeNode<K,V> p) {
+            TreeNode<K,V> next = (TreeNode<K,V>) p.next;
+            TreeNode<K,V> pred = p.prev;
+            TreeNode<K,V> r, rl;
+            if(pred == null) {
+                node = next;
+            } else {
+                pred.next = next;
+            }
+            if(next != null) {
+                next.prev = pred;
+            }
+            if(node == null) {
+                root = null;
+                return true;
+            }
+            if((r = root) == null || r.right == null || (rl = r.left) == null || rl.left == null) {
+                return true;
+            }
+            lockRoot();
+            try {
+                TreeNode<K,V> replacement;
+                TreeNode<K,V> pl = p.left, pr = p.right;
+                if(pl != null && pr != null) {
+                    TreeNode<K,V> s = pr, sl;
+                    while((sl = s.left) != null) {
+                        s = sl;
+                    }
+                    boolean c = s.red;
+                    s.red = p.red;
+                    p.red = c;
+                    TreeNode<K,V> sr = s.right;
+                    TreeNode<K,V> pp = p.parent;
+                    if(s == pr) {
+                        p.parent = s;
+                        s.right = p;
+                    } else {
+                        TreeNode<K,V> sp = s.parent;
+                        if((p.parent = sp) != null) {
+                            if(s == sp.left) {
+                                sp.left = p;
+                            } else {
+                                sp.right = p;
+                            }
+                        }
+                        if((s.right = pr) != null) {
+                            pr.parent = s;
+                        }
+                    }
+                    p.left = null;
+                    if((p.right = sr) != null) {
+                        sr.parent = p;
+                    }
+                    if((s.left = pl) != null) {
+                        pl.parent = s;
+                    }
+                    if((s.parent = pp) == null) {
+                        r = s;
+                    } else if(p == pp.left) {
+                        pp.left = s;
+                    } else {
+                        pp.right = s;
+                    }
+                    replacement = sr != null ? sr : p;
+                } else if(pl != null) {
+                    replacement = pl;
+                } else if(pr != null) {
+                    replacement = pr;
+                } else {
+                    replacement = p;
+                }
+                if(replacement != p) {
+                    TreeNode<K,V> pp = replacement.parent = p.parent;
+                    if(pp == null) {
+                        r = replacement;
+                    } else if(p == pp.left) {
+                        pp.left = replacement;
+                    } else {
+                        pp.right = replacement;
+                    }
+                    p.left = p.right = p.parent = null;
+                }
+                root = p.red ? r : balanceDeletion(r,replacement);
+                if(p == replacement) {
+                    TreeNode<K,V> pp;
+                    if((pp = p.parent) != null) {
+                        if(p == pp.left) {
+                            pp.left = null;
+                        } else if(p == pp.right) {
+                            pp.right = null;
+                        }
+                        p.parent = null;
+                    }
+                }
+            } finally {
+                unlockRoot();
+            }
+            return false;
+        }
+
+        //<------------------------- Red-black tree balancing (CLR) ------------------------->//
+
+        static <K,V> TreeNode<K,V> rotateLeft(TreeNode<K,V> root,TreeNode<K,V> p) {
+            TreeNode<K,V> r, pp, rl;
+            if(p != null && (r = p.right) != null) {
+                if((rl = p.right = r.left) != null) {
+                    rl.parent = p;
+                }
+                if((pp = r.parent = p.parent) == null) {
+                    (root = r).red = false;
+                } else if(pp.left == p) {
+                    pp.left = r;
+                } else {
+                    pp.right = r;
+                }
+                r.left = p;
+                p.parent = r;
+            }
+            return root;
+        }
+
+        static <K,V> TreeNode<K,V> rotateRight(TreeNode<K,V> root,TreeNode<K,V> p) {
+            TreeNode<K,V> l, pp, lr;
+            if(p != null && (l = p.left) != null) {
+                if((lr = p.left = l.right) != null) {
+                    lr.parent = p;
+                }
+                if((pp = l.parent = p.parent) == null) {
+                    (root = l).red = false;
+                } else if(pp.right == p) {
+                    pp.right = l;
+                } else {
+                    pp.left = l;
+                }
+                l.right = p;
+                p.parent = l;
+            }
+            return root;
+        }
+
+        static <K,V> TreeNode<K,V> balanceInsertion(TreeNode<K,V> root,TreeNode<K,V> x) {
+            x.red = true;
+            for(TreeNode<K,V> xp, xpp, xppl, xppr;;) {
+                if((xp = x.parent) == null) {
+                    x.red = false;
+                    return x;
+                } else if(!xp.red || (xpp = xp.parent) == null) {
+                    return root;
+                }
+                if(xp == (xppl = xpp.left)) {
+                    if((xppr = xpp.right) != null && xppr.red) {
+                        xppr.red = false;
+                        xp.red = false;
+                        xpp.red = true;
+                        x = xpp;
+                    } else {
+                        if(x == xp.right) {
+                            root = rotateLeft(root,x = xp);
+                            xpp = (xp = x.parent) == null ? null : xp.parent;
+                        }
+                        if(xp != null) {
+                            xp.red = false;
+                            if(xpp != null) {
+                                xpp.red = true;
+                                root = rotateRight(root,xpp);
+                            }
+                        }
+                    }
+                } else {
+                    if(xppl != null && xppl.red) {
+                        xppl.red = false;
+                        xp.red = false;
+                        xpp.red = true;
+                        x = xpp;
+                    } else {
+                        if(x == xp.left) {
+                            root = rotateRight(root,x = xp);
+                            xpp = (xp = x.parent) == null ? null : xp.parent;
+                        }
+                        if(xp != null) {
+                            xp.red = false;
+                            if(xpp != null) {
+                                xpp.red = true;
+                                root = rotateLeft(root,xpp);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        static <K,V> TreeNode<K,V> balanceDeletion(TreeNode<K,V> root,TreeNode<K,V> x) {
+            for(TreeNode<K,V> xp, xpl, xpr;;) {
+                if(x == null || x == root) {
+                    return root;
+                } else if((xp = x.parent) == null) {
+                    x.red = false;
+                    return x;
+                } else if(x.red) {
+                    x.red = false;
+                    return root;
+                } else if((xpl = xp.left) == x) {
+                    if((xpr = xp.right) != null && xpr.red) {
+                        xpr.red = false;
+                        xp.red = true;
+                        root = rotateLeft(root,xp);
+                        xpr = (xp = x.parent) == null ? null : xp.right;
+                    }
+                    if(xpr == null) {
+                        x = xp;
+                    } else {
+                        TreeNode<K,V> sl = xpr.left, sr = xpr.right;
+                        if((sr == null || !sr.red) && (sl == null || !sl.red)) {
+                            xpr.red = true;
+                            x = xp;
+                        } else {
+                            if(sr == null || !sr.red) {
+                                if(sl != null) {
+                                    sl.red = false;
+                                }
+                                xpr.red = true;
+                                root = rotateRight(root,xpr);
+                                xpr = (xp = x.parent) == null ? null : xp.right;
+                            }
+                            if(xpr != null) {
+                                xpr.red = xp != null && xp.red;
+                                if((sr = xpr.right) != null) {
+                                    sr.red = false;
+                                }
+                            }
+                            if(xp != null) {
+                                xp.red = false;
+                                root = rotateLeft(root,xp);
+                            }
+                            x = root;
+                        }
+                    }
+                } else {
+                    if(xpl != null && xpl.red) {
+                        xpl.red = false;
+                        xp.red = true;
+                        root = rotateRight(root,xp);
+                        xpl = (xp = x.parent) == null ? null : xp.left;
+                    }
+                    if(xpl == null) {
+                        x = xp;
+                    } else {
+                        TreeNode<K,V> sl = xpl.left, sr = xpl.right;
+                        if((sl == null || !sl.red) && (sr == null || !sr.red)) {
+                            xpl.red = true;
+                            x = xp;
+                        } else {
+                            if(sl == null || !sl.red) {
+                                if(sr != null) {
+                                    sr.red = false;
+                                }
+                                xpl.red = true;
+                                root = rotateLeft(root,xpl);
+                                xpl = (xp = x.parent) == null ? null : xp.left;
+                            }
+                            if(xpl != null) {
+                                xpl.red = xp != null && xp.red;
+                                if((sl = xpl.left) != null) {
+                                    sl.red = false;
+                                }
+                            }
+                            if(xp != null) {
+                                xp.red = false;
+                                root = rotateRight(root,xp);
+                            }
+                            x = root;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * State of one resize. {@code transferIndex} counts down as threads claim strides of the old table and
+     * {@code remaining} counts down as they finish them, so whoever moves the last bucket publishes the new table.
+     */
+    private static final class Transfer<K,V> {
+        final Bucket<K,V>[] tab, nextTab;
+        final int stride;
+        final AtomicInteger transferIndex, remaining;
+        final ForwardingBucket<K,V> forwardingBucket;
+
+        Transfer(Bucket<K,V>[] tab, Bucket<K,V>[] nextTab, int stride) {
+            this.tab = tab;
+            this.nextTab = nextTab;
+            this.stride = stride;
+            this.transferIndex = new AtomicInteger(tab.length);
+            this.remaining = new AtomicInteger(tab.length);
+            this.forwardingBucket = new ForwardingBucket<>(this);
+        }
+    }
+
+    /**
+     * One stripe of the size counter, padded so neighbouring cells do not share a cache line.
+     */
+    private static final class CounterCell {
+        long p0, p1, p2, p3, p4, p5, p6;
+        volatile long value;
+        long q0, q1, q2, q3, q4, q5, q6;
+
+        CounterCell(long value) {
+            this.value = value;
+        }
+    }
+
+    /**
+     * Weakly consistent walk over the bins {@code [baseIndex, baseLimit)} of a table. A bin that was already
+     * moved by a resize is replaced by the two bins it was split into in the next table, so a concurrent
+     * resize never makes us skip or repeat a mapping that is not itself being changed.
+     */
+    static class Traverser<K,V> {
+        final Bucket<K,V>[] tab;
+        int baseLimit;
+        int baseIndex;
+        Node<K,V> next;
+        PendingBin<K,V> pending;
+
+        Traverser(Bucket<K,V>[] tab) {
+            this(tab, 0, tab == null ? 0 : tab.length);
+        }
+
+        Traverser(Bucket<K,V>[] tab, int baseIndex, int baseLimit) {
+            this.tab = tab;
+            this.baseIndex = baseIndex;
+            this.baseLimit = baseLimit;
+        }
+
+        final Node<K,V> advance() {
+            Node<K,V> node = next;
+            if (node != null) {
+                node = node.next;
+            }
+            while (node == null) {
+                Bucket<K,V>[] t;
+                int i;
+                if (pending != null) {
+                    t = pending.tab;
+                    i = pending.index;
+                    pending = pending.next;
+                } else if (baseIndex < baseLimit) {
+                    t = tab;
+                    i = baseIndex++;
+                } else {
+                    return next = null;
+                }
+                Bucket<K,V> bucket = getBucket(t, i);
+                if (bucket instanceof ForwardingBucket) {
+                    Bucket<K,V>[] nextTab = ((ForwardingBucket<K,V>) bucket).nextTable;
+                    pending = new PendingBin<>(nextTab, i + t.length, pending);
+                    pending = new PendingBin<>(nextTab, i, pending);
+                } else if (bucket != null) {
+                    node = bucket.node;
+                }
+            }
+            return next = node;
+        }
+    }
+
+    private static final class PendingBin<K,V> {
+        final Bucket<K,V>[] tab;
+        final int index;
+        final PendingBin<K,V> next;
+
+        PendingBin(Bucket<K,V>[] tab, int index, PendingBin<K,V> next) {
+            this.tab = tab;
+            this.index = index;
+            this.next = next;
+        }
+    }
+
+    /**
+     * Splits its range of bins in halves while {@code batch} allows it, then runs {@link #leaf} on a
+     * {@link Traverser} over what is left.
+     */
+    @SuppressWarnings("serial")   // ForkJoinTask is Serializable, these tasks never are
+    private abstract static class BulkTask<K,V,R> extends RecursiveTask<R> {
+        final Bucket<K,V>[] tab;
+        final int lo, hi, batch;
+
+        BulkTask(Bucket<K,V>[] tab, int lo, int hi, int batch) {
+            this.tab = tab;
+            this.lo = lo;
+            this.hi = hi;
+            this.batch = batch;
+        }
+
+        @Override
+        protected final R compute() {
+            if (batch > 0 && hi - lo > 1) {
+                int mid = (lo + hi) >>> 1;
+                BulkTask<K,V,R> right = subTask(mid, hi, batch >>> 1);
+                right.fork();
+                R left = subTask(lo, mid, batch >>> 1).compute();
+                return combine(left, right.join());
+            }
+            return leaf(new Traverser<>(tab, lo, hi));
+        }
+
+        abstract BulkTask<K,V,R> subTask(int lo, int hi, int batch);
+
+        abstract R leaf(Traverser<K,V> it);
+
+        abstract R combine(R left, R right);
+    }
+
+    /**
+     * Puts one range of the {@link #bulkLoad} arrays, halving it while there is batch left to split.
+     */
+    @SuppressWarnings("serial")   // ForkJoinTask is Serializable, this task never is
+    private final class BulkLoadTask extends RecursiveAction {
+        final K[] keys;
+        final V[] values;
+        final int lo, hi, batch;
+
+        BulkLoadTask(K[] keys, V[] values, int lo, int hi, int batch) {
+            this.keys = keys;
+            this.values = values;
+            this.lo = lo;
+            this.hi = hi;
+            this.batch = batch;
+        }
+
+        @Override
+        protected void compute() {
+            if (batch > 0 && hi - lo >= MIN_BULK_LOAD_RANGE << 1) {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new BulkLoadTask(keys, values, lo, mid, batch >>> 1),
+                        new BulkLoadTask(keys, values, mid, hi, batch >>> 1));
+                return;
+            }
+            for (int i = lo; i < hi; i++) {
+                putVal(keys[i], values[i], false);
+            }
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static final class ForEachTask<K,V> extends BulkTask<K,V,Void> {
+        final BiConsumer<? super K, ? super V> action;
+
+        ForEachTask(Bucket<K,V>[] tab, int lo, int hi, int batch, BiConsumer<? super K, ? super V> action) {
+            super(tab, lo, hi, batch);
+            this.action = action;
+        }
+
+        @Override
+        BulkTask<K,V,Void> subTask(int lo, int hi, int batch) {
+            return new ForEachTask<>(tab, lo, hi, batch, action);
+        }
+
+        @Override
+        Void leaf(Traverser<K,V> it) {
+            for (Node<K,V> node; (node = it.advance()) != null; ) {
+                action.accept(node.key, node.value);
+            }
+            return null;
+        }
+
+        @Override
+        Void combine(Void left, Void right) {
+            return null;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static final class ReduceValuesToLongTask<K,V> extends BulkTask<K,V,Long> {
+        final ToLongFunction<? super V> transformer;
+        final long basis;
+        final LongBinaryOperator reducer;
+
+        ReduceValuesToLongTask(Bucket<K,V>[] tab, int lo, int hi, int batch, ToLongFunction<? super V> transformer,
+                               long basis, LongBinaryOperator reducer) {
+            super(tab, lo, hi, batch);
+            this.transformer = transformer;
+            this.basis = basis;
+            this.reducer = reducer;
+        }
+
+        @Override
+        BulkTask<K,V,Long> subTask(int lo, int hi, int batch) {
+            return new ReduceValuesToLongTask<>(tab, lo, hi, batch, transformer, basis, reducer);
+        }
+
+        @Override
+        Long leaf(Traverser<K,V> it) {
+            long r = basis;
+            for (Node<K,V> node; (node = it.advance()) != null; ) {
+                r = reducer.applyAsLong(r, transformer.applyAsLong(node.value));
+            }
+            return r;
+        }
+
+        @Override
+        Long combine(Long left, Long right) {
+            return reducer.applyAsLong(left, right);
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static final class SearchTask<K,V,U> extends BulkTask<K,V,U> {
+        final BiFunction<? super K, ? super V, ? extends U> searchFunction;
+        final AtomicReference<U> result;
+
+        SearchTask(Bucket<K,V>[] tab, int lo, int hi, int batch,
+                   BiFunction<? super K, ? super V, ? extends U> searchFunction, AtomicReference<U> result) {
+            super(tab, lo, hi, batch);
+            this.searchFunction = searchFunction;
+            this.result = result;
+        }
+
+        @Override
+        BulkTask<K,V,U> subTask(int lo, int hi, int batch) {
+            return new SearchTask<>(tab, lo, hi, batch, searchFunction, result);
+        }
+
+        @Override
+        U leaf(Traverser<K,V> it) {
+            for (Node<K,V> node; result.get() == null && (node = it.advance()) != null; ) {
+                U u = searchFunction.apply(node.key, node.value);
+                if (u != null) {
+                    result.compareAndSet(null, u);
+                    break;
+                }
+            }
+            return result.get();
+        }
 
-        Bucket() {
-            bucketLock = new ReentrantLock();
+        @Override
+        U combine(U left, U right) {
+            return result.get();
         }
     }
 
@@ -0,0 +1,571 @@
+package concurrent;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Micro task runs for {@link FixedThreadPool}: {@code PoolBenchmark <benchmark> [name=value ...]}, run without
+ * arguments for the list. A task only notes the time it started, so what is measured is the pool itself: tasks
+ * per second from the first submit to the last start, the latency from submit to start over all tasks, and the
+ * bytes every thread allocated per task. One thread submits all tasks. Every pool runs the same number of tasks
+ * once to warm up and then once measured.
+ *
+ * These are plain timing loops, not JMH; see {@link MapBenchmark} for how to run them.
+ */
+public class PoolBenchmark {
+
+    public static void main(String[] args) throws InterruptedException, IOException {
+        if(args.length<1) {
+            usage();
+        }
+        Map<String,String> options = MapBenchmark.parseOptions(args);
+        switch(args[0]) {
+            case "batch":
+                batch(options);
+                break;
+            case "queue":
+                queue(options);
+                break;
+            case "metrics":
+                metrics(options);
+                break;
+            case "scaling":
+                scaling(options);
+                break;
+            case "io":
+                io(options);
+                break;
+            default:
+                usage();
+        }
+    }
+
+    //<----------------------------------------- Benchmarks ------------------------------------------->//
+
+    /**
+     * Tasks submitted with {@link FixedThreadPool#executeAll} in chunks of each batch size, with the shared
+     * queue pool's {@link FixedThreadPool#setBatchSize} set to the same size; batch size 1 uses
+     * {@link FixedThreadPool#execute}. Work stealing ignores the batch size but still gets the chunks.
+     * Options: tasks, workers, batchSizes.
+     */
+    static void batch(Map<String,String> options) throws InterruptedException {
+        int n = MapBenchmark.intOption(options,"tasks",1_000_000);
+        int workers = MapBenchmark.intOption(options,"workers",4);
+        int[] batchSizes = MapBenchmark.intsOption(options,"batchSizes",new int[]{1,4,16,64,256});
+        System.out.println("batch: " + n + " no-op tasks, " + workers + " workers");
+        System.out.printf("%10s %-44s %-44s%n","batch size","shared queue","work stealing");
+        for(int batchSize : batchSizes) {
+            Result shared = measure(n,batchSize,() -> {
+                FixedThreadPool pool = new FixedThreadPool(workers);
+                pool.setBatchSize(batchSize);
+                return pool;
+            });
+            Result stealing = measure(n,batchSize,() -> new FixedThreadPool(workers,FixedThreadPool.Mode.WORK_STEALING));
+            System.out.printf("%10d %-44s %-44s%n",batchSize,shared.throughputAndLatency(),stealing.throughputAndLatency());
+        }
+    }
+
+    /**
+     * The shared queue pool on its default unbounded {@link LinkedBlockingQueue}, on one bounded to
+     * {@code capacity}, and on a {@link RingBufferTaskQueue} of the same capacity, every task submitted with
+     * {@link FixedThreadPool#execute}. The bounded pools make the submitter wait for room instead of
+     * rejecting. Besides throughput and latency this prints the bytes allocated per task by all threads,
+     * submitter included, and the collections during the run. Options: tasks, workers, capacity.
+     */
+    static void queue(Map<String,String> options) throws InterruptedException {
+        int n = MapBenchmark.intOption(options,"tasks",1_000_000);
+        int workers = MapBenchmark.intOption(options,"workers",4);
+        int capacity = MapBenchmark.intOption(options,"capacity",1 << 16);
+        System.out.println("queue: " + n + " no-op tasks, " + workers + " workers, capacity " + capacity);
+        System.out.printf("%-30s %-36s %10s %6s%n","","","B/task","GCs");
+        printQueueRow("LinkedBlockingQueue unbounded",measure(n,1,() -> new FixedThreadPool(workers)));
+        printQueueRow("LinkedBlockingQueue",measure(n,1,() -> boundedPool(workers,new LinkedBlockingQueue<>(capacity))));
+        printQueueRow("RingBufferTaskQueue",measure(n,1,() -> boundedPool(workers,new RingBufferTaskQueue(capacity))));
+    }
+
+    /**
+     * What {@link FixedThreadPool#setMetricsEnabled metrics} cost per task, with the default sample rate:
+     * rounds of no-op tasks with metrics off and then on, and the median of the difference within a round,
+     * which is steadier than the difference of the medians. "local" is a work stealing pool with one worker
+     * that submits the tasks to its own deque and then runs them, the cheapest path a task can take, so that
+     * a few ns are not lost in the noise of a contended queue. "shared" is the shared queue with one outside
+     * submitter, as in the batch benchmark, and says what the same cost amounts to there. Options: tasks,
+     * rounds, workers.
+     */
+    static void metrics(Map<String,String> options) throws InterruptedException {
+        int n = MapBenchmark.intOption(options,"tasks",1_000_000);
+        int rounds = MapBenchmark.intOption(options,"rounds",21);
+        int workers = MapBenchmark.intOption(options,"workers",4);
+        System.out.println("metrics: ns per no-op task, median of " + rounds + " rounds");
+        System.out.printf("%-8s %10s %10s %10s %16s%n","","off","on","overhead","middle half");
+        double[][] local = new double[3][rounds];
+        FixedThreadPool pool = new FixedThreadPool(1,FixedThreadPool.Mode.WORK_STEALING);
+        try {
+            for(int r=-2;r<rounds;r++) {
+                pool.setMetricsEnabled(false);
+                double off = localNanosPerTask(pool,n);
+                pool.setMetricsEnabled(true);
+                double on = localNanosPerTask(pool,n);
+                if(r>=0) {
+                    record(local,r,off,on);
+                }
+            }
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(1,TimeUnit.MINUTES);
+        }
+        printOverhead("local",local);
+        double[][] shared = new double[3][rounds];
+        for(int r=0;r<rounds;r++) {
+            double off = 1e3 / measure(n,1,() -> new FixedThreadPool(workers)).throughput;
+            double on = 1e3 / measure(n,1,() -> {
+                FixedThreadPool metered = new FixedThreadPool(workers);
+                metered.setMetricsEnabled(true);
+                return metered;
+            }).throughput;
+            record(shared,r,off,on);
+        }
+        printOverhead("shared",shared);
+    }
+
+    /**
+     * Throughput of each mode by worker count, every task submitted with {@link FixedThreadPool#execute}.
+     * "outside" is one outside thread submitting all tasks, as in the other benchmarks. "local" submits one
+     * seed task per worker, which then submits its share of the tasks from inside the pool: work stealing
+     * puts them on the worker's own deque, for the others to steal, while the shared queue has every worker
+     * offer to the one queue. Only this column can scale past what a single submitter feeds. Options: tasks,
+     * workers.
+     */
+    static void scaling(Map<String,String> options) throws InterruptedException {
+        int n = MapBenchmark.intOption(options,"tasks",1_000_000);
+        int[] workerCounts = MapBenchmark.intsOption(options,"workers",new int[]{1,2,4,8});
+        System.out.println("scaling: " + n + " no-op tasks, Mt/s, " + Runtime.getRuntime().availableProcessors()
+                + " cores");
+        System.out.printf("%8s %20s %20s %20s %20s%n","workers","shared outside","stealing outside","shared local",
+                "stealing local");
+        for(int workers : workerCounts) {
+            double sharedOutside = measure(n,1,() -> new FixedThreadPool(workers)).throughput;
+            double stealingOutside = measure(n,1,() -> new FixedThreadPool(workers,FixedThreadPool.Mode.WORK_STEALING)).throughput;
+            double sharedLocal = fanOut(new FixedThreadPool(workers),n,workers);
+            double stealingLocal = fanOut(new FixedThreadPool(workers,FixedThreadPool.Mode.WORK_STEALING),n,workers);
+            System.out.printf("%8d %20.2f %20.2f %20.2f %20.2f%n",workers,sharedOutside,stealingOutside,sharedLocal,
+                    stealingLocal);
+        }
+    }
+
+    /**
+     * Tasks that block the way I/O bound tasks do, on {@link FixedThreadPool.Mode#VIRTUAL_THREADS} against
+     * {@link FixedThreadPool.Mode#SHARED_QUEUE} with the same pool size, so both run as many tasks at a time.
+     * With {@code kind=sleep} a task sleeps {@code blockMillis}; with {@code kind=socket} it connects to a local
+     * server that answers after that long and blocks reading the answer. All tasks are submitted at once. The
+     * row shows the time until the last one finished, submit to finish latency, and the peak number of
+     * platform threads, which is where the modes part: a virtual worker parks and gives its carrier back while
+     * it blocks. Virtual threads need Java 21. Every socket task takes two file descriptors in this process.
+     * Options: tasks, poolSizes, blockMillis, kind.
+     */
+    static void io(Map<String,String> options) throws InterruptedException, IOException {
+        int n = MapBenchmark.intOption(options,"tasks",20_000);
+        int[] poolSizes = MapBenchmark.intsOption(options,"poolSizes",new int[]{100,1000,4000});
+        int blockMillis = MapBenchmark.intOption(options,"blockMillis",10);
+        String kind = options.getOrDefault("kind","sleep");
+        if(!kind.equals("sleep") && !kind.equals("socket")) {
+            throw new IllegalArgumentException("Illegal kind:" + kind);
+        }
+        boolean virtual = FixedThreadPool.isVirtualThreadsAvailable();
+        System.out.println("io: " + n + " tasks blocking " + blockMillis + " ms in " + kind + ", "
+                + Runtime.getRuntime().availableProcessors() + " cores");
+        if(!virtual) {
+            System.out.println("virtual threads are not available on this JVM, shared queue only");
+        }
+        System.out.printf("%10s %-16s %10s %12s %22s %16s%n","pool size","mode","ms","Ktasks/s","p50/p99 ms",
+                "peak threads");
+        try(SlowServer server = kind.equals("socket") ? new SlowServer(blockMillis) : null) {
+            AtomicInteger failures = new AtomicInteger();
+            Runnable block = server==null ? () -> sleep(blockMillis) : () -> server.call(failures);
+            for(int poolSize : poolSizes) {
+                printIoRow(poolSize,FixedThreadPool.Mode.SHARED_QUEUE,n,block);
+                if(virtual) {
+                    printIoRow(poolSize,FixedThreadPool.Mode.VIRTUAL_THREADS,n,block);
+                }
+            }
+            if(failures.get()>0) {
+                System.out.println(failures.get() + " socket calls failed");
+            }
+        }
+    }
+
+    //<--------------------------------- Private Helper methods --------------------------------------->//
+
+    private static FixedThreadPool boundedPool(int workers,BlockingQueue<Runnable> queue) {
+        return new FixedThreadPool(workers,60,TimeUnit.SECONDS,FixedThreadPool.Mode.SHARED_QUEUE,queue,
+                RejectionPolicy.blockWithTimeout(1,TimeUnit.MINUTES));
+    }
+
+    private static void printQueueRow(String name,Result result) {
+        System.out.printf("%-30s %-36s %10.1f %6d%n",name,result.throughputAndLatency(),result.bytesPerTask,result.gcs);
+    }
+
+    /**
+     * Submits {@code n} tasks from the pool's only worker to its own deque and times them until the last has
+     * run. The owner takes from its deque last in first out, so the task that stops the clock goes in first.
+     */
+    private static double localNanosPerTask(FixedThreadPool pool,int n) throws InterruptedException {
+        long[] times = new long[2];
+        CountDownLatch done = new CountDownLatch(1);
+        Runnable noop = () -> { };
+        pool.execute(() -> {
+            times[0] = System.nanoTime();
+            pool.execute(() -> {
+                times[1] = System.nanoTime();
+                done.countDown();
+            });
+            for(int i=0;i<n;i++) {
+                pool.execute(noop);
+            }
+        });
+        done.await();
+        return (double) (times[1] - times[0]) / n;
+    }
+
+    /**
+     * Runs {@code n} blocking tasks on a new pool once to warm up and once measured, then shuts it down.
+     */
+    private static void printIoRow(int poolSize,FixedThreadPool.Mode mode,int n,Runnable block) throws InterruptedException {
+        FixedThreadPool pool = new FixedThreadPool(poolSize,mode);
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        try {
+            ioRound(pool,n,block);
+            threads.resetPeakThreadCount();
+            long begin = System.nanoTime();
+            LatencyHistogram latencies = ioRound(pool,n,block);
+            double millis = (System.nanoTime() - begin) / 1e6;
+            System.out.printf("%10d %-16s %10.0f %12.2f %10.1f/%-11.1f %16d%n",poolSize,mode,millis,n / millis,
+                    latencies.valueAtPercentile(50) / 1e6,latencies.valueAtPercentile(99) / 1e6,
+                    threads.getPeakThreadCount());
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(1,TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * Submits {@code n} tasks running {@code block} and waits for all of them; returns the submit to finish
+     * latencies.
+     */
+    private static LatencyHistogram ioRound(FixedThreadPool pool,int n,Runnable block) throws InterruptedException {
+        long[] submitted = new long[n];
+        long[] finished = new long[n];
+        CountDownLatch done = new CountDownLatch(n);
+        for(int i=0;i<n;i++) {
+            int id = i;
+            submitted[i] = System.nanoTime();
+            pool.execute(() -> {
+                block.run();
+                finished[id] = System.nanoTime();
+                done.countDown();
+            });
+        }
+        done.await();
+        LatencyHistogram latencies = new LatencyHistogram();
+        for(int i=0;i<n;i++) {
+            latencies.record(finished[i] - submitted[i]);
+        }
+        return latencies;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Answers every connection with one byte {@code delayMillis} after accepting it, from one accepting and
+     * one timer thread, so that the server needs no thread per connection and adds no threads of its own to
+     * the peak while the pool blocks on it.
+     */
+    private static final class SlowServer implements Closeable {
+        private final ServerSocket serverSocket;
+        private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+
+        SlowServer(long delayMillis) throws IOException {
+            serverSocket = new ServerSocket(0,1 << 16,InetAddress.getLoopbackAddress());
+            Thread acceptor = new Thread(() -> {
+                while(!serverSocket.isClosed()) {
+                    try {
+                        Socket socket = serverSocket.accept();
+                        timer.schedule(() -> answer(socket),delayMillis,TimeUnit.MILLISECONDS);
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        /**
+         * Connects and blocks until the answer arrives; counts a failure rather than throwing, as a task that
+         * throws would not count down.
+         */
+        void call(AtomicInteger failures) {
+            try(Socket socket = new Socket(InetAddress.getLoopbackAddress(),serverSocket.getLocalPort())) {
+                if(socket.getInputStream().read()<0) {
+                    failures.incrementAndGet();
+                }
+            } catch (IOException e) {
+                failures.incrementAndGet();
+            }
+        }
+
+        private static void answer(Socket socket) {
+            try(Socket s = socket) {
+                s.getOutputStream().write(1);
+            } catch (IOException ignored) {
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+            timer.shutdownNow();
+        }
+    }
+
+    /**
+     * Runs {@link #fanOutRound} on {@code pool} twice, then shuts it down, and returns millions of tasks per
+     * second of the second round.
+     */
+    private static double fanOut(FixedThreadPool pool,int n,int seeds) throws InterruptedException {
+        try {
+            fanOutRound(pool,n,seeds);
+            return n / (fanOutRound(pool,n,seeds) / 1e9) / 1e6;
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(1,TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * Nanos until {@code n} no-op tasks, submitted by {@code seeds} tasks running in the pool, have all run.
+     * Each seed's tasks count down their own counter, so the tasks only share a cache line when one of them
+     * was stolen.
+     */
+    private static long fanOutRound(FixedThreadPool pool,int n,int seeds) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(seeds);
+        long begin = System.nanoTime();
+        for(int s=0;s<seeds;s++) {
+            int share = n / seeds + (s < n % seeds ? 1 : 0);
+            if(share==0) {
+                done.countDown();
+                continue;
+            }
+            AtomicInteger remaining = new AtomicInteger(share);
+            Runnable task = () -> {
+                if(remaining.decrementAndGet()==0) {
+                    done.countDown();
+                }
+            };
+            pool.execute(() -> {
+                for(int i=0;i<share;i++) {
+                    pool.execute(task);
+                }
+            });
+        }
+        done.await();
+        return System.nanoTime() - begin;
+    }
+
+    /**
+     * Off, on and their difference for round {@code r}.
+     */
+    private static void record(double[][] rounds,int r,double off,double on) {
+        rounds[0][r] = off;
+        rounds[1][r] = on;
+        rounds[2][r] = on - off;
+    }
+
+    private static void printOverhead(String name,double[][] rounds) {
+        double[][] sorted = new double[3][];
+        for(int i=0;i<3;i++) {
+            sorted[i] = rounds[i].clone();
+            Arrays.sort(sorted[i]);
+        }
+        int n = sorted[0].length;
+        System.out.printf("%-8s %10.1f %10.1f %+10.1f %7.1f..%-7.1f%n",name,sorted[0][n / 2],sorted[1][n / 2],
+                sorted[2][n / 2],sorted[2][n / 4],sorted[2][(3 * n) / 4]);
+    }
+
+    /**
+     * Runs {@code n} tasks on a new pool twice and returns the second run.
+     */
+    static Result measure(int n,int batchSize,Supplier<FixedThreadPool> pools) throws InterruptedException {
+        FixedThreadPool pool = pools.get();
+        try {
+            run(pool,new Round(n),batchSize);
+            return run(pool,new Round(n),batchSize);
+        } finally {
+            pool.shutdown();
+            pool.awaitTermination(1,TimeUnit.MINUTES);
+        }
+    }
+
+    private static Result run(FixedThreadPool pool,Round round,int batchSize) throws InterruptedException {
+        Probe[] probes = round.probes;
+        int n = probes.length;
+        Map<Long,Long> allocatedBefore = allocatedBytes();
+        long gcsBefore = collections();
+        if(batchSize==1) {
+            for(int i=0;i<n;i++) {
+                round.submitted[i] = System.nanoTime();
+                pool.execute(probes[i]);
+            }
+        } else {
+            for(int i=0;i<n;i+=batchSize) {
+                int end = Math.min(i + batchSize,n);
+                long now = System.nanoTime();
+                for(int j=i;j<end;j++) {
+                    round.submitted[j] = now;
+                }
+                pool.executeAll(Arrays.asList(probes).subList(i,end));
+            }
+        }
+        round.done.await();
+        long gcs = collections() - gcsBefore;
+        long allocated = allocatedSince(allocatedBefore);
+        LatencyHistogram latencies = new LatencyHistogram();
+        long lastStart = Long.MIN_VALUE;
+        for(int i=0;i<n;i++) {
+            latencies.record(round.started[i] - round.submitted[i]);
+            lastStart = Math.max(lastStart,round.started[i]);
+        }
+        double seconds = (lastStart - round.submitted[0]) / 1e9;
+        return new Result(n / seconds / 1e6,latencies,(double) allocated / n,gcs);
+    }
+
+    /**
+     * One run's tasks and the times they were submitted and started, by task index.
+     */
+    private static final class Round {
+        final Probe[] probes;
+        final long[] submitted;
+        final long[] started;
+        final AtomicInteger remaining;
+        final CountDownLatch done = new CountDownLatch(1);
+
+        Round(int n) {
+            probes = new Probe[n];
+            submitted = new long[n];
+            started = new long[n];
+            remaining = new AtomicInteger(n);
+            for(int i=0;i<n;i++) {
+                probes[i] = new Probe(this,i);
+            }
+        }
+    }
+
+    private static final class Probe implements Runnable {
+        private final Round round;
+        private final int id;
+
+        Probe(Round round,int id) {
+            this.round = round;
+            this.id = id;
+        }
+
+        @Override
+        public void run() {
+            round.started[id] = System.nanoTime();
+            if(round.remaining.decrementAndGet()==0) {
+                round.done.countDown();
+            }
+        }
+    }
+
+    static final class Result {
+        final double throughput;
+        final LatencyHistogram latencies;
+        final double bytesPerTask;
+        final long gcs;
+
+        Result(double throughput,LatencyHistogram latencies,double bytesPerTask,long gcs) {
+            this.throughput = throughput;
+            this.latencies = latencies;
+            this.bytesPerTask = bytesPerTask;
+            this.gcs = gcs;
+        }
+
+        /**
+         * Millions of tasks per second and p50/p99/p99.9 submit to start latency in microseconds.
+         */
+        String throughputAndLatency() {
+            return String.format("%.2f Mt/s %.1f/%.1f/%.1f us",throughput,latencies.valueAtPercentile(50) / 1e3,
+                    latencies.valueAtPercentile(99) / 1e3,latencies.valueAtPercentile(99.9) / 1e3);
+        }
+    }
+
+    /**
+     * Bytes allocated so far by every live thread, by thread id.
+     */
+    private static Map<Long,Long> allocatedBytes() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long[] ids = threads.getAllThreadIds();
+        long[] bytes = threads.getThreadAllocatedBytes(ids);
+        Map<Long,Long> allocated = new HashMap<>();
+        for(int i=0;i<ids.length;i++) {
+            if(bytes[i]>=0) {
+                allocated.put(ids[i],bytes[i]);
+            }
+        }
+        return allocated;
+    }
+
+    /**
+     * Bytes allocated since {@code before} by the threads alive now; threads started since count in full,
+     * threads that ended since are missed.
+     */
+    private static long allocatedSince(Map<Long,Long> before) {
+        long total = 0;
+        for(Map.Entry<Long,Long> thread : allocatedBytes().entrySet()) {
+            total += thread.getValue() - before.getOrDefault(thread.getKey(),0L);
+        }
+        return total;
+    }
+
+    private static long collections() {
+        long count = 0;
+        for(GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0,collector.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static void usage() {
+        System.out.println("Usage: PoolBenchmark <benchmark> [name=value ...]");
+        System.out.println("  batch   tasks=1000000 workers=4 batchSizes=1,4,16,64,256   executeAll and batched dequeue");
+        System.out.println("  queue   tasks=1000000 workers=4 capacity=65536   LinkedBlockingQueue vs RingBufferTaskQueue");
+        System.out.println("  metrics tasks=1000000 rounds=21 workers=4   cost of metrics per task, off vs on");
+        System.out.println("  scaling tasks=1000000 workers=1,2,4,8   throughput by worker count, outside and local submits");
+        System.out.println("  io      tasks=20000 poolSizes=100,1000,4000 blockMillis=10 kind=sleep|socket   blocking tasks, virtual vs platform");
+        System.exit(0);
+    }
+}
@@ -0,0 +1,168 @@
+package concurrent;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What a {@link FixedThreadPool} has done while its metrics were on, as taken by
+ * {@link FixedThreadPool#getMetrics()}. The fields are read one after the other while the pool is running, so
+ * they need not add up exactly.
+ */
+public final class PoolMetrics {
+
+    private final int poolSize;
+    private final int activeWorkers;
+    private final int queueDepth;
+    private final long submittedTasks;
+    private final long completedTasks;
+    private final long failedTasks;
+    private final long rejectedTasks;
+    private final double busyRatio;
+    private final LatencyHistogram queueWaitTimes;
+    private final LatencyHistogram runTimes;
+    private final List<WorkerMetrics> workers;
+
+    PoolMetrics(int poolSize,int activeWorkers,int queueDepth,long submittedTasks,long completedTasks,
+                long failedTasks,long rejectedTasks,double busyRatio,LatencyHistogram queueWaitTimes,
+                LatencyHistogram runTimes,List<WorkerMetrics> workers) {
+        this.poolSize = poolSize;
+        this.activeWorkers = activeWorkers;
+        this.queueDepth = queueDepth;
+        this.submittedTasks = submittedTasks;
+        this.completedTasks = completedTasks;
+        this.failedTasks = failedTasks;
+        this.rejectedTasks = rejectedTasks;
+        this.busyRatio = busyRatio;
+        this.queueWaitTimes = queueWaitTimes;
+        this.runTimes = runTimes;
+        this.workers = Collections.unmodifiableList(workers);
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    /**
+     * Workers that are not waiting for a task.
+     */
+    public int getActiveWorkers() {
+        return activeWorkers;
+    }
+
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * Every task passed to {@code execute}, {@code submit} and the like, rejected ones included.
+     */
+    public long getSubmittedTasks() {
+        return submittedTasks;
+    }
+
+    /**
+     * Tasks that finished running, the failed ones included.
+     */
+    public long getCompletedTasks() {
+        return completedTasks;
+    }
+
+    /**
+     * Tasks that threw. Tasks from {@code submit} never do: their exception goes to the future.
+     */
+    public long getFailedTasks() {
+        return failedTasks;
+    }
+
+    /**
+     * Tasks handed to the rejection policy, plus {@code tryExecute} and {@code trySubmit} calls that found the
+     * queue full.
+     */
+    public long getRejectedTasks() {
+        return rejectedTasks;
+    }
+
+    /**
+     * The share of time the workers, exited ones included, were not blocked waiting for work, over the time
+     * they were alive with metrics on. Looking for tasks and stealing them counts as busy.
+     */
+    public double getBusyRatio() {
+        return busyRatio;
+    }
+
+    /**
+     * From submission to the start of the run, for the sampled tasks, see
+     * {@link FixedThreadPool#setTimingSampleRate}.
+     */
+    public LatencyHistogram getQueueWaitTimes() {
+        return queueWaitTimes;
+    }
+
+    public LatencyHistogram getRunTimes() {
+        return runTimes;
+    }
+
+    /**
+     * The workers alive when the snapshot was taken.
+     */
+    public List<WorkerMetrics> getWorkers() {
+        return workers;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("poolSize=").append(poolSize).append(" active=").append(activeWorkers)
+                .append(" queueDepth=").append(queueDepth).append(" submitted=").append(submittedTasks)
+                .append(" completed=").append(completedTasks).append(" failed=").append(failedTasks)
+                .append(" rejected=").append(rejectedTasks)
+                .append(String.format(" busy=%.1f%%",busyRatio * 100)).append('\n')
+                .append("queue wait: ").append(queueWaitTimes).append('\n')
+                .append("run time:   ").append(runTimes);
+        for(WorkerMetrics w : workers) {
+            sb.append('\n').append("  ").append(w);
+        }
+        return sb.toString();
+    }
+
+    public static final class WorkerMetrics {
+
+        private final String name;
+        private final long completedTasks;
+        private final long busyNanos;
+        private final double busyRatio;
+
+        WorkerMetrics(String name,long completedTasks,long busyNanos,double busyRatio) {
+            this.name = name;
+            this.completedTasks = completedTasks;
+            this.busyNanos = busyNanos;
+            this.busyRatio = busyRatio;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCompletedTasks() {
+            return completedTasks;
+        }
+
+        /**
+         * Time the worker was alive with metrics on and not blocked waiting for work.
+         */
+        public long getBusyNanos() {
+            return busyNanos;
+        }
+
+        public double getBusyRatio() {
+            return busyRatio;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": completed=" + completedTasks + " busy=" + TimeUnit.NANOSECONDS.toMillis(busyNanos)
+                    + "ms" + String.format(" (%.1f%%)",busyRatio * 100);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package concurrent;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * What {@link FixedThreadPool} does with a task when its queue is full. Tasks submitted after shutdown are
+ * always rejected with a {@link RejectedExecutionException} and never reach the policy.
+ */
+public interface RejectionPolicy {
+
+    void rejected(Runnable task,FixedThreadPool pool);
+
+    /**
+     * Throws a {@link RejectedExecutionException}, the default.
+     */
+    RejectionPolicy ABORT = (task,pool) -> {
+        throw new RejectedExecutionException("Task queue is full");
+    };
+
+    /**
+     * Runs the task in the submitting thread. The submitter is busy until it is done and stops producing,
+     * which is the cheapest form of backpressure.
+     */
+    RejectionPolicy CALLER_RUNS = (task,pool) -> {
+        if(pool.isShutdown()) {
+            throw new RejectedExecutionException("Pool is shut down");
+        }
+        task.run();
+    };
+
+    /**
+     * Drops the oldest queued entry, cancelling it if it is a {@link java.util.concurrent.Future}, and
+     * submits the task again. For work where only the latest submissions matter.
+     */
+    RejectionPolicy DROP_OLDEST = (task,pool) -> {
+        if(pool.isShutdown()) {
+            throw new RejectedExecutionException("Pool is shut down");
+        }
+        pool.discardOldest();
+        pool.execute(task);
+    };
+
+    /**
+     * Blocks the submitter until there is room, and throws a {@link RejectedExecutionException} if there is
+     * none after {@code timeout}, or if the submitter is interrupted while waiting.
+     */
+    static RejectionPolicy blockWithTimeout(long timeout,TimeUnit unit) {
+        if(timeout<0) {
+            throw new IllegalArgumentException("Illegal timeout:" + timeout);
+        }
+        long timeoutNanos = unit.toNanos(timeout);
+        return (task,pool) -> {
+            boolean queued;
+            try {
+                queued = pool.offer(task,timeoutNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting for room in the queue",e);
+            }
+            if(!queued) {
+                throw new RejectedExecutionException("Task queue still full after " + timeout + " " + unit);
+            }
+        };
+    }
+}
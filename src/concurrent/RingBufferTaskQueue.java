@@ -0,0 +1,281 @@
+package concurrent;
+
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded lock free multi producer multi consumer queue on a preallocated ring (Vyukov's design, as in the
+ * Disruptor). Every slot carries a sequence number that says whose turn it is: a slot with sequence
+ * {@code pos} is free for the producer that claims position {@code pos}, one with {@code pos + 1} holds the
+ * element for the consumer that claims {@code pos}, which hands it back with {@code pos + capacity}. Claiming
+ * is one CAS on the enqueue or dequeue position, and nothing is allocated per element, unlike the nodes of a
+ * {@link java.util.concurrent.LinkedBlockingQueue}.
+ *
+ * The blocking methods wait with a {@link WaitStrategy}. Threads about to park register in a waiter queue,
+ * and whoever makes room or adds an element wakes one of them; a thread that only spins or yields needs no
+ * wake up and costs the other side nothing.
+ *
+ * Elements can only be taken from the head: {@link #remove(Object)} is not supported, and the iterator is a
+ * snapshot without {@code remove}.
+ */
+public class RingBufferTaskQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+
+    // the two positions sit 64 bytes apart so producers and consumers don't share a cache line
+    private static final int ENQUEUE = 7;
+    private static final int DEQUEUE = 15;
+
+    private final int capacity;
+    private final int mask;
+    private final Runnable[] buffer;
+    private final AtomicLongArray sequences;
+    private final AtomicLongArray positions = new AtomicLongArray(DEQUEUE + 8);
+    private final WaitStrategy waitStrategy;
+    private final Queue<Thread> notEmptyWaiters = new ConcurrentLinkedQueue<>();
+    private final Queue<Thread> notFullWaiters = new ConcurrentLinkedQueue<>();
+
+    public RingBufferTaskQueue(int capacity) {
+        this(capacity,WaitStrategy.DEFAULT);
+    }
+
+    /**
+     * @param capacity rounded up to a power of two, and to at least 2: with a single slot "holds the element
+     *                 of position {@code pos}" and "free for position {@code pos + 1}" would be the same sequence
+     */
+    public RingBufferTaskQueue(int capacity,WaitStrategy waitStrategy) {
+        if(capacity<=0 || capacity>1<<30) {
+            throw new IllegalArgumentException("Illegal capacity:" + capacity);
+        }
+        if(waitStrategy==null) {
+            throw new IllegalArgumentException("Wait strategy is null");
+        }
+        this.capacity = capacity<=2 ? 2 : Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = this.capacity - 1;
+        this.buffer = new Runnable[this.capacity];
+        this.sequences = new AtomicLongArray(this.capacity);
+        for(int i=0;i<this.capacity;i++) {
+            sequences.set(i,i);
+        }
+        this.waitStrategy = waitStrategy;
+    }
+
+    @Override
+    public boolean offer(Runnable task) {
+        Objects.requireNonNull(task);
+        long pos = positions.get(ENQUEUE);
+        while(true) {
+            int index = (int) (pos & mask);
+            long diff = sequences.get(index) - pos;
+            if(diff == 0) {
+                if(positions.compareAndSet(ENQUEUE,pos,pos + 1)) {
+                    break;
+                }
+                pos = positions.get(ENQUEUE);
+            } else if(diff < 0) {
+                return false;
+            } else {
+                pos = positions.get(ENQUEUE);
+            }
+        }
+        int index = (int) (pos & mask);
+        buffer[index] = task;
+        sequences.set(index,pos + 1);
+        signal(notEmptyWaiters);
+        return true;
+    }
+
+    @Override
+    public Runnable poll() {
+        long pos = positions.get(DEQUEUE);
+        while(true) {
+            int index = (int) (pos & mask);
+            long diff = sequences.get(index) - (pos + 1);
+            if(diff == 0) {
+                if(positions.compareAndSet(DEQUEUE,pos,pos + 1)) {
+                    break;
+                }
+                pos = positions.get(DEQUEUE);
+            } else if(diff < 0) {
+                return null;
+            } else {
+                pos = positions.get(DEQUEUE);
+            }
+        }
+        int index = (int) (pos & mask);
+        Runnable task = buffer[index];
+        buffer[index] = null;
+        sequences.set(index,pos + capacity);
+        signal(notFullWaiters);
+        return task;
+    }
+
+    @Override
+    public Runnable peek() {
+        while(true) {
+            long pos = positions.get(DEQUEUE);
+            int index = (int) (pos & mask);
+            if(sequences.get(index) != pos + 1) {
+                return null;
+            }
+            Runnable task = buffer[index];
+            // still unclaimed after the read, so it is the head and not an element of the next round
+            if(positions.get(DEQUEUE) == pos && task != null) {
+                return task;
+            }
+        }
+    }
+
+    @Override
+    public void put(Runnable task) throws InterruptedException {
+        offer(task,Long.MAX_VALUE,TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public boolean offer(Runnable task,long timeout,TimeUnit unit) throws InterruptedException {
+        Objects.requireNonNull(task);
+        long deadline = deadline(unit.toNanos(timeout));
+        Thread me = Thread.currentThread();
+        for(int step = 0; ; step++) {
+            if(offer(task)) {
+                return true;
+            }
+            if(!await(step,deadline,notFullWaiters,me)) {
+                return false;
+            }
+        }
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        return poll(Long.MAX_VALUE,TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public Runnable poll(long timeout,TimeUnit unit) throws InterruptedException {
+        long deadline = deadline(unit.toNanos(timeout));
+        Thread me = Thread.currentThread();
+        for(int step = 0; ; step++) {
+            Runnable task = poll();
+            if(task != null) {
+                return task;
+            }
+            if(!await(step,deadline,notEmptyWaiters,me)) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Approximate while producers or consumers are active.
+     */
+    @Override
+    public int size() {
+        long size = positions.get(ENQUEUE) - positions.get(DEQUEUE);
+        return (int) Math.max(0,Math.min(capacity,size));
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return peek() == null;
+    }
+
+    @Override
+    public int remainingCapacity() {
+        return capacity - size();
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c) {
+        return drainTo(c,Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c,int maxElements) {
+        Objects.requireNonNull(c);
+        if(c == this) {
+            throw new IllegalArgumentException();
+        }
+        int n = 0;
+        for(Runnable task; n < maxElements && (task = poll()) != null; n++) {
+            c.add(task);
+        }
+        return n;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        throw new UnsupportedOperationException("Only the head can be removed");
+    }
+
+    /**
+     * A snapshot of the elements that were in the queue when it was taken; tasks added or taken meanwhile may
+     * or may not be in it.
+     */
+    @Override
+    public Iterator<Runnable> iterator() {
+        List<Runnable> snapshot = new ArrayList<>();
+        long pos = positions.get(DEQUEUE);
+        long end = positions.get(ENQUEUE);
+        for(; pos < end; pos++) {
+            int index = (int) (pos & mask);
+            Runnable task = buffer[index];
+            if(sequences.get(index) == pos + 1 && task != null) {
+                snapshot.add(task);
+            }
+        }
+        return Collections.unmodifiableList(snapshot).iterator();
+    }
+
+    //<----------------------------------------- Private Helper Methods ------------------------------------>//
+
+    private static long deadline(long timeoutNanos) {
+        long now = System.nanoTime();
+        // saturate, Long.MAX_VALUE means forever
+        return now + timeoutNanos < now ? Long.MAX_VALUE : now + timeoutNanos;
+    }
+
+    /**
+     * Waits once after a failed attempt, returns false when the time is up. A thread that is going to park
+     * registers and then looks again, and the other side publishes its change with a volatile write before it
+     * looks for waiters, so either the waiter sees the change or it gets unparked.
+     */
+    private boolean await(int step,long deadline,Queue<Thread> waiters,Thread me) throws InterruptedException {
+        if(Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        long remaining = deadline - System.nanoTime();
+        if(remaining <= 0) {
+            return false;
+        }
+        if(waitStrategy.parks(step)) {
+            waiters.offer(me);
+            if(!isReady(waiters)) {
+                waitStrategy.idle(step,remaining);
+            }
+            waiters.remove(me);
+        } else {
+            waitStrategy.idle(step,remaining);
+        }
+        return true;
+    }
+
+    private boolean isReady(Queue<Thread> waiters) {
+        return waiters == notEmptyWaiters ? peek() != null : size() < capacity;
+    }
+
+    private static void signal(Queue<Thread> waiters) {
+        if(!waiters.isEmpty()) {
+            Thread waiter = waiters.poll();
+            if(waiter != null) {
+                LockSupport.unpark(waiter);
+            }
+        }
+    }
+}
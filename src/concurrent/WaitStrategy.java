@@ -0,0 +1,57 @@
+package concurrent;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * How a thread waits on a {@link RingBufferTaskQueue} that is empty (or full, for a producer). The queue calls
+ * {@link #idle} after every failed attempt, with {@code step} counting them from 0, and tries again.
+ *
+ * A thread is only woken by the other side when the strategy parks, and for that the queue has to register
+ * it first, so a strategy has to say through {@link #parks} on which steps it calls
+ * {@link LockSupport#parkNanos}. Spinning and yielding cost CPU while idle, but pick up new work within
+ * nanoseconds rather than the microseconds an unpark takes.
+ */
+public interface WaitStrategy {
+
+    void idle(int step,long remainingNanos);
+
+    boolean parks(int step);
+
+    /**
+     * Never parks. Lowest latency, but every idle worker burns a core until its keep alive time is up.
+     */
+    WaitStrategy BUSY_SPIN = spinYieldPark(Integer.MAX_VALUE,0);
+
+    /**
+     * Spins briefly and then yields, for pools that have a core each and want to stay off the scheduler.
+     */
+    WaitStrategy YIELDING = spinYieldPark(100,Integer.MAX_VALUE);
+
+    /**
+     * Spins for a few hundred nanoseconds, yields a few times and then parks until woken.
+     */
+    WaitStrategy DEFAULT = spinYieldPark(64,16);
+
+    static WaitStrategy spinYieldPark(int spins,int yields) {
+        if(spins<0 || yields<0) {
+            throw new IllegalArgumentException("Illegal spins or yields:" + spins + "," + yields);
+        }
+        long yieldUntil = (long) spins + yields;
+        return new WaitStrategy() {
+            @Override
+            public void idle(int step,long remainingNanos) {
+                if(step < spins) {
+                    Thread.onSpinWait();
+                } else if(step < yieldUntil) {
+                    Thread.yield();
+                } else {
+                    LockSupport.parkNanos(this,remainingNanos);
+                }
+            }
+            @Override
+            public boolean parks(int step) {
+                return step >= yieldUntil;
+            }
+        };
+    }
+}
@@ -0,0 +1,92 @@
+package concurrent;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Chase-Lev work stealing deque. The owning worker pushes and pops at the bottom without any CAS unless it
+ * races for the last task; other workers steal from the top with a single CAS on {@code top}. The array
+ * doubles when full and never shrinks.
+ *
+ * A stolen slot is left as it is rather than cleared, since the owner may already be reusing it; it is
+ * overwritten once the bottom comes around again.
+ */
+final class WorkStealingDeque {
+
+    private static final int INITIAL_CAPACITY = 1 << 8;
+
+    private final AtomicLong top = new AtomicLong();
+    private volatile long bottom;
+    private volatile AtomicReferenceArray<Runnable> array = new AtomicReferenceArray<>(INITIAL_CAPACITY);
+
+    /**
+     * Owner only.
+     */
+    void push(Runnable task) {
+        long b = bottom;
+        long t = top.get();
+        AtomicReferenceArray<Runnable> a = array;
+        if (b - t >= a.length() - 1) {
+            a = grow(a, t, b);
+        }
+        a.lazySet((int) (b & (a.length() - 1)), task);
+        bottom = b + 1;
+    }
+
+    /**
+     * Owner only. Takes the most recently pushed task.
+     */
+    Runnable pop() {
+        long b = bottom - 1;
+        AtomicReferenceArray<Runnable> a = array;
+        bottom = b;
+        long t = top.get();
+        if (t > b) {
+            bottom = b + 1;
+            return null;
+        }
+        int index = (int) (b & (a.length() - 1));
+        Runnable task = a.get(index);
+        if (t == b) {
+            // last task, a thief may be after it too
+            if (!top.compareAndSet(t, t + 1)) {
+                task = null;
+            }
+            bottom = b + 1;
+        } else {
+            a.lazySet(index, null);
+        }
+        return task;
+    }
+
+    /**
+     * Any thread. Takes the oldest task, or returns null if the deque looked empty or another thief won.
+     */
+    Runnable steal() {
+        long t = top.get();
+        long b = bottom;
+        if (t >= b) {
+            return null;
+        }
+        AtomicReferenceArray<Runnable> a = array;
+        Runnable task = a.get((int) (t & (a.length() - 1)));
+        return task != null && top.compareAndSet(t, t + 1) ? task : null;
+    }
+
+    boolean isEmpty() {
+        return top.get() >= bottom;
+    }
+
+    int size() {
+        return (int) Math.max(0, bottom - top.get());
+    }
+
+    private AtomicReferenceArray<Runnable> grow(AtomicReferenceArray<Runnable> a, long t, long b) {
+        AtomicReferenceArray<Runnable> bigger = new AtomicReferenceArray<>(a.length() << 1);
+        for (long i = t; i < b; i++) {
+            bigger.lazySet((int) (i & (bigger.length() - 1)), a.get((int) (i & (a.length() - 1))));
+        }
+        array = bigger;
+        return bigger;
+    }
+}
@@ -7,12 +7,14 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 
 import concurrent.FixedThreadPool;
+import concurrent.RejectionPolicy;
 
 public class Grep {
 
     private static final int BUFFER_SIZE = 8192;
     private static final int ARRAY_SIZE = 8192;
     private static final int NUM_THREADS = 16;
+    private static final int QUEUE_CAPACITY = 1024;
 
     private static String pattern;
     private static int[] lps;
@@ -40,7 +42,9 @@ public class Grep {
             if(!file.isDirectory()) {
                 findPattern(file.getPath());
             } else {
-                ExecutorService executorService = new FixedThreadPool(NUM_THREADS);
+                // when the workers fall behind the walking thread greps the file itself instead of queueing it,
+                // so a huge tree does not end up as millions of queued tasks
+                ExecutorService executorService = new FixedThreadPool(NUM_THREADS,QUEUE_CAPACITY,RejectionPolicy.CALLER_RUNS);
                 processFile(file,executorService);
                 executorService.shutdown();
                 executorService.awaitTermination(60, TimeUnit.MINUTES);